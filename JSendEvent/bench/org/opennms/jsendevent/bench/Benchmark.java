@@ -0,0 +1,183 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal benchmark harness. An operation is run in warmup and measurement
+ * iterations of a fixed duration, the throughput and the bytes allocated per
+ * operation are reported. The allocation is taken from the thread allocation
+ * counter of the HotSpot ThreadMXBean if available.
+ * 
+ * @author indigo@open-factory.org
+ */
+public abstract class Benchmark
+{
+  /** Results of the operations are folded into this field */
+  private static volatile int s_sink;
+
+  /** Name of the benchmark */
+  private String m_name;
+
+  /**
+   * Constructor
+   * 
+   * @param name
+   *          Name of the benchmark
+   */
+  public Benchmark (String name)
+  {
+    this.m_name = name;
+  }
+
+  /**
+   * Get the name of the benchmark
+   * 
+   * @return Name
+   */
+  public String getName ()
+  {
+    return this.m_name;
+  }
+
+  /**
+   * Run one operation
+   * 
+   * @return Result of the operation, consumed so it is not optimized away
+   * @throws Exception
+   *           Operation failed
+   */
+  public abstract Object operation () throws Exception;
+
+  /**
+   * Release resources after the benchmark
+   * 
+   * @throws Exception
+   *           Error releasing resources
+   */
+  public void tearDown () throws Exception
+  {
+  }
+
+  /**
+   * Run the benchmark and print the result
+   * 
+   * @param warmups
+   *          Warmup iterations
+   * @param iterations
+   *          Measurement iterations
+   * @param iterationMillis
+   *          Duration of one iteration in milliseconds
+   * @throws Exception
+   *           Operation failed
+   */
+  public void run (int warmups, int iterations, long iterationMillis)
+      throws Exception
+  {
+    try
+    {
+      for (int i = 0; i < warmups; i++)
+      {
+        this.iteration (iterationMillis);
+      }
+      double opsPerSecond = 0;
+      double bytesPerOp = 0;
+      for (int i = 0; i < iterations; i++)
+      {
+        double[] result = this.iteration (iterationMillis);
+        opsPerSecond += result[0] / iterations;
+        bytesPerOp += result[1] / iterations;
+      }
+      System.out.println (String.format ("%-48s %14.1f ops/s %12.1f B/op",
+          this.m_name, opsPerSecond, bytesPerOp));
+    } finally
+    {
+      this.tearDown ();
+    }
+  }
+
+  /**
+   * Run the operation for the given time
+   * 
+   * @param millis
+   *          Duration in milliseconds
+   * @return Operations per second and allocated bytes per operation
+   * @throws Exception
+   *           Operation failed
+   */
+  private double[] iteration (long millis) throws Exception
+  {
+    long allocatedBefore = allocatedBytes ();
+    long start = System.nanoTime ();
+    long end = start + millis * 1000000L;
+    long ops = 0;
+    long now;
+    int sink = 0;
+    do
+    {
+      // Check the time every 64 operations only
+      for (int i = 0; i < 64; i++)
+      {
+        sink += System.identityHashCode (this.operation ());
+      }
+      ops += 64;
+      now = System.nanoTime ();
+    } while (now < end);
+    s_sink += sink;
+
+    long allocated = allocatedBytes () - allocatedBefore;
+    return new double[] { ops * 1e9 / (now - start),
+        allocatedBefore < 0 ? Double.NaN : (double) allocated / ops };
+  }
+
+  /**
+   * Get the bytes allocated by the current thread
+   * 
+   * @return Allocated bytes or -1 if not supported
+   */
+  private static long allocatedBytes ()
+  {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean ();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+    {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes (Thread.currentThread ().getId ());
+    }
+    return -1;
+  }
+}
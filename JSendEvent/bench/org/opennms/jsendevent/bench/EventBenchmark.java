@@ -0,0 +1,367 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opennms.jsendevent.exceptions.ParameterException;
+import org.opennms.jsendevent.utils.EventdStandIn;
+import org.opennms.jsendevent.utils.OnmsConnectionPool;
+import org.opennms.jsendevent.utils.OnmsEventSender;
+import org.opennms.jsendevent.utils.OnmsEventTemplate;
+import org.opennms.jsendevent.utils.OnmsEventWriter;
+import org.opennms.jsendevent.utils.OnmsEventXml;
+import org.w3c.dom.bootstrap.DOMImplementationRegistry;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSOutput;
+import org.w3c.dom.ls.LSSerializer;
+
+/**
+ * Benchmarks for building, serializing and sending events. The benchmarks are
+ * run for several parameter counts and payload sizes, the send benchmarks
+ * write to an in-process {@link EventdStandIn}.
+ * 
+ * <pre>
+ * java -cp bin:bench-bin org.opennms.jsendevent.bench.EventBenchmark [filter]
+ * </pre>
+ * 
+ * Only benchmarks with the filter in their name are run.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class EventBenchmark
+{
+  /** Warmup iterations */
+  private static final int WARMUPS = 3;
+
+  /** Measurement iterations */
+  private static final int ITERATIONS = 5;
+
+  /** Milliseconds per iteration */
+  private static final long ITERATION_MILLIS = 1000;
+
+  /** Parameter counts */
+  private static final int[] PARM_COUNTS = { 0, 4, 16 };
+
+  /** Payload sizes of the description and each parameter value */
+  private static final int[] PAYLOAD_SIZES = { 16, 1024, 16384 };
+
+  /** Output stream discarding everything */
+  private static final OutputStream NULL_OUTPUT = new OutputStream ()
+  {
+    public void write (int b)
+    {
+    }
+
+    public void write (byte[] b, int off, int len)
+    {
+    }
+  };
+
+  /**
+   * Run the benchmarks
+   * 
+   * @param args
+   *          Optional filter for the benchmark names
+   * @throws Exception
+   *           Benchmark failed
+   */
+  public static void main (String[] args) throws Exception
+  {
+    String filter = args.length > 0 ? args[0] : "";
+    final EventdStandIn eventd = new EventdStandIn (0, InetAddress
+        .getByName ("127.0.0.1"));
+    eventd.start ();
+    final String port = String.valueOf (eventd.getPort ());
+
+    run (filter, new Benchmark ("construct")
+    {
+      public Object operation ()
+      {
+        return new OnmsEventXml ();
+      }
+    });
+
+    for (final int parms : PARM_COUNTS)
+    {
+      for (final int size : PAYLOAD_SIZES)
+      {
+        final String suffix = "[parms=" + parms + ",size=" + size + "]";
+        final String payload = payload (size);
+        final OnmsEventXml event = createEvent (parms, payload);
+
+        run (filter, new Benchmark ("build" + suffix)
+        {
+          public Object operation ()
+          {
+            return createEvent (parms, payload);
+          }
+        });
+
+        run (filter, new Benchmark ("serialize-stream" + suffix)
+        {
+          private OnmsEventWriter m_writer = new OnmsEventWriter (NULL_OUTPUT);
+
+          public Object operation () throws IOException
+          {
+            this.m_writer.writeLog (event);
+            return this.m_writer;
+          }
+        });
+
+        run (filter, new Benchmark ("serialize-template" + suffix)
+        {
+          private OnmsEventTemplate m_template = createTemplate (parms);
+
+          private Map<String, String> m_values = createValues (parms, payload);
+
+          public Object operation () throws Exception
+          {
+            return this.m_template.toByteArray (this.m_values);
+          }
+        });
+
+        run (filter, new Benchmark ("serialize-dom" + suffix)
+        {
+          public Object operation () throws Exception
+          {
+            // The former send path: DOM build, registry lookup, LSSerializer
+            event.setTime (event.getTime ());
+            DOMImplementationLS feature = (DOMImplementationLS) DOMImplementationRegistry
+                .newInstance ().getDOMImplementation ("XML 3.0").getFeature (
+                    "LS", "3.0");
+            LSSerializer serializer = feature.createLSSerializer ();
+            LSOutput output = feature.createLSOutput ();
+            output.setByteStream (NULL_OUTPUT);
+            serializer.write (event.getEventDoc (), output);
+            return serializer;
+          }
+        });
+
+        run (filter, new Benchmark ("serialize-transformer" + suffix)
+        {
+          public Object operation ()
+          {
+            event.setTime (event.getTime ());
+            return event.toString ();
+          }
+        });
+
+        run (filter, new Benchmark ("send-persistent" + suffix)
+        {
+          private OnmsEventSender m_sender = connect (port);
+
+          public Object operation () throws IOException
+          {
+            this.m_sender.send (event);
+            return this.m_sender;
+          }
+
+          public void tearDown () throws IOException
+          {
+            this.m_sender.close ();
+          }
+        });
+
+        run (filter, new Benchmark ("send-pooled" + suffix)
+        {
+          private OnmsConnectionPool m_pool = new OnmsConnectionPool ();
+
+          public Object operation () throws IOException
+          {
+            this.m_pool.send ("127.0.0.1", port, event);
+            return this.m_pool;
+          }
+
+          public void tearDown ()
+          {
+            this.m_pool.close ();
+          }
+        });
+      }
+    }
+
+    // Connection per event as the command line does, one size only to keep
+    // the number of sockets in TIME_WAIT low
+    final OnmsEventXml event = createEvent (4, payload (16));
+    run (filter, new Benchmark ("send-connect-per-event[parms=4,size=16]")
+    {
+      public Object operation () throws IOException
+      {
+        OnmsEventSender sender = connect (port);
+        sender.sendEvent (event);
+        return sender;
+      }
+    });
+
+    eventd.close ();
+    System.out.println ("Eventd stand-in received " + eventd);
+  }
+
+  /**
+   * Run a benchmark if its name matches the filter
+   * 
+   * @param filter
+   *          Filter for the name
+   * @param benchmark
+   *          Benchmark to run
+   * @throws Exception
+   *           Benchmark failed
+   */
+  private static void run (String filter, Benchmark benchmark)
+      throws Exception
+  {
+    if (benchmark.getName ().contains (filter))
+    {
+      benchmark.run (WARMUPS, ITERATIONS, ITERATION_MILLIS);
+    } else
+    {
+      benchmark.tearDown ();
+    }
+  }
+
+  /**
+   * Build an event like the command line does
+   * 
+   * @param parms
+   *          Number of parameters
+   * @param payload
+   *          Description and parameter values
+   * @return Event
+   */
+  private static OnmsEventXml createEvent (int parms, String payload)
+  {
+    OnmsEventXml event = new OnmsEventXml ();
+    event.setUei ("uei.opennms.org/jsendevent/benchmark");
+    event.setInterface ("172.16.1.1");
+    event.setNodeId ("42");
+    event.setService ("ICMP");
+    event.setDescription (payload);
+    for (int i = 0; i < parms; i++)
+    {
+      event.addParm ("parm" + i, payload);
+    }
+    return event;
+  }
+
+  /**
+   * Build a template for the events of {@link #createEvent(int, String)} with
+   * the description and the parameter values as variables
+   * 
+   * @param parms
+   *          Number of parameters
+   * @return Template
+   * @throws ParameterException
+   *           Template not correct
+   */
+  private static OnmsEventTemplate createTemplate (int parms)
+      throws ParameterException
+  {
+    StringBuilder definition = new StringBuilder (
+        "-u uei.opennms.org/jsendevent/benchmark -i 172.16.1.1 -n 42 -s ICMP"
+            + " -d ${descr}");
+    for (int i = 0; i < parms; i++)
+    {
+      definition.append (" -p parm" + i + " ${parm" + i + "}");
+    }
+    return OnmsEventTemplate.parse ("benchmark", definition.toString ());
+  }
+
+  /**
+   * Build the variables for a template from {@link #createTemplate(int)}
+   * 
+   * @param parms
+   *          Number of parameters
+   * @param payload
+   *          Description and parameter values
+   * @return Values by variable name
+   */
+  private static Map<String, String> createValues (int parms, String payload)
+  {
+    Map<String, String> values = new HashMap<String, String> ();
+    // Fixed like the time of the event from createEvent
+    values.put ("time", new OnmsEventXml ().getTime ());
+    values.put ("descr", payload);
+    for (int i = 0; i < parms; i++)
+    {
+      values.put ("parm" + i, payload);
+    }
+    return values;
+  }
+
+  /**
+   * Create a payload with characters which need escaping
+   * 
+   * @param size
+   *          Number of characters
+   * @return Payload
+   */
+  private static String payload (int size)
+  {
+    char[] chars = new char[size];
+    Arrays.fill (chars, 'x');
+    for (int i = 0; i < size; i += 64)
+    {
+      chars[i] = '<';
+    }
+    return new String (chars);
+  }
+
+  /**
+   * Connect a sender to the eventd stand-in
+   * 
+   * @param port
+   *          TCP port of the eventd stand-in
+   * @return Connected sender
+   */
+  private static OnmsEventSender connect (String port)
+  {
+    OnmsEventSender sender = new OnmsEventSender ();
+    try
+    {
+      sender.setConnection ("127.0.0.1", port);
+    } catch (IOException e)
+    {
+      throw new IllegalStateException (e);
+    }
+    return sender;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.opennms.jsendevent.utils.EventdStandIn;
+import org.opennms.jsendevent.utils.OnmsEventSender;
+import org.opennms.jsendevent.utils.OnmsEventXml;
+
+/**
+ * Regression check of the counters of the {@link EventdStandIn}. Events with
+ * parameter values ending in parts of the CDATA and comment terminators, and
+ * documents with such comments, are sent to an in-process stand-in which has
+ * to count all of them without an error.
+ * 
+ * <pre>
+ * java -cp bin:bench-bin org.opennms.jsendevent.bench.StandInCheck
+ * </pre>
+ * 
+ * The exit code is 0 if all counters match, otherwise 1.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class StandInCheck
+{
+  /** Parameter values ending in parts of the terminators */
+  private static final String[] VALUES = { "[1,2]", "a]]", "]]]>", "]]]]",
+      "x-", "--", "--->", "" };
+
+  /** Documents with comments and sections ending in the terminators */
+  private static final String[] DOCUMENTS = {
+      "<log><!-- a ---><events><event><uei>a</uei></event></events></log>",
+      "<log><!-- --- --><events><event><uei>b</uei></event></events></log>",
+      "<log><events><event><uei><![CDATA[c]]]]></uei></event></events></log>",
+      "<?xml version=\"1.0\"??><log><events><event><uei>d</uei></event>"
+          + "</events></log>" };
+
+  /** Milliseconds to wait for the stand-in to count the events */
+  private static final long TIMEOUT = 5000;
+
+  /**
+   * Run the check
+   * 
+   * @param args
+   *          Not used
+   * @throws Exception
+   *           Check could not be run
+   */
+  public static void main (String[] args) throws Exception
+  {
+    EventdStandIn eventd = new EventdStandIn (0, InetAddress
+        .getByName ("127.0.0.1"));
+    eventd.start ();
+    OnmsEventSender sender = new OnmsEventSender ();
+    sender.setConnection ("127.0.0.1", String.valueOf (eventd.getPort ()));
+
+    int events = VALUES.length + DOCUMENTS.length;
+    try
+    {
+      for (String value : VALUES)
+      {
+        OnmsEventXml event = new OnmsEventXml ();
+        event.setUei ("uei.opennms.org/jsendevent/check");
+        event.setInterface ("127.0.0.1");
+        event.addParm ("value", value);
+        event.addParm ("last", value);
+        sender.send (event);
+      }
+      for (String document : DOCUMENTS)
+      {
+        sender.write (document.getBytes ("UTF-8"), 1);
+      }
+      sender.close ();
+    } catch (IOException e)
+    {
+      // The stand-in closes the connection on malformed XML
+      System.out.println ("Sending failed. Error: " + e.getMessage ());
+    }
+
+    long until = System.currentTimeMillis () + TIMEOUT;
+    while (eventd.getEvents () < events && eventd.getErrors () == 0
+        && System.currentTimeMillis () < until)
+    {
+      Thread.sleep (10);
+    }
+    eventd.close ();
+
+    boolean ok = eventd.getEvents () == events
+        && eventd.getDocuments () == events && eventd.getErrors () == 0;
+    System.out.println ((ok ? "OK" : "FAILED") + " sent " + events
+        + " events, stand-in " + eventd);
+    System.exit (ok ? 0 : 1);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.opennms.jsendevent.utils.OnmsEventWriter;
+import org.opennms.jsendevent.utils.OnmsEventXml;
+import org.w3c.dom.bootstrap.DOMImplementationRegistry;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSOutput;
+import org.w3c.dom.ls.LSSerializer;
+
+/**
+ * Regression check of the {@link OnmsEventWriter} against the LSSerializer of
+ * the former send path. Events with empty values, control characters,
+ * characters beyond the BMP, line feeds and CDATA terminators in the text
+ * elements, the uuid attribute and the parameters are written by both, the
+ * bytes have to be the same. Unpaired surrogates are not checked, the
+ * LSSerializer fails on them.
+ * 
+ * <pre>
+ * java -cp bin:bench-bin org.opennms.jsendevent.bench.WriterCheck
+ * </pre>
+ * 
+ * The exit code is 0 if all events are written the same, otherwise 1.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class WriterCheck
+{
+  /** Pieces the random texts are built from */
+  private static final String[] PIECES = { "a", " ", "]", "]]>", ">", "<",
+      "&", "\"", "'", "\t", "\n", "\r", "\u0000", "\u0001", "\u001f",
+      "\u007f", "\u0085", "\u009f", "\u00a0", "\u00e9", "\u2028", "\ufffe",
+      "\ud83d\ude00" };
+
+  /** Number of random events */
+  private static final int EVENTS = 20000;
+
+  /** Maximum number of pieces of a text */
+  private static final int MAX_PIECES = 12;
+
+  /**
+   * Run the check
+   * 
+   * @param args
+   *          Not used
+   * @throws Exception
+   *           Check could not be run
+   */
+  public static void main (String[] args) throws Exception
+  {
+    DOMImplementationLS feature = (DOMImplementationLS) DOMImplementationRegistry
+        .newInstance ().getDOMImplementation ("XML 3.0").getFeature ("LS",
+            "3.0");
+    Random random = new Random (42);
+    int different = 0;
+    for (int i = 0; i < PIECES.length + EVENTS; i++)
+    {
+      String[] texts = new String[5];
+      for (int j = 0; j < texts.length; j++)
+      {
+        // Every piece alone first, then random texts
+        texts[j] = i < PIECES.length ? PIECES[i] : text (random);
+      }
+      OnmsEventXml event = new OnmsEventXml ();
+      event.setUei ("uei.opennms.org/jsendevent/check");
+      event.setDescription (texts[0]);
+      event.setUuid (texts[1].length () == 0 ? null : texts[1]);
+      event.addParm (texts[2], texts[3]);
+      event.addParm ("empty", "");
+      event.setOperinstruct (texts[4]);
+
+      LSSerializer serializer = feature.createLSSerializer ();
+      LSOutput output = feature.createLSOutput ();
+      ByteArrayOutputStream expected = new ByteArrayOutputStream ();
+      output.setByteStream (expected);
+      serializer.write (event.getEventDoc (), output);
+      byte[] written = OnmsEventWriter.toByteArray (event);
+      if (!Arrays.equals (expected.toByteArray (), written))
+      {
+        if (different++ == 0)
+        {
+          System.out.println ("Expected " + expected.toString ("UTF-8"));
+          System.out.println ("Written  " + new String (written, "UTF-8"));
+        }
+      }
+    }
+
+    boolean ok = different == 0;
+    System.out.println ((ok ? "OK" : "FAILED") + " wrote "
+        + (PIECES.length + EVENTS) + " events, " + different + " different");
+    System.exit (ok ? 0 : 1);
+  }
+
+  /**
+   * Build a random text of the pieces
+   * 
+   * @param random
+   *          Random numbers
+   * @return Text, may be empty
+   */
+  private static String text (Random random)
+  {
+    StringBuilder text = new StringBuilder ();
+    int pieces = random.nextInt (MAX_PIECES);
+    for (int i = 0; i < pieces; i++)
+    {
+      text.append (PIECES[random.nextInt (PIECES.length)]);
+    }
+    return text.toString ();
+  }
+}
@@ -35,9 +35,19 @@
 
 package org.opennms.jsendevent;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.DailyRollingFileAppender;
 import org.apache.log4j.HTMLLayout;
@@ -45,9 +55,26 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.opennms.jsendevent.exceptions.ParameterException;
 import org.opennms.jsendevent.utils.ArgumentMap;
-import org.opennms.jsendevent.utils.HTMLDateLayout;
+import org.opennms.jsendevent.utils.AsyncLogAppender;
+import org.opennms.jsendevent.utils.BatchEventReader;
+import org.opennms.jsendevent.utils.DaemonClient;
+import org.opennms.jsendevent.utils.EventdStandIn;
+import org.opennms.jsendevent.utils.HTMLRowLayout;
+import org.opennms.jsendevent.utils.OnmsDatagramSender;
+import org.opennms.jsendevent.utils.OnmsEventFanOut;
+import org.opennms.jsendevent.utils.OnmsEventImporter;
+import org.opennms.jsendevent.utils.OnmsEventPipeline;
 import org.opennms.jsendevent.utils.OnmsEventSender;
+import org.opennms.jsendevent.utils.OnmsEventSpool;
+import org.opennms.jsendevent.utils.OnmsEventSuppressor;
+import org.opennms.jsendevent.utils.OnmsEventTarget;
+import org.opennms.jsendevent.utils.OnmsEventWriter;
 import org.opennms.jsendevent.utils.OnmsEventXml;
+import org.opennms.jsendevent.utils.OnmsLoadGenerator;
+import org.opennms.jsendevent.utils.OnmsNioEngine;
+import org.opennms.jsendevent.utils.OnmsRateLimiter;
+import org.opennms.jsendevent.utils.OnmsSenderMetrics;
+import org.opennms.jsendevent.utils.OnmsTargetSelector;
 
 /**
  * Main class to start
@@ -62,19 +89,42 @@ public class Controller
   /** Log file */
   private String m_logfile;
 
+  /** Number of events read in batch mode */
+  private int m_batchEvents;
+
+  /** Daemon running in this process or null */
+  private volatile JSendEventDaemon m_daemon;
+
   /**
    * Default constructor
    */
   public Controller ()
   {
-    HTMLLayout layout = new HTMLDateLayout ();
+    HTMLLayout layout = new HTMLRowLayout ();
     this.m_logfile = JSendEventConstants.DEFAULT_LOGFILE;
     try
     {
       DailyRollingFileAppender fileAppender = new DailyRollingFileAppender (
           layout, this.m_logfile, "'.'dd-MM-yyyy_HH-mm");
+      final AsyncLogAppender asyncAppender = new AsyncLogAppender (
+          fileAppender, JSendEventConstants.LOG_BUFFER_SIZE);
       log.setLevel (Level.INFO);
-      log.addAppender (fileAppender);
+      log.addAppender (asyncAppender);
+
+      // Write the buffered log records before the process exits, after a
+      // daemon has logged its shutdown
+      Runtime.getRuntime ().addShutdownHook (new Thread ()
+      {
+        public void run ()
+        {
+          JSendEventDaemon daemon = Controller.this.m_daemon;
+          if (daemon != null)
+          {
+            daemon.stop ();
+          }
+          asyncAppender.close ();
+        }
+      });
 
     } catch (IOException e)
     {
@@ -97,6 +147,30 @@ public class Controller
       System.exit (JSendEventConstants.EXIT_OK);
     } else
     {
+      // Hand the arguments over to a running daemon to save the JVM startup
+      // and the eventd connection setup. Spooling, suppression and rate
+      // limits are taken by the daemon from its own configuration, a request
+      // asking for them is not forwarded.
+      List<String> argList = Arrays.asList (args);
+      if (!argList.contains (JSendEventConstants.PARM_DAEMON)
+          && !argList.contains (JSendEventConstants.PARM_BATCH)
+          && !argList.contains (JSendEventConstants.PARM_LOAD)
+          && !argList.contains (JSendEventConstants.PARM_IMPORT)
+          && !argList.contains (JSendEventConstants.PARM_STANDIN)
+          && !argList.contains (JSendEventConstants.PARM_UDP)
+          && !argList.contains (JSendEventConstants.PARM_RECEIPT_WINDOW)
+          && !argList.contains (JSendEventConstants.PARM_SPOOL)
+          && !argList.contains (JSendEventConstants.PARM_SUPPRESS)
+          && !argList.contains (JSendEventConstants.PARM_LIMIT))
+      {
+        int exitCode = DaemonClient.forward (args,
+            JSendEventConstants.DEFAULT_DAEMON_PORT);
+        if (exitCode != DaemonClient.NO_DAEMON)
+        {
+          System.exit (exitCode);
+        }
+      }
+
       try
       {
         Controller controller = new Controller ();
@@ -110,21 +184,162 @@ public class Controller
         }
 
         log.debug ("Controller initialized");
+
+        if (argumentMap.containsKey (JSendEventConstants.PARM_DAEMON))
+        {
+          File spoolDirectory = null;
+          if (argumentMap.containsKey (JSendEventConstants.PARM_SPOOL))
+          {
+            spoolDirectory = new File (argumentMap
+                .get (JSendEventConstants.PARM_SPOOL));
+          }
+          OnmsRateLimiter rateLimiter = createRateLimiter (argumentMap);
+          JSendEventDaemon daemon = new JSendEventDaemon (controller,
+              JSendEventConstants.DEFAULT_DAEMON_PORT, spoolDirectory,
+              createSuppressor (argumentMap), rateLimiter);
+          controller.m_daemon = daemon;
+          try
+          {
+            if (argumentMap.containsKey (JSendEventConstants.PARM_NIO))
+            {
+              // Spool and rate limiter replay over a blocking sender
+              if (spoolDirectory != null || rateLimiter != null)
+              {
+                throw new ParameterException ("Argument "
+                    + JSendEventConstants.PARM_NIO
+                    + " is not supported with a spool or rate limit.");
+              }
+              daemon.setEngine (new OnmsNioEngine (argumentMap
+                  .containsKey (JSendEventConstants.PARM_OFFHEAP)));
+            }
+            daemon.run ();
+          } catch (IOException e)
+          {
+            log.error ("Error running daemon.\nError: " + e.getMessage ());
+            System.err.println ("Error running daemon.\nError: "
+                + e.getMessage ());
+            System.exit (JSendEventConstants.EXIT_FAILED);
+          }
+          System.exit (JSendEventConstants.EXIT_OK);
+        }
+
+        if (argumentMap.containsKey (JSendEventConstants.PARM_STANDIN))
+        {
+          runStandIn (argumentMap);
+          System.exit (JSendEventConstants.EXIT_OK);
+        }
+
+        if (argumentMap.containsKey (JSendEventConstants.PARM_LOAD))
+        {
+          OnmsLoadGenerator loadGenerator = new OnmsLoadGenerator (argumentMap);
+          loadGenerator.setRateLimiter (createRateLimiter (argumentMap));
+          try
+          {
+            loadGenerator.run (System.out);
+          } catch (InterruptedException e)
+          {
+            log.warn ("Load run interrupted");
+          }
+          log.info (loadGenerator.getReport ());
+          System.out.println (loadGenerator.getReport ());
+          System.exit (JSendEventConstants.EXIT_OK);
+        }
+
+        if (argumentMap.containsKey (JSendEventConstants.PARM_IMPORT))
+        {
+          OnmsEventImporter importer = new OnmsEventImporter (argumentMap);
+          try
+          {
+            importer.run (System.out);
+          } catch (IOException e)
+          {
+            log.error ("Import failed. Error: " + e.getMessage ());
+            System.err.println ("Import failed. Error: " + e.getMessage ());
+            System.exit (JSendEventConstants.EXIT_FAILED);
+          } catch (InterruptedException e)
+          {
+            log.warn ("Import interrupted");
+          }
+          log.info (importer.getReport ());
+          System.out.println (importer.getReport ());
+          System.exit (importer.isComplete () ? JSendEventConstants.EXIT_OK
+              : JSendEventConstants.EXIT_FAILED);
+        }
+
+        OnmsTargetSelector selector = new OnmsTargetSelector (argumentMap
+            .get (JSendEventConstants.PARM_HOST), argumentMap
+            .get (JSendEventConstants.PARM_PORT_EVENTD), argumentMap
+            .get (JSendEventConstants.PARM_STRATEGY));
+        boolean udp = argumentMap.containsKey (JSendEventConstants.PARM_UDP);
+        boolean pipelined = argumentMap
+            .containsKey (JSendEventConstants.PARM_RECEIPT_WINDOW);
+        OnmsEventSpool spool = selector.isFanOut () || udp || pipelined ? null
+            : openSpool (argumentMap);
         OnmsEventSender onmsEventSender = new OnmsEventSender ();
         log.debug ("Event sender initialized");
         OnmsEventXml onmsEventXml = null;
 
-        onmsEventXml = controller.initialize (argumentMap);
+        if (argumentMap.containsKey (JSendEventConstants.PARM_BATCH))
+        {
+          onmsEventXml = controller.initializeBatch (argumentMap
+              .get (JSendEventConstants.PARM_BATCH),
+              createSuppressor (argumentMap));
+        } else
+        {
+          onmsEventXml = controller.initialize (argumentMap);
+        }
 
-        onmsEventSender.setConnection (argumentMap
-            .get (JSendEventConstants.PARM_HOST), argumentMap
-            .get (JSendEventConstants.PARM_PORT_EVENTD));
+        if (udp)
+        {
+          System.exit (sendDatagrams (argumentMap, selector, onmsEventXml));
+        }
+
+        if (pipelined)
+        {
+          System.exit (sendPipelined (argumentMap, selector, onmsEventXml));
+        }
+
+        if (selector.isFanOut ())
+        {
+          System.exit (sendToAll (argumentMap, selector, onmsEventXml));
+        }
 
-        onmsEventSender.sendEvent (onmsEventXml);
-        log.info ("Sending event "
-            + argumentMap.get (JSendEventConstants.PARM_UEI) + " for "
-            + argumentMap.get (JSendEventConstants.PARM_INTERFACE)
-            + " successful.");
+        try
+        {
+          log.debug ("Connected to eventd "
+              + selector.connect (onmsEventSender));
+          if (spool != null)
+          {
+            spool.replay (onmsEventSender);
+          }
+          // A connection reset while eventd restarts is spooled as well
+          onmsEventSender.sendEvent (onmsEventXml);
+        } catch (IOException e)
+        {
+          if (spool == null)
+          {
+            throw e;
+          }
+          // Keep the event until eventd is reachable again
+          spool.append (OnmsEventWriter.toByteArray (onmsEventXml));
+          spool.sync ();
+          log.warn ("Eventd " + argumentMap.get (JSendEventConstants.PARM_HOST)
+              + " not reachable, event spooled. " + spool.size ()
+              + " events in spool. Error: " + e.getMessage ());
+          System.exit (JSendEventConstants.EXIT_OK);
+        }
+        if (argumentMap.containsKey (JSendEventConstants.PARM_BATCH))
+        {
+          log.info ("Sending " + controller.m_batchEvents + " events from "
+              + argumentMap.get (JSendEventConstants.PARM_BATCH)
+              + " successful.");
+        } else
+        {
+          log.info ("Sending event "
+              + argumentMap.get (JSendEventConstants.PARM_UEI) + " for "
+              + argumentMap.get (JSendEventConstants.PARM_INTERFACE)
+              + " successful.");
+        }
       } catch (ParameterException e)
       {
         log.error ("Parameter error.\nError: " + e.getMessage ());
@@ -137,8 +352,8 @@ public class Controller
         System.exit (JSendEventConstants.EXIT_FAILED);
       } catch (IOException e)
       {
-        System.err
-            .println ("Error writing logfile.\nError: " + e.getMessage ());
+        log.error ("Error sending event.\nError: " + e.getMessage ());
+        System.err.println ("Error sending event.\nError: " + e.getMessage ());
         System.exit (JSendEventConstants.EXIT_FAILED);
       }
       log.debug ("Exit code: " + JSendEventConstants.EXIT_OK);
@@ -146,14 +361,474 @@ public class Controller
     }
   }
 
+  /**
+   * Run the eventd stand-in until the process is terminated and print its
+   * counters every second while events arrive
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @throws ParameterException
+   *           Port, latency or read delay not numeric
+   * @throws IOException
+   *           Can't listen on the port
+   */
+  private static void runStandIn (ArgumentMap argumentMap)
+      throws ParameterException, IOException
+  {
+    EventdStandIn standIn;
+    try
+    {
+      standIn = new EventdStandIn (Integer.parseInt (argumentMap
+          .get (JSendEventConstants.PARM_PORT_EVENTD)));
+      if (argumentMap.containsKey (JSendEventConstants.PARM_STANDIN_LATENCY))
+      {
+        standIn.setLatency (Long.parseLong (argumentMap
+            .get (JSendEventConstants.PARM_STANDIN_LATENCY)));
+      }
+      if (argumentMap.containsKey (JSendEventConstants.PARM_STANDIN_READ_DELAY))
+      {
+        standIn.setReadDelay (Long.parseLong (argumentMap
+            .get (JSendEventConstants.PARM_STANDIN_READ_DELAY)));
+      }
+    } catch (NumberFormatException e)
+    {
+      throw new ParameterException ("Stand-in argument is not numeric: "
+          + e.getMessage ());
+    }
+    standIn.start ();
+    System.out.println ("Eventd stand-in listening on port "
+        + standIn.getPort ());
+
+    String last = standIn.toString ();
+    while (true)
+    {
+      try
+      {
+        Thread.sleep (1000);
+      } catch (InterruptedException e)
+      {
+        return;
+      }
+      String counters = standIn.toString ();
+      if (!counters.equals (last))
+      {
+        System.out.println (counters);
+        last = counters;
+      }
+    }
+  }
+
+  /**
+   * Send the event and all events added to it over one connection and wait
+   * for the receipts of eventd. Unacknowledged events are sent again after a
+   * reconnect.
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @param selector
+   *          Selector with all eventd
+   * @param onmsEventXml
+   *          Event to send
+   * @return Exit code, failed if not all events were acknowledged
+   * @throws ParameterException
+   *           Window not a positive number or strategy all
+   */
+  private static int sendPipelined (ArgumentMap argumentMap,
+      OnmsTargetSelector selector, OnmsEventXml onmsEventXml)
+      throws ParameterException
+  {
+    int window = (int) argumentMap.getNumber (
+        JSendEventConstants.PARM_RECEIPT_WINDOW, 0);
+    if (window < 1)
+    {
+      throw new ParameterException ("Argument "
+          + JSendEventConstants.PARM_RECEIPT_WINDOW + " "
+          + argumentMap.get (JSendEventConstants.PARM_RECEIPT_WINDOW)
+          + " is not a positive number.");
+    }
+    if (selector.isFanOut ())
+    {
+      throw new ParameterException ("Argument "
+          + JSendEventConstants.PARM_RECEIPT_WINDOW
+          + " is not supported with strategy "
+          + JSendEventConstants.STRATEGY_ALL + ".");
+    }
+
+    OnmsEventPipeline pipeline = new OnmsEventPipeline (selector, window);
+    try
+    {
+      pipeline.send (onmsEventXml);
+      pipeline.drain ();
+      log.info ("Sending " + pipeline.getAcknowledged () + " events to "
+          + pipeline.getTarget () + " acknowledged, " + pipeline.getResent ()
+          + " sent again.");
+      return JSendEventConstants.EXIT_OK;
+    } catch (IOException e)
+    {
+      log.error ("Error sending event.\nError: " + e.getMessage ());
+      System.err.println ("Error sending event.\nError: " + e.getMessage ());
+      return JSendEventConstants.EXIT_FAILED;
+    } finally
+    {
+      pipeline.close ();
+    }
+  }
+
+  /**
+   * Send the event and all events added to it over UDP, packed into as few
+   * datagrams as possible. Without acknowledgement there is nothing to fail
+   * over, the events go to the first eventd or with the strategy all to
+   * every eventd.
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @param selector
+   *          Selector with all eventd
+   * @param onmsEventXml
+   *          Event to send
+   * @return Exit code, failed if the datagrams could not be sent to an eventd
+   * @throws ParameterException
+   *           MTU not numeric or out of range
+   */
+  private static int sendDatagrams (ArgumentMap argumentMap,
+      OnmsTargetSelector selector, OnmsEventXml onmsEventXml)
+      throws ParameterException
+  {
+    int mtu = (int) argumentMap.getNumber (JSendEventConstants.PARM_UDP_MTU,
+        JSendEventConstants.UDP_DEFAULT_MTU);
+    if (mtu < JSendEventConstants.UDP_MIN_MTU
+        || mtu > JSendEventConstants.UDP_MAX_DATAGRAM)
+    {
+      throw new ParameterException ("Argument "
+          + JSendEventConstants.PARM_UDP_MTU + " " + mtu
+          + " is not between " + JSendEventConstants.UDP_MIN_MTU + " and "
+          + JSendEventConstants.UDP_MAX_DATAGRAM + ".");
+    }
+    List<OnmsEventTarget> targets = selector.isFanOut () ? selector
+        .getTargets () : selector.select ().subList (0, 1);
+    int events = 1 + onmsEventXml.getEvents ().size ();
+
+    int exitCode = JSendEventConstants.EXIT_OK;
+    for (OnmsEventTarget target : targets)
+    {
+      OnmsDatagramSender sender = null;
+      try
+      {
+        sender = new OnmsDatagramSender (target.getHost (), target.getPort (),
+            mtu);
+        sender.send (onmsEventXml);
+        sender.close ();
+        log.info ("Sending " + events + " events in " + sender.getDatagrams ()
+            + " datagrams to " + target + " successful.");
+      } catch (IOException e)
+      {
+        log.error ("Error sending event over UDP to " + target + ".\nError: "
+            + e.getMessage ());
+        System.err.println ("Error sending event over UDP to " + target
+            + ".\nError: " + e.getMessage ());
+        exitCode = JSendEventConstants.EXIT_FAILED;
+        if (sender != null)
+        {
+          try
+          {
+            sender.close ();
+          } catch (IOException ce)
+          {
+            log.debug ("Error closing UDP channel: " + ce.getMessage ());
+          }
+        }
+      }
+    }
+    return exitCode;
+  }
+
+  /**
+   * Send the event to all eventd at the same time. The event is serialized
+   * once, the result is logged per eventd.
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @param selector
+   *          Selector with all eventd
+   * @param onmsEventXml
+   *          Event to send
+   * @return Exit code, failed if the event was neither sent nor spooled for
+   *         an eventd
+   * @throws ParameterException
+   *           Spool directory can't be opened
+   */
+  private static int sendToAll (ArgumentMap argumentMap,
+      OnmsTargetSelector selector, OnmsEventXml onmsEventXml)
+      throws ParameterException
+  {
+    List<OnmsEventTarget> targets = selector.getTargets ();
+    Map<OnmsEventTarget, OnmsEventSpool> spools = null;
+    if (argumentMap.containsKey (JSendEventConstants.PARM_SPOOL))
+    {
+      spools = new HashMap<OnmsEventTarget, OnmsEventSpool> ();
+      for (OnmsEventTarget target : targets)
+      {
+        File directory = OnmsEventSpool.getTargetDirectory (new File (
+            argumentMap.get (JSendEventConstants.PARM_SPOOL)), target
+            .getHost (), target.getPort ());
+        try
+        {
+          spools.put (target, new OnmsEventSpool (directory));
+        } catch (IOException e)
+        {
+          throw new ParameterException ("Spool " + directory
+              + " can't be opened. Error: " + e.getMessage ());
+        }
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool (targets.size ());
+    List<OnmsEventFanOut.Result> results = new OnmsEventFanOut (executor)
+        .send (targets, null, spools, OnmsEventWriter
+            .toByteArray (onmsEventXml));
+    executor.shutdownNow ();
+
+    int exitCode = JSendEventConstants.EXIT_OK;
+    for (OnmsEventFanOut.Result result : results)
+    {
+      if (result.getStatus () == OnmsEventFanOut.Result.SENT)
+      {
+        log.info ("Sending event " + onmsEventXml.getUei () + " to eventd "
+            + result);
+      } else if (result.getStatus () == OnmsEventFanOut.Result.SPOOLED
+          || result.getStatus () == OnmsEventFanOut.Result.TIMEOUT)
+      {
+        log.warn ("Sending event " + onmsEventXml.getUei () + " to eventd "
+            + result);
+      } else
+      {
+        log.error ("Sending event " + onmsEventXml.getUei () + " to eventd "
+            + result);
+        System.err.println ("Error sending event to eventd " + result);
+        exitCode = JSendEventConstants.EXIT_FAILED;
+      }
+    }
+    return exitCode;
+  }
+
+  /**
+   * Create the suppression of repeated events if a window is given on the
+   * command line
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @return Suppressor or null if no window is given
+   * @throws ParameterException
+   *           Window is not numeric
+   */
+  private static OnmsEventSuppressor createSuppressor (ArgumentMap argumentMap)
+      throws ParameterException
+  {
+    if (!argumentMap.containsKey (JSendEventConstants.PARM_SUPPRESS))
+    {
+      return null;
+    }
+    long window;
+    try
+    {
+      window = (long) (Double.parseDouble (argumentMap
+          .get (JSendEventConstants.PARM_SUPPRESS)) * 1000);
+    } catch (NumberFormatException e)
+    {
+      throw new ParameterException ("Suppression window "
+          + argumentMap.get (JSendEventConstants.PARM_SUPPRESS)
+          + " is not numeric.");
+    }
+    String[] keyParms = new String[0];
+    if (argumentMap.containsKey (JSendEventConstants.PARM_SUPPRESS_PARMS))
+    {
+      keyParms = argumentMap.get (JSendEventConstants.PARM_SUPPRESS_PARMS)
+          .split (JSendEventConstants.SUPPRESS_PARMS_SEPARATOR);
+    }
+    log.debug ("Suppressing repeated events for " + window + " ms");
+    return new OnmsEventSuppressor (window,
+        JSendEventConstants.SUPPRESS_MAX_ENTRIES, keyParms);
+  }
+
+  /**
+   * Create the rate limiter if a limit is given on the command line
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @return Rate limiter or null if no limit is given
+   * @throws ParameterException
+   *           Limit not numeric, policy unknown or spool directory missing
+   */
+  private static OnmsRateLimiter createRateLimiter (ArgumentMap argumentMap)
+      throws ParameterException
+  {
+    double globalRate = argumentMap.getNumber (JSendEventConstants.PARM_LIMIT,
+        0);
+    double ueiRate = argumentMap.getNumber (JSendEventConstants.PARM_LIMIT_UEI,
+        0);
+    double nodeRate = argumentMap.getNumber (
+        JSendEventConstants.PARM_LIMIT_NODE, 0);
+    if (globalRate == 0 && ueiRate == 0 && nodeRate == 0)
+    {
+      return null;
+    }
+    String policy = argumentMap
+        .containsKey (JSendEventConstants.PARM_LIMIT_POLICY) ? argumentMap
+        .get (JSendEventConstants.PARM_LIMIT_POLICY)
+        : JSendEventConstants.LIMIT_POLICY_DROP;
+
+    // Every eventd gets its own spool below this directory
+    File overflowDirectory = null;
+    if (argumentMap.containsKey (JSendEventConstants.PARM_SPOOL))
+    {
+      overflowDirectory = new File (argumentMap
+          .get (JSendEventConstants.PARM_SPOOL),
+          JSendEventConstants.LIMIT_SPOOL_DIRECTORY);
+    }
+    log.debug ("Rate limit " + globalRate + " events/s, " + ueiRate
+        + " per UEI, " + nodeRate + " per node, policy " + policy);
+    return new OnmsRateLimiter (globalRate, ueiRate, nodeRate,
+        (int) argumentMap.getNumber (JSendEventConstants.PARM_LIMIT_BURST,
+            JSendEventConstants.LIMIT_DEFAULT_BURST), policy,
+        overflowDirectory);
+  }
+
+  /**
+   * Open the spool for the eventd if a spool directory is given on the command
+   * line. Every eventd has its own spool in the spool directory.
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @return Spool or null if no spool directory is given
+   * @throws ParameterException
+   *           Spool directory can't be opened
+   */
+  private static OnmsEventSpool openSpool (ArgumentMap argumentMap)
+      throws ParameterException
+  {
+    if (!argumentMap.containsKey (JSendEventConstants.PARM_SPOOL))
+    {
+      return null;
+    }
+    File directory = OnmsEventSpool.getTargetDirectory (new File (argumentMap
+        .get (JSendEventConstants.PARM_SPOOL)), argumentMap
+        .get (JSendEventConstants.PARM_HOST), argumentMap
+        .get (JSendEventConstants.PARM_PORT_EVENTD));
+    try
+    {
+      OnmsEventSpool spool = new OnmsEventSpool (directory);
+      log.debug ("Spool " + directory + " opened with " + spool.size ()
+          + " events");
+      return spool;
+    } catch (IOException e)
+    {
+      throw new ParameterException ("Spool " + directory
+          + " can't be opened. Error: " + e.getMessage ());
+    }
+  }
+
+  /**
+   * Initialize one OpenNMS event document with all events from a batch file.
+   * Every line of the batch file is parsed like the command line arguments.
+   * 
+   * @param batch
+   *          Batch file or - for standard input
+   * @param suppressor
+   *          Suppression of repeated events or null to send all events
+   * @return OpenNMS Event in XML with all events of the batch
+   * @throws ParameterException
+   *           Batch file not readable or a line contains incorrect arguments
+   */
+  private OnmsEventXml initializeBatch (String batch,
+      OnmsEventSuppressor suppressor) throws ParameterException
+  {
+    BatchEventReader batchReader;
+    try
+    {
+      if (JSendEventConstants.BATCH_STDIN.equals (batch))
+      {
+        batchReader = new BatchEventReader (new InputStreamReader (System.in));
+      } else
+      {
+        batchReader = new BatchEventReader (new InputStreamReader (
+            new FileInputStream (batch)));
+      }
+    } catch (FileNotFoundException e)
+    {
+      throw new ParameterException ("Batch file " + batch
+          + " not found. Error: " + e.getMessage ());
+    }
+    log.debug ("Reading events from batch " + batch);
+
+    OnmsEventXml onmsEventXml = null;
+    this.m_batchEvents = 0;
+    try
+    {
+      String[] arguments;
+      while ((arguments = batchReader.nextArguments ()) != null)
+      {
+        OnmsEventXml event = this.initialize (new ArgumentMap (arguments));
+        if (suppressor != null && !suppressor.offer (batch, event))
+        {
+          continue;
+        }
+        if (onmsEventXml == null)
+        {
+          onmsEventXml = event;
+        } else
+        {
+          onmsEventXml.addEvent (event);
+        }
+        this.m_batchEvents++;
+      }
+      if (suppressor != null)
+      {
+        // The batch is sent at once, so every window ends with the batch
+        for (OnmsEventSuppressor.Summary summary : suppressor.flush ())
+        {
+          onmsEventXml.addEvent (summary.getEvent ());
+          this.m_batchEvents++;
+        }
+        log.debug (suppressor.getSuppressed ()
+            + " repeated events suppressed in batch " + batch);
+      }
+    } catch (ParameterException e)
+    {
+      throw new ParameterException ("Batch line "
+          + batchReader.getLineNumber () + ": " + e.getMessage ());
+    } catch (IOException e)
+    {
+      throw new ParameterException ("Error reading batch " + batch
+          + ". Error: " + e.getMessage ());
+    } finally
+    {
+      try
+      {
+        batchReader.close ();
+      } catch (IOException e)
+      {
+        log.warn ("Error closing batch " + batch + ": " + e.getMessage ());
+      }
+    }
+
+    if (onmsEventXml == null)
+    {
+      throw new ParameterException ("Batch " + batch + " contains no events.");
+    }
+    log.debug (this.m_batchEvents + " events read from batch " + batch);
+    return onmsEventXml;
+  }
+
   /**
    * Initialize the OpenNMS event with parameter from command line
    * 
    * @param argumentMap
    *          Arguments from command line
    * @return OpenNMS Event in XML
+   * @throws ParameterException
+   *           Node id or severity is not valid
    */
-  private OnmsEventXml initialize (ArgumentMap argumentMap)
+  OnmsEventXml initialize (ArgumentMap argumentMap) throws ParameterException
   {
     OnmsEventXml onmsEventXml = new OnmsEventXml ();
     log.debug ("OpenNMS Event XML initialized");
@@ -175,8 +850,16 @@ public class Controller
 
     if (argumentMap.containsKey (JSendEventConstants.PARM_NODEID))
     {
-      onmsEventXml
-          .setNodeId (argumentMap.get (JSendEventConstants.PARM_NODEID));
+      try
+      {
+        onmsEventXml.setNodeId (argumentMap
+            .get (JSendEventConstants.PARM_NODEID));
+      } catch (RuntimeException e)
+      {
+        throw new ParameterException ("Node id "
+            + argumentMap.get (JSendEventConstants.PARM_NODEID)
+            + " is not numeric.");
+      }
       log.debug ("Parameter: " + JSendEventConstants.PARM_NODEID + " set to "
           + argumentMap.get (JSendEventConstants.PARM_NODEID));
     }
@@ -201,23 +884,10 @@ public class Controller
 
     if (argumentMap.containsKey (JSendEventConstants.PARM_SEVERITY))
     {
-      try
-      {
-        onmsEventXml.setSeverity (argumentMap
-            .get (JSendEventConstants.PARM_SEVERITY));
-        log.debug ("Parameter: " + JSendEventConstants.PARM_SEVERITY
-            + " set to " + argumentMap.get (JSendEventConstants.PARM_SEVERITY));
-      } catch (ParameterException e)
-      {
-        System.err.println (e.getMessage ());
-        log.error (JSendEventConstants.PARM_UEI + ": " + e.getMessage ());
-        System.exit (JSendEventConstants.EXIT_FAILED);
-      } catch (RuntimeException e)
-      {
-        System.err.println (e.getMessage ());
-        log.error (JSendEventConstants.PARM_UEI + ": " + e.getMessage ());
-        System.exit (JSendEventConstants.EXIT_FAILED);
-      }
+      onmsEventXml.setSeverity (argumentMap
+          .get (JSendEventConstants.PARM_SEVERITY));
+      log.debug ("Parameter: " + JSendEventConstants.PARM_SEVERITY
+          + " set to " + argumentMap.get (JSendEventConstants.PARM_SEVERITY));
     }
 
     if (argumentMap.containsKey (JSendEventConstants.PARM_OPERINSTRUCT))
@@ -239,7 +909,10 @@ public class Controller
             + onmsParm.getValue ());
       }
     }
-    log.debug (onmsEventXml.toString ());
+    if (log.isDebugEnabled ())
+    {
+      log.debug (onmsEventXml.toString ());
+    }
     return onmsEventXml;
   }
 }
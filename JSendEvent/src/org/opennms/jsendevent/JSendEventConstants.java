@@ -57,6 +57,9 @@ public class JSendEventConstants
   /** Default log file */
   public static final String DEFAULT_LOGFILE = "log/jsendevent.html";
 
+  /** Maximum number of log records waiting to be written to the log file */
+  public static final int LOG_BUFFER_SIZE = 1024;
+
   /** No arguments given */
   public static final int NO_ARGS = 0;
 
@@ -99,11 +102,366 @@ public class JSendEventConstants
   /** Short switch for logging on/off */
   public static final String PARM_VERBOSE = "-v";
 
+  /** Short switch for batch file with one event per line */
+  public static final String PARM_BATCH = "-b";
+
+  /** Batch file name to read the events from standard input */
+  public static final String BATCH_STDIN = "-";
+
+  /** Comment character in batch files */
+  public static final String BATCH_COMMENT = "#";
+
+  /** Switch to start as resident forwarder daemon */
+  public static final String PARM_DAEMON = "--daemon";
+
+  /** Local TCP port the forwarder daemon listens on */
+  public static final int DEFAULT_DAEMON_PORT = 5827;
+
+  /** Timeout in milliseconds to connect to the forwarder daemon */
+  public static final int DAEMON_CONNECT_TIMEOUT = 250;
+
+  /** Timeout in milliseconds for a request to the forwarder daemon */
+  public static final int DAEMON_REQUEST_TIMEOUT = 30000;
+
+  /** Milliseconds the stopping daemon waits for running requests */
+  public static final long DAEMON_STOP_TIMEOUT = 5000;
+
+  /** Connections kept open to each eventd by the connection pool */
+  public static final int POOL_CONNECTIONS = 4;
+
+  /** Milliseconds an unused pooled connection is kept open */
+  public static final long POOL_MAX_IDLE = 300000;
+
+  /** Milliseconds a pooled connection can be idle without a check on use */
+  public static final long POOL_VALIDATE_IDLE = 1000;
+
+  /** Milliseconds to wait for a free pooled connection */
+  public static final long POOL_BORROW_TIMEOUT = 30000;
+
+  /** Milliseconds to wait for the connection to eventd */
+  public static final int CONNECT_TIMEOUT = 5000;
+
+  /** Switch for the daemon to send over the non-blocking engine */
+  public static final String PARM_NIO = "--nio";
+
+  /** Switch for the non-blocking engine to queue events off the heap */
+  public static final String PARM_OFFHEAP = "--offheap";
+
+  /** Name of the I/O thread of the non-blocking engine */
+  public static final String NIO_THREAD_NAME = "jsendevent-nio";
+
+  /** Bytes queued per eventd by the non-blocking engine before it rejects */
+  public static final long NIO_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+  /** Queued documents written by one gathering write */
+  public static final int NIO_GATHER_BUFFERS = 64;
+
+  /** Buffer size to discard the replies of eventd */
+  public static final int NIO_READ_SIZE = 8192;
+
+  /** Bytes per segment of the queues of the non-blocking engine */
+  public static final int NIO_SEGMENT_SIZE = 64 * 1024;
+
+  /** Free segments kept for reuse by the non-blocking engine */
+  public static final int NIO_POOL_SEGMENTS = 256;
+
+  /** Milliseconds to write the queued documents when the daemon stops */
+  public static final long NIO_FLUSH_TIMEOUT = 5000;
+
+  /** Short switch for the spool directory */
+  public static final String PARM_SPOOL = "-q";
+
+  /** Size of a spool segment file in bytes */
+  public static final int SPOOL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  /** Maximum number of spool segment files */
+  public static final int SPOOL_MAX_SEGMENTS = 64;
+
+  /** Spooled events written before the spool is synced to disk */
+  public static final int SPOOL_SYNC_RECORDS = 64;
+
+  /** Milliseconds after which the spool is synced to disk */
+  public static final long SPOOL_SYNC_INTERVAL = 1000;
+
+  /** Milliseconds without connection attempts after eventd was unreachable */
+  public static final long SPOOL_RETRY_INTERVAL = 5000;
+
+  /** Short switch for the strategy to select one of several eventd */
+  public static final String PARM_STRATEGY = "-l";
+
+  /** Separator for several eventd in -h */
+  public static final String TARGET_SEPARATOR = ",";
+
+  /** Strategy: first reachable eventd in the given order */
+  public static final String STRATEGY_FAILOVER = "failover";
+
+  /** Strategy: eventd in turn */
+  public static final String STRATEGY_ROUNDROBIN = "roundrobin";
+
+  /** Strategy: eventd with the fewest events in progress */
+  public static final String STRATEGY_LEASTOUTSTANDING = "leastoutstanding";
+
+  /** Strategy: every event to all eventd concurrently */
+  public static final String STRATEGY_ALL = "all";
+
+  /** Milliseconds to wait for all eventd when sending to all */
+  public static final long FANOUT_TIMEOUT = 30000;
+
+  /** Milliseconds a failed eventd is skipped, doubled on each failure */
+  public static final long TARGET_EJECT_TIME = 2000;
+
+  /** Maximum milliseconds a failed eventd is skipped */
+  public static final long TARGET_EJECT_MAX = 60000;
+
+  /** Milliseconds after which sending to an eventd counts as slow */
+  public static final long TARGET_SLOW_SEND = 1000;
+
+  /** Switch for the number of events sent without receipt from eventd */
+  public static final String PARM_RECEIPT_WINDOW = "--window";
+
+  /** Receipts: maximum number of events in one document */
+  public static final int RECEIPT_DOCUMENT_EVENTS = 100;
+
+  /** Receipts: milliseconds to wait for a receipt before reconnecting */
+  public static final int RECEIPT_TIMEOUT = 30000;
+
+  /** Receipts: reconnects in a row without a receipt before giving up */
+  public static final int RECEIPT_MAX_RETRIES = 3;
+
+  /** Receipts: milliseconds to wait before reconnecting */
+  public static final long RECEIPT_RETRY_DELAY = 1000;
+
+  /** Receipts: bytes per read of the receipts */
+  public static final int RECEIPT_READ_SIZE = 8192;
+
+  /** Switch to send the events over UDP without acknowledgement */
+  public static final String PARM_UDP = "--udp";
+
+  /** UDP: maximum bytes of a datagram the events are packed into */
+  public static final String PARM_UDP_MTU = "--mtu";
+
+  /** UDP: default datagram size, the payload of an Ethernet frame */
+  public static final int UDP_DEFAULT_MTU = 1472;
+
+  /** UDP: smallest datagram size every IPv4 host has to accept */
+  public static final int UDP_MIN_MTU = 548;
+
+  /** UDP: largest possible datagram size */
+  public static final int UDP_MAX_DATAGRAM = 65507;
+
+  /** Switch for the load generator mode */
+  public static final String PARM_LOAD = "--load";
+
+  /** Load generator: events per second over all threads, 0 for maximum */
+  public static final String PARM_LOAD_RATE = "--rate";
+
+  /** Load generator: number of events to send */
+  public static final String PARM_LOAD_COUNT = "--count";
+
+  /** Load generator: seconds to send events, instead of a count */
+  public static final String PARM_LOAD_DURATION = "--duration";
+
+  /** Load generator: number of sending threads */
+  public static final String PARM_LOAD_THREADS = "--threads";
+
+  /** Load generator: number of connections per eventd */
+  public static final String PARM_LOAD_CONNECTIONS = "--connections";
+
+  /** Load generator: number of parameters per event */
+  public static final String PARM_LOAD_PARMS = "--parms";
+
+  /** Load generator: characters per parameter value */
+  public static final String PARM_LOAD_PARM_SIZE = "--parm-size";
+
+  /** Load generator: default number of events */
+  public static final int LOAD_DEFAULT_COUNT = 10000;
+
+  /** Load generator: default UEI */
+  public static final String LOAD_DEFAULT_UEI = "uei.opennms.org/jsendevent/load";
+
+  /** Load generator: default interface */
+  public static final String LOAD_DEFAULT_INTERFACE = "127.0.0.1";
+
+  /** Switch for the bulk import of events from a CSV or JSON Lines file */
+  public static final String PARM_IMPORT = "--import";
+
+  /** Bulk import: format of the file, csv or jsonl */
+  public static final String PARM_IMPORT_FORMAT = "--format";
+
+  /** Bulk import: number of threads building and sending events */
+  public static final String PARM_IMPORT_WORKERS = "--workers";
+
+  /** Bulk import: number of events sent in one document */
+  public static final String PARM_IMPORT_BATCH = "--batch-size";
+
+  /** Bulk import: name of the event template filled by each line */
+  public static final String PARM_IMPORT_TEMPLATE = "--template";
+
+  /** Bulk import: file with one named event template per line */
+  public static final String PARM_IMPORT_TEMPLATES = "--templates";
+
+  /** Bulk import format: comma separated values with a header line */
+  public static final String IMPORT_FORMAT_CSV = "csv";
+
+  /** Bulk import format: one JSON object per line */
+  public static final String IMPORT_FORMAT_JSONL = "jsonl";
+
+  /** Bulk import: JSON key of the object with the event parameters */
+  public static final String IMPORT_KEY_PARMS = "parms";
+
+  /** Bulk import: default number of events in one document */
+  public static final int IMPORT_DEFAULT_BATCH = 100;
+
+  /** Bulk import: bytes read from the file at once */
+  public static final int IMPORT_READ_SIZE = 1048576;
+
+  /** Bulk import: maximum bytes of one line */
+  public static final int IMPORT_MAX_LINE = 1048576;
+
+  /** Bulk import: lines handed over to a worker at once */
+  public static final int IMPORT_CHUNK_LINES = 1000;
+
+  /** Bulk import: chunks read ahead per worker */
+  public static final int IMPORT_CHUNKS_PER_WORKER = 2;
+
+  /** Bulk import: milliseconds between checks if a worker is still running */
+  public static final long IMPORT_WORKER_CHECK = 1000;
+
+  /** Switch for the eventd stand-in mode */
+  public static final String PARM_STANDIN = "--standin";
+
+  /** Eventd stand-in: milliseconds to wait after each received document */
+  public static final String PARM_STANDIN_LATENCY = "--latency";
+
+  /** Eventd stand-in: milliseconds to wait after each read */
+  public static final String PARM_STANDIN_READ_DELAY = "--read-delay";
+
+  /** Eventd stand-in: bytes per read */
+  public static final int STANDIN_READ_SIZE = 65536;
+
+  /** Eventd stand-in: bytes per read with a read delay */
+  public static final int STANDIN_SLOW_READ_SIZE = 1024;
+
+  /** Eventd stand-in: receive buffer of the UDP socket in bytes */
+  public static final int STANDIN_UDP_BUFFER = 4 * 1024 * 1024;
+
+  /** Eventd stand-in: maximum nesting of XML elements */
+  public static final int STANDIN_MAX_DEPTH = 32;
+
+  /** Switch for the seconds repeated events are suppressed */
+  public static final String PARM_SUPPRESS = "--suppress";
+
+  /** Switch for the parameters which distinguish repeated events */
+  public static final String PARM_SUPPRESS_PARMS = "--suppress-parms";
+
+  /** Separator of the parameter names in --suppress-parms */
+  public static final String SUPPRESS_PARMS_SEPARATOR = ",";
+
+  /** Maximum number of events tracked for repeats */
+  public static final int SUPPRESS_MAX_ENTRIES = 10000;
+
+  /** Milliseconds between the checks for ended suppression windows */
+  public static final long SUPPRESS_CHECK_INTERVAL = 1000;
+
+  /** Parameter of a summary event: number of events in the window */
+  public static final String SUPPRESS_PARM_COUNT = "count";
+
+  /** Parameter of a summary event: time of the first event */
+  public static final String SUPPRESS_PARM_FIRST_SEEN = "firstSeen";
+
+  /** Parameter of a summary event: time of the last event */
+  public static final String SUPPRESS_PARM_LAST_SEEN = "lastSeen";
+
+  /** Switch for the global rate limit in events per second */
+  public static final String PARM_LIMIT = "--limit";
+
+  /** Switch for the rate limit per UEI in events per second */
+  public static final String PARM_LIMIT_UEI = "--limit-uei";
+
+  /** Switch for the rate limit per node in events per second */
+  public static final String PARM_LIMIT_NODE = "--limit-node";
+
+  /** Switch for the events which may be sent at once within the limits */
+  public static final String PARM_LIMIT_BURST = "--limit-burst";
+
+  /** Switch for the policy for events over the rate limit */
+  public static final String PARM_LIMIT_POLICY = "--limit-policy";
+
+  /** Rate limit policy: wait until the event may be sent */
+  public static final String LIMIT_POLICY_BLOCK = "block";
+
+  /** Rate limit policy: drop the event */
+  public static final String LIMIT_POLICY_DROP = "drop";
+
+  /** Rate limit policy: spool the event and send it later */
+  public static final String LIMIT_POLICY_SPOOL = "spool";
+
+  /** Default events which may be sent at once within the limits */
+  public static final int LIMIT_DEFAULT_BURST = 10;
+
+  /** Maximum number of UEIs and nodes with their own bucket */
+  public static final int LIMIT_MAX_BUCKETS = 10000;
+
+  /** Maximum number of spooled documents sent with one event */
+  public static final int LIMIT_REPLAY_MAX = 64;
+
+  /** Milliseconds between the summaries of events over the rate limit */
+  public static final long LIMIT_SUMMARY_INTERVAL = 60000;
+
+  /** Spool directory for events over the rate limit, below the spool */
+  public static final String LIMIT_SPOOL_DIRECTORY = "ratelimited";
+
+  /** UEI of the summary of events over the rate limit */
+  public static final String LIMIT_SUMMARY_UEI = "uei.opennms.org/jsendevent/rateLimited";
+
+  /** Parameter of the rate limit summary: policy */
+  public static final String LIMIT_PARM_POLICY = "policy";
+
+  /** Parameter of the rate limit summary: events over the limit */
+  public static final String LIMIT_PARM_COUNT = "count";
+
+  /** Client API: maximum number of events waiting to be sent */
+  public static final int CLIENT_QUEUE_CAPACITY = 65536;
+
+  /** Client API: maximum number of events sent in one document */
+  public static final int CLIENT_BATCH_SIZE = 100;
+
+  /** Client API: events of higher severity sent before a lower one's turn */
+  public static final int CLIENT_LANE_BURST = 32;
+
+  /** Client API: default overflow policy of the queue */
+  public static final String CLIENT_QUEUE_POLICY = "drop-newest";
+
+  /** Client API: milliseconds to wait for space with the policy block */
+  public static final long CLIENT_BLOCK_TIMEOUT = 30000;
+
+  /** Client API: percent of the capacity above which the queue is saturated */
+  public static final int CLIENT_QUEUE_HIGH_WATER = 75;
+
+  /** Overflow policy of a full queue: wait for space */
+  public static final String QUEUE_POLICY_BLOCK = "block";
+
+  /** Overflow policy of a full queue: reject the new event */
+  public static final String QUEUE_POLICY_DROP_NEWEST = "drop-newest";
+
+  /** Overflow policy of a full queue: drop the event waiting longest */
+  public static final String QUEUE_POLICY_DROP_OLDEST = "drop-oldest";
+
+  /** Overflow policy of a full queue: drop an event of the lowest severity */
+  public static final String QUEUE_POLICY_DROP_LOWEST = "drop-lowest";
+
+  /** Client API: name of the sending thread */
+  public static final String CLIENT_THREAD_NAME = "jsendevent-client";
+
+  /** JMX object name of the sender metrics */
+  public static final String METRICS_OBJECT_NAME = "org.opennms.jsendevent:type=Sender";
+
   /** Help text */
   public static final String HELP_TEXT = "JSendEvent - " + JSENDEVENT_VERSION + "\n" 
       + "Usage: java -jar JSendEvent.jar\n"
       + "    -u \t the universal event identifier (UEI)\n"
-      + "    -h \t a hostname to send the event to (default: localhost)\n"
+      + "    -h \t a hostname to send the event to (default: localhost),\n"
+      + "    \t\t several as host[:port],host[:port] to select one with -l\n"
       + "    -t \t TCP port from Eventd (default: 5817)\n"
       + "    -s \t service name\n"
       + "    -n \t node identifier (numeric)\n"
@@ -117,10 +475,64 @@ public class JSendEventConstants
       + "    \t\t 3 = Normal\n" + "    \t\t 4 = Warning\n"
       + "    \t\t 5 = Minor\n" + "    \t\t 6 = Major\n"
       + "    \t\t 7 = Critical\n"
-      + "    -p\t an event parameter (ie: -p url \"http://www.google.com\"\n\n"
+      + "    -p\t an event parameter (ie: -p url \"http://www.google.com\"\n"
+      + "    -b \t batch file with one event per line, same switches as above\n"
+      + "    \t\t (use - to read from standard input, -h and -t are\n"
+      + "    \t\t taken from the command line)\n"
+      + "    -l \t strategy for several hosts: failover (default), roundrobin,\n"
+      + "    \t\t leastoutstanding or all to send every event to all hosts\n"
+      + "    -q \t spool directory, events are stored there while eventd is\n"
+      + "    \t\t not reachable and sent with the next event\n"
+      + "    --window <events> wait for the receipts of eventd for the event\n"
+      + "    \t\t or the events of -b with at most <events> unacknowledged,\n"
+      + "    \t\t they are sent again after a reconnect\n"
+      + "    --udp     send the event or the events of -b over UDP without\n"
+      + "    \t\t acknowledgement, packed into datagrams of at most\n"
+      + "    \t\t --mtu <bytes> (default: " + UDP_DEFAULT_MTU
+      + "), to the first host\n"
+      + "    \t\t of -h or with -l all to every host\n"
+      + "    --suppress <seconds> with --daemon or -b: send repeats of an\n"
+      + "    \t\t event (same UEI, node id and interface) only once per\n"
+      + "    \t\t window, followed by a summary with count, firstSeen and\n"
+      + "    \t\t lastSeen, --suppress-parms <name,name> adds parameters to\n"
+      + "    \t\t the comparison\n"
+      + "    --limit <events/s> with --daemon or --load: global rate limit,\n"
+      + "    \t\t --limit-uei <events/s> per UEI, --limit-node <events/s>\n"
+      + "    \t\t per node, --limit-burst <events> (default: "
+      + LIMIT_DEFAULT_BURST + ") and\n"
+      + "    \t\t --limit-policy block, drop (default) or spool (needs -q)\n"
+      + "    --load    send generated events and report the latency, with\n"
+      + "    \t\t --rate <events/s> (default: maximum) --threads <n>\n"
+      + "    \t\t --connections <n> --count <n> or --duration <seconds>\n"
+      + "    \t\t --parms <n> --parm-size <characters>, -u takes a UEI mix\n"
+      + "    \t\t as uei[:weight],uei[:weight]\n"
+      + "    --import <file> send all events of a CSV file with a header\n"
+      + "    \t\t line or of a JSON Lines file, columns and keys uei, nodeid,\n"
+      + "    \t\t interface, service, severity, descr, operinstruct, host,\n"
+      + "    \t\t source and time (eventd format or epoch milliseconds),\n"
+      + "    \t\t all others are parameters, with\n"
+      + "    \t\t --format csv or jsonl (default: by file extension)\n"
+      + "    \t\t --workers <n> --connections <n> --batch-size <events>\n"
+      + "    \t\t (default: " + IMPORT_DEFAULT_BATCH + "),\n"
+      + "    \t\t --templates <file> --template <name> builds the events\n"
+      + "    \t\t from a precompiled template, the file holds one template\n"
+      + "    \t\t per line as name and switches -u -n -i -s -d -x -o -p,\n"
+      + "    \t\t values may contain ${column} variables\n"
+      + "    --standin run as eventd stand-in on port -t and count the\n"
+      + "    \t\t received events, with --latency <ms> per document and\n"
+      + "    \t\t --read-delay <ms> per read\n"
+      + "    --daemon  start as resident forwarder on local TCP port "
+      + DEFAULT_DAEMON_PORT + ",\n"
+      + "    \t\t further calls hand their arguments over to the daemon,\n"
+      + "    \t\t except calls with -q, --suppress or --limit,\n"
+      + "    \t\t with --nio all eventd are served by one thread without\n"
+      + "    \t\t blocking and the calls return once the event is queued,\n"
+      + "    \t\t --offheap queues the events in direct buffers\n\n"
       + "Example: Force discovery of a node:\n"
       + "    java -jar JSendEvent.jar \\\n" + "    \t -i 172.16.1.1 \\\n"
       + "    \t -u uei.opennms.org/internal/discovery/newSuspect\n\n"
+      + "Example: Send all events from a file over one connection:\n"
+      + "    java -jar JSendEvent.jar -h 172.16.1.10 -b events.txt\n\n"
       +	"On Windows: You can use JSendEvent.exe instead of java -jar\n";
 
   /** Event tag <log></log> */
@@ -132,6 +544,15 @@ public class JSendEventConstants
   /** Event tag <event></event> */
   public static final String EVENT_XMLTAG_EVENT = "event";
 
+  /** Event attribute uuid="" acknowledged in the receipt */
+  public static final String EVENT_XMLATTR_UUID = "uuid";
+
+  /** Receipt tag <event-receipt></event-receipt> sent back by eventd */
+  public static final String EVENT_XMLTAG_RECEIPT = "event-receipt";
+
+  /** Receipt tag <uuid></uuid> of an acknowledged event */
+  public static final String EVENT_XMLTAG_UUID = "uuid";
+
   /** Event tag <uei></uei> */
   public static final String EVENT_XMLTAG_UEI = "uei";
 
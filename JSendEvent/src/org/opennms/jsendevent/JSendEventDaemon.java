@@ -0,0 +1,735 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.exceptions.ParameterException;
+import org.opennms.jsendevent.utils.ArgumentMap;
+import org.opennms.jsendevent.utils.DaemonClient;
+import org.opennms.jsendevent.utils.OnmsConnectionPool;
+import org.opennms.jsendevent.utils.OnmsEventFanOut;
+import org.opennms.jsendevent.utils.OnmsEventSender;
+import org.opennms.jsendevent.utils.OnmsEventSpool;
+import org.opennms.jsendevent.utils.OnmsEventSuppressor;
+import org.opennms.jsendevent.utils.OnmsEventTarget;
+import org.opennms.jsendevent.utils.OnmsEventWriter;
+import org.opennms.jsendevent.utils.OnmsEventXml;
+import org.opennms.jsendevent.utils.OnmsNioEngine;
+import org.opennms.jsendevent.utils.OnmsRateLimiter;
+import org.opennms.jsendevent.utils.OnmsSenderMetrics;
+import org.opennms.jsendevent.utils.OnmsTargetSelector;
+
+/**
+ * Resident forwarder daemon. The daemon listens on a local TCP port for the
+ * arguments of JSendEvent calls handed over by the {@link DaemonClient} and
+ * sends the events over pooled connections to eventd which stay open between
+ * the calls. Calls of different clients are handled concurrently, one thread
+ * per pooled connection. With a spool directory events for an eventd which is
+ * not reachable are spooled and sent before the next event to that eventd.
+ * With a suppressor repeated events are collapsed into summaries which are
+ * sent when the suppression window ends. With a rate limiter events over the
+ * limit are reported in a summary every minute. With a non-blocking engine
+ * one thread serves all eventd and a call returns once its event is queued.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class JSendEventDaemon
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Maximum number of arguments accepted in one request */
+  private static final int MAX_ARGUMENTS = 4096;
+
+  /** Separator of host, port and strategy in the target of the suppressor */
+  private static final String TARGET_SEPARATOR = "\n";
+
+  /** Controller to build the events */
+  private Controller m_controller;
+
+  /** Local TCP port to listen on */
+  private int m_port;
+
+  /** Open connections to eventd */
+  private OnmsConnectionPool m_pool;
+
+  /** Spool directory or null to send without spool */
+  private File m_spoolDirectory;
+
+  /** Target selectors by hosts, port and strategy */
+  private ConcurrentHashMap<String, OnmsTargetSelector> m_selectors;
+
+  /** Spools by host:port */
+  private ConcurrentHashMap<String, OnmsEventSpool> m_spools;
+
+  /** Time until events are spooled without connection attempt by host:port */
+  private ConcurrentHashMap<String, Long> m_retryAfter;
+
+  /** Suppression of repeated events or null to send all events */
+  private OnmsEventSuppressor m_suppressor;
+
+  /** Rate limiter for the events or null to send without limit */
+  private OnmsRateLimiter m_rateLimiter;
+
+  /** Threads sending to all eventd */
+  private ExecutorService m_fanOutExecutor;
+
+  /** Sends to all eventd */
+  private OnmsEventFanOut m_fanOut;
+
+  /** Non-blocking engine or null to send over the connection pool */
+  private OnmsNioEngine m_engine;
+
+  /** Socket listening for requests */
+  private ServerSocket m_serverSocket;
+
+  /** Threads handling the requests */
+  private ExecutorService m_executor;
+
+  /** Thread sending the summaries */
+  private ScheduledExecutorService m_scheduler;
+
+  /** Daemon has been stopped */
+  private boolean m_stopped;
+
+  /**
+   * Constructor for a daemon on the given local port
+   * 
+   * @param controller
+   *          Controller to build the events
+   * @param port
+   *          Local TCP port to listen on
+   * @param spoolDirectory
+   *          Spool directory or null to send without spool
+   * @param suppressor
+   *          Suppression of repeated events or null to send all events
+   * @param rateLimiter
+   *          Rate limiter for the events or null to send without limit
+   */
+  public JSendEventDaemon (Controller controller, int port,
+      File spoolDirectory, OnmsEventSuppressor suppressor,
+      OnmsRateLimiter rateLimiter)
+  {
+    this.m_controller = controller;
+    this.m_port = port;
+    this.m_pool = new OnmsConnectionPool ();
+    this.m_spoolDirectory = spoolDirectory;
+    this.m_selectors = new ConcurrentHashMap<String, OnmsTargetSelector> ();
+    this.m_spools = new ConcurrentHashMap<String, OnmsEventSpool> ();
+    this.m_retryAfter = new ConcurrentHashMap<String, Long> ();
+    this.m_suppressor = suppressor;
+    this.m_rateLimiter = rateLimiter;
+    this.m_pool.setRateLimiter (rateLimiter);
+    this.m_fanOutExecutor = Executors.newCachedThreadPool ();
+    this.m_fanOut = new OnmsEventFanOut (this.m_fanOutExecutor);
+  }
+
+  /**
+   * Send over a non-blocking engine instead of the connection pool. The
+   * engine is started and closed by the daemon.
+   * 
+   * @param engine
+   *          Engine or null to send over the connection pool
+   */
+  public void setEngine (OnmsNioEngine engine)
+  {
+    this.m_engine = engine;
+  }
+
+  /**
+   * Listen for requests until the process is terminated. A shutdown hook stops
+   * the daemon when the process is terminated by a signal.
+   * 
+   * @throws IOException
+   *           Can't listen on the local port
+   */
+  public void run () throws IOException
+  {
+    this.m_serverSocket = new ServerSocket (this.m_port, 50, InetAddress
+        .getByName ("127.0.0.1"));
+    log.info ("Daemon listening on 127.0.0.1:" + this.m_port);
+    OnmsSenderMetrics.getInstance ().register ();
+    if (this.m_engine != null)
+    {
+      this.m_engine.start ();
+    }
+    this.m_executor = Executors
+        .newFixedThreadPool (JSendEventConstants.POOL_CONNECTIONS);
+    this.m_scheduler = Executors.newSingleThreadScheduledExecutor ();
+
+    // SIGTERM or Ctrl-C end the accept loop and run the cleanup
+    Runtime.getRuntime ().addShutdownHook (new Thread ("daemon-shutdown")
+    {
+      public void run ()
+      {
+        JSendEventDaemon.this.stop ();
+      }
+    });
+    if (this.m_suppressor != null)
+    {
+      this.m_scheduler.scheduleWithFixedDelay (new Runnable ()
+      {
+        public void run ()
+        {
+          JSendEventDaemon.this.sendSummaries (JSendEventDaemon.this.m_suppressor
+              .expire ());
+        }
+      }, JSendEventConstants.SUPPRESS_CHECK_INTERVAL,
+          JSendEventConstants.SUPPRESS_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    if (this.m_rateLimiter != null)
+    {
+      this.m_scheduler.scheduleWithFixedDelay (new Runnable ()
+      {
+        public void run ()
+        {
+          JSendEventDaemon.this.sendRateLimitSummary ();
+        }
+      }, JSendEventConstants.LIMIT_SUMMARY_INTERVAL,
+          JSendEventConstants.LIMIT_SUMMARY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    try
+    {
+      while (true)
+      {
+        final Socket client;
+        try
+        {
+          client = this.m_serverSocket.accept ();
+        } catch (SocketException e)
+        {
+          if (this.m_serverSocket.isClosed ())
+          {
+            // Closed by stop
+            break;
+          }
+          throw e;
+        }
+        this.m_executor.execute (new Runnable ()
+        {
+          public void run ()
+          {
+            try
+            {
+              JSendEventDaemon.this.handle (client);
+            } catch (IOException e)
+            {
+              log.warn ("Error reading request: " + e.getMessage ());
+            } finally
+            {
+              try
+              {
+                client.close ();
+              } catch (IOException e)
+              {
+                log.debug ("Error closing request: " + e.getMessage ());
+              }
+            }
+          }
+        });
+      }
+    } finally
+    {
+      this.stop ();
+    }
+  }
+
+  /**
+   * Stop listening, finish the running requests, send the pending summaries,
+   * close the connections and write the spools to disk. Only the first call
+   * stops the daemon, further calls wait until it is stopped.
+   */
+  public synchronized void stop ()
+  {
+    if (this.m_stopped || this.m_serverSocket == null)
+    {
+      return;
+    }
+    this.m_stopped = true;
+    log.info ("Daemon stopping");
+    try
+    {
+      this.m_serverSocket.close ();
+    } catch (IOException e)
+    {
+      log.debug ("Error closing the daemon port: " + e.getMessage ());
+    }
+    this.m_executor.shutdown ();
+    this.m_scheduler.shutdown ();
+    try
+    {
+      if (!this.m_executor.awaitTermination (
+          JSendEventConstants.DAEMON_STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+      {
+        log.warn ("Requests still running while the daemon stops.");
+      }
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    this.m_fanOutExecutor.shutdown ();
+    if (this.m_suppressor != null)
+    {
+      this.sendSummaries (this.m_suppressor.flush ());
+    }
+    this.m_pool.close ();
+    if (this.m_engine != null)
+    {
+      this.closeEngine ();
+    }
+    for (OnmsEventSpool spool : this.m_spools.values ())
+    {
+      spool.sync ();
+    }
+    log.info ("Daemon stopped");
+  }
+
+  /**
+   * Handle one request of a client
+   * 
+   * @param client
+   *          Connection to the client
+   * @throws IOException
+   *           Error reading the request or writing the reply
+   */
+  private void handle (Socket client) throws IOException
+  {
+    client.setSoTimeout (JSendEventConstants.DAEMON_REQUEST_TIMEOUT);
+    DataInputStream in = new DataInputStream (client.getInputStream ());
+    int count = in.readInt ();
+    if (count < 0 || count > MAX_ARGUMENTS)
+    {
+      throw new IOException ("Invalid number of arguments " + count);
+    }
+    String[] args = new String[count];
+    for (int i = 0; i < count; i++)
+    {
+      args[i] = in.readUTF ();
+    }
+
+    int exitCode = JSendEventConstants.EXIT_OK;
+    String message;
+    try
+    {
+      message = this.process (args);
+      log.info (message);
+    } catch (ParameterException e)
+    {
+      exitCode = JSendEventConstants.EXIT_FAILED;
+      message = "Parameter error.\nError: " + e.getMessage ();
+      log.error (message);
+    } catch (IOException e)
+    {
+      exitCode = JSendEventConstants.EXIT_FAILED;
+      message = "Error sending event.\nError: " + e.getMessage ();
+      log.error (message);
+    } catch (RuntimeException e)
+    {
+      exitCode = JSendEventConstants.EXIT_FAILED;
+      message = "Error sending event.\nError: " + e.getMessage ();
+      log.error (message);
+    }
+
+    DataOutputStream out = new DataOutputStream (client.getOutputStream ());
+    out.writeInt (exitCode);
+    out.writeUTF (message);
+    out.flush ();
+  }
+
+  /**
+   * Build and send the event for the arguments of one request
+   * 
+   * @param args
+   *          Arguments from the command line of the client
+   * @return Message for the log
+   * @throws ParameterException
+   *           Arguments not correct
+   * @throws IOException
+   *           Error sending the event
+   */
+  private String process (String[] args) throws ParameterException,
+      IOException
+  {
+    ArgumentMap argumentMap = new ArgumentMap (args);
+    if (argumentMap.containsKey (JSendEventConstants.PARM_BATCH)
+        || argumentMap.containsKey (JSendEventConstants.PARM_DAEMON))
+    {
+      throw new ParameterException ("Batch and daemon mode are not available "
+          + "through the daemon.");
+    }
+
+    OnmsEventXml onmsEventXml = this.m_controller.initialize (argumentMap);
+    String host = argumentMap.get (JSendEventConstants.PARM_HOST);
+    String port = argumentMap.get (JSendEventConstants.PARM_PORT_EVENTD);
+    String strategy = argumentMap.get (JSendEventConstants.PARM_STRATEGY);
+    if (this.m_suppressor != null
+        && !this.m_suppressor.offer (host + TARGET_SEPARATOR + port
+            + TARGET_SEPARATOR + strategy, onmsEventXml))
+    {
+      return "Event " + argumentMap.get (JSendEventConstants.PARM_UEI)
+          + " for " + argumentMap.get (JSendEventConstants.PARM_INTERFACE)
+          + " suppressed as repeat.";
+    }
+    this.send (host, port, strategy, onmsEventXml);
+    return "Sending event " + argumentMap.get (JSendEventConstants.PARM_UEI)
+        + " for " + argumentMap.get (JSendEventConstants.PARM_INTERFACE)
+        + " successful.";
+  }
+
+  /**
+   * Send the summaries of repeated events
+   * 
+   * @param summaries
+   *          Summaries of the suppressor
+   */
+  private void sendSummaries (List<OnmsEventSuppressor.Summary> summaries)
+  {
+    for (OnmsEventSuppressor.Summary summary : summaries)
+    {
+      String[] target = summary.getTarget ().split (TARGET_SEPARATOR, -1);
+      try
+      {
+        this.send (target[0], target[1], "null".equals (target[2]) ? null
+            : target[2], summary.getEvent ());
+      } catch (ParameterException e)
+      {
+        log.error ("Error sending summary of repeated event "
+            + summary.getEvent ().getUei () + ".\nError: " + e.getMessage ());
+      } catch (IOException e)
+      {
+        log.error ("Error sending summary of repeated event "
+            + summary.getEvent ().getUei () + ".\nError: " + e.getMessage ());
+      }
+    }
+  }
+
+  /**
+   * Send the summary of the events over the rate limit to the eventd of the
+   * last event over the limit
+   */
+  private void sendRateLimitSummary ()
+  {
+    OnmsEventXml summary = this.m_rateLimiter.takeSummary ();
+    if (summary == null)
+    {
+      return;
+    }
+    String target = this.m_rateLimiter.getLastTarget ();
+    int separator = target.lastIndexOf (':');
+    try
+    {
+      this.send (target.substring (0, separator), target
+          .substring (separator + 1), null, summary);
+      log.warn ("Rate limit summary sent to " + target);
+    } catch (ParameterException e)
+    {
+      log.error ("Error sending rate limit summary.\nError: "
+          + e.getMessage ());
+    } catch (IOException e)
+    {
+      log.error ("Error sending rate limit summary.\nError: "
+          + e.getMessage ());
+    }
+  }
+
+  /**
+   * Send the event over a pooled connection to eventd. With a spool, spooled
+   * events are sent first and the event is spooled if eventd is not reachable.
+   * After a failed attempt events are spooled for
+   * {@link JSendEventConstants#SPOOL_RETRY_INTERVAL} milliseconds without
+   * trying to connect.
+   * 
+   * @param host
+   *          Hosts of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @param strategy
+   *          Strategy to select one of several eventd or null
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           Error sending or spooling the event
+   * @throws ParameterException
+   *           Hosts or strategy not correct
+   */
+  private void send (String host, String port, String strategy,
+      OnmsEventXml event) throws IOException, ParameterException
+  {
+    OnmsTargetSelector selector = this.getSelector (host, port, strategy);
+    if (this.m_engine != null)
+    {
+      this.queue (selector, event);
+      return;
+    }
+    if (selector.isFanOut ())
+    {
+      this.sendToAll (selector, event);
+      return;
+    }
+    if (this.m_spoolDirectory == null)
+    {
+      selector.send (this.m_pool, event);
+      return;
+    }
+
+    String key = host + ":" + port;
+    OnmsEventSpool spool = this.getSpool (host, port);
+    Long retryAfter = this.m_retryAfter.get (key);
+    if (retryAfter == null || System.currentTimeMillis () >= retryAfter)
+    {
+      try
+      {
+        if (!spool.isEmpty ())
+        {
+          OnmsEventSender sender = selector.borrow (this.m_pool);
+          try
+          {
+            spool.replay (sender);
+          } catch (IOException e)
+          {
+            this.m_pool.invalidate (sender);
+            throw e;
+          }
+          this.m_pool.release (sender);
+        }
+        selector.send (this.m_pool, event);
+        this.m_retryAfter.remove (key);
+        return;
+      } catch (IOException e)
+      {
+        this.m_retryAfter.put (key, System.currentTimeMillis ()
+            + JSendEventConstants.SPOOL_RETRY_INTERVAL);
+        log.warn ("Eventd " + key + " not reachable, spooling events. Error: "
+            + e.getMessage ());
+      }
+    }
+    spool.append (OnmsEventWriter.toByteArray (event));
+  }
+
+  /**
+   * Queue the event on the non-blocking engine for the first eventd in the
+   * order of the selector whose queue is not full, with the strategy all for
+   * every eventd. Events already queued for an eventd wait for it even if it
+   * is ejected later.
+   * 
+   * @param selector
+   *          Selector of the eventd
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           Queues of all eventd full
+   */
+  private void queue (OnmsTargetSelector selector, OnmsEventXml event)
+      throws IOException
+  {
+    List<OnmsEventTarget> targets;
+    int queued;
+    if (selector.isFanOut ())
+    {
+      targets = selector.getTargets ();
+      queued = this.m_engine.sendToAll (targets, event);
+      if (queued < targets.size ())
+      {
+        log.warn ("Queues of " + (targets.size () - queued) + " eventd of "
+            + targets + " are full.");
+      }
+    } else
+    {
+      targets = selector.select ();
+      queued = this.m_engine.sendToFirst (targets, event) == null ? 0 : 1;
+    }
+    if (queued == 0)
+    {
+      OnmsSenderMetrics.getInstance ().eventsFailed (
+          1 + event.getEvents ().size ());
+      throw new IOException ("Queues of all eventd " + targets
+          + " are full.");
+    }
+  }
+
+  /**
+   * Write the events queued on the engine and stop it
+   */
+  private void closeEngine ()
+  {
+    OnmsSenderMetrics metrics = OnmsSenderMetrics.getInstance ();
+    long failed = metrics.getEventsFailed ();
+    try
+    {
+      if (!this.m_engine.flush (JSendEventConstants.NIO_FLUSH_TIMEOUT))
+      {
+        log.warn (this.m_engine.getQueuedBytes ()
+            + " bytes not sent to eventd within "
+            + JSendEventConstants.NIO_FLUSH_TIMEOUT + " ms.");
+      }
+      this.m_engine.close ();
+    } catch (InterruptedException e)
+    {
+      log.warn ("Interrupted while stopping the NIO engine.");
+    }
+    // Closing counts the documents still queued as failed
+    failed = metrics.getEventsFailed () - failed;
+    if (failed > 0)
+    {
+      log.warn (failed + " queued events dropped, the engine stopped before"
+          + " they were written. Sender " + metrics);
+    }
+  }
+
+  /**
+   * Send the event to all eventd at the same time over pooled connections.
+   * With a spool directory the event is spooled for each eventd which is not
+   * reachable.
+   * 
+   * @param selector
+   *          Selector with all eventd
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           Event was neither sent nor spooled for an eventd
+   */
+  private void sendToAll (OnmsTargetSelector selector, OnmsEventXml event)
+      throws IOException
+  {
+    Map<OnmsEventTarget, OnmsEventSpool> spools = null;
+    if (this.m_spoolDirectory != null)
+    {
+      spools = new HashMap<OnmsEventTarget, OnmsEventSpool> ();
+      for (OnmsEventTarget target : selector.getTargets ())
+      {
+        spools.put (target, this.getSpool (target.getHost (), target
+            .getPort ()));
+      }
+    }
+
+    StringBuilder failed = new StringBuilder ();
+    for (OnmsEventFanOut.Result result : this.m_fanOut.send (selector
+        .getTargets (), this.m_pool, spools, OnmsEventWriter
+        .toByteArray (event)))
+    {
+      if (result.getStatus () == OnmsEventFanOut.Result.SENT)
+      {
+        log.debug ("Event " + event.getUei () + " " + result);
+      } else
+      {
+        log.warn ("Event " + event.getUei () + " " + result);
+        if (result.getStatus () == OnmsEventFanOut.Result.FAILED)
+        {
+          failed.append (failed.length () == 0 ? "" : ", ").append (result);
+        }
+      }
+    }
+    if (failed.length () > 0)
+    {
+      throw new IOException (failed.toString ());
+    }
+  }
+
+  /**
+   * Get the target selector for the hosts, create it on first use so the
+   * health of the eventd is kept between the calls
+   * 
+   * @param host
+   *          Hosts of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @param strategy
+   *          Strategy to select one of several eventd or null
+   * @return Target selector
+   * @throws ParameterException
+   *           Hosts or strategy not correct
+   */
+  private OnmsTargetSelector getSelector (String host, String port,
+      String strategy) throws ParameterException
+  {
+    String key = host + ":" + port + "/" + strategy;
+    OnmsTargetSelector selector = this.m_selectors.get (key);
+    if (selector == null)
+    {
+      selector = new OnmsTargetSelector (host, port, strategy);
+      OnmsTargetSelector existing = this.m_selectors.putIfAbsent (key,
+          selector);
+      if (existing != null)
+      {
+        selector = existing;
+      }
+    }
+    return selector;
+  }
+
+  /**
+   * Get the spool for an eventd, open it on first use
+   * 
+   * @param host
+   *          Host of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @return Spool for the eventd
+   * @throws IOException
+   *           Spool can't be opened
+   */
+  private synchronized OnmsEventSpool getSpool (String host, String port)
+      throws IOException
+  {
+    String key = host + ":" + port;
+    OnmsEventSpool spool = this.m_spools.get (key);
+    if (spool == null)
+    {
+      spool = new OnmsEventSpool (OnmsEventSpool.getTargetDirectory (
+          this.m_spoolDirectory, host, port));
+      this.m_spools.put (key, spool);
+      OnmsSenderMetrics.getInstance ().addQueue (spool);
+    }
+    return spool;
+  }
+}
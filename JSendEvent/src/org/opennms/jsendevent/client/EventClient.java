@@ -0,0 +1,475 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+import org.opennms.jsendevent.utils.OnmsConnectionPool;
+import org.opennms.jsendevent.utils.OnmsEventTarget;
+import org.opennms.jsendevent.utils.OnmsEventXml;
+import org.opennms.jsendevent.utils.OnmsLaneQueue;
+import org.opennms.jsendevent.utils.OnmsSenderMetrics;
+import org.opennms.jsendevent.utils.OnmsTargetSelector;
+
+/**
+ * Thread-safe client to send OpenNMS events from within an application. Any
+ * number of threads submit events with {@link #send(OnmsEvent)}, which only
+ * adds them to a lock-free queue and returns a {@link EventFuture}. One
+ * sending thread per client takes the queued events, sends them in documents
+ * of up to {@link JSendEventConstants#CLIENT_BATCH_SIZE} events over a kept
+ * open connection and completes the futures. Errors are reported through the
+ * futures, the client never ends the process. The queue has a lane per
+ * severity, events of a higher severity are sent first, so a critical event
+ * does not wait behind a backlog of normal events. Lower severities get one
+ * event after every {@link JSendEventConstants#CLIENT_LANE_BURST} events
+ * overtaking them. Events without severity are sent last.
+ * <p>
+ * The queue is bounded, so the heap stays flat while eventd is slow or down.
+ * If it is full the overflow policy blocks the producer or drops the new
+ * event, the oldest event or an event of the lowest severity. The future of
+ * a dropped event fails with a {@link RejectedExecutionException}, dropped
+ * events are counted in the {@link OnmsSenderMetrics}. Producers can check
+ * {@link #isSaturated()} to slow down before events are dropped.
+ * 
+ * <pre>
+ * EventClient client = new EventClient (&quot;opennms1,opennms2&quot;, &quot;5817&quot;,
+ *     &quot;failover&quot;);
+ * client.send (event).get ();
+ * client.close ();
+ * </pre>
+ * 
+ * @author indigo@open-factory.org
+ */
+public class EventClient
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Lanes of the queue, one per severity from critical to undefined */
+  private static final int LANES = 8;
+
+  /** Selector for the eventd */
+  private OnmsTargetSelector m_selector;
+
+  /** Connections to the eventd */
+  private OnmsConnectionPool m_pool;
+
+  /** Events waiting to be sent by severity */
+  private OnmsLaneQueue<EventFuture> m_queue;
+
+  /** Events dropped by the overflow policy */
+  private AtomicInteger m_dropped;
+
+  /** Sending thread is parked and waits for events */
+  private AtomicBoolean m_waiting;
+
+  /** No more events accepted */
+  private volatile boolean m_closed;
+
+  /** Sending thread */
+  private Thread m_thread;
+
+  /**
+   * Constructor for a client sending to one eventd or with failover
+   * 
+   * @param hosts
+   *          Comma separated hosts with optional port
+   * @param port
+   *          TCP port for hosts without port
+   * @throws ParameterException
+   *           Port not numeric
+   */
+  public EventClient (String hosts, String port) throws ParameterException
+  {
+    this (hosts, port, null);
+  }
+
+  /**
+   * Constructor for a client sending to several eventd
+   * 
+   * @param hosts
+   *          Comma separated hosts with optional port
+   * @param port
+   *          TCP port for hosts without port
+   * @param strategy
+   *          Selection strategy or null for failover, all is not supported
+   * @throws ParameterException
+   *           Unknown strategy or port not numeric
+   */
+  public EventClient (String hosts, String port, String strategy)
+      throws ParameterException
+  {
+    this (hosts, port, strategy, JSendEventConstants.CLIENT_QUEUE_CAPACITY,
+        JSendEventConstants.CLIENT_QUEUE_POLICY);
+  }
+
+  /**
+   * Constructor for a client sending to several eventd with its own queue
+   * capacity and overflow policy
+   * 
+   * @param hosts
+   *          Comma separated hosts with optional port
+   * @param port
+   *          TCP port for hosts without port
+   * @param strategy
+   *          Selection strategy or null for failover, all is not supported
+   * @param capacity
+   *          Maximum number of events waiting to be sent
+   * @param policy
+   *          Overflow policy: block, drop-newest, drop-oldest or drop-lowest
+   * @throws ParameterException
+   *           Unknown strategy or policy, port not numeric or capacity not
+   *           positive
+   */
+  public EventClient (String hosts, String port, String strategy,
+      int capacity, String policy) throws ParameterException
+  {
+    if (capacity < 1)
+    {
+      throw new ParameterException ("Queue capacity " + capacity
+          + " is not positive.");
+    }
+    if (!OnmsLaneQueue.isPolicy (policy))
+    {
+      throw new ParameterException ("Overflow policy " + policy
+          + " is unknown.");
+    }
+    this.m_selector = new OnmsTargetSelector (hosts, port, strategy);
+    if (this.m_selector.isFanOut ())
+    {
+      throw new ParameterException ("Strategy " + strategy
+          + " is not supported by the client.");
+    }
+    this.m_pool = new OnmsConnectionPool (1);
+    this.m_queue = new OnmsLaneQueue<EventFuture> (LANES,
+        JSendEventConstants.CLIENT_LANE_BURST, capacity, policy,
+        JSendEventConstants.CLIENT_BLOCK_TIMEOUT);
+    this.m_dropped = new AtomicInteger ();
+    this.m_waiting = new AtomicBoolean ();
+    OnmsSenderMetrics.getInstance ().register ();
+
+    this.m_thread = new Thread (JSendEventConstants.CLIENT_THREAD_NAME)
+    {
+      public void run ()
+      {
+        EventClient.this.work ();
+      }
+    };
+    this.m_thread.setDaemon (true);
+    this.m_thread.start ();
+  }
+
+  /**
+   * Submit an event
+   * 
+   * @param event
+   *          Event
+   * @return Future completed when the event was sent or failed
+   */
+  public EventFuture send (OnmsEvent event)
+  {
+    return this.send (event, null);
+  }
+
+  /**
+   * Submit an event. If the client is closed the returned future is already
+   * failed. If the queue is full the overflow policy decides, with the policy
+   * block the call waits for space.
+   * 
+   * @param event
+   *          Event
+   * @param callback
+   *          Callback for the result or null
+   * @return Future completed when the event was sent or failed
+   */
+  public EventFuture send (OnmsEvent event, EventCallback callback)
+  {
+    EventFuture future = new EventFuture (event, callback);
+    if (this.m_closed)
+    {
+      future.failed (new IllegalStateException ("Client is closed."));
+      return future;
+    }
+
+    EventFuture dropped = this.m_queue.offer (future, lane (event));
+    if (dropped != null)
+    {
+      this.drop (dropped);
+      if (dropped == future)
+      {
+        return future;
+      }
+    }
+    if (this.m_waiting.get () && this.m_waiting.compareAndSet (true, false))
+    {
+      LockSupport.unpark (this.m_thread);
+    }
+    if (this.m_closed && !this.m_thread.isAlive ())
+    {
+      // Closed while the event was added
+      this.failQueued ();
+    }
+    return future;
+  }
+
+  /**
+   * Get the number of events waiting to be sent
+   * 
+   * @return Events in the queue
+   */
+  public int getQueued ()
+  {
+    return this.m_queue.size ();
+  }
+
+  /**
+   * Check if the queue is filled beyond
+   * {@link JSendEventConstants#CLIENT_QUEUE_HIGH_WATER} percent of its
+   * capacity. Producers should slow down to keep events from being dropped.
+   * 
+   * @return true if the queue is saturated
+   */
+  public boolean isSaturated ()
+  {
+    return this.m_queue.size () * 100L >= (long) this.m_queue.getCapacity ()
+        * JSendEventConstants.CLIENT_QUEUE_HIGH_WATER;
+  }
+
+  /**
+   * Get the number of events dropped by the overflow policy
+   * 
+   * @return Dropped events
+   */
+  public int getDropped ()
+  {
+    return this.m_dropped.get ();
+  }
+
+  /**
+   * Send the queued events, stop the sending thread and close the connection.
+   * Events submitted afterwards fail.
+   * 
+   * @throws InterruptedException
+   *           Interrupted while waiting for the sending thread
+   */
+  public void close () throws InterruptedException
+  {
+    this.m_closed = true;
+    LockSupport.unpark (this.m_thread);
+    this.m_thread.join ();
+    this.failQueued ();
+    this.m_pool.close ();
+    if (this.m_dropped.get () > 0)
+    {
+      log.warn (this.m_dropped.get () + " events dropped by a full queue.");
+    }
+  }
+
+  /**
+   * Get the lane of an event
+   * 
+   * @param event
+   *          Event
+   * @return 0 for critical to 7 for undefined or no severity
+   */
+  private static int lane (OnmsEvent event)
+  {
+    if (event.getSeverity () == null)
+    {
+      return LANES - 1;
+    }
+    // The builder accepts only severities from 0 to 7
+    return LANES - 1 - Integer.parseInt (event.getSeverity ());
+  }
+
+  /**
+   * Take the queued events and send them until the client is closed
+   */
+  private void work ()
+  {
+    List<EventFuture> batch = new ArrayList<EventFuture> (
+        JSendEventConstants.CLIENT_BATCH_SIZE);
+    while (true)
+    {
+      EventFuture future;
+      while (batch.size () < JSendEventConstants.CLIENT_BATCH_SIZE
+          && (future = this.m_queue.poll ()) != null)
+      {
+        if (future.start ())
+        {
+          batch.add (future);
+        }
+      }
+      if (!batch.isEmpty ())
+      {
+        this.send (batch);
+        batch.clear ();
+        continue;
+      }
+
+      if (this.m_closed)
+      {
+        return;
+      }
+      this.m_waiting.set (true);
+      if (this.m_queue.isEmpty () && !this.m_closed)
+      {
+        LockSupport.park (this);
+      }
+      this.m_waiting.set (false);
+    }
+  }
+
+  /**
+   * Send the events of a batch in one document and complete their futures
+   * 
+   * @param batch
+   *          Events taken from the queue
+   */
+  private void send (List<EventFuture> batch)
+  {
+    OnmsEventTarget target;
+    try
+    {
+      OnmsEventXml document = null;
+      for (EventFuture future : batch)
+      {
+        OnmsEventXml event = future.getEvent ().toEventXml ();
+        if (document == null)
+        {
+          document = event;
+        } else
+        {
+          document.addEvent (event);
+        }
+      }
+      target = this.m_selector.send (this.m_pool, document);
+    } catch (IOException e)
+    {
+      log.warn ("Sending " + batch.size () + " events failed. Error: "
+          + e.getMessage ());
+      this.fail (batch, e);
+      return;
+    } catch (RuntimeException e)
+    {
+      log.error ("Sending " + batch.size () + " events failed.", e);
+      this.fail (batch, e);
+      return;
+    }
+
+    for (EventFuture future : batch)
+    {
+      try
+      {
+        future.sent (target);
+      } catch (RuntimeException e)
+      {
+        log.error ("Callback for event " + future.getEvent () + " failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Fail an event dropped by the overflow policy
+   * 
+   * @param future
+   *          Dropped event
+   */
+  private void drop (EventFuture future)
+  {
+    this.m_dropped.incrementAndGet ();
+    OnmsSenderMetrics.getInstance ().eventsDropped (1);
+    if (future.start ())
+    {
+      try
+      {
+        future.failed (new RejectedExecutionException ("Event dropped, "
+            + this.m_queue.getCapacity () + " events waiting to be sent."));
+      } catch (RuntimeException e)
+      {
+        log.error ("Callback for event " + future.getEvent () + " failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Complete the futures of a batch with an error
+   * 
+   * @param batch
+   *          Events
+   * @param error
+   *          Cause
+   */
+  private void fail (List<EventFuture> batch, Throwable error)
+  {
+    for (EventFuture future : batch)
+    {
+      try
+      {
+        future.failed (error);
+      } catch (RuntimeException e)
+      {
+        log.error ("Callback for event " + future.getEvent () + " failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Fail the events left in the queue after the sending thread ended
+   */
+  private void failQueued ()
+  {
+    List<EventFuture> left = new ArrayList<EventFuture> ();
+    EventFuture future;
+    while ((future = this.m_queue.poll ()) != null)
+    {
+      if (future.start ())
+      {
+        left.add (future);
+      }
+    }
+    this.fail (left, new IllegalStateException ("Client is closed."));
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.jsendevent.utils.OnmsEventTarget;
+
+/**
+ * Result of an event submitted to the {@link EventClient}. The future is
+ * completed by the sending thread of the client with the eventd the event was
+ * sent to, or with the cause why it could not be sent. An event may be
+ * cancelled as long as the sending thread has not taken it.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class EventFuture implements Future<OnmsEventTarget>
+{
+  /** Waiting to be sent */
+  private static final int PENDING = 0;
+
+  /** Taken by the sending thread */
+  private static final int SENDING = 1;
+
+  /** Sent or failed */
+  private static final int DONE = 2;
+
+  /** Cancelled before it was taken */
+  private static final int CANCELLED = 3;
+
+  /** Event */
+  private final OnmsEvent m_event;
+
+  /** Callback or null */
+  private final EventCallback m_callback;
+
+  /** State */
+  private final AtomicInteger m_state;
+
+  /** Released when the future is completed */
+  private final CountDownLatch m_done;
+
+  /** Eventd the event was sent to */
+  private volatile OnmsEventTarget m_target;
+
+  /** Cause why the event was not sent */
+  private volatile Throwable m_error;
+
+  /**
+   * Constructor for the future of an event
+   * 
+   * @param event
+   *          Event
+   * @param callback
+   *          Callback or null
+   */
+  EventFuture (OnmsEvent event, EventCallback callback)
+  {
+    this.m_event = event;
+    this.m_callback = callback;
+    this.m_state = new AtomicInteger (PENDING);
+    this.m_done = new CountDownLatch (1);
+  }
+
+  /**
+   * Get the event
+   * 
+   * @return Event
+   */
+  public OnmsEvent getEvent ()
+  {
+    return this.m_event;
+  }
+
+  public boolean cancel (boolean mayInterruptIfRunning)
+  {
+    if (!this.m_state.compareAndSet (PENDING, CANCELLED))
+    {
+      return false;
+    }
+    this.m_done.countDown ();
+    return true;
+  }
+
+  public boolean isCancelled ()
+  {
+    return this.m_state.get () == CANCELLED;
+  }
+
+  public boolean isDone ()
+  {
+    return this.m_done.getCount () == 0;
+  }
+
+  public OnmsEventTarget get () throws InterruptedException,
+      ExecutionException
+  {
+    this.m_done.await ();
+    return this.result ();
+  }
+
+  public OnmsEventTarget get (long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+  {
+    if (!this.m_done.await (timeout, unit))
+    {
+      throw new TimeoutException ("Event " + this.m_event.getUei ()
+          + " not sent within " + timeout + " " + unit);
+    }
+    return this.result ();
+  }
+
+  /**
+   * Take the event for sending
+   * 
+   * @return False if the event was cancelled
+   */
+  boolean start ()
+  {
+    return this.m_state.compareAndSet (PENDING, SENDING);
+  }
+
+  /**
+   * Complete the future with the eventd the event was sent to
+   * 
+   * @param target
+   *          Eventd
+   */
+  void sent (OnmsEventTarget target)
+  {
+    this.m_target = target;
+    this.m_state.set (DONE);
+    this.m_done.countDown ();
+    if (this.m_callback != null)
+    {
+      this.m_callback.sent (this.m_event, target);
+    }
+  }
+
+  /**
+   * Complete the future with the cause why the event was not sent
+   * 
+   * @param error
+   *          Cause
+   */
+  void failed (Throwable error)
+  {
+    this.m_error = error;
+    this.m_state.set (DONE);
+    this.m_done.countDown ();
+    if (this.m_callback != null)
+    {
+      this.m_callback.failed (this.m_event, error);
+    }
+  }
+
+  /**
+   * Get the result of the completed future
+   * 
+   * @return Eventd the event was sent to
+   * @throws ExecutionException
+   *           Event was not sent
+   */
+  private OnmsEventTarget result () throws ExecutionException
+  {
+    if (this.m_state.get () == CANCELLED)
+    {
+      throw new CancellationException ();
+    }
+    if (this.m_error != null)
+    {
+      throw new ExecutionException (this.m_error);
+    }
+    return this.m_target;
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.client;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+import org.opennms.jsendevent.utils.OnmsEventXml;
+import org.opennms.jsendevent.utils.OnmsSeverity;
+import org.opennms.jsendevent.utils.OnmsTimestampEncoder;
+
+/**
+ * Immutable OpenNMS event for the {@link EventClient}. Events are built with
+ * an {@link OnmsEvent.Builder} and may be shared between threads.
+ * 
+ * <pre>
+ * OnmsEvent event = new OnmsEvent.Builder (&quot;uei.opennms.org/test&quot;)
+ *     .setInterface (&quot;10.0.0.1&quot;).setSeverity (&quot;6&quot;)
+ *     .addParm (&quot;url&quot;, &quot;http://www.opennms.org&quot;).build ();
+ * </pre>
+ * 
+ * @author indigo@open-factory.org
+ */
+public final class OnmsEvent
+{
+  /** UEI */
+  private final String m_uei;
+
+  /** Source */
+  private final String m_source;
+
+  /** Node id or null */
+  private final String m_nodeid;
+
+  /** Time or null for the time the event is sent */
+  private final String m_time;
+
+  /** Node host or null */
+  private final String m_host;
+
+  /** Interface or null */
+  private final String m_interface;
+
+  /** Service or null */
+  private final String m_service;
+
+  /** Severity from 0 to 7 or null */
+  private final String m_severity;
+
+  /** Description or null */
+  private final String m_description;
+
+  /** Operator instruction or null */
+  private final String m_operinstruct;
+
+  /** User defined parameters */
+  private final Map<String, String> m_parms;
+
+  /**
+   * Constructor copying the values of a builder
+   * 
+   * @param builder
+   *          Builder
+   */
+  private OnmsEvent (Builder builder)
+  {
+    this.m_uei = builder.m_uei;
+    this.m_source = builder.m_source;
+    this.m_nodeid = builder.m_nodeid;
+    this.m_time = builder.m_time;
+    this.m_host = builder.m_host;
+    this.m_interface = builder.m_interface;
+    this.m_service = builder.m_service;
+    this.m_severity = builder.m_severity;
+    this.m_description = builder.m_description;
+    this.m_operinstruct = builder.m_operinstruct;
+    this.m_parms = Collections
+        .unmodifiableMap (new LinkedHashMap<String, String> (builder.m_parms));
+  }
+
+  /**
+   * Get the Unique-Event-Identifier
+   * 
+   * @return Unique-Event-Identifier
+   */
+  public String getUei ()
+  {
+    return this.m_uei;
+  }
+
+  /**
+   * Get the event source
+   * 
+   * @return Event source
+   */
+  public String getSource ()
+  {
+    return this.m_source;
+  }
+
+  /**
+   * Get the node id
+   * 
+   * @return Node id or null
+   */
+  public String getNodeId ()
+  {
+    return this.m_nodeid;
+  }
+
+  /**
+   * Get the event time
+   * 
+   * @return Event time or null for the time the event is sent
+   */
+  public String getTime ()
+  {
+    return this.m_time;
+  }
+
+  /**
+   * Get the node host
+   * 
+   * @return Node host or null
+   */
+  public String getHost ()
+  {
+    return this.m_host;
+  }
+
+  /**
+   * Get the IP address of the interface
+   * 
+   * @return IP address of the interface or null
+   */
+  public String getInterface ()
+  {
+    return this.m_interface;
+  }
+
+  /**
+   * Get the service name
+   * 
+   * @return Service name or null
+   */
+  public String getService ()
+  {
+    return this.m_service;
+  }
+
+  /**
+   * Get the severity from 0 to 7
+   * 
+   * @return Severity from 0 to 7 or null
+   */
+  public String getSeverity ()
+  {
+    return this.m_severity;
+  }
+
+  /**
+   * Get the description
+   * 
+   * @return Description or null
+   */
+  public String getDescription ()
+  {
+    return this.m_description;
+  }
+
+  /**
+   * Get the operator instruction
+   * 
+   * @return Operator instruction or null
+   */
+  public String getOperinstruct ()
+  {
+    return this.m_operinstruct;
+  }
+
+  /**
+   * Get the user defined parameters
+   * 
+   * @return Unmodifiable parameters by name in the order they were added
+   */
+  public Map<String, String> getParms ()
+  {
+    return this.m_parms;
+  }
+
+  /**
+   * Build the XML event to send. The time is the current time unless it was
+   * set in the builder.
+   * 
+   * @return New OpenNMS event XML
+   */
+  public OnmsEventXml toEventXml ()
+  {
+    OnmsEventXml event = new OnmsEventXml ();
+    event.setUei (this.m_uei);
+    event.setSource (this.m_source);
+    if (this.m_nodeid != null)
+    {
+      event.setNodeId (this.m_nodeid);
+    }
+    if (this.m_time != null)
+    {
+      event.setTime (this.m_time);
+    }
+    event.setHost (this.m_host);
+    event.setInterface (this.m_interface);
+    event.setService (this.m_service);
+    event.setDescription (this.m_description);
+    event.setOperinstruct (this.m_operinstruct);
+    if (this.m_severity != null)
+    {
+      try
+      {
+        event.setSeverity (this.m_severity);
+      } catch (ParameterException e)
+      {
+        // Checked by the builder
+        throw new IllegalStateException (e.getMessage ());
+      }
+    }
+    for (Entry<String, String> parm : this.m_parms.entrySet ())
+    {
+      event.addParm (parm.getKey (), parm.getValue ());
+    }
+    return event;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "OnmsEvent[uei=" + this.m_uei + ", nodeid=" + this.m_nodeid
+        + ", interface=" + this.m_interface + ", parms=" + this.m_parms + "]";
+  }
+
+  /**
+   * Builder for an immutable event. A builder is not thread-safe, but may be
+   * reused to build several events.
+   */
+  public static class Builder
+  {
+    /** Severities by number */
+    private static final OnmsSeverity SEVERITY = new OnmsSeverity ();
+
+    /** UEI */
+    private String m_uei;
+
+    /** Source */
+    private String m_source = JSendEventConstants.SOURCE_NAME;
+
+    /** Node id */
+    private String m_nodeid;
+
+    /** Time */
+    private String m_time;
+
+    /** Node host */
+    private String m_host;
+
+    /** Interface */
+    private String m_interface;
+
+    /** Service */
+    private String m_service;
+
+    /** Severity */
+    private String m_severity;
+
+    /** Description */
+    private String m_description;
+
+    /** Operator instruction */
+    private String m_operinstruct;
+
+    /** User defined parameters */
+    private Map<String, String> m_parms = new LinkedHashMap<String, String> ();
+
+    /**
+     * Constructor for a builder of events with the given UEI
+     * 
+     * @param uei
+     *          Unique-Event-Identifier
+     */
+    public Builder (String uei)
+    {
+      this.m_uei = uei;
+    }
+
+    /**
+     * Set the Unique-Event-Identifier
+     * 
+     * @param uei
+     *          Unique-Event-Identifier
+     * @return This builder
+     */
+    public Builder setUei (String uei)
+    {
+      this.m_uei = uei;
+      return this;
+    }
+
+    /**
+     * Set the event source
+     * 
+     * @param source
+     *          Event source
+     * @return This builder
+     */
+    public Builder setSource (String source)
+    {
+      this.m_source = source;
+      return this;
+    }
+
+    /**
+     * Set the node id
+     * 
+     * @param nodeid
+     *          Node id
+     * @return This builder
+     */
+    public Builder setNodeId (int nodeid)
+    {
+      this.m_nodeid = String.valueOf (nodeid);
+      return this;
+    }
+
+    /**
+     * Set the event time
+     * 
+     * @param time
+     *          Event time
+     * @return This builder
+     */
+    public Builder setTime (String time)
+    {
+      this.m_time = time;
+      return this;
+    }
+
+    /**
+     * Set the event time from milliseconds since the epoch, for example to
+     * backfill events
+     * 
+     * @param millis
+     *          Milliseconds since the epoch
+     * @return This builder
+     */
+    public Builder setTime (long millis)
+    {
+      this.m_time = OnmsTimestampEncoder.getInstance ().format (millis);
+      return this;
+    }
+
+    /**
+     * Set the node host
+     * 
+     * @param host
+     *          Node host
+     * @return This builder
+     */
+    public Builder setHost (String host)
+    {
+      this.m_host = host;
+      return this;
+    }
+
+    /**
+     * Set the IP address of the interface
+     * 
+     * @param iface
+     *          IP address of the interface
+     * @return This builder
+     */
+    public Builder setInterface (String iface)
+    {
+      this.m_interface = iface;
+      return this;
+    }
+
+    /**
+     * Set the service name
+     * 
+     * @param service
+     *          Service name
+     * @return This builder
+     */
+    public Builder setService (String service)
+    {
+      this.m_service = service;
+      return this;
+    }
+
+    /**
+     * Set the severity
+     * 
+     * @param severity
+     *          Severity from 0 to 7
+     * @return This builder
+     * @throws ParameterException
+     *           Severity not correct
+     */
+    public Builder setSeverity (String severity) throws ParameterException
+    {
+      SEVERITY.resolvSeverity (severity);
+      this.m_severity = severity;
+      return this;
+    }
+
+    /**
+     * Set the description
+     * 
+     * @param description
+     *          Description
+     * @return This builder
+     */
+    public Builder setDescription (String description)
+    {
+      this.m_description = description;
+      return this;
+    }
+
+    /**
+     * Set the operator instruction
+     * 
+     * @param operinstruct
+     *          Operator instruction
+     * @return This builder
+     */
+    public Builder setOperinstruct (String operinstruct)
+    {
+      this.m_operinstruct = operinstruct;
+      return this;
+    }
+
+    /**
+     * Add a user defined event parameter, a parameter with the same name is
+     * replaced
+     * 
+     * @param key
+     *          Key for event parameter
+     * @param value
+     *          Value for event parameter
+     * @return This builder
+     */
+    public Builder addParm (String key, String value)
+    {
+      this.m_parms.put (key, value);
+      return this;
+    }
+
+    /**
+     * Build the event
+     * 
+     * @return Immutable event
+     * @throws ParameterException
+     *           No UEI set
+     */
+    public OnmsEvent build () throws ParameterException
+    {
+      if (this.m_uei == null || this.m_uei.length () == 0)
+      {
+        throw new ParameterException ("Event has no UEI.");
+      }
+      return new OnmsEvent (this);
+    }
+  }
+}
@@ -108,6 +108,39 @@ public class ArgumentMap extends HashMap<String, String>
     return super.get (k).toString ();
   }
 
+  /**
+   * Get a numeric argument
+   * 
+   * @param k
+   *          Argument
+   * @param defaultValue
+   *          Value if the argument is not given
+   * @return Value of the argument
+   * @throws ParameterException
+   *           Value not numeric or negative
+   */
+  public double getNumber (String k, double defaultValue)
+      throws ParameterException
+  {
+    if (!super.containsKey (k))
+    {
+      return defaultValue;
+    }
+    try
+    {
+      double value = Double.parseDouble (super.get (k));
+      if (value < 0)
+      {
+        throw new NumberFormatException ();
+      }
+      return value;
+    } catch (NumberFormatException e)
+    {
+      throw new ParameterException ("Argument " + k + " " + super.get (k)
+          + " is not a positive number.");
+    }
+  }
+
   /**
    * Add OpenNMS user defined event parameter
    * 
@@ -146,6 +179,18 @@ public class ArgumentMap extends HashMap<String, String>
    */
   public void checkArguments () throws ParameterException
   {
+    // In batch mode the events are defined in the batch file, the daemon
+    // gets the events from the clients, the load generator builds them, the
+    // import reads them from its file and the eventd stand-in receives them
+    if (super.containsKey (JSendEventConstants.PARM_BATCH)
+        || super.containsKey (JSendEventConstants.PARM_DAEMON)
+        || super.containsKey (JSendEventConstants.PARM_LOAD)
+        || super.containsKey (JSendEventConstants.PARM_IMPORT)
+        || super.containsKey (JSendEventConstants.PARM_STANDIN))
+    {
+      return;
+    }
+
     if (!super.containsKey (JSendEventConstants.PARM_INTERFACE))
     {
       throw new ParameterException ("Required argument "
@@ -173,8 +218,15 @@ public class ArgumentMap extends HashMap<String, String>
     {
       try
       {
-        // Add verbose mode without value "-v"
-        if (arg[i].equals (JSendEventConstants.PARM_VERBOSE))
+        // Add switches without value "-v", "--daemon", "--load", "--standin",
+        // "--udp", "--nio", "--offheap"
+        if (arg[i].equals (JSendEventConstants.PARM_VERBOSE)
+            || arg[i].equals (JSendEventConstants.PARM_DAEMON)
+            || arg[i].equals (JSendEventConstants.PARM_LOAD)
+            || arg[i].equals (JSendEventConstants.PARM_STANDIN)
+            || arg[i].equals (JSendEventConstants.PARM_UDP)
+            || arg[i].equals (JSendEventConstants.PARM_NIO)
+            || arg[i].equals (JSendEventConstants.PARM_OFFHEAP))
         {
           this.addArgument (arg[i], "");
         } else if (arg[i].equals (JSendEventConstants.PARM_ARG))
@@ -187,10 +239,11 @@ public class ArgumentMap extends HashMap<String, String>
           // Add all other values for example: -i <ip-address>
           this.addArgument (arg[i], arg[++i]);
         }
-      } catch (Exception e)
+      } catch (ArrayIndexOutOfBoundsException e)
       {
-        System.err.println ("Arguments not correct.");
-        System.exit (JSendEventConstants.EXIT_FAILED);
+        throw new ParameterException (
+            "Arguments not correct. Missing value for " + arg[arg.length - 1]
+                + ".");
       }
     }
   }
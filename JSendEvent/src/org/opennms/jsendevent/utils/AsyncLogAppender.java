@@ -0,0 +1,236 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Appender handing the log records through a bounded ring buffer to a
+ * background thread which writes them to another appender. Logging never
+ * waits for the file system: if the buffer is full the record is dropped and
+ * the number of dropped records is logged as soon as there is room again.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class AsyncLogAppender extends AppenderSkeleton
+{
+  /** Milliseconds to wait for the writer thread on close */
+  private static final long CLOSE_TIMEOUT = 5000;
+
+  /** Appender the records are written to */
+  private Appender m_appender;
+
+  /** Records waiting for the writer thread */
+  private ArrayBlockingQueue<LoggingEvent> m_buffer;
+
+  /** Records dropped because the buffer was full */
+  private AtomicLong m_dropped;
+
+  /** Thread writing the records */
+  private Thread m_writer;
+
+  /**
+   * Constructor for an asynchronous appender in front of another appender
+   * 
+   * @param appender
+   *          Appender the records are written to
+   * @param bufferSize
+   *          Maximum number of records waiting to be written
+   */
+  public AsyncLogAppender (Appender appender, int bufferSize)
+  {
+    this.m_appender = appender;
+    this.m_buffer = new ArrayBlockingQueue<LoggingEvent> (bufferSize);
+    this.m_dropped = new AtomicLong ();
+    this.m_writer = new Thread ("log-writer")
+    {
+      public void run ()
+      {
+        AsyncLogAppender.this.write ();
+      }
+    };
+    this.m_writer.setDaemon (true);
+    this.m_writer.start ();
+  }
+
+  /**
+   * Hand a log record to the writer thread. Unlike the synchronized method of
+   * {@link AppenderSkeleton} this method takes no lock, so concurrent
+   * loggers never wait for each other.
+   * 
+   * @param event
+   *          Log record
+   */
+  public void doAppend (LoggingEvent event)
+  {
+    if (this.closed || !this.isAsSevereAsThreshold (event.getLevel ()))
+    {
+      return;
+    }
+    for (Filter filter = this.getFirstFilter (); filter != null; filter = filter
+        .getNext ())
+    {
+      int decision = filter.decide (event);
+      if (decision == Filter.DENY)
+      {
+        return;
+      }
+      if (decision == Filter.ACCEPT)
+      {
+        break;
+      }
+    }
+    this.append (event);
+  }
+
+  /**
+   * Put a log record into the buffer or drop it if the buffer is full
+   * 
+   * @param event
+   *          Log record
+   */
+  protected void append (LoggingEvent event)
+  {
+    // Values depending on the logging thread are taken before the handover
+    event.getThreadName ();
+    event.getNDC ();
+    event.getRenderedMessage ();
+    event.getThrowableStrRep ();
+    if (!this.m_buffer.offer (event))
+    {
+      this.m_dropped.incrementAndGet ();
+    }
+  }
+
+  /**
+   * Get the number of records dropped because the buffer was full
+   * 
+   * @return Dropped records
+   */
+  public long getDropped ()
+  {
+    return this.m_dropped.get ();
+  }
+
+  /**
+   * Write the buffered records and close the target appender
+   */
+  public void close ()
+  {
+    if (this.closed)
+    {
+      return;
+    }
+    this.closed = true;
+    this.m_writer.interrupt ();
+    try
+    {
+      this.m_writer.join (CLOSE_TIMEOUT);
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    this.m_appender.close ();
+  }
+
+  /**
+   * The target appender has its own layout
+   * 
+   * @return false
+   */
+  public boolean requiresLayout ()
+  {
+    return false;
+  }
+
+  /**
+   * Write records until the appender is closed, then write the rest of the
+   * buffer
+   */
+  private void write ()
+  {
+    long reported = 0;
+    try
+    {
+      while (!this.closed)
+      {
+        LoggingEvent event = this.m_buffer.poll (1, TimeUnit.SECONDS);
+        if (event != null)
+        {
+          this.m_appender.doAppend (event);
+        }
+        reported = this.reportDropped (reported);
+      }
+    } catch (InterruptedException e)
+    {
+      // Closed, write the rest
+    }
+    LoggingEvent event;
+    while ((event = this.m_buffer.poll ()) != null)
+    {
+      this.m_appender.doAppend (event);
+    }
+    this.reportDropped (reported);
+  }
+
+  /**
+   * Log the number of records dropped since the last report
+   * 
+   * @param reported
+   *          Dropped records already reported
+   * @return Dropped records reported now
+   */
+  private long reportDropped (long reported)
+  {
+    long dropped = this.m_dropped.get ();
+    if (dropped > reported)
+    {
+      this.m_appender.doAppend (new LoggingEvent (AsyncLogAppender.class
+          .getName (), Logger.getRootLogger (), Level.WARN, (dropped - reported)
+          + " log records dropped, log buffer full", null));
+    }
+    return dropped;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Reads event specifications for the batch mode. Every line holds the
+ * arguments for one event with the same switches as on the command line, for
+ * example:
+ * 
+ * <pre>
+ * -u uei.opennms.org/internal/discovery/newSuspect -i 172.16.1.1
+ * -u uei.opennms.org/mine -i 172.16.1.2 -d "Disk full" -p mount "/var"
+ * </pre>
+ * 
+ * Empty lines and lines starting with # are skipped.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class BatchEventReader
+{
+  /** Reader for the batch lines */
+  private BufferedReader m_reader;
+
+  /** Current line number */
+  private int m_lineNumber;
+
+  /**
+   * Constructor to read event specifications from a reader
+   * 
+   * @param reader
+   *          Reader with one event specification per line
+   */
+  public BatchEventReader (Reader reader)
+  {
+    this.m_reader = new BufferedReader (reader);
+    this.m_lineNumber = 0;
+  }
+
+  /**
+   * Read the arguments for the next event
+   * 
+   * @return Arguments of the next event or null if no more events available
+   * @throws IOException
+   *           Error reading the batch
+   * @throws ParameterException
+   *           Line contains unbalanced quotes
+   */
+  public String[] nextArguments () throws IOException, ParameterException
+  {
+    String line;
+    while ((line = this.m_reader.readLine ()) != null)
+    {
+      this.m_lineNumber++;
+      line = line.trim ();
+      if (line.length () == 0
+          || line.startsWith (JSendEventConstants.BATCH_COMMENT))
+      {
+        continue;
+      }
+      return splitLine (line);
+    }
+    return null;
+  }
+
+  /**
+   * Get the number of the line read last
+   * 
+   * @return Line number
+   */
+  public int getLineNumber ()
+  {
+    return this.m_lineNumber;
+  }
+
+  /**
+   * Close the underlying reader
+   * 
+   * @throws IOException
+   *           Error closing the reader
+   */
+  public void close () throws IOException
+  {
+    this.m_reader.close ();
+  }
+
+  /**
+   * Split a line into arguments like a shell does. Arguments can be quoted with
+   * single or double quotes, inside double quotes \" and \\ are unescaped.
+   * 
+   * @param line
+   *          Line with arguments
+   * @return Arguments
+   * @throws ParameterException
+   *           Unbalanced quotes
+   */
+  public static String[] splitLine (String line) throws ParameterException
+  {
+    ArrayList<String> arguments = new ArrayList<String> ();
+    StringBuilder current = new StringBuilder ();
+    boolean inArgument = false;
+    char quote = 0;
+
+    for (int i = 0; i < line.length (); i++)
+    {
+      char c = line.charAt (i);
+      if (quote != 0)
+      {
+        if (c == quote)
+        {
+          quote = 0;
+        } else if (c == '\\' && quote == '"' && i + 1 < line.length ()
+            && (line.charAt (i + 1) == '"' || line.charAt (i + 1) == '\\'))
+        {
+          current.append (line.charAt (++i));
+        } else
+        {
+          current.append (c);
+        }
+      } else if (c == '"' || c == '\'')
+      {
+        quote = c;
+        inArgument = true;
+      } else if (Character.isWhitespace (c))
+      {
+        if (inArgument)
+        {
+          arguments.add (current.toString ());
+          current.setLength (0);
+          inArgument = false;
+        }
+      } else
+      {
+        current.append (c);
+        inArgument = true;
+      }
+    }
+
+    if (quote != 0)
+    {
+      throw new ParameterException ("Missing closing quote " + quote + ".");
+    }
+    if (inArgument)
+    {
+      arguments.add (current.toString ());
+    }
+    return arguments.toArray (new String[arguments.size ()]);
+  }
+}
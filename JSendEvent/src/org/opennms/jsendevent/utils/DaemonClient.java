@@ -0,0 +1,137 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Client side of the resident forwarder daemon. The command line arguments are
+ * handed over to a running daemon on the local host, the daemon builds and
+ * sends the event over its open eventd connection and replies with the exit
+ * code.
+ * 
+ * The request is the number of arguments followed by the arguments in modified
+ * UTF-8, the reply is the exit code followed by a message.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class DaemonClient
+{
+  /** No daemon is running or the arguments can't be handed over */
+  public static final int NO_DAEMON = -1;
+
+  /**
+   * Hand the arguments over to a running forwarder daemon
+   * 
+   * @param args
+   *          Arguments from command line
+   * @param port
+   *          Local TCP port of the daemon
+   * @return Exit code from the daemon or {@link #NO_DAEMON} if no daemon is
+   *         running
+   */
+  public static int forward (String[] args, int port)
+  {
+    Socket socket = new Socket ();
+    try
+    {
+      try
+      {
+        socket.connect (new InetSocketAddress (InetAddress
+            .getByName ("127.0.0.1"), port),
+            JSendEventConstants.DAEMON_CONNECT_TIMEOUT);
+      } catch (IOException e)
+      {
+        return NO_DAEMON;
+      }
+
+      try
+      {
+        socket.setSoTimeout (JSendEventConstants.DAEMON_REQUEST_TIMEOUT);
+        DataOutputStream out = new DataOutputStream (socket.getOutputStream ());
+        out.writeInt (args.length);
+        for (String arg : args)
+        {
+          out.writeUTF (arg);
+        }
+        out.flush ();
+      } catch (UTFDataFormatException e)
+      {
+        // Argument too long for the daemon protocol, send without daemon
+        return NO_DAEMON;
+      } catch (IOException e)
+      {
+        return NO_DAEMON;
+      }
+
+      // The request is handed over, the daemon might have sent the event
+      // already so don't fall back to send it again
+      try
+      {
+        DataInputStream in = new DataInputStream (socket.getInputStream ());
+        int exitCode = in.readInt ();
+        String message = in.readUTF ();
+        if (exitCode != JSendEventConstants.EXIT_OK)
+        {
+          System.err.println (message);
+        }
+        return exitCode;
+      } catch (IOException e)
+      {
+        System.err.println ("No reply from JSendEvent daemon on port " + port
+            + ". Error: " + e.getMessage ());
+        return JSendEventConstants.EXIT_FAILED;
+      }
+    } finally
+    {
+      try
+      {
+        socket.close ();
+      } catch (IOException e)
+      {
+        // Nothing left to do with the socket
+      }
+    }
+  }
+}
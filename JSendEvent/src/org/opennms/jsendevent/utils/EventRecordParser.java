@@ -0,0 +1,651 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Parser for the lines of a bulk import file. A CSV file starts with a header
+ * line naming the columns, a JSON Lines file has one flat JSON object per
+ * line. Columns and keys named like the event tags (uei, nodeid, interface,
+ * ...) set the event fields, all others become event parameters. In JSON the
+ * key "parms" may hold an object with further parameters. For an event
+ * template the lines only provide the values of its variables by column or
+ * key. The parser keeps no state after the header, so one instance is shared
+ * by all import workers.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class EventRecordParser
+{
+  /** Event fields which may be set by a column or key */
+  private static final String[] FIELDS = {
+      JSendEventConstants.EVENT_XMLTAG_UEI,
+      JSendEventConstants.EVENT_XMLTAG_SOURCE,
+      JSendEventConstants.EVENT_XMLTAG_NODEID,
+      JSendEventConstants.EVENT_XMLTAG_INTERFACE,
+      JSendEventConstants.EVENT_XMLTAG_TIME,
+      JSendEventConstants.EVENT_XMLTAG_SERVICE,
+      JSendEventConstants.EVENT_XMLTAG_SEVERITY,
+      JSendEventConstants.EVENT_XMLTAG_HOST,
+      JSendEventConstants.EVENT_XMLTAG_DESCRIPTION,
+      JSendEventConstants.EVENT_XMLTAG_OPERINSTRUCT };
+
+  /** True for JSON Lines, false for CSV */
+  private boolean m_json;
+
+  /** Column names of the CSV file */
+  private String[] m_columns;
+
+  /** Field of each CSV column, -1 for a parameter */
+  private int[] m_fields;
+
+  /**
+   * Constructor for a parser of the given format
+   * 
+   * @param format
+   *          csv or jsonl
+   * @param header
+   *          First line of a CSV file, ignored for JSON Lines
+   * @throws ParameterException
+   *           Unknown format or header not correct
+   */
+  public EventRecordParser (String format, String header)
+      throws ParameterException
+  {
+    this (format, header, false);
+  }
+
+  /**
+   * Constructor for a parser of the given format
+   * 
+   * @param format
+   *          csv or jsonl
+   * @param header
+   *          First line of a CSV file, ignored for JSON Lines
+   * @param template
+   *          Lines fill the variables of a template which sets the UEI
+   * @throws ParameterException
+   *           Unknown format or header not correct
+   */
+  public EventRecordParser (String format, String header, boolean template)
+      throws ParameterException
+  {
+    if (JSendEventConstants.IMPORT_FORMAT_JSONL.equals (format))
+    {
+      this.m_json = true;
+      return;
+    }
+    if (!JSendEventConstants.IMPORT_FORMAT_CSV.equals (format))
+    {
+      throw new ParameterException ("Import format " + format
+          + " is not supported.");
+    }
+    if (header == null)
+    {
+      throw new ParameterException ("CSV file has no header line.");
+    }
+
+    List<String> columns = splitCsv (header);
+    this.m_columns = columns.toArray (new String[columns.size ()]);
+    this.m_fields = new int[this.m_columns.length];
+    boolean uei = false;
+    for (int i = 0; i < this.m_columns.length; i++)
+    {
+      this.m_columns[i] = this.m_columns[i].trim ();
+      this.m_fields[i] = field (this.m_columns[i]);
+      uei |= this.m_fields[i] == 0;
+    }
+    if (!uei && !template)
+    {
+      throw new ParameterException ("CSV header has no column "
+          + JSendEventConstants.EVENT_XMLTAG_UEI + ".");
+    }
+  }
+
+  /**
+   * Check if the parser needs the first line of the file as header
+   * 
+   * @param format
+   *          csv or jsonl
+   * @return True if the first line is a header
+   */
+  public static boolean hasHeader (String format)
+  {
+    return JSendEventConstants.IMPORT_FORMAT_CSV.equals (format);
+  }
+
+  /**
+   * Build the event of one line
+   * 
+   * @param line
+   *          Line without line break
+   * @return Event
+   * @throws ParameterException
+   *           Line not correct or without UEI
+   */
+  public OnmsEventXml parse (String line) throws ParameterException
+  {
+    OnmsEventXml event = new OnmsEventXml ();
+    if (this.m_json)
+    {
+      new JsonLine (line, event).parse ();
+    } else
+    {
+      List<String> values = splitCsv (line);
+      if (values.size () != this.m_columns.length)
+      {
+        throw new ParameterException ("Line has " + values.size ()
+            + " columns instead of " + this.m_columns.length + ".");
+      }
+      for (int i = 0; i < this.m_columns.length; i++)
+      {
+        set (event, this.m_fields[i], this.m_columns[i], values.get (i));
+      }
+    }
+    if (event.getUei () == null)
+    {
+      throw new ParameterException ("Line has no "
+          + JSendEventConstants.EVENT_XMLTAG_UEI + ".");
+    }
+    return event;
+  }
+
+  /**
+   * Get the values of one line by column or key for the variables of a
+   * template. Parameters of the JSON key "parms" are added by their name, empty
+   * values are skipped.
+   * 
+   * @param line
+   *          Line without line break
+   * @return Values by column or key
+   * @throws ParameterException
+   *           Line not correct
+   */
+  public Map<String, String> values (String line) throws ParameterException
+  {
+    Map<String, String> values = new HashMap<String, String> ();
+    if (this.m_json)
+    {
+      new JsonLine (line, values).parse ();
+      return values;
+    }
+    List<String> columns = splitCsv (line);
+    if (columns.size () != this.m_columns.length)
+    {
+      throw new ParameterException ("Line has " + columns.size ()
+          + " columns instead of " + this.m_columns.length + ".");
+    }
+    for (int i = 0; i < this.m_columns.length; i++)
+    {
+      if (columns.get (i).length () > 0)
+      {
+        values.put (this.m_columns[i], columns.get (i));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Get the event field of a column or key
+   * 
+   * @param name
+   *          Column or key
+   * @return Index in FIELDS or -1 for a parameter
+   */
+  private static int field (String name)
+  {
+    for (int i = 0; i < FIELDS.length; i++)
+    {
+      if (FIELDS[i].equalsIgnoreCase (name))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Set a field or add a parameter to the event, empty values are skipped
+   * 
+   * @param event
+   *          Event
+   * @param field
+   *          Index in FIELDS or -1 for a parameter
+   * @param name
+   *          Column or key
+   * @param value
+   *          Value
+   * @throws ParameterException
+   *           Node id or severity not correct
+   */
+  private static void set (OnmsEventXml event, int field, String name,
+      String value) throws ParameterException
+  {
+    if (value == null || value.length () == 0)
+    {
+      return;
+    }
+    try
+    {
+      switch (field)
+      {
+        case -1:
+          event.addParm (name, value);
+          break;
+        case 0:
+          event.setUei (value);
+          break;
+        case 1:
+          event.setSource (value);
+          break;
+        case 2:
+          event.setNodeId (value.trim ());
+          break;
+        case 3:
+          event.setInterface (value);
+          break;
+        case 4:
+          if (OnmsTimestampEncoder.isEpoch (value))
+          {
+            event.setTime (Long.parseLong (value));
+          } else
+          {
+            event.setTime (value);
+          }
+          break;
+        case 5:
+          event.setService (value);
+          break;
+        case 6:
+          event.setSeverity (value.trim ());
+          break;
+        case 7:
+          event.setHost (value);
+          break;
+        case 8:
+          event.setDescription (value);
+          break;
+        default:
+          event.setOperinstruct (value);
+      }
+    } catch (RuntimeException e)
+    {
+      throw new ParameterException ("Value " + value + " of " + name
+          + " is not correct.");
+    }
+  }
+
+  /**
+   * Split a CSV line into its values. Values may be quoted with double quotes,
+   * a quote within a quoted value is written twice.
+   * 
+   * @param line
+   *          Line
+   * @return Values
+   * @throws ParameterException
+   *           Quoted value not closed
+   */
+  private static List<String> splitCsv (String line) throws ParameterException
+  {
+    List<String> values = new ArrayList<String> ();
+    StringBuilder value = new StringBuilder ();
+    boolean quoted = false;
+    for (int i = 0; i < line.length (); i++)
+    {
+      char c = line.charAt (i);
+      if (quoted)
+      {
+        if (c != '"')
+        {
+          value.append (c);
+        } else if (i + 1 < line.length () && line.charAt (i + 1) == '"')
+        {
+          value.append ('"');
+          i++;
+        } else
+        {
+          quoted = false;
+        }
+      } else if (c == '"')
+      {
+        quoted = true;
+      } else if (c == ',')
+      {
+        values.add (value.toString ());
+        value.setLength (0);
+      } else
+      {
+        value.append (c);
+      }
+    }
+    if (quoted)
+    {
+      throw new ParameterException ("Quoted value is not closed.");
+    }
+    values.add (value.toString ());
+    return values;
+  }
+
+  /**
+   * Parser for one flat JSON object. Values are strings, numbers, true, false
+   * or null, only the key "parms" may hold an object of parameters.
+   */
+  private static class JsonLine
+  {
+    /** Line */
+    private String m_line;
+
+    /** Position in the line */
+    private int m_pos;
+
+    /** Event to fill or null */
+    private OnmsEventXml m_event;
+
+    /** Values to fill instead of an event or null */
+    private Map<String, String> m_values;
+
+    /**
+     * Constructor for the parser of one line
+     * 
+     * @param line
+     *          Line
+     * @param event
+     *          Event to fill
+     */
+    JsonLine (String line, OnmsEventXml event)
+    {
+      this.m_line = line;
+      this.m_event = event;
+    }
+
+    /**
+     * Constructor for the parser of one line into values by key
+     * 
+     * @param line
+     *          Line
+     * @param values
+     *          Values to fill
+     */
+    JsonLine (String line, Map<String, String> values)
+    {
+      this.m_line = line;
+      this.m_values = values;
+    }
+
+    /**
+     * Parse the line and fill the event or the values
+     * 
+     * @throws ParameterException
+     *           Line is not a flat JSON object
+     */
+    void parse () throws ParameterException
+    {
+      this.expect ('{');
+      if (!this.next ('}'))
+      {
+        do
+        {
+          String key = this.string ();
+          this.expect (':');
+          if (JSendEventConstants.IMPORT_KEY_PARMS.equals (key)
+              && this.peek () == '{')
+          {
+            this.parms ();
+          } else
+          {
+            this.set (field (key), key, this.value ());
+          }
+        } while (this.next (','));
+        this.expect ('}');
+      }
+      if (this.peek () != 0)
+      {
+        throw this.error ("End of line");
+      }
+    }
+
+    /**
+     * Parse the object of parameters
+     * 
+     * @throws ParameterException
+     *           Object not correct
+     */
+    private void parms () throws ParameterException
+    {
+      this.expect ('{');
+      if (this.next ('}'))
+      {
+        return;
+      }
+      do
+      {
+        String name = this.string ();
+        this.expect (':');
+        this.set (-1, name, this.value ());
+      } while (this.next (','));
+      this.expect ('}');
+    }
+
+    /**
+     * Set a field or parameter of the event or the value of a key
+     * 
+     * @param field
+     *          Index in FIELDS or -1 for a parameter
+     * @param name
+     *          Key
+     * @param value
+     *          Value
+     * @throws ParameterException
+     *           Node id or severity not correct
+     */
+    private void set (int field, String name, String value)
+        throws ParameterException
+    {
+      if (this.m_values == null)
+      {
+        EventRecordParser.set (this.m_event, field, name, value);
+      } else if (value != null && value.length () > 0)
+      {
+        this.m_values.put (name, value);
+      }
+    }
+
+    /**
+     * Parse a scalar value
+     * 
+     * @return Value as text or null
+     * @throws ParameterException
+     *           No scalar value
+     */
+    private String value () throws ParameterException
+    {
+      char c = this.peek ();
+      if (c == '"')
+      {
+        return this.string ();
+      }
+      int start = this.m_pos;
+      while (this.m_pos < this.m_line.length ()
+          && ",}] \t".indexOf (this.m_line.charAt (this.m_pos)) < 0)
+      {
+        this.m_pos++;
+      }
+      String literal = this.m_line.substring (start, this.m_pos);
+      if (literal.equals ("null"))
+      {
+        return null;
+      }
+      if (literal.equals ("true") || literal.equals ("false")
+          || literal.matches ("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?"))
+      {
+        return literal;
+      }
+      throw this.error ("Value");
+    }
+
+    /**
+     * Parse a string with escapes
+     * 
+     * @return String
+     * @throws ParameterException
+     *           String not correct
+     */
+    private String string () throws ParameterException
+    {
+      this.expect ('"');
+      StringBuilder s = new StringBuilder ();
+      while (this.m_pos < this.m_line.length ())
+      {
+        char c = this.m_line.charAt (this.m_pos++);
+        if (c == '"')
+        {
+          return s.toString ();
+        }
+        if (c != '\\')
+        {
+          s.append (c);
+          continue;
+        }
+        if (this.m_pos >= this.m_line.length ())
+        {
+          break;
+        }
+        c = this.m_line.charAt (this.m_pos++);
+        switch (c)
+        {
+          case 'b':
+            s.append ('\b');
+            break;
+          case 'f':
+            s.append ('\f');
+            break;
+          case 'n':
+            s.append ('\n');
+            break;
+          case 'r':
+            s.append ('\r');
+            break;
+          case 't':
+            s.append ('\t');
+            break;
+          case 'u':
+            try
+            {
+              s.append ((char) Integer.parseInt (this.m_line.substring (
+                  this.m_pos, this.m_pos + 4), 16));
+            } catch (RuntimeException e)
+            {
+              throw this.error ("Unicode escape");
+            }
+            this.m_pos += 4;
+            break;
+          default:
+            s.append (c);
+        }
+      }
+      throw this.error ("Closing quote");
+    }
+
+    /**
+     * Skip white space and get the next character without consuming it
+     * 
+     * @return Next character or 0 at the end of the line
+     */
+    private char peek ()
+    {
+      while (this.m_pos < this.m_line.length ()
+          && Character.isWhitespace (this.m_line.charAt (this.m_pos)))
+      {
+        this.m_pos++;
+      }
+      return this.m_pos < this.m_line.length () ? this.m_line
+          .charAt (this.m_pos) : 0;
+    }
+
+    /**
+     * Consume the next character if it is the given one
+     * 
+     * @param c
+     *          Character
+     * @return True if consumed
+     */
+    private boolean next (char c)
+    {
+      if (this.peek () == c)
+      {
+        this.m_pos++;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Consume the given character
+     * 
+     * @param c
+     *          Character
+     * @throws ParameterException
+     *           Other character found
+     */
+    private void expect (char c) throws ParameterException
+    {
+      if (!this.next (c))
+      {
+        throw this.error ("'" + c + "'");
+      }
+    }
+
+    /**
+     * Build the error for an unexpected character
+     * 
+     * @param expected
+     *          What was expected
+     * @return Exception
+     */
+    private ParameterException error (String expected)
+    {
+      return new ParameterException (expected + " expected at column "
+          + (this.m_pos + 1) + ".");
+    }
+  }
+}
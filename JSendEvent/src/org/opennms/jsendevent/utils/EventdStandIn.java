@@ -0,0 +1,858 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Stand-in for OpenNMS eventd to test and benchmark the sender without an
+ * OpenNMS installation. The stand-in accepts connections on a TCP port and
+ * scans the received event documents incrementally while they arrive, one
+ * thread per connection. It counts connections, bytes, documents and events
+ * and checks that the elements are properly nested. A latency per document
+ * and a delay per read emulate a busy eventd. Like eventd the stand-in answers
+ * documents with events carrying a uuid attribute with an event receipt.
+ * Datagrams received on the same UDP port are scanned as one document each.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class EventdStandIn implements Runnable
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Listening socket */
+  private ServerSocket m_serverSocket;
+
+  /** Socket receiving datagrams on the same port */
+  private DatagramSocket m_datagramSocket;
+
+  /** Milliseconds to wait after each received document */
+  private long m_latency;
+
+  /** Milliseconds to wait after each read */
+  private long m_readDelay;
+
+  /** Accepted connections */
+  private AtomicLong m_connections;
+
+  /** Received bytes */
+  private AtomicLong m_bytes;
+
+  /** Received documents */
+  private AtomicLong m_documents;
+
+  /** Received events */
+  private AtomicLong m_events;
+
+  /** Received datagrams */
+  private AtomicLong m_datagrams;
+
+  /** Connections closed or datagrams dropped because of malformed XML */
+  private AtomicLong m_errors;
+
+  /**
+   * Constructor for a stand-in on the given port of all local addresses
+   * 
+   * @param port
+   *          TCP port or 0 for an ephemeral port
+   * @throws IOException
+   *           Can't listen on the port
+   */
+  public EventdStandIn (int port) throws IOException
+  {
+    this (port, null);
+  }
+
+  /**
+   * Constructor for a stand-in on the given port and address
+   * 
+   * @param port
+   *          TCP port or 0 for an ephemeral port
+   * @param address
+   *          Local address or null for all local addresses
+   * @throws IOException
+   *           Can't listen on the port
+   */
+  public EventdStandIn (int port, InetAddress address) throws IOException
+  {
+    this.m_serverSocket = new ServerSocket (port, 1000, address);
+    try
+    {
+      this.m_datagramSocket = new DatagramSocket (new InetSocketAddress (
+          address, this.m_serverSocket.getLocalPort ()));
+      // Keep bursts of datagrams while the receiver scans
+      this.m_datagramSocket
+          .setReceiveBufferSize (JSendEventConstants.STANDIN_UDP_BUFFER);
+    } catch (IOException e)
+    {
+      this.m_serverSocket.close ();
+      throw e;
+    }
+    this.m_datagrams = new AtomicLong ();
+    this.m_connections = new AtomicLong ();
+    this.m_bytes = new AtomicLong ();
+    this.m_documents = new AtomicLong ();
+    this.m_events = new AtomicLong ();
+    this.m_errors = new AtomicLong ();
+  }
+
+  /**
+   * Accept connections and receive datagrams in background threads
+   */
+  public void start ()
+  {
+    Thread thread = new Thread (this, "eventd-standin");
+    thread.setDaemon (true);
+    thread.start ();
+
+    Thread receiver = new Thread ("eventd-standin-udp")
+    {
+      public void run ()
+      {
+        try
+        {
+          EventdStandIn.this.receive ();
+        } catch (IOException e)
+        {
+          log.debug ("Eventd stand-in UDP closed: " + e.getMessage ());
+        }
+      }
+    };
+    receiver.setDaemon (true);
+    receiver.start ();
+  }
+
+  /**
+   * Accept connections and read each one in its own thread until the stand-in
+   * is closed
+   */
+  public void run ()
+  {
+    log.info ("Eventd stand-in listening on port " + this.getPort ());
+    try
+    {
+      while (true)
+      {
+        final Socket socket = this.m_serverSocket.accept ();
+        this.m_connections.incrementAndGet ();
+        Thread reader = new Thread ("eventd-standin-reader")
+        {
+          public void run ()
+          {
+            try
+            {
+              EventdStandIn.this.read (socket);
+            } catch (IOException e)
+            {
+              log.debug ("Stand-in connection closed: " + e.getMessage ());
+            } finally
+            {
+              try
+              {
+                socket.close ();
+              } catch (IOException e)
+              {
+                log.debug ("Error closing stand-in connection: "
+                    + e.getMessage ());
+              }
+            }
+          }
+        };
+        reader.setDaemon (true);
+        reader.start ();
+      }
+    } catch (IOException e)
+    {
+      log.debug ("Eventd stand-in closed: " + e.getMessage ());
+    }
+  }
+
+  /**
+   * Stop listening
+   * 
+   * @throws IOException
+   *           Error closing the socket
+   */
+  public void close () throws IOException
+  {
+    this.m_datagramSocket.close ();
+    this.m_serverSocket.close ();
+  }
+
+  /**
+   * Get the port the stand-in listens on
+   * 
+   * @return TCP and UDP port
+   */
+  public int getPort ()
+  {
+    return this.m_serverSocket.getLocalPort ();
+  }
+
+  /**
+   * Set the milliseconds to wait after each received document
+   * 
+   * @param latency
+   *          Milliseconds, 0 to read on immediately
+   */
+  public void setLatency (long latency)
+  {
+    this.m_latency = latency;
+  }
+
+  /**
+   * Set the milliseconds to wait after each read. With a delay the stand-in
+   * reads in small chunks so the sender runs into a full socket buffer.
+   * 
+   * @param readDelay
+   *          Milliseconds, 0 to read as fast as possible
+   */
+  public void setReadDelay (long readDelay)
+  {
+    this.m_readDelay = readDelay;
+  }
+
+  /**
+   * Get the number of accepted connections
+   * 
+   * @return Connections
+   */
+  public long getConnections ()
+  {
+    return this.m_connections.get ();
+  }
+
+  /**
+   * Get the number of received datagrams
+   * 
+   * @return Datagrams
+   */
+  public long getDatagrams ()
+  {
+    return this.m_datagrams.get ();
+  }
+
+  /**
+   * Get the number of received bytes
+   * 
+   * @return Bytes
+   */
+  public long getBytes ()
+  {
+    return this.m_bytes.get ();
+  }
+
+  /**
+   * Get the number of received documents
+   * 
+   * @return Documents
+   */
+  public long getDocuments ()
+  {
+    return this.m_documents.get ();
+  }
+
+  /**
+   * Get the number of received events
+   * 
+   * @return Events
+   */
+  public long getEvents ()
+  {
+    return this.m_events.get ();
+  }
+
+  /**
+   * Get the number of connections closed or datagrams dropped because of
+   * malformed XML
+   * 
+   * @return Errors
+   */
+  public long getErrors ()
+  {
+    return this.m_errors.get ();
+  }
+
+  /**
+   * Reset all counters
+   */
+  public void reset ()
+  {
+    this.m_connections.set (0);
+    this.m_datagrams.set (0);
+    this.m_bytes.set (0);
+    this.m_documents.set (0);
+    this.m_events.set (0);
+    this.m_errors.set (0);
+  }
+
+  /**
+   * Counters of the stand-in
+   * 
+   * @return Counters as text
+   */
+  public String toString ()
+  {
+    return "connections=" + this.getConnections () + " datagrams="
+        + this.getDatagrams () + " bytes="
+        + this.getBytes () + " documents=" + this.getDocuments () + " events="
+        + this.getEvents () + " errors=" + this.getErrors ();
+  }
+
+  /**
+   * Read and scan the documents of one connection until it is closed
+   * 
+   * @param socket
+   *          Accepted connection
+   * @throws IOException
+   *           Error reading
+   */
+  private void read (Socket socket) throws IOException
+  {
+    InputStream in = socket.getInputStream ();
+    OutputStream out = socket.getOutputStream ();
+    byte[] buffer = new byte[this.m_readDelay > 0
+        ? JSendEventConstants.STANDIN_SLOW_READ_SIZE
+        : JSendEventConstants.STANDIN_READ_SIZE];
+    EventScanner scanner = new EventScanner ();
+    int length;
+    while ((length = in.read (buffer)) >= 0)
+    {
+      this.m_bytes.addAndGet (length);
+      int documents = scanner.scan (buffer, length);
+      if (scanner.getError () != null)
+      {
+        this.m_errors.incrementAndGet ();
+        log.warn ("Stand-in received malformed XML from "
+            + socket.getRemoteSocketAddress () + ": " + scanner.getError ());
+        return;
+      }
+      if (scanner.getEvents () > 0)
+      {
+        this.m_events.addAndGet (scanner.getEvents ());
+      }
+      if (documents > 0)
+      {
+        this.m_documents.addAndGet (documents);
+        pause (this.m_latency * documents);
+        List<String> receipts = scanner.takeReceipts ();
+        if (!receipts.isEmpty ())
+        {
+          out.write (receipt (receipts));
+          out.flush ();
+        }
+      }
+      pause (this.m_readDelay);
+    }
+  }
+
+  /**
+   * Receive and scan datagrams until the stand-in is closed, every datagram
+   * has to hold complete documents
+   * 
+   * @throws IOException
+   *           Error receiving or socket closed
+   */
+  private void receive () throws IOException
+  {
+    DatagramPacket packet = new DatagramPacket (
+        new byte[JSendEventConstants.UDP_MAX_DATAGRAM],
+        JSendEventConstants.UDP_MAX_DATAGRAM);
+    while (true)
+    {
+      this.m_datagramSocket.receive (packet);
+      this.m_datagrams.incrementAndGet ();
+      this.m_bytes.addAndGet (packet.getLength ());
+      EventScanner scanner = new EventScanner ();
+      int documents = scanner.scan (packet.getData (), packet.getLength ());
+      if (scanner.getError () != null || !scanner.isComplete ())
+      {
+        this.m_errors.incrementAndGet ();
+        log.warn ("Stand-in received malformed XML from "
+            + packet.getSocketAddress () + ": "
+            + (scanner.getError () != null ? scanner.getError ()
+                : "incomplete document"));
+        continue;
+      }
+      this.m_events.addAndGet (scanner.getEvents ());
+      this.m_documents.addAndGet (documents);
+      pause (this.m_latency * documents);
+    }
+  }
+
+  /**
+   * Build the receipt for events of completed documents
+   * 
+   * @param uuids
+   *          Uuids of the events
+   * @return Receipt document as UTF-8
+   */
+  private static byte[] receipt (List<String> uuids)
+  {
+    StringBuilder receipt = new StringBuilder (OnmsEventWriter.XML_DECLARATION);
+    receipt.append ('<').append (JSendEventConstants.EVENT_XMLTAG_RECEIPT)
+        .append ('>');
+    for (String uuid : uuids)
+    {
+      receipt.append ('<').append (JSendEventConstants.EVENT_XMLTAG_UUID)
+          .append ('>').append (uuid).append ("</").append (
+              JSendEventConstants.EVENT_XMLTAG_UUID).append ('>');
+    }
+    receipt.append ("</").append (JSendEventConstants.EVENT_XMLTAG_RECEIPT)
+        .append (">\n");
+    try
+    {
+      return receipt.toString ().getBytes ("UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      // UTF-8 is supported by every Java runtime
+      throw new IllegalStateException (e);
+    }
+  }
+
+  /**
+   * Wait without being interrupted
+   * 
+   * @param millis
+   *          Milliseconds to wait
+   */
+  private static void pause (long millis)
+  {
+    if (millis <= 0)
+    {
+      return;
+    }
+    try
+    {
+      Thread.sleep (millis);
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   * Incremental scanner for a stream of event documents. The scanner keeps its
+   * state between chunks, so tags may be split over several reads. It skips
+   * text, attributes, comments, processing instructions and CDATA sections
+   * and tracks the open elements to count completed events and documents.
+   * The uuid attributes of the events are collected for the receipts.
+   */
+  private static class EventScanner
+  {
+    /** Between tags */
+    private static final int TEXT = 0;
+
+    /** Reading the name of a tag */
+    private static final int NAME = 1;
+
+    /** Inside a tag after the name */
+    private static final int TAG = 2;
+
+    /** Inside a quoted attribute value */
+    private static final int QUOTE = 3;
+
+    /** Inside a comment, processing instruction or CDATA section */
+    private static final int SKIP = 4;
+
+    /** Maximum length of an element name */
+    private static final int MAX_NAME = 64;
+
+    /** Current state */
+    private int m_state = TEXT;
+
+    /** Name of the current tag */
+    private StringBuilder m_name = new StringBuilder ();
+
+    /** Quote character of the current attribute value */
+    private int m_quote;
+
+    /** Terminator of the section being skipped */
+    private String m_terminator;
+
+    /** Characters of the terminator matched so far */
+    private int m_matched;
+
+    /** Last character inside the current tag */
+    private int m_last;
+
+    /** Names of the open elements */
+    private String[] m_open = new String[JSendEventConstants.STANDIN_MAX_DEPTH];
+
+    /** Number of open elements */
+    private int m_depth;
+
+    /** Events completed in the last chunk */
+    private int m_events;
+
+    /** Description of the first error or null */
+    private String m_error;
+
+    /** Name of the current attribute */
+    private StringBuilder m_attribute = new StringBuilder ();
+
+    /** Value of the current uuid attribute or null if not an event uuid */
+    private StringBuilder m_value;
+
+    /** Uuid attribute of the current tag or null */
+    private String m_uuid;
+
+    /** Uuid of the open event or null */
+    private String m_eventUuid;
+
+    /** Uuids of the events in the current document */
+    private List<String> m_pending = new ArrayList<String> ();
+
+    /** Uuids of the events in completed documents */
+    private List<String> m_receipts = new ArrayList<String> ();
+
+    /**
+     * Scan the next chunk of the stream
+     * 
+     * @param buffer
+     *          Received bytes
+     * @param length
+     *          Number of received bytes in the buffer
+     * @return Number of documents completed in this chunk
+     */
+    int scan (byte[] buffer, int length)
+    {
+      int documents = 0;
+      this.m_events = 0;
+      for (int i = 0; i < length && this.m_error == null; i++)
+      {
+        int c = buffer[i] & 0xff;
+        switch (this.m_state)
+        {
+          case TEXT:
+            if (c == '<')
+            {
+              this.m_name.setLength (0);
+              this.m_state = NAME;
+            }
+            break;
+          case NAME:
+            if (this.m_name.length () == 0 && (c == '?' || c == '!'))
+            {
+              this.m_name.append ((char) c);
+              break;
+            }
+            if (this.m_name.length () > 0 && this.m_name.charAt (0) == '!')
+            {
+              this.m_name.append ((char) c);
+              if (this.m_name.indexOf ("!--") == 0)
+              {
+                this.skip ("-->");
+              } else if (this.m_name.indexOf ("![CDATA[") == 0)
+              {
+                this.skip ("]]>");
+              } else if (!"!--".startsWith (this.m_name.toString ())
+                  && !"![CDATA[".startsWith (this.m_name.toString ()))
+              {
+                this.skip (">");
+              }
+              break;
+            }
+            if (this.m_name.length () == 1 && this.m_name.charAt (0) == '?')
+            {
+              this.skip ("?>");
+              break;
+            }
+            if (c == '>' || c == '/' && this.m_name.length () > 0
+                || c == ' ' || c == '\t' || c == '\r' || c == '\n')
+            {
+              this.m_state = TAG;
+              this.m_last = 0;
+              this.m_uuid = null;
+              i--;
+            } else if (this.m_name.length () >= MAX_NAME)
+            {
+              this.m_error = "Element name too long";
+            } else
+            {
+              this.m_name.append ((char) c);
+            }
+            break;
+          case TAG:
+            if (c == '"' || c == '\'')
+            {
+              this.m_quote = c;
+              this.m_state = QUOTE;
+              this.m_value = JSendEventConstants.EVENT_XMLTAG_EVENT
+                  .equals (this.m_name.toString ())
+                  && JSendEventConstants.EVENT_XMLATTR_UUID
+                      .equals (this.m_attribute.toString ())
+                  ? new StringBuilder () : null;
+            } else if (c == '>')
+            {
+              documents += this.tag (this.m_last == '/');
+              this.m_state = TEXT;
+            } else if (isNameChar (c))
+            {
+              if (!isNameChar (this.m_last))
+              {
+                this.m_attribute.setLength (0);
+              }
+              if (this.m_attribute.length () < MAX_NAME)
+              {
+                this.m_attribute.append ((char) c);
+              }
+            }
+            this.m_last = c;
+            break;
+          case QUOTE:
+            if (c == this.m_quote)
+            {
+              if (this.m_value != null)
+              {
+                this.m_uuid = this.m_value.toString ();
+              }
+              this.m_state = TAG;
+            } else if (this.m_value != null)
+            {
+              this.m_value.append ((char) c);
+            }
+            break;
+          case SKIP:
+            if (c == this.m_terminator.charAt (this.m_matched))
+            {
+              this.m_matched++;
+              if (this.m_matched == this.m_terminator.length ())
+              {
+                this.m_state = TEXT;
+              }
+            } else if (this.m_matched > 0)
+            {
+              this.m_matched = this.fallback (c);
+            }
+            break;
+        }
+      }
+      return documents;
+    }
+
+    /**
+     * Get the events completed in the last chunk
+     * 
+     * @return Events
+     */
+    int getEvents ()
+    {
+      return this.m_events;
+    }
+
+    /**
+     * Get the first error found in the stream
+     * 
+     * @return Description of the error or null
+     */
+    String getError ()
+    {
+      return this.m_error;
+    }
+
+    /**
+     * Take the uuids of the events in the documents completed so far
+     * 
+     * @return Uuids, empty if no event had a uuid
+     */
+    List<String> takeReceipts ()
+    {
+      if (this.m_receipts.isEmpty ())
+      {
+        return this.m_receipts;
+      }
+      List<String> receipts = this.m_receipts;
+      this.m_receipts = new ArrayList<String> ();
+      return receipts;
+    }
+
+    /**
+     * Check if all scanned documents are complete
+     * 
+     * @return true if no element or markup is open
+     */
+    boolean isComplete ()
+    {
+      return this.m_depth == 0 && this.m_state == TEXT;
+    }
+
+    /**
+     * Check if a character is part of an attribute name
+     * 
+     * @param c
+     *          Character
+     * @return false for white space, markup and quotes
+     */
+    private static boolean isNameChar (int c)
+    {
+      return c > ' ' && c != '=' && c != '/' && c != '>' && c != '"'
+          && c != '\'';
+    }
+
+    /**
+     * Get the characters of the terminator still matched after a mismatch.
+     * The matched part followed by the character may end with a shorter part
+     * of the terminator, "]]]" still ends with the "]]" of "]]&gt;".
+     * 
+     * @param c
+     *          Character not continuing the match
+     * @return Length of the longest prefix of the terminator ending there
+     */
+    private int fallback (int c)
+    {
+      String seen = this.m_terminator.substring (0, this.m_matched) + (char) c;
+      for (int length = seen.length () - 1; length > 0; length--)
+      {
+        if (seen.endsWith (this.m_terminator.substring (0, length)))
+        {
+          return length;
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Skip input up to and including the terminator
+     * 
+     * @param terminator
+     *          End of the section to skip
+     */
+    private void skip (String terminator)
+    {
+      this.m_terminator = terminator;
+      this.m_matched = 0;
+      this.m_state = SKIP;
+    }
+
+    /**
+     * Handle a complete start, end or empty element tag
+     * 
+     * @param empty
+     *          Tag is an empty element tag
+     * @return 1 if the tag completes a document, otherwise 0
+     */
+    private int tag (boolean empty)
+    {
+      String name = this.m_name.toString ();
+      if (name.startsWith ("/"))
+      {
+        name = name.substring (1);
+        if (this.m_depth == 0 || !this.m_open[this.m_depth - 1].equals (name))
+        {
+          this.m_error = "Unexpected end tag </" + name + ">";
+          return 0;
+        }
+        this.m_depth--;
+        if (JSendEventConstants.EVENT_XMLTAG_EVENT.equals (name))
+        {
+          this.completeEvent (this.m_eventUuid);
+        }
+        return this.completeDocument ();
+      }
+      if (empty)
+      {
+        if (JSendEventConstants.EVENT_XMLTAG_EVENT.equals (name))
+        {
+          this.completeEvent (this.m_uuid);
+        }
+        return this.completeDocument ();
+      }
+      if (JSendEventConstants.EVENT_XMLTAG_EVENT.equals (name))
+      {
+        this.m_eventUuid = this.m_uuid;
+      }
+      if (this.m_depth == this.m_open.length)
+      {
+        this.m_error = "Elements nested too deep";
+        return 0;
+      }
+      this.m_open[this.m_depth++] = name;
+      return 0;
+    }
+
+    /**
+     * Count a completed event
+     * 
+     * @param uuid
+     *          Uuid of the event or null
+     */
+    private void completeEvent (String uuid)
+    {
+      this.m_events++;
+      if (uuid != null)
+      {
+        this.m_pending.add (uuid);
+      }
+    }
+
+    /**
+     * Check if the last tag completed a document and release the uuids of its
+     * events for the receipt
+     * 
+     * @return 1 if the document is complete, otherwise 0
+     */
+    private int completeDocument ()
+    {
+      if (this.m_depth > 0)
+      {
+        return 0;
+      }
+      if (!this.m_pending.isEmpty ())
+      {
+        this.m_receipts.addAll (this.m_pending);
+        this.m_pending.clear ();
+      }
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.log4j.HTMLLayout;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * HTML layout with a readable timestamp instead of the milliseconds since the
+ * start of the log. The table rows are written directly into a reused buffer,
+ * the timestamp is formatted once per second. Header and footer are the ones
+ * of the standard {@link HTMLLayout}.
+ * 
+ * The layout is not thread-safe, appenders call it while holding their lock
+ * or from a single writer thread like the {@link AsyncLogAppender}.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class HTMLRowLayout extends HTMLLayout
+{
+  /** Initial size of the row buffer */
+  private static final int BUFFER_SIZE = 256;
+
+  /** Maximum size of the row buffer kept between rows */
+  private static final int MAX_BUFFER_SIZE = 1024;
+
+  /** Prefix of the stack trace lines */
+  private static final String TRACE_PREFIX = "<br>&nbsp;&nbsp;&nbsp;&nbsp;";
+
+  /**
+   * The timestamp format. The format can be overriden by including the
+   * following property in the Log4J configuration file:
+   * 
+   * log4j.appender.<category>.layout.TimestampFormat
+   * 
+   * using the same format string as would be specified with SimpleDateFormat.
+   */
+  private String m_timestampFormat = "HH:mm:ss dd-MM-yyyy";
+
+  /** Date format for the timestamp */
+  private SimpleDateFormat m_dateFormat = new SimpleDateFormat (
+      this.m_timestampFormat);
+
+  /** Timestamp format shows fractions of a second */
+  private boolean m_millis;
+
+  /** Second of the cached timestamp */
+  private long m_cachedSecond = Long.MIN_VALUE;
+
+  /** Formatted timestamp of the cached second */
+  private String m_cachedTimestamp;
+
+  /** Buffer for the rows */
+  private StringBuilder m_row = new StringBuilder (BUFFER_SIZE);
+
+  /** Default constructor */
+  public HTMLRowLayout ()
+  {
+    super ();
+  }
+
+  /**
+   * Format a log record as HTML table row
+   * 
+   * @param event
+   *          Logging event
+   * @return HTML format
+   */
+  public String format (LoggingEvent event)
+  {
+    if (this.m_row.capacity () > MAX_BUFFER_SIZE)
+    {
+      this.m_row = new StringBuilder (BUFFER_SIZE);
+    }
+    StringBuilder row = this.m_row;
+    row.setLength (0);
+
+    row.append (LINE_SEP).append ("<tr>").append (LINE_SEP);
+    row.append ("<td>").append (this.getTimestamp (event.timeStamp)).append (
+        "</td>").append (LINE_SEP);
+
+    row.append ("<td title=\"");
+    escape (row, event.getThreadName ());
+    row.append (" thread\">");
+    escape (row, event.getThreadName ());
+    row.append ("</td>").append (LINE_SEP);
+
+    row.append ("<td title=\"Level\">");
+    Level level = event.getLevel ();
+    if (level.equals (Level.DEBUG))
+    {
+      row.append ("<font color=\"#339933\">");
+      escape (row, level.toString ());
+      row.append ("</font>");
+    } else if (level.isGreaterOrEqual (Level.WARN))
+    {
+      row.append ("<font color=\"#993300\"><strong>");
+      escape (row, level.toString ());
+      row.append ("</strong></font>");
+    } else
+    {
+      escape (row, level.toString ());
+    }
+    row.append ("</td>").append (LINE_SEP);
+
+    row.append ("<td title=\"");
+    escape (row, event.getLoggerName ());
+    row.append (" category\">");
+    escape (row, event.getLoggerName ());
+    row.append ("</td>").append (LINE_SEP);
+
+    if (this.getLocationInfo ())
+    {
+      LocationInfo location = event.getLocationInformation ();
+      row.append ("<td>");
+      escape (row, location.getFileName ());
+      row.append (':').append (location.getLineNumber ()).append ("</td>")
+          .append (LINE_SEP);
+    }
+
+    row.append ("<td title=\"Message\">");
+    escape (row, event.getRenderedMessage ());
+    row.append ("</td>").append (LINE_SEP).append ("</tr>").append (LINE_SEP);
+
+    if (event.getNDC () != null)
+    {
+      row.append ("<tr><td bgcolor=\"#EEEEEE\" style=\"font-size : xx-small;\" "
+          + "colspan=\"6\" title=\"Nested Diagnostic Context\">NDC: ");
+      escape (row, event.getNDC ());
+      row.append ("</td></tr>").append (LINE_SEP);
+    }
+
+    String[] trace = event.getThrowableStrRep ();
+    if (trace != null && trace.length > 0)
+    {
+      row.append ("<tr><td bgcolor=\"#993300\" style=\"color:White; "
+          + "font-size : xx-small;\" colspan=\"6\">");
+      escape (row, trace[0]);
+      row.append (LINE_SEP);
+      for (int i = 1; i < trace.length; i++)
+      {
+        row.append (TRACE_PREFIX);
+        escape (row, trace[i]);
+        row.append (LINE_SEP);
+      }
+      row.append ("</td></tr>").append (LINE_SEP);
+    }
+    return row.toString ();
+  }
+
+  /**
+   * Setter for timestamp format. Called if
+   * log4j.appender.<category>.layout.TimestampFormat property is specfied
+   * 
+   * @param format
+   *          Date format
+   */
+  public void setTimestampFormat (String format)
+  {
+    this.m_timestampFormat = format;
+    this.m_dateFormat = new SimpleDateFormat (format);
+    this.m_millis = format.indexOf ('S') >= 0;
+    this.m_cachedSecond = Long.MIN_VALUE;
+  }
+
+  /**
+   * Getter for timestamp format being used.
+   * 
+   * @return Timestamp format
+   */
+  public String getTimestampFormat ()
+  {
+    return this.m_timestampFormat;
+  }
+
+  /**
+   * Get the formatted timestamp, formatted once per second unless the format
+   * shows fractions of a second
+   * 
+   * @param timeStamp
+   *          Time of the log record in milliseconds
+   * @return Formatted timestamp
+   */
+  private String getTimestamp (long timeStamp)
+  {
+    if (this.m_millis)
+    {
+      return this.m_dateFormat.format (new Date (timeStamp));
+    }
+    long second = timeStamp / 1000;
+    if (second != this.m_cachedSecond)
+    {
+      this.m_cachedTimestamp = this.m_dateFormat.format (new Date (timeStamp));
+      this.m_cachedSecond = second;
+    }
+    return this.m_cachedTimestamp;
+  }
+
+  /**
+   * Append text with the HTML special characters escaped
+   * 
+   * @param row
+   *          Buffer to append to
+   * @param text
+   *          Text to escape, may be null
+   */
+  private static void escape (StringBuilder row, String text)
+  {
+    if (text == null)
+    {
+      return;
+    }
+    for (int i = 0; i < text.length (); i++)
+    {
+      char c = text.charAt (i);
+      switch (c)
+      {
+        case '<':
+          row.append ("&lt;");
+          break;
+        case '>':
+          row.append ("&gt;");
+          break;
+        case '&':
+          row.append ("&amp;");
+          break;
+        case '"':
+          row.append ("&quot;");
+          break;
+        default:
+          row.append (c);
+      }
+    }
+  }
+}
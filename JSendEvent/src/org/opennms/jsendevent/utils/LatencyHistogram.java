@@ -0,0 +1,240 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram for latencies in nanoseconds. Values are counted in
+ * log-linear buckets: every power of two is split into 128 buckets, so a
+ * recorded value is off by less than 1% from the reported one. Recording is a
+ * single atomic increment and safe from any number of threads.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class LatencyHistogram
+{
+  /** Bits for the buckets within a power of two */
+  private static final int SUB_BUCKET_BITS = 7;
+
+  /** Buckets within a power of two */
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** Number of buckets for all positive long values */
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  /** Counts per bucket */
+  private AtomicLongArray m_counts;
+
+  /** Number of recorded values */
+  private AtomicLong m_count;
+
+  /** Sum of the recorded values */
+  private AtomicLong m_sum;
+
+  /** Maximum recorded value */
+  private AtomicLong m_max;
+
+  /**
+   * Constructor for an empty histogram
+   */
+  public LatencyHistogram ()
+  {
+    this.m_counts = new AtomicLongArray (BUCKETS);
+    this.m_count = new AtomicLong ();
+    this.m_sum = new AtomicLong ();
+    this.m_max = new AtomicLong ();
+  }
+
+  /**
+   * Record a value
+   * 
+   * @param nanos
+   *          Latency in nanoseconds, negative values are recorded as 0
+   */
+  public void record (long nanos)
+  {
+    if (nanos < 0)
+    {
+      nanos = 0;
+    }
+    this.m_counts.incrementAndGet (bucket (nanos));
+    this.m_count.incrementAndGet ();
+    this.m_sum.addAndGet (nanos);
+    long max;
+    while (nanos > (max = this.m_max.get ())
+        && !this.m_max.compareAndSet (max, nanos))
+    {
+      // Another thread changed the maximum, try again
+    }
+  }
+
+  /**
+   * Get the number of recorded values
+   * 
+   * @return Number of values
+   */
+  public long getCount ()
+  {
+    return this.m_count.get ();
+  }
+
+  /**
+   * Get the maximum recorded value
+   * 
+   * @return Maximum in nanoseconds
+   */
+  public long getMax ()
+  {
+    return this.m_max.get ();
+  }
+
+  /**
+   * Get the mean of the recorded values
+   * 
+   * @return Mean in nanoseconds or 0 if no value is recorded
+   */
+  public double getMean ()
+  {
+    long count = this.m_count.get ();
+    return count == 0 ? 0 : (double) this.m_sum.get () / count;
+  }
+
+  /**
+   * Get the value at a percentile
+   * 
+   * @param percentile
+   *          Percentile between 0 and 100
+   * @return Highest value of the bucket holding the percentile in nanoseconds
+   *         or 0 if no value is recorded
+   */
+  public long getPercentile (double percentile)
+  {
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts[i] = this.m_counts.get (i);
+      total += counts[i];
+    }
+    if (total == 0)
+    {
+      return 0;
+    }
+    long rank = (long) Math.ceil (percentile / 100.0 * total);
+    if (rank < 1)
+    {
+      rank = 1;
+    }
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += counts[i];
+      if (seen >= rank)
+      {
+        return Math.min (highestValue (i), this.getMax ());
+      }
+    }
+    return this.getMax ();
+  }
+
+  /**
+   * Reset all counts
+   */
+  public void reset ()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      this.m_counts.set (i, 0);
+    }
+    this.m_count.set (0);
+    this.m_sum.set (0);
+    this.m_max.set (0);
+  }
+
+  /**
+   * Summary with count, mean and the usual percentiles in milliseconds
+   * 
+   * @return Summary as text
+   */
+  @Override
+  public String toString ()
+  {
+    return String.format ("count=%d mean=%.3fms p50=%.3fms p99=%.3fms "
+        + "p99.9=%.3fms max=%.3fms", this.getCount (), this.getMean () / 1e6,
+        this.getPercentile (50) / 1e6, this.getPercentile (99) / 1e6, this
+            .getPercentile (99.9) / 1e6, this.getMax () / 1e6);
+  }
+
+  /**
+   * Get the bucket for a value
+   * 
+   * @param value
+   *          Non-negative value
+   * @return Bucket index
+   */
+  private static int bucket (long value)
+  {
+    int exponent = 63 - Long.numberOfLeadingZeros (value);
+    if (exponent < SUB_BUCKET_BITS)
+    {
+      return (int) value;
+    }
+    int shift = exponent - SUB_BUCKET_BITS + 1;
+    return shift * SUB_BUCKETS
+        + (int) ((value >>> (shift - 1)) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * Get the highest value counted in a bucket
+   * 
+   * @param bucket
+   *          Bucket index
+   * @return Highest value
+   */
+  private static long highestValue (int bucket)
+  {
+    int shift = bucket / SUB_BUCKETS;
+    long sub = bucket % SUB_BUCKETS;
+    if (shift == 0)
+    {
+      return sub;
+    }
+    long base = (SUB_BUCKETS + sub) << (shift - 1);
+    return base + (1L << (shift - 1)) - 1;
+  }
+}
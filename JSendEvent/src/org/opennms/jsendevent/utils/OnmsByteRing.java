@@ -0,0 +1,496 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of serialized documents for one connection, stored in fixed-size
+ * segments taken from a shared {@link Pool}. Producers copy each document
+ * once into the segments, the writer drains them with gathering writes
+ * straight to the channel. With a pool of direct segments the documents are
+ * kept off the heap and the channel writes them without a further copy.
+ * Segments stay in the ring until all documents in them are written
+ * completely, so a partly written document can be written again in full after
+ * a reconnect with {@link #rewind()}. Steady operation allocates nothing per
+ * document. Any number of threads may put documents, only one thread may
+ * write.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsByteRing
+{
+  /** Initial number of document slots */
+  private static final int INITIAL_DOCUMENTS = 1024;
+
+  /** Pool of the segments */
+  private Pool m_pool;
+
+  /** Segments in order */
+  private ArrayDeque<Segment> m_segments;
+
+  /** Bytes put since the ring was created */
+  private long m_head;
+
+  /** Bytes written to the channel */
+  private long m_read;
+
+  /** Bytes of completely written documents */
+  private long m_sent;
+
+  /** End of the documents, ring of slots */
+  private long[] m_documentEnd;
+
+  /** Time in nanoseconds the documents were put */
+  private long[] m_documentQueued;
+
+  /** Nanoseconds spent serializing the documents */
+  private long[] m_documentSerialize;
+
+  /** Events in the documents */
+  private int[] m_documentEvents;
+
+  /** Slot of the first document not completely written */
+  private int m_firstDocument;
+
+  /** Documents not completely written */
+  private int m_documents;
+
+  /**
+   * Listener for the documents leaving the ring
+   */
+  public interface Listener
+  {
+    /**
+     * A document was written completely
+     * 
+     * @param events
+     *          Events in the document
+     * @param serializeTime
+     *          Nanoseconds spent serializing the document
+     * @param queued
+     *          Time in nanoseconds the document was put
+     */
+    void written (int events, long serializeTime, long queued);
+
+    /**
+     * A document was dropped without being written completely
+     * 
+     * @param events
+     *          Events in the document
+     */
+    void dropped (int events);
+  }
+
+  /**
+   * Constructor for an empty ring
+   * 
+   * @param pool
+   *          Pool of the segments
+   */
+  public OnmsByteRing (Pool pool)
+  {
+    this.m_pool = pool;
+    this.m_segments = new ArrayDeque<Segment> ();
+    this.m_documentEnd = new long[INITIAL_DOCUMENTS];
+    this.m_documentQueued = new long[INITIAL_DOCUMENTS];
+    this.m_documentSerialize = new long[INITIAL_DOCUMENTS];
+    this.m_documentEvents = new int[INITIAL_DOCUMENTS];
+  }
+
+  /**
+   * Put a document
+   * 
+   * @param document
+   *          Buffer holding the document
+   * @param offset
+   *          Start of the document
+   * @param length
+   *          Bytes of the document
+   * @param events
+   *          Events in the document
+   * @param serializeTime
+   *          Nanoseconds spent serializing the document
+   * @param limit
+   *          Maximum bytes in the ring including the document
+   * @return false if the document would exceed the limit
+   */
+  public synchronized boolean put (byte[] document, int offset, int length,
+      int events, long serializeTime, long limit)
+  {
+    if (this.m_head - this.m_sent + length > limit)
+    {
+      return false;
+    }
+    if (this.m_documents == this.m_documentEnd.length)
+    {
+      this.growDocuments ();
+    }
+
+    int rest = length;
+    while (rest > 0)
+    {
+      Segment last = this.m_segments.peekLast ();
+      if (last == null || !last.m_write.hasRemaining ())
+      {
+        last = this.m_pool.take ();
+        last.m_base = this.m_head + length - rest;
+        this.m_segments.addLast (last);
+      }
+      int bytes = Math.min (rest, last.m_write.remaining ());
+      last.m_write.put (document, offset + length - rest, bytes);
+      rest -= bytes;
+    }
+    this.m_head += length;
+
+    int slot = (this.m_firstDocument + this.m_documents)
+        % this.m_documentEnd.length;
+    this.m_documentEnd[slot] = this.m_head;
+    this.m_documentQueued[slot] = System.nanoTime ();
+    this.m_documentSerialize[slot] = serializeTime;
+    this.m_documentEvents[slot] = events;
+    this.m_documents++;
+    return true;
+  }
+
+  /**
+   * Write the bytes not written yet with one gathering write and report the
+   * documents written completely. Only called by the writing thread.
+   * 
+   * @param channel
+   *          Channel to write to
+   * @param gather
+   *          Array for the segments to write
+   * @param listener
+   *          Listener for the written documents
+   * @return Bytes written
+   * @throws IOException
+   *           Error writing
+   */
+  public long write (GatheringByteChannel channel, ByteBuffer[] gather,
+      Listener listener) throws IOException
+  {
+    int count = 0;
+    synchronized (this)
+    {
+      for (Segment segment : this.m_segments)
+      {
+        int end = segment.m_write.position ();
+        if (segment.m_base + end <= this.m_read)
+        {
+          continue;
+        }
+        // The producers only append behind the limit
+        segment.m_read.limit (end);
+        segment.m_read.position ((int) Math.max (0, this.m_read
+            - segment.m_base));
+        gather[count++] = segment.m_read;
+        if (count == gather.length)
+        {
+          break;
+        }
+      }
+    }
+    if (count == 0)
+    {
+      return 0;
+    }
+
+    long written;
+    try
+    {
+      written = channel.write (gather, 0, count);
+    } finally
+    {
+      Arrays.fill (gather, 0, count, null);
+    }
+
+    synchronized (this)
+    {
+      this.m_read += written;
+      while (this.m_documents > 0
+          && this.m_documentEnd[this.m_firstDocument] <= this.m_read)
+      {
+        this.m_sent = this.m_documentEnd[this.m_firstDocument];
+        listener.written (this.m_documentEvents[this.m_firstDocument],
+            this.m_documentSerialize[this.m_firstDocument],
+            this.m_documentQueued[this.m_firstDocument]);
+        this.m_firstDocument = (this.m_firstDocument + 1)
+            % this.m_documentEnd.length;
+        this.m_documents--;
+      }
+      this.releaseSent ();
+    }
+    return written;
+  }
+
+  /**
+   * Check if bytes are waiting to be written
+   * 
+   * @return true if not all bytes are written
+   */
+  public synchronized boolean hasUnwritten ()
+  {
+    return this.m_read < this.m_head;
+  }
+
+  /**
+   * Get the bytes of the documents not written completely
+   * 
+   * @return Bytes
+   */
+  public synchronized long getBytes ()
+  {
+    return this.m_head - this.m_sent;
+  }
+
+  /**
+   * Get the documents not written completely
+   * 
+   * @return Documents
+   */
+  public synchronized int getDocuments ()
+  {
+    return this.m_documents;
+  }
+
+  /**
+   * Write the partly written document again from its start
+   */
+  public synchronized void rewind ()
+  {
+    this.m_read = this.m_sent;
+  }
+
+  /**
+   * Drop all documents not written completely and give the segments back to
+   * the pool
+   * 
+   * @param listener
+   *          Listener for the dropped documents
+   */
+  public synchronized void clear (Listener listener)
+  {
+    while (this.m_documents > 0)
+    {
+      listener.dropped (this.m_documentEvents[this.m_firstDocument]);
+      this.m_firstDocument = (this.m_firstDocument + 1)
+          % this.m_documentEnd.length;
+      this.m_documents--;
+    }
+    this.m_sent = this.m_head;
+    this.m_read = this.m_head;
+    Segment segment;
+    while ((segment = this.m_segments.pollFirst ()) != null)
+    {
+      this.m_pool.give (segment);
+    }
+  }
+
+  /**
+   * Give the full segments of completely written documents back to the pool
+   */
+  private void releaseSent ()
+  {
+    Segment first;
+    while ((first = this.m_segments.peekFirst ()) != null
+        && first.m_base + first.m_write.capacity () <= this.m_sent)
+    {
+      this.m_pool.give (this.m_segments.pollFirst ());
+    }
+  }
+
+  /**
+   * Double the document slots
+   */
+  private void growDocuments ()
+  {
+    int size = this.m_documentEnd.length;
+    long[] end = new long[size * 2];
+    long[] queued = new long[size * 2];
+    long[] serialize = new long[size * 2];
+    int[] events = new int[size * 2];
+    for (int i = 0; i < this.m_documents; i++)
+    {
+      int slot = (this.m_firstDocument + i) % size;
+      end[i] = this.m_documentEnd[slot];
+      queued[i] = this.m_documentQueued[slot];
+      serialize[i] = this.m_documentSerialize[slot];
+      events[i] = this.m_documentEvents[slot];
+    }
+    this.m_documentEnd = end;
+    this.m_documentQueued = queued;
+    this.m_documentSerialize = serialize;
+    this.m_documentEvents = events;
+    this.m_firstDocument = 0;
+  }
+
+  /**
+   * Segments shared by the rings of several connections. Free segments are
+   * kept up to a maximum and reused.
+   */
+  public static class Pool
+  {
+    /** Bytes per segment */
+    private int m_segmentSize;
+
+    /** Allocate segments off the heap */
+    private boolean m_direct;
+
+    /** Maximum number of free segments kept */
+    private int m_maxFree;
+
+    /** Free segments */
+    private ConcurrentLinkedQueue<Segment> m_free;
+
+    /** Number of free segments */
+    private AtomicInteger m_freeCount;
+
+    /** Segments allocated */
+    private AtomicInteger m_allocated;
+
+    /**
+     * Constructor for an empty pool
+     * 
+     * @param segmentSize
+     *          Bytes per segment
+     * @param direct
+     *          Allocate segments off the heap
+     * @param maxFree
+     *          Maximum number of free segments kept
+     */
+    public Pool (int segmentSize, boolean direct, int maxFree)
+    {
+      this.m_segmentSize = segmentSize;
+      this.m_direct = direct;
+      this.m_maxFree = maxFree;
+      this.m_free = new ConcurrentLinkedQueue<Segment> ();
+      this.m_freeCount = new AtomicInteger ();
+      this.m_allocated = new AtomicInteger ();
+    }
+
+    /**
+     * Check if the segments are off the heap
+     * 
+     * @return true for direct segments
+     */
+    public boolean isDirect ()
+    {
+      return this.m_direct;
+    }
+
+    /**
+     * Get the number of segments allocated so far
+     * 
+     * @return Segments
+     */
+    public int getAllocated ()
+    {
+      return this.m_allocated.get ();
+    }
+
+    /**
+     * Take a free segment or allocate a new one
+     * 
+     * @return Empty segment
+     */
+    Segment take ()
+    {
+      Segment segment = this.m_free.poll ();
+      if (segment != null)
+      {
+        this.m_freeCount.decrementAndGet ();
+        return segment;
+      }
+      this.m_allocated.incrementAndGet ();
+      return new Segment (this.m_direct ? ByteBuffer
+          .allocateDirect (this.m_segmentSize) : ByteBuffer
+          .allocate (this.m_segmentSize));
+    }
+
+    /**
+     * Give a segment back
+     * 
+     * @param segment
+     *          Segment not used anymore
+     */
+    void give (Segment segment)
+    {
+      if (this.m_freeCount.incrementAndGet () > this.m_maxFree)
+      {
+        // Left to the garbage collector
+        this.m_freeCount.decrementAndGet ();
+        this.m_allocated.decrementAndGet ();
+        return;
+      }
+      segment.m_write.clear ();
+      this.m_free.offer (segment);
+    }
+  }
+
+  /**
+   * Segment of a ring
+   */
+  static class Segment
+  {
+    /** Buffer the producers append to */
+    private final ByteBuffer m_write;
+
+    /** View of the buffer the writer drains */
+    private final ByteBuffer m_read;
+
+    /** Position of the segment in the ring */
+    private long m_base;
+
+    /**
+     * Constructor for a segment on a buffer
+     * 
+     * @param buffer
+     *          Empty buffer
+     */
+    Segment (ByteBuffer buffer)
+    {
+      this.m_write = buffer;
+      this.m_read = buffer.duplicate ();
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Pool of long-lived connections to OpenNMS eventd. For every eventd host:port
+ * at most a fixed number of connections is opened and handed out to
+ * concurrent senders. Idle connections are checked before they are handed out
+ * again, dead connections are replaced by new ones.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsConnectionPool
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Maximum connections per eventd */
+  private int m_maxConnections;
+
+  /** Connections per eventd by host:port */
+  private ConcurrentHashMap<String, TargetPool> m_pools;
+
+  /** Pool is closed */
+  private volatile boolean m_closed;
+
+  /** Rate limiter for the events sent over the pool or null */
+  private volatile OnmsRateLimiter m_rateLimiter;
+
+  /**
+   * Constructor for a pool with the default number of connections
+   */
+  public OnmsConnectionPool ()
+  {
+    this (JSendEventConstants.POOL_CONNECTIONS);
+  }
+
+  /**
+   * Constructor for a pool
+   * 
+   * @param maxConnections
+   *          Maximum connections per eventd
+   */
+  public OnmsConnectionPool (int maxConnections)
+  {
+    if (maxConnections < 1)
+    {
+      throw new IllegalArgumentException ("At least one connection required.");
+    }
+    this.m_maxConnections = maxConnections;
+    this.m_pools = new ConcurrentHashMap<String, TargetPool> ();
+  }
+
+  /**
+   * Set the rate limiter for the events sent over connections opened from now
+   * on
+   * 
+   * @param rateLimiter
+   *          Rate limiter or null to send without limit
+   */
+  public void setRateLimiter (OnmsRateLimiter rateLimiter)
+  {
+    this.m_rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Get a connection to eventd. Waits if all connections to the eventd are in
+   * use. The connection has to be given back with
+   * {@link #release(OnmsEventSender)} or {@link #invalidate(OnmsEventSender)}.
+   * 
+   * @param host
+   *          Host of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @return Open connection
+   * @throws IOException
+   *           No connection available or can't connect to eventd
+   */
+  public OnmsEventSender borrow (String host, String port) throws IOException
+  {
+    if (this.m_closed)
+    {
+      throw new IOException ("Connection pool is closed.");
+    }
+    TargetPool pool = this.getPool (host + ":" + port);
+    try
+    {
+      if (!pool.m_permits.tryAcquire (JSendEventConstants.POOL_BORROW_TIMEOUT,
+          TimeUnit.MILLISECONDS))
+      {
+        throw new IOException ("No connection to " + host + ":" + port
+            + " available.");
+      }
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new IOException ("Interrupted waiting for a connection to " + host
+          + ":" + port + ".");
+    }
+
+    boolean borrowed = false;
+    try
+    {
+      OnmsEventSender sender;
+      long now = System.currentTimeMillis ();
+      while ((sender = pool.m_idle.pollFirst ()) != null)
+      {
+        long idle = now - sender.getLastUsed ();
+        if (idle <= JSendEventConstants.POOL_MAX_IDLE
+            && (idle <= JSendEventConstants.POOL_VALIDATE_IDLE || sender
+                .isAlive ()))
+        {
+          borrowed = true;
+          return sender;
+        }
+        log.debug ("Closing idle connection to " + sender.getTarget ());
+        closeQuietly (sender);
+      }
+
+      sender = new OnmsEventSender ();
+      sender.setConnection (host, port);
+      sender.setRateLimiter (this.m_rateLimiter);
+      log.debug ("Connection to " + sender.getTarget () + " opened");
+      borrowed = true;
+      return sender;
+    } finally
+    {
+      if (!borrowed)
+      {
+        pool.m_permits.release ();
+      }
+    }
+  }
+
+  /**
+   * Give a connection back to the pool for further use
+   * 
+   * @param sender
+   *          Connection from {@link #borrow(String, String)}
+   */
+  public void release (OnmsEventSender sender)
+  {
+    TargetPool pool = this.getPool (sender.getTarget ());
+    try
+    {
+      sender.discardReplies ();
+      if (this.m_closed)
+      {
+        closeQuietly (sender);
+      } else
+      {
+        pool.m_idle.offerFirst (sender);
+      }
+    } catch (IOException e)
+    {
+      closeQuietly (sender);
+    } finally
+    {
+      pool.m_permits.release ();
+    }
+  }
+
+  /**
+   * Close a broken connection and remove it from the pool
+   * 
+   * @param sender
+   *          Connection from {@link #borrow(String, String)}
+   */
+  public void invalidate (OnmsEventSender sender)
+  {
+    closeQuietly (sender);
+    this.getPool (sender.getTarget ()).m_permits.release ();
+  }
+
+  /**
+   * Send an event over a pooled connection. If the connection turns out to be
+   * broken the event is sent once more over a new connection.
+   * 
+   * @param host
+   *          Host of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           Error sending the event
+   */
+  public void send (String host, String port, OnmsEventXml event)
+      throws IOException
+  {
+    for (int attempt = 0;; attempt++)
+    {
+      OnmsEventSender sender = this.borrow (host, port);
+      try
+      {
+        sender.send (event);
+        this.release (sender);
+        return;
+      } catch (IOException e)
+      {
+        this.invalidate (sender);
+        if (attempt > 0)
+        {
+          throw e;
+        }
+        log.warn ("Connection to " + host + ":" + port
+            + " lost, reconnecting. Error: " + e.getMessage ());
+      }
+    }
+  }
+
+  /**
+   * Send a serialized &lt;log&gt; document over a pooled connection without
+   * rate limit. If the connection turns out to be broken the document is sent
+   * once more over a new connection.
+   * 
+   * @param host
+   *          Host of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @param document
+   *          Serialized document
+   * @param events
+   *          Events in the document
+   * @throws IOException
+   *           Error sending the document
+   */
+  public void send (String host, String port, byte[] document, int events)
+      throws IOException
+  {
+    for (int attempt = 0;; attempt++)
+    {
+      OnmsEventSender sender = this.borrow (host, port);
+      try
+      {
+        sender.write (document, events);
+        this.release (sender);
+        return;
+      } catch (IOException e)
+      {
+        this.invalidate (sender);
+        if (attempt > 0)
+        {
+          throw e;
+        }
+        log.warn ("Connection to " + host + ":" + port
+            + " lost, reconnecting. Error: " + e.getMessage ());
+      }
+    }
+  }
+
+  /**
+   * Close all idle connections, connections in use are closed when they are
+   * released
+   */
+  public void close ()
+  {
+    this.m_closed = true;
+    for (TargetPool pool : this.m_pools.values ())
+    {
+      OnmsEventSender sender;
+      while ((sender = pool.m_idle.pollFirst ()) != null)
+      {
+        closeQuietly (sender);
+      }
+    }
+  }
+
+  /**
+   * Get the connections for a target, create them on first use
+   * 
+   * @param target
+   *          Target as host:port
+   * @return Connections for the target
+   */
+  private TargetPool getPool (String target)
+  {
+    TargetPool pool = this.m_pools.get (target);
+    if (pool == null)
+    {
+      TargetPool created = new TargetPool (this.m_maxConnections);
+      pool = this.m_pools.putIfAbsent (target, created);
+      if (pool == null)
+      {
+        pool = created;
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Close a connection and ignore errors
+   * 
+   * @param sender
+   *          Connection to close
+   */
+  private static void closeQuietly (OnmsEventSender sender)
+  {
+    try
+    {
+      sender.close ();
+    } catch (IOException e)
+    {
+      log.debug ("Error closing connection to " + sender.getTarget () + ": "
+          + e.getMessage ());
+    }
+  }
+
+  /**
+   * Connections to one eventd
+   */
+  private static class TargetPool
+  {
+    /** Permits for open connections */
+    private Semaphore m_permits;
+
+    /** Idle connections, the connection used last is first */
+    private LinkedBlockingDeque<OnmsEventSender> m_idle;
+
+    /**
+     * Constructor
+     * 
+     * @param maxConnections
+     *          Maximum connections to the eventd
+     */
+    TargetPool (int maxConnections)
+    {
+      this.m_permits = new Semaphore (maxConnections);
+      this.m_idle = new LinkedBlockingDeque<OnmsEventSender> ();
+    }
+  }
+}
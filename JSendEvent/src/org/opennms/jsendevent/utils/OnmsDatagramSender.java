@@ -0,0 +1,325 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Fire-and-forget sender of OpenNMS events over UDP. The events are packed
+ * into &lt;log&gt; documents of at most the MTU and every document is sent as
+ * one datagram, there is neither a connection setup nor an acknowledgement.
+ * Events are lost without notice if eventd is down or a datagram is dropped,
+ * so the sender suits frequent low-priority events. An event larger than the
+ * MTU is sent in its own datagram and fragmented by IP. Like the
+ * {@link OnmsEventSender} a sender must only be used by one thread at a time.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsDatagramSender
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Channel connected to eventd */
+  private DatagramChannel m_channel;
+
+  /** Datagram being packed */
+  private ByteBuffer m_datagram;
+
+  /** Events packed into the datagram */
+  private int m_events;
+
+  /** Nanoseconds spent serializing the packed events */
+  private long m_serializeTime;
+
+  /** Serialized event to pack next */
+  private EventBuffer m_event;
+
+  /** Writer serializing into the event buffer */
+  private OnmsEventWriter m_writer;
+
+  /** Target as host:port */
+  private String m_target;
+
+  /** Datagrams sent */
+  private long m_datagrams;
+
+  /**
+   * Constructor for a sender to one eventd
+   * 
+   * @param host
+   *          Host of eventd
+   * @param port
+   *          UDP port of eventd
+   * @param mtu
+   *          Maximum bytes of a datagram
+   * @throws IOException
+   *           Host unknown or channel can't be opened
+   * @throws IllegalArgumentException
+   *           Port not numeric or MTU out of range
+   */
+  public OnmsDatagramSender (String host, String port, int mtu)
+      throws IOException
+  {
+    if (mtu < JSendEventConstants.UDP_MIN_MTU
+        || mtu > JSendEventConstants.UDP_MAX_DATAGRAM)
+    {
+      throw new IllegalArgumentException ("MTU " + mtu + " is not between "
+          + JSendEventConstants.UDP_MIN_MTU + " and "
+          + JSendEventConstants.UDP_MAX_DATAGRAM + ".");
+    }
+    InetSocketAddress address;
+    try
+    {
+      address = new InetSocketAddress (host, Integer.parseInt (port));
+    } catch (NumberFormatException e)
+    {
+      throw new IllegalArgumentException ("UDP-Port: " + port
+          + " is not correct.");
+    }
+    if (address.isUnresolved ())
+    {
+      throw new IOException ("Host " + host + " is unknown.");
+    }
+
+    this.m_channel = DatagramChannel.open ();
+    // Connected to receive ICMP errors and to skip the checks per datagram
+    this.m_channel.connect (address);
+    this.m_datagram = ByteBuffer.allocate (mtu);
+    this.m_datagram.put (OnmsEventWriter.DOCUMENT_START);
+    this.m_event = new EventBuffer ();
+    this.m_writer = new OnmsEventWriter (this.m_event);
+    this.m_target = host + ":" + port;
+  }
+
+  /**
+   * Pack the event and all events added to it. Full datagrams are sent
+   * immediately, the last one waits for further events until
+   * {@link #flush()} or {@link #close()}.
+   * 
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           Error sending a datagram or an event larger than a datagram
+   */
+  public void send (OnmsEventXml event) throws IOException
+  {
+    this.pack (event);
+    for (OnmsEventXml added : event.getEvents ())
+    {
+      this.pack (added);
+    }
+  }
+
+  /**
+   * Send the events packed so far
+   * 
+   * @throws IOException
+   *           Error sending the datagram
+   */
+  public void flush () throws IOException
+  {
+    if (this.m_events == 0)
+    {
+      return;
+    }
+    this.m_datagram.put (OnmsEventWriter.DOCUMENT_END);
+    this.m_datagram.flip ();
+    int events = this.m_events;
+    long serializeTime = this.m_serializeTime;
+    this.m_events = 0;
+    this.m_serializeTime = 0;
+
+    OnmsSenderMetrics metrics = OnmsSenderMetrics.getInstance ();
+    long start = System.nanoTime ();
+    try
+    {
+      int bytes = this.m_channel.write (this.m_datagram);
+      metrics.documentSent (events, serializeTime, System.nanoTime () - start);
+      metrics.bytesWritten (bytes);
+      this.m_datagrams++;
+    } catch (PortUnreachableException e)
+    {
+      // An earlier datagram was rejected, eventd does not listen on UDP
+      log.debug ("Eventd " + this.m_target + " unreachable, " + events
+          + " events lost.");
+      metrics.eventsFailed (events);
+    } catch (IOException e)
+    {
+      metrics.eventsFailed (events);
+      throw e;
+    } finally
+    {
+      this.m_datagram.clear ();
+      this.m_datagram.put (OnmsEventWriter.DOCUMENT_START);
+    }
+  }
+
+  /**
+   * Get the target of the sender
+   * 
+   * @return Target as host:port
+   */
+  public String getTarget ()
+  {
+    return this.m_target;
+  }
+
+  /**
+   * Get the number of datagrams sent
+   * 
+   * @return Datagrams
+   */
+  public long getDatagrams ()
+  {
+    return this.m_datagrams;
+  }
+
+  /**
+   * Send the events packed so far and close the channel
+   * 
+   * @throws IOException
+   *           Error sending the datagram or closing the channel
+   */
+  public void close () throws IOException
+  {
+    try
+    {
+      this.flush ();
+    } finally
+    {
+      this.m_channel.close ();
+    }
+  }
+
+  /**
+   * Serialize an event and add it to the datagram, the datagram is sent first
+   * if the event does not fit anymore
+   * 
+   * @param event
+   *          Event without the events added to it
+   * @throws IOException
+   *           Error sending a datagram or event larger than a datagram
+   */
+  private void pack (OnmsEventXml event) throws IOException
+  {
+    long start = System.nanoTime ();
+    this.m_event.reset ();
+    this.m_writer.writeEvent (event);
+    this.m_writer.flush ();
+    int length = this.m_event.size ();
+    int overhead = OnmsEventWriter.DOCUMENT_START.length
+        + OnmsEventWriter.DOCUMENT_END.length;
+
+    if (length + overhead > this.m_datagram.capacity ())
+    {
+      if (length + overhead > JSendEventConstants.UDP_MAX_DATAGRAM)
+      {
+        OnmsSenderMetrics.getInstance ().eventsFailed (1);
+        throw new IOException ("Event " + event.getUei () + " of " + length
+            + " bytes is too large for a datagram.");
+      }
+      // Send the pending events, then the large event on its own
+      this.flush ();
+      ByteBuffer datagram = this.m_datagram;
+      this.m_datagram = ByteBuffer.allocate (length + overhead);
+      this.m_datagram.put (OnmsEventWriter.DOCUMENT_START);
+      this.append (length, System.nanoTime () - start);
+      try
+      {
+        this.flush ();
+      } finally
+      {
+        this.m_datagram = datagram;
+      }
+      return;
+    }
+
+    if (length + OnmsEventWriter.DOCUMENT_END.length > this.m_datagram
+        .remaining ())
+    {
+      this.flush ();
+    }
+    this.append (length, System.nanoTime () - start);
+  }
+
+  /**
+   * Append the serialized event to the datagram
+   * 
+   * @param length
+   *          Bytes of the serialized event
+   * @param serializeTime
+   *          Nanoseconds spent serializing the event
+   */
+  private void append (int length, long serializeTime)
+  {
+    this.m_datagram.put (this.m_event.getBuffer (), 0, length);
+    this.m_events++;
+    this.m_serializeTime += serializeTime;
+  }
+
+  /**
+   * Reusable output buffer giving access to its bytes without a copy
+   */
+  private static class EventBuffer extends ByteArrayOutputStream
+  {
+    /**
+     * Constructor for a buffer of the default datagram size
+     */
+    EventBuffer ()
+    {
+      super (JSendEventConstants.UDP_DEFAULT_MTU);
+    }
+
+    /**
+     * Get the internal buffer
+     * 
+     * @return Buffer holding {@link #size()} bytes
+     */
+    byte[] getBuffer ()
+    {
+      return this.buf;
+    }
+  }
+}
@@ -0,0 +1,438 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Sends one serialized document to several OpenNMS eventd at the same time.
+ * Every eventd is written to in its own task, so a slow or unreachable eventd
+ * does not delay the others. The result is reported per eventd. With a spool
+ * per eventd spooled documents are sent first and the document is spooled if
+ * the eventd is not reachable or does not take it in time.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventFanOut
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Executor for the writes */
+  private ExecutorService m_executor;
+
+  /**
+   * Constructor for a fan out with the given executor
+   * 
+   * @param executor
+   *          Executor with at least one thread per eventd
+   */
+  public OnmsEventFanOut (ExecutorService executor)
+  {
+    this.m_executor = executor;
+  }
+
+  /**
+   * Send a document to all targets and wait at most
+   * {@link JSendEventConstants#FANOUT_TIMEOUT} milliseconds for them. The
+   * connection of a target not done in time is closed and the document is
+   * spooled, it may still have been written.
+   * 
+   * @param targets
+   *          Targets to send to
+   * @param pool
+   *          Connection pool or null to open a connection per target
+   * @param spools
+   *          Spools by target or null to send without spool
+   * @param document
+   *          Serialized &lt;log&gt; document
+   * @return Results in the order of the targets
+   */
+  public List<Result> send (List<OnmsEventTarget> targets,
+      OnmsConnectionPool pool, Map<OnmsEventTarget, OnmsEventSpool> spools,
+      byte[] document)
+  {
+    List<Write> writes = new ArrayList<Write> (targets.size ());
+    List<Future<Result>> futures = new ArrayList<Future<Result>> (targets
+        .size ());
+    for (OnmsEventTarget target : targets)
+    {
+      Write write = new Write (target, pool, spools == null ? null : spools
+          .get (target), document);
+      writes.add (write);
+      futures.add (this.m_executor.submit (write));
+    }
+
+    List<Result> results = new ArrayList<Result> (targets.size ());
+    long deadline = System.currentTimeMillis ()
+        + JSendEventConstants.FANOUT_TIMEOUT;
+    for (int i = 0; i < targets.size (); i++)
+    {
+      Future<Result> future = futures.get (i);
+      try
+      {
+        try
+        {
+          results.add (future.get (Math.max (0, deadline
+              - System.currentTimeMillis ()), TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e)
+        {
+          Result result = writes.get (i).timeOut ();
+          // The write finished just now if it can't be timed out
+          results.add (result != null ? result : future.get ());
+        }
+      } catch (ExecutionException e)
+      {
+        results.add (new Result (targets.get (i), Result.FAILED, 0, String
+            .valueOf (e.getCause ())));
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread ().interrupt ();
+        future.cancel (true);
+        results.add (new Result (targets.get (i), Result.FAILED, 0,
+            "Interrupted"));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Write of the document to one target. Either the write or the timeout
+   * settles the document, so a failed document is spooled exactly once.
+   */
+  private static class Write implements Callable<Result>
+  {
+    /** Target to send to */
+    private OnmsEventTarget m_target;
+
+    /** Connection pool or null to open a connection */
+    private OnmsConnectionPool m_pool;
+
+    /** Spool of the target or null */
+    private OnmsEventSpool m_spool;
+
+    /** Serialized &lt;log&gt; document */
+    private byte[] m_document;
+
+    /** Start of the write */
+    private long m_start;
+
+    /** Set by the write when done or by the timeout */
+    private AtomicBoolean m_settled = new AtomicBoolean ();
+
+    /** Connection being written to or null */
+    private volatile OnmsEventSender m_sender;
+
+    /**
+     * Constructor for the write to one target
+     * 
+     * @param target
+     *          Target to send to
+     * @param pool
+     *          Connection pool or null to open a connection
+     * @param spool
+     *          Spool of the target or null
+     * @param document
+     *          Serialized &lt;log&gt; document
+     */
+    Write (OnmsEventTarget target, OnmsConnectionPool pool,
+        OnmsEventSpool spool, byte[] document)
+    {
+      this.m_target = target;
+      this.m_pool = pool;
+      this.m_spool = spool;
+      this.m_document = document;
+      this.m_start = System.currentTimeMillis ();
+    }
+
+    /**
+     * Write the document to the target
+     * 
+     * @return Result for the target, not used if the write timed out
+     */
+    public Result call ()
+    {
+      OnmsEventTarget target = this.m_target;
+      OnmsConnectionPool pool = this.m_pool;
+      target.begin ();
+      long start = System.currentTimeMillis ();
+      OnmsEventSender sender = null;
+      try
+      {
+        if (pool != null)
+        {
+          sender = pool.borrow (target.getHost (), target.getPort ());
+        } else
+        {
+          sender = new OnmsEventSender ();
+          sender.setConnection (target.getHost (), target.getPort ());
+        }
+        this.m_sender = sender;
+        if (this.m_settled.get ())
+        {
+          // Timed out while connecting, the document is spooled already
+          throw new IOException ("Timeout");
+        }
+        if (this.m_spool != null && !this.m_spool.isEmpty ())
+        {
+          this.m_spool.replay (sender);
+        }
+        sender.write (this.m_document);
+        this.m_sender = null;
+        this.m_settled.set (true);
+        if (pool != null)
+        {
+          pool.release (sender);
+        } else
+        {
+          sender.close ();
+        }
+        long time = System.currentTimeMillis () - start;
+        target.success (time);
+        return new Result (target, Result.SENT, time, null);
+      } catch (IOException e)
+      {
+        this.m_sender = null;
+        target.failure ();
+        if (sender != null)
+        {
+          if (pool != null)
+          {
+            pool.invalidate (sender);
+          } else
+          {
+            close (target, sender);
+          }
+        }
+        long time = System.currentTimeMillis () - start;
+        if (!this.m_settled.compareAndSet (false, true))
+        {
+          // Timed out, the document was spooled by the timeout
+          return new Result (target, Result.TIMEOUT, time, e.getMessage ());
+        }
+        return new Result (target, this.spool () ? Result.SPOOLED
+            : Result.FAILED, time, e.getMessage ());
+      }
+    }
+
+    /**
+     * Give up the write after the timeout. The connection is closed to end a
+     * blocked write and the document is spooled.
+     * 
+     * @return Result for the target or null if the write is done already
+     */
+    Result timeOut ()
+    {
+      if (!this.m_settled.compareAndSet (false, true))
+      {
+        return null;
+      }
+      OnmsEventSender sender = this.m_sender;
+      if (sender != null)
+      {
+        // Also releases the spool if it is locked by a blocked replay
+        close (this.m_target, sender);
+      }
+      long time = System.currentTimeMillis () - this.m_start;
+      return new Result (this.m_target, Result.TIMEOUT, time, this.spool ()
+          ? "Timeout, spooled" : "Timeout");
+    }
+
+    /**
+     * Spool the document not written
+     * 
+     * @return true if the document was spooled
+     */
+    private boolean spool ()
+    {
+      if (this.m_spool == null)
+      {
+        return false;
+      }
+      try
+      {
+        this.m_spool.append (this.m_document);
+        this.m_spool.sync ();
+        return true;
+      } catch (IOException e)
+      {
+        log.error ("Error spooling event for " + this.m_target + ": "
+            + e.getMessage ());
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Close a connection
+   * 
+   * @param target
+   *          Target of the connection
+   * @param sender
+   *          Connection
+   */
+  private static void close (OnmsEventTarget target, OnmsEventSender sender)
+  {
+    try
+    {
+      sender.close ();
+    } catch (IOException e)
+    {
+      log.debug ("Error closing connection to " + target + ": "
+          + e.getMessage ());
+    }
+  }
+
+  /**
+   * Result of sending to one target
+   */
+  public static class Result
+  {
+    /** Document was written */
+    public static final int SENT = 0;
+
+    /** Target was not reachable, document was spooled */
+    public static final int SPOOLED = 1;
+
+    /** Document was neither written nor spooled */
+    public static final int FAILED = 2;
+
+    /**
+     * Target did not take the document in time, it may have been written. The
+     * document was spooled if the target has a spool.
+     */
+    public static final int TIMEOUT = 3;
+
+    /** Target */
+    private OnmsEventTarget m_target;
+
+    /** SENT, SPOOLED, FAILED or TIMEOUT */
+    private int m_status;
+
+    /** Milliseconds the attempt took */
+    private long m_time;
+
+    /** Error message or null */
+    private String m_error;
+
+    /**
+     * Constructor for a result
+     * 
+     * @param target
+     *          Target
+     * @param status
+     *          SENT, SPOOLED, FAILED or TIMEOUT
+     * @param time
+     *          Milliseconds the attempt took
+     * @param error
+     *          Error message or null
+     */
+    Result (OnmsEventTarget target, int status, long time, String error)
+    {
+      this.m_target = target;
+      this.m_status = status;
+      this.m_time = time;
+      this.m_error = error;
+    }
+
+    /**
+     * Get the target
+     * 
+     * @return Target
+     */
+    public OnmsEventTarget getTarget ()
+    {
+      return this.m_target;
+    }
+
+    /**
+     * Get the status
+     * 
+     * @return SENT, SPOOLED, FAILED or TIMEOUT
+     */
+    public int getStatus ()
+    {
+      return this.m_status;
+    }
+
+    /**
+     * Get the time of the attempt
+     * 
+     * @return Milliseconds
+     */
+    public long getTime ()
+    {
+      return this.m_time;
+    }
+
+    /**
+     * Get the error
+     * 
+     * @return Error message or null if the document was sent
+     */
+    public String getError ()
+    {
+      return this.m_error;
+    }
+
+    /**
+     * Result as text
+     * 
+     * @return Target, status, time and error
+     */
+    public String toString ()
+    {
+      String status = this.m_status == SENT ? "sent"
+          : (this.m_status == SPOOLED ? "spooled"
+              : (this.m_status == TIMEOUT ? "timed out" : "failed"));
+      return this.m_target + " " + status + " in " + this.m_time + " ms"
+          + (this.m_error == null ? "" : ". Error: " + this.m_error);
+    }
+  }
+}
@@ -0,0 +1,823 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Bulk import of events from a CSV or JSON Lines file. The file is read in
+ * large chunks through a {@link FileChannel} and split into lines, which are
+ * handed over in blocks to worker threads through a bounded queue. The
+ * workers build the events with an {@link EventRecordParser} and send them in
+ * documents of several events over pooled connections. With a named
+ * {@link OnmsEventTemplate} the lines only fill its variables and the workers
+ * join the precompiled fragments. Only a few blocks of lines are held at any
+ * time, so the memory does not grow with the file.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventImporter
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Block handed to the workers to end */
+  private static final Chunk END = new Chunk (0, null);
+
+  /** File to import */
+  private File m_file;
+
+  /** csv or jsonl */
+  private String m_format;
+
+  /** Selector for the eventd */
+  private OnmsTargetSelector m_selector;
+
+  /** Connections to the eventd */
+  private OnmsConnectionPool m_pool;
+
+  /** Worker threads */
+  private int m_workers;
+
+  /** Events per document */
+  private int m_batchSize;
+
+  /** Template filled by the lines or null */
+  private OnmsEventTemplate m_template;
+
+  /** Lines read from the file */
+  private AtomicLong m_lines;
+
+  /** Bytes read from the file */
+  private AtomicLong m_bytes;
+
+  /** Events sent */
+  private AtomicLong m_sent;
+
+  /** Events which could not be sent */
+  private AtomicLong m_failed;
+
+  /** Lines which are no correct event */
+  private AtomicLong m_rejected;
+
+  /** Nanoseconds the import took */
+  private long m_elapsed;
+
+  /** Worker threads still running */
+  private AtomicInteger m_running;
+
+  /** A worker ended before the end block, its lines are lost */
+  private volatile boolean m_aborted;
+
+  /**
+   * Constructor for an import configured from the command line
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @throws ParameterException
+   *           Arguments not correct
+   */
+  public OnmsEventImporter (ArgumentMap argumentMap) throws ParameterException
+  {
+    this.m_file = new File (argumentMap.get (JSendEventConstants.PARM_IMPORT));
+    if (!this.m_file.isFile ())
+    {
+      throw new ParameterException ("Import file " + this.m_file
+          + " does not exist.");
+    }
+    this.m_format = argumentMap
+        .containsKey (JSendEventConstants.PARM_IMPORT_FORMAT) ? argumentMap
+        .get (JSendEventConstants.PARM_IMPORT_FORMAT) : formatOf (this.m_file);
+    this.m_selector = new OnmsTargetSelector (argumentMap
+        .get (JSendEventConstants.PARM_HOST), argumentMap
+        .get (JSendEventConstants.PARM_PORT_EVENTD), argumentMap
+        .get (JSendEventConstants.PARM_STRATEGY));
+    this.m_workers = Math.max (1, (int) argumentMap.getNumber (
+        JSendEventConstants.PARM_IMPORT_WORKERS, Runtime.getRuntime ()
+            .availableProcessors ()));
+    this.m_pool = new OnmsConnectionPool (Math.max (1, (int) argumentMap
+        .getNumber (JSendEventConstants.PARM_LOAD_CONNECTIONS, this.m_workers)));
+    this.m_batchSize = Math.max (1, (int) argumentMap.getNumber (
+        JSendEventConstants.PARM_IMPORT_BATCH,
+        JSendEventConstants.IMPORT_DEFAULT_BATCH));
+    if (argumentMap.containsKey (JSendEventConstants.PARM_IMPORT_TEMPLATE)
+        || argumentMap.containsKey (JSendEventConstants.PARM_IMPORT_TEMPLATES))
+    {
+      this.m_template = loadTemplate (argumentMap);
+    }
+
+    this.m_lines = new AtomicLong ();
+    this.m_bytes = new AtomicLong ();
+    this.m_sent = new AtomicLong ();
+    this.m_failed = new AtomicLong ();
+    this.m_rejected = new AtomicLong ();
+    this.m_running = new AtomicInteger ();
+  }
+
+  /**
+   * Import the file and print the progress every second
+   * 
+   * @param out
+   *          Stream for the progress
+   * @throws IOException
+   *           File could not be read or all workers ended
+   * @throws ParameterException
+   *           Format or header of the file not correct
+   * @throws InterruptedException
+   *           Interrupted while waiting for the workers
+   */
+  public void run (final PrintStream out) throws IOException,
+      ParameterException, InterruptedException
+  {
+    final long start = System.nanoTime ();
+    final long size = this.m_file.length ();
+    final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk> (
+        this.m_workers * JSendEventConstants.IMPORT_CHUNKS_PER_WORKER);
+    FileChannel channel = new FileInputStream (this.m_file).getChannel ();
+    Thread[] workers = new Thread[this.m_workers];
+    Thread progress = null;
+    try
+    {
+      LineReader reader = new LineReader (channel, queue);
+      String header = null;
+      if (EventRecordParser.hasHeader (this.m_format))
+      {
+        Chunk first = reader.readHeader ();
+        header = first == null ? null : first.m_lines.get (0);
+      }
+      final EventRecordParser parser = new EventRecordParser (this.m_format,
+          header, this.m_template != null);
+
+      for (int i = 0; i < workers.length; i++)
+      {
+        workers[i] = new Thread ("import-" + i)
+        {
+          public void run ()
+          {
+            boolean finished = false;
+            try
+            {
+              OnmsEventImporter.this.work (parser, queue);
+              finished = true;
+            } finally
+            {
+              if (!finished)
+              {
+                OnmsEventImporter.this.m_aborted = true;
+                log.error ("Import worker " + this.getName ()
+                    + " ended, the lines it held are lost.");
+              }
+              OnmsEventImporter.this.m_running.decrementAndGet ();
+            }
+          }
+        };
+        this.m_running.incrementAndGet ();
+        workers[i].start ();
+      }
+
+      progress = new Thread ("import-progress")
+      {
+        public void run ()
+        {
+          long lastSent = 0;
+          try
+          {
+            while (true)
+            {
+              Thread.sleep (1000);
+              long sent = OnmsEventImporter.this.m_sent.get ();
+              out.println (String.format (
+                  "%8.1fs %5.1f%% %10d lines %10d sent %10d failed %10d/s",
+                  (System.nanoTime () - start) / 1e9, size == 0 ? 100.0
+                      : 100.0 * OnmsEventImporter.this.m_bytes.get () / size,
+                  OnmsEventImporter.this.m_lines.get (), sent,
+                  OnmsEventImporter.this.m_failed.get (), sent - lastSent));
+              lastSent = sent;
+            }
+          } catch (InterruptedException e)
+          {
+            // Import finished
+          }
+        }
+      };
+      progress.setDaemon (true);
+      progress.start ();
+
+      reader.read ();
+    } finally
+    {
+      channel.close ();
+      try
+      {
+        for (Thread worker : workers)
+        {
+          if (worker != null)
+          {
+            this.put (queue, END);
+          }
+        }
+      } catch (IOException e)
+      {
+        // No worker left to take the end block
+      }
+      for (Thread worker : workers)
+      {
+        if (worker != null)
+        {
+          worker.join ();
+        }
+      }
+      if (progress != null)
+      {
+        progress.interrupt ();
+      }
+      this.m_elapsed = System.nanoTime () - start;
+      this.m_pool.close ();
+    }
+  }
+
+  /**
+   * Get the result of the import
+   * 
+   * @return Lines, events and throughput
+   */
+  public String getReport ()
+  {
+    double seconds = this.m_elapsed / 1e9;
+    return String.format ("Imported %d lines from %s in %.3fs: %d sent, "
+        + "%d failed, %d rejected, %.1f events/s\nSender %s", this.m_lines
+        .get (), this.m_file, seconds, this.m_sent.get (), this.m_failed.get (),
+        this.m_rejected.get (), this.m_sent.get () / seconds,
+        OnmsSenderMetrics.getInstance ());
+  }
+
+  /**
+   * Check if all events of the file were sent
+   * 
+   * @return True if no event failed or was rejected and no worker ended early
+   */
+  public boolean isComplete ()
+  {
+    return this.m_failed.get () == 0 && this.m_rejected.get () == 0
+        && !this.m_aborted;
+  }
+
+  /**
+   * Hand a block to the workers. Waits while the queue is full as long as a
+   * worker is running.
+   * 
+   * @param queue
+   *          Queue to the workers
+   * @param chunk
+   *          Block of lines or end block
+   * @throws IOException
+   *           All workers ended
+   * @throws InterruptedException
+   *           Interrupted while waiting for the workers
+   */
+  private void put (BlockingQueue<Chunk> queue, Chunk chunk)
+      throws IOException, InterruptedException
+  {
+    while (!queue.offer (chunk, JSendEventConstants.IMPORT_WORKER_CHECK,
+        TimeUnit.MILLISECONDS))
+    {
+      if (this.m_running.get () == 0)
+      {
+        throw new IOException ("All import workers ended, import aborted.");
+      }
+    }
+  }
+
+  /**
+   * Build and send the events of the blocks in the queue until the end block
+   * 
+   * @param parser
+   *          Parser for the lines
+   * @param queue
+   *          Blocks of lines
+   */
+  private void work (EventRecordParser parser, BlockingQueue<Chunk> queue)
+  {
+    OnmsEventXml document = null;
+    ByteArrayOutputStream batch = new ByteArrayOutputStream ();
+    int events = 0;
+    while (true)
+    {
+      Chunk chunk;
+      try
+      {
+        chunk = queue.take ();
+      } catch (InterruptedException e)
+      {
+        break;
+      }
+      if (chunk == END)
+      {
+        break;
+      }
+
+      long number = chunk.m_first;
+      for (String line : chunk.m_lines)
+      {
+        try
+        {
+          if (this.m_template != null)
+          {
+            if (batch.size () == 0)
+            {
+              OnmsEventTemplate.writeDocumentStart (batch);
+            }
+            this.m_template.writeEvent (batch, parser.values (line));
+          } else if (document == null)
+          {
+            document = parser.parse (line);
+          } else
+          {
+            document.addEvent (parser.parse (line));
+          }
+        } catch (ParameterException e)
+        {
+          this.m_rejected.incrementAndGet ();
+          log.warn ("Line " + number + " of " + this.m_file
+              + " rejected. Error: " + e.getMessage ());
+          continue;
+        } catch (RuntimeException e)
+        {
+          this.m_rejected.incrementAndGet ();
+          log.error ("Line " + number + " of " + this.m_file
+              + " rejected. Error: " + e);
+          continue;
+        } catch (IOException e)
+        {
+          // Not thrown by the byte array stream
+          throw new IllegalStateException (e);
+        } finally
+        {
+          number++;
+        }
+        if (++events == this.m_batchSize)
+        {
+          this.send (document, batch, events);
+          document = null;
+          events = 0;
+        }
+      }
+    }
+    if (events > 0)
+    {
+      this.send (document, batch, events);
+    }
+  }
+
+  /**
+   * Send a document and count its events
+   * 
+   * @param document
+   *          Document or null if built from the template
+   * @param batch
+   *          Events written by the template, emptied after sending
+   * @param events
+   *          Events in the document
+   */
+  private void send (OnmsEventXml document, ByteArrayOutputStream batch,
+      int events)
+  {
+    try
+    {
+      if (document != null)
+      {
+        this.m_selector.send (this.m_pool, document);
+      } else
+      {
+        OnmsEventTemplate.writeDocumentEnd (batch);
+        byte[] bytes = batch.toByteArray ();
+        batch.reset ();
+        this.m_selector.send (this.m_pool, bytes, events);
+      }
+      this.m_sent.addAndGet (events);
+    } catch (IOException e)
+    {
+      this.m_failed.addAndGet (events);
+      log.error ("Sending " + events + " imported events failed. Error: "
+          + e.getMessage ());
+    } catch (RuntimeException e)
+    {
+      // Keep the worker alive, the reader waits for it
+      this.m_failed.addAndGet (events);
+      log.error ("Sending " + events + " imported events failed. Error: " + e);
+    }
+  }
+
+  /**
+   * Load the template file and select the template for the import
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @return Template
+   * @throws ParameterException
+   *           File or name missing, file not correct or template unknown
+   */
+  private static OnmsEventTemplate loadTemplate (ArgumentMap argumentMap)
+      throws ParameterException
+  {
+    if (!argumentMap.containsKey (JSendEventConstants.PARM_IMPORT_TEMPLATE)
+        || !argumentMap.containsKey (JSendEventConstants.PARM_IMPORT_TEMPLATES))
+    {
+      throw new ParameterException ("Import with a template requires "
+          + JSendEventConstants.PARM_IMPORT_TEMPLATES + " <file> and "
+          + JSendEventConstants.PARM_IMPORT_TEMPLATE + " <name>.");
+    }
+    String name = argumentMap.get (JSendEventConstants.PARM_IMPORT_TEMPLATE);
+    File file = new File (argumentMap
+        .get (JSendEventConstants.PARM_IMPORT_TEMPLATES));
+    Map<String, OnmsEventTemplate> templates;
+    try
+    {
+      templates = OnmsEventTemplate.load (file);
+    } catch (IOException e)
+    {
+      throw new ParameterException ("Template file " + file
+          + " can't be read. Error: " + e.getMessage ());
+    }
+    OnmsEventTemplate template = templates.get (name);
+    if (template == null)
+    {
+      throw new ParameterException ("Template " + name + " is not defined in "
+          + file + ", defined are " + templates.keySet () + ".");
+    }
+    log.debug ("Import with " + template);
+    return template;
+  }
+
+  /**
+   * Get the format of a file from its extension
+   * 
+   * @param file
+   *          File
+   * @return csv or jsonl
+   * @throws ParameterException
+   *           Extension not known
+   */
+  private static String formatOf (File file) throws ParameterException
+  {
+    String name = file.getName ().toLowerCase ();
+    if (name.endsWith (".csv"))
+    {
+      return JSendEventConstants.IMPORT_FORMAT_CSV;
+    }
+    if (name.endsWith (".jsonl") || name.endsWith (".ndjson")
+        || name.endsWith (".json"))
+    {
+      return JSendEventConstants.IMPORT_FORMAT_JSONL;
+    }
+    throw new ParameterException ("Format of " + file + " unknown, use "
+        + JSendEventConstants.PARM_IMPORT_FORMAT + " "
+        + JSendEventConstants.IMPORT_FORMAT_CSV + " or "
+        + JSendEventConstants.IMPORT_FORMAT_JSONL + ".");
+  }
+
+  /**
+   * Block of lines handed to a worker
+   */
+  private static class Chunk
+  {
+    /** Line number of the first line */
+    private long m_first;
+
+    /** Lines */
+    private List<String> m_lines;
+
+    /**
+     * Constructor for a block of lines
+     * 
+     * @param first
+     *          Line number of the first line
+     * @param lines
+     *          Lines
+     */
+    Chunk (long first, List<String> lines)
+    {
+      this.m_first = first;
+      this.m_lines = lines;
+    }
+  }
+
+  /**
+   * Reader splitting the file into lines. Line breaks within quoted CSV values
+   * are kept in the line. Lines longer than the maximum are rejected without
+   * holding them in memory.
+   */
+  private class LineReader
+  {
+    /** File */
+    private FileChannel m_channel;
+
+    /** Queue to the workers */
+    private BlockingQueue<Chunk> m_queue;
+
+    /** Buffer for the read bytes */
+    private ByteBuffer m_buffer;
+
+    /** Start of a line continued from the previous read */
+    private byte[] m_carry;
+
+    /** Bytes in m_carry */
+    private int m_carryLength;
+
+    /** Position of the next unread byte in the buffer */
+    private int m_offset;
+
+    /** End of the read bytes in the buffer */
+    private int m_limit;
+
+    /** Line is longer than the maximum and skipped */
+    private boolean m_skip;
+
+    /** Within a quoted CSV value */
+    private boolean m_quoted;
+
+    /** Quotes in CSV lines are tracked */
+    private boolean m_csv;
+
+    /** Lines of the current block */
+    private List<String> m_lines;
+
+    /** Number of the next line */
+    private long m_number;
+
+    /** Number of the first line of the current block */
+    private long m_first;
+
+    /** Stop after the first line */
+    private boolean m_headerOnly;
+
+    /**
+     * Constructor for a reader of the whole file
+     * 
+     * @param channel
+     *          File
+     * @param queue
+     *          Queue to the workers
+     */
+    LineReader (FileChannel channel, BlockingQueue<Chunk> queue)
+    {
+      this.m_channel = channel;
+      this.m_queue = queue;
+      this.m_buffer = ByteBuffer
+          .allocate (JSendEventConstants.IMPORT_READ_SIZE);
+      this.m_carry = new byte[256];
+      this.m_csv = JSendEventConstants.IMPORT_FORMAT_CSV
+          .equals (OnmsEventImporter.this.m_format);
+      this.m_number = 1;
+      this.newChunk ();
+    }
+
+    /**
+     * Read the first line of the file
+     * 
+     * @return Block with the first line or null for an empty file
+     * @throws IOException
+     *           File could not be read
+     * @throws InterruptedException
+     *           Not expected, the queue is not used
+     */
+    Chunk readHeader () throws IOException, InterruptedException
+    {
+      this.m_headerOnly = true;
+      try
+      {
+        this.read ();
+      } finally
+      {
+        this.m_headerOnly = false;
+      }
+      if (this.m_lines.isEmpty ())
+      {
+        return null;
+      }
+      Chunk header = new Chunk (this.m_first, this.m_lines);
+      this.newChunk ();
+      return header;
+    }
+
+    /**
+     * Read the file up to its end and queue the lines
+     * 
+     * @throws IOException
+     *           File could not be read
+     * @throws InterruptedException
+     *           Interrupted while waiting for the workers
+     */
+    void read () throws IOException, InterruptedException
+    {
+      byte[] data = this.m_buffer.array ();
+      while (true)
+      {
+        if (this.m_offset >= this.m_limit)
+        {
+          this.m_buffer.clear ();
+          int read = this.m_channel.read (this.m_buffer);
+          if (read < 0)
+          {
+            break;
+          }
+          OnmsEventImporter.this.m_bytes.addAndGet (read);
+          this.m_offset = 0;
+          this.m_limit = this.m_buffer.position ();
+        }
+
+        int start = this.m_offset;
+        while (this.m_offset < this.m_limit)
+        {
+          byte b = data[this.m_offset++];
+          if (b == '"' && this.m_csv)
+          {
+            this.m_quoted = !this.m_quoted;
+          } else if (b == '\n' && !this.m_quoted)
+          {
+            this.line (data, start, this.m_offset - 1 - start);
+            start = this.m_offset;
+            if (this.m_headerOnly && !this.m_lines.isEmpty ())
+            {
+              return;
+            }
+          }
+        }
+        this.append (data, start, this.m_limit - start);
+      }
+
+      if (this.m_carryLength > 0 || this.m_skip)
+      {
+        this.line (data, 0, 0);
+      }
+      if (!this.m_headerOnly && !this.m_lines.isEmpty ())
+      {
+        OnmsEventImporter.this.put (this.m_queue, new Chunk (
+            this.m_first, this.m_lines));
+        this.newChunk ();
+      }
+    }
+
+    /**
+     * Queue a line, completed from the carried bytes if it was continued
+     * 
+     * @param data
+     *          Bytes
+     * @param start
+     *          Start of the line or of its rest in data
+     * @param length
+     *          Length of the line or of its rest without line break
+     * @throws InterruptedException
+     *           Interrupted while waiting for the workers
+     * @throws IOException
+     *           UTF-8 not supported or all workers ended
+     */
+    private void line (byte[] data, int start, int length)
+        throws InterruptedException, IOException
+    {
+      long number = this.m_number++;
+      OnmsEventImporter.this.m_lines.incrementAndGet ();
+      byte[] bytes = data;
+      if (this.m_carryLength > 0 || this.m_skip)
+      {
+        // Line continued from the previous read
+        this.append (data, start, length);
+        bytes = this.m_carry;
+        start = 0;
+        length = this.m_carryLength;
+      }
+      if (this.m_skip)
+      {
+        OnmsEventImporter.this.m_rejected.incrementAndGet ();
+        log.warn ("Line " + number + " of " + OnmsEventImporter.this.m_file
+            + " rejected. Error: Line longer than "
+            + JSendEventConstants.IMPORT_MAX_LINE + " bytes.");
+        this.m_skip = false;
+        this.m_carryLength = 0;
+        return;
+      }
+
+      if (length > 0 && bytes[start + length - 1] == '\r')
+      {
+        length--;
+      }
+      String line = new String (bytes, start, length, "UTF-8");
+      this.m_carryLength = 0;
+      if (number == 1 && line.startsWith ("\uFEFF"))
+      {
+        line = line.substring (1);
+      }
+      if (line.trim ().length () == 0)
+      {
+        return;
+      }
+
+      if (this.m_lines.isEmpty ())
+      {
+        this.m_first = number;
+      }
+      this.m_lines.add (line);
+      if (this.m_lines.size () == JSendEventConstants.IMPORT_CHUNK_LINES
+          && !this.m_headerOnly)
+      {
+        OnmsEventImporter.this.put (this.m_queue, new Chunk (
+            this.m_first, this.m_lines));
+        this.newChunk ();
+      }
+    }
+
+    /**
+     * Append bytes to the carried line, growing the carry up to the maximum
+     * line length
+     * 
+     * @param data
+     *          Bytes
+     * @param start
+     *          Start in data
+     * @param length
+     *          Number of bytes
+     */
+    private void append (byte[] data, int start, int length)
+    {
+      if (this.m_skip || length == 0)
+      {
+        return;
+      }
+      int needed = this.m_carryLength + length;
+      if (needed > JSendEventConstants.IMPORT_MAX_LINE)
+      {
+        this.m_skip = true;
+        return;
+      }
+      if (needed > this.m_carry.length)
+      {
+        byte[] carry = new byte[Math.min (JSendEventConstants.IMPORT_MAX_LINE,
+            Math.max (needed, this.m_carry.length * 2))];
+        System.arraycopy (this.m_carry, 0, carry, 0, this.m_carryLength);
+        this.m_carry = carry;
+      }
+      System.arraycopy (data, start, this.m_carry, this.m_carryLength, length);
+      this.m_carryLength = needed;
+    }
+
+    /**
+     * Start a new block of lines
+     */
+    private void newChunk ()
+    {
+      this.m_lines = new ArrayList<String> (
+          JSendEventConstants.IMPORT_CHUNK_LINES);
+    }
+  }
+}
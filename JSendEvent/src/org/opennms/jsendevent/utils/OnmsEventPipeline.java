@@ -0,0 +1,518 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Sender keeping a window of unacknowledged events on one connection. Every
+ * event gets a uuid and eventd answers each document with an
+ * &lt;event-receipt&gt; listing the uuids of the processed events. Documents
+ * are written without waiting for the receipts as long as fewer events than
+ * the window are in flight, receipts which already arrived are read after
+ * each write. If the connection fails or no receipt arrives in time the
+ * pipeline reconnects through the target selector and sends the events in
+ * flight again. An event is not lost but may reach eventd twice. A pipeline
+ * must only be used by one thread at a time.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventPipeline
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Selector for the eventd */
+  private OnmsTargetSelector m_selector;
+
+  /** Maximum number of events in flight */
+  private int m_window;
+
+  /** Connection or null if not connected */
+  private OnmsEventSender m_sender;
+
+  /** Eventd of the connection */
+  private OnmsEventTarget m_target;
+
+  /** Serialized events in flight by uuid in the order they were sent */
+  private Map<String, byte[]> m_inFlight;
+
+  /** Prefix of the generated uuids */
+  private String m_prefix;
+
+  /** Number of the last generated uuid */
+  private long m_sequence;
+
+  /** Buffer serializing one event */
+  private ByteArrayOutputStream m_buffer;
+
+  /** Writer serializing into the buffer */
+  private OnmsEventWriter m_writer;
+
+  /** Parser for the receipts of the connection */
+  private ReceiptParser m_parser;
+
+  /** Buffer reading the receipts */
+  private byte[] m_readBuffer;
+
+  /** Reconnects since the last receipt */
+  private int m_failures;
+
+  /** Acknowledged events */
+  private long m_acknowledged;
+
+  /** Events sent again after a reconnect */
+  private long m_resent;
+
+  /**
+   * Constructor for a pipeline to the eventd of the selector
+   * 
+   * @param selector
+   *          Selector for the eventd, not fan-out
+   * @param window
+   *          Maximum number of events in flight
+   */
+  public OnmsEventPipeline (OnmsTargetSelector selector, int window)
+  {
+    if (window < 1)
+    {
+      throw new IllegalArgumentException ("Window " + window
+          + " is not positive.");
+    }
+    this.m_selector = selector;
+    this.m_window = window;
+    this.m_inFlight = new LinkedHashMap<String, byte[]> ();
+    this.m_prefix = UUID.randomUUID ().toString () + "-";
+    this.m_buffer = new ByteArrayOutputStream (1024);
+    this.m_writer = new OnmsEventWriter (this.m_buffer);
+    this.m_readBuffer = new byte[JSendEventConstants.RECEIPT_READ_SIZE];
+  }
+
+  /**
+   * Send the event and all events added to it in documents of at most
+   * {@link JSendEventConstants#RECEIPT_DOCUMENT_EVENTS} events. Events
+   * without uuid get one. Blocks while the window is full.
+   * 
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           No eventd reachable or no receipts after several reconnects
+   */
+  public void send (OnmsEventXml event) throws IOException
+  {
+    if (this.m_sender == null && this.m_inFlight.isEmpty ())
+    {
+      this.connect ();
+    }
+
+    List<OnmsEventXml> events = new ArrayList<OnmsEventXml> (1 + event
+        .getEvents ().size ());
+    events.add (event);
+    events.addAll (event.getEvents ());
+    int size = JSendEventConstants.RECEIPT_DOCUMENT_EVENTS;
+    for (int start = 0; start < events.size (); start += size)
+    {
+      List<OnmsEventXml> document = events.subList (start, Math.min (events
+          .size (), start + size));
+      while (!this.m_inFlight.isEmpty ()
+          && this.m_inFlight.size () + document.size () > this.m_window)
+      {
+        this.awaitReceipts ();
+      }
+
+      List<byte[]> fragments = new ArrayList<byte[]> (document.size ());
+      for (OnmsEventXml added : document)
+      {
+        byte[] fragment = this.serialize (added);
+        this.m_inFlight.put (added.getUuid (), fragment);
+        fragments.add (fragment);
+      }
+      try
+      {
+        if (this.m_sender == null)
+        {
+          throw new IOException ("Not connected to eventd.");
+        }
+        this.write (fragments);
+        this.readReceipts (false);
+      } catch (IOException e)
+      {
+        this.recover (e);
+      }
+    }
+  }
+
+  /**
+   * Wait until all events in flight are acknowledged
+   * 
+   * @throws IOException
+   *           No receipts after several reconnects
+   */
+  public void drain () throws IOException
+  {
+    while (!this.m_inFlight.isEmpty ())
+    {
+      this.awaitReceipts ();
+    }
+  }
+
+  /**
+   * Get the number of events waiting for a receipt
+   * 
+   * @return Events in flight
+   */
+  public int getInFlight ()
+  {
+    return this.m_inFlight.size ();
+  }
+
+  /**
+   * Get the number of acknowledged events
+   * 
+   * @return Events
+   */
+  public long getAcknowledged ()
+  {
+    return this.m_acknowledged;
+  }
+
+  /**
+   * Get the number of events sent again after a reconnect
+   * 
+   * @return Events
+   */
+  public long getResent ()
+  {
+    return this.m_resent;
+  }
+
+  /**
+   * Get the eventd of the current connection
+   * 
+   * @return Eventd or null if never connected
+   */
+  public OnmsEventTarget getTarget ()
+  {
+    return this.m_target;
+  }
+
+  /**
+   * Close the connection without waiting for the events in flight, call
+   * {@link #drain()} before to make sure they were processed
+   */
+  public void close ()
+  {
+    this.disconnect ();
+  }
+
+  /**
+   * Connect to the next reachable eventd
+   * 
+   * @throws IOException
+   *           No eventd reachable
+   */
+  private void connect () throws IOException
+  {
+    OnmsEventSender sender = new OnmsEventSender ();
+    this.m_target = this.m_selector.connect (sender);
+    this.m_sender = sender;
+    this.m_sender.getSocket ().setSoTimeout (
+        JSendEventConstants.RECEIPT_TIMEOUT);
+    this.m_parser = new ReceiptParser ();
+    log.debug ("Pipeline connected to eventd " + this.m_target);
+  }
+
+  /**
+   * Close the connection, errors are ignored
+   */
+  private void disconnect ()
+  {
+    if (this.m_sender == null)
+    {
+      return;
+    }
+    try
+    {
+      this.m_sender.close ();
+    } catch (IOException e)
+    {
+      log.debug ("Error closing connection to eventd " + this.m_target + ": "
+          + e.getMessage ());
+    }
+    this.m_sender = null;
+  }
+
+  /**
+   * Reconnect and send all events in flight again until it succeeds or
+   * {@link JSendEventConstants#RECEIPT_MAX_RETRIES} reconnects in a row
+   * brought no receipt
+   * 
+   * @param cause
+   *          Error of the connection
+   * @throws IOException
+   *           Giving up, the events stay in flight
+   */
+  private void recover (IOException cause) throws IOException
+  {
+    IOException error = cause;
+    while (true)
+    {
+      this.disconnect ();
+      if (++this.m_failures > JSendEventConstants.RECEIPT_MAX_RETRIES)
+      {
+        this.m_failures = 0;
+        throw new IOException (this.m_inFlight.size ()
+            + " events not acknowledged by eventd. Error: "
+            + error.getMessage ());
+      }
+      log.warn ("Connection to eventd " + this.m_target + " failed, sending "
+          + this.m_inFlight.size () + " events again. Error: "
+          + error.getMessage ());
+      try
+      {
+        Thread.sleep (JSendEventConstants.RECEIPT_RETRY_DELAY);
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new InterruptedIOException ("Interrupted while reconnecting.");
+      }
+
+      try
+      {
+        this.connect ();
+        List<byte[]> fragments = new ArrayList<byte[]> (
+            JSendEventConstants.RECEIPT_DOCUMENT_EVENTS);
+        for (byte[] fragment : this.m_inFlight.values ())
+        {
+          fragments.add (fragment);
+          if (fragments.size () == JSendEventConstants.RECEIPT_DOCUMENT_EVENTS)
+          {
+            this.write (fragments);
+            fragments.clear ();
+          }
+        }
+        if (!fragments.isEmpty ())
+        {
+          this.write (fragments);
+        }
+        this.m_resent += this.m_inFlight.size ();
+        return;
+      } catch (IOException e)
+      {
+        error = e;
+      }
+    }
+  }
+
+  /**
+   * Block until receipts arrive, reconnect if the connection fails or no
+   * receipt arrives in time
+   * 
+   * @throws IOException
+   *           No receipts after several reconnects
+   */
+  private void awaitReceipts () throws IOException
+  {
+    try
+    {
+      if (this.m_sender == null)
+      {
+        throw new IOException ("Not connected to eventd.");
+      }
+      this.readReceipts (true);
+    } catch (IOException e)
+    {
+      this.recover (e);
+    }
+  }
+
+  /**
+   * Read receipts and release the acknowledged events
+   * 
+   * @param block
+   *          Wait for the next receipt, otherwise only read what already
+   *          arrived
+   * @throws IOException
+   *           Error reading, connection closed by eventd or no receipt in time
+   */
+  private void readReceipts (boolean block) throws IOException
+  {
+    InputStream in = this.m_sender.getSocket ().getInputStream ();
+    while (block || in.available () > 0)
+    {
+      int length = in.read (this.m_readBuffer);
+      if (length < 0)
+      {
+        throw new EOFException ("Eventd closed the connection.");
+      }
+      for (String uuid : this.m_parser.parse (this.m_readBuffer, length))
+      {
+        if (this.m_inFlight.remove (uuid) != null)
+        {
+          this.m_acknowledged++;
+          this.m_failures = 0;
+        }
+      }
+      block = false;
+    }
+  }
+
+  /**
+   * Serialize an event without the events added to it
+   * 
+   * @param event
+   *          Event, gets a uuid if not set
+   * @return &lt;event&gt; element as UTF-8
+   * @throws IOException
+   *           Not thrown by the buffer
+   */
+  private byte[] serialize (OnmsEventXml event) throws IOException
+  {
+    if (event.getUuid () == null)
+    {
+      event.setUuid (this.m_prefix + (++this.m_sequence));
+    }
+    this.m_buffer.reset ();
+    this.m_writer.writeEvent (event);
+    this.m_writer.flush ();
+    return this.m_buffer.toByteArray ();
+  }
+
+  /**
+   * Write serialized events as one document
+   * 
+   * @param fragments
+   *          &lt;event&gt; elements as UTF-8
+   * @throws IOException
+   *           Error writing to the connection
+   */
+  private void write (Collection<byte[]> fragments) throws IOException
+  {
+    int length = OnmsEventWriter.DOCUMENT_START.length
+        + OnmsEventWriter.DOCUMENT_END.length;
+    for (byte[] fragment : fragments)
+    {
+      length += fragment.length;
+    }
+    byte[] document = new byte[length];
+    int position = 0;
+    System.arraycopy (OnmsEventWriter.DOCUMENT_START, 0, document, position,
+        OnmsEventWriter.DOCUMENT_START.length);
+    position += OnmsEventWriter.DOCUMENT_START.length;
+    for (byte[] fragment : fragments)
+    {
+      System.arraycopy (fragment, 0, document, position, fragment.length);
+      position += fragment.length;
+    }
+    System.arraycopy (OnmsEventWriter.DOCUMENT_END, 0, document, position,
+        OnmsEventWriter.DOCUMENT_END.length);
+    this.m_sender.write (document, fragments.size ());
+  }
+
+  /**
+   * Incremental parser for the uuids in the receipts of one connection, a
+   * receipt may be split over several reads
+   */
+  private static class ReceiptParser
+  {
+    /** Start tag of a uuid */
+    private static final String START = "<"
+        + JSendEventConstants.EVENT_XMLTAG_UUID + ">";
+
+    /** End tag of a uuid */
+    private static final String END = "</"
+        + JSendEventConstants.EVENT_XMLTAG_UUID + ">";
+
+    /** Received text not parsed yet */
+    private StringBuilder m_text = new StringBuilder ();
+
+    /**
+     * Parse the next chunk of the receipts
+     * 
+     * @param buffer
+     *          Received bytes
+     * @param length
+     *          Number of received bytes in the buffer
+     * @return Uuids completed in this chunk
+     */
+    List<String> parse (byte[] buffer, int length)
+    {
+      // Markup and generated uuids are ASCII
+      for (int i = 0; i < length; i++)
+      {
+        this.m_text.append ((char) (buffer[i] & 0xff));
+      }
+
+      List<String> uuids = new ArrayList<String> ();
+      int position = 0;
+      while (true)
+      {
+        int start = this.m_text.indexOf (START, position);
+        if (start < 0)
+        {
+          // Keep what may be the beginning of a start tag
+          position = Math.max (position, this.m_text.length ()
+              - START.length () + 1);
+          break;
+        }
+        int end = this.m_text.indexOf (END, start + START.length ());
+        if (end < 0)
+        {
+          position = start;
+          break;
+        }
+        uuids.add (this.m_text.substring (start + START.length (), end)
+            .trim ());
+        position = end + END.length ();
+      }
+      this.m_text.delete (0, position);
+      return uuids;
+    }
+  }
+}
@@ -36,16 +36,16 @@
 package org.opennms.jsendevent.utils;
 
 import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 import org.opennms.jsendevent.JSendEventConstants;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.bootstrap.DOMImplementationRegistry;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSOutput;
-import org.w3c.dom.ls.LSSerializer;
 
 /**
  * 
@@ -59,6 +59,21 @@ public class OnmsEventSender
   /** Socket for connection to OpenNMS eventd */
   private Socket m_socket;
 
+  /** Output stream of the current socket, counts the written bytes */
+  private OutputStream m_output;
+
+  /** Writer for the events on the current socket */
+  private OnmsEventWriter m_writer;
+
+  /** Target of the connection as host:port */
+  private String m_target;
+
+  /** Time in milliseconds the connection was used last */
+  private long m_lastUsed;
+
+  /** Rate limiter for the events or null */
+  private OnmsRateLimiter m_rateLimiter;
+
   /**
    * Set connection to OpenNMS eventd
    * 
@@ -85,65 +100,263 @@ public class OnmsEventSender
       throw new RuntimeException ("TCP-Port: " + port
           + " is not correct. Error: " + e.getMessage ());
     }
-    this.m_inet4 = (Inet4Address) Inet4Address.getByName (ip);
-    this.m_socket = new Socket (this.m_inet4, tcp_port);
+    OnmsSenderMetrics metrics = OnmsSenderMetrics.getInstance ();
+    long start = System.nanoTime ();
+    try
+    {
+      this.m_inet4 = (Inet4Address) Inet4Address.getByName (ip);
+      this.m_socket = new Socket ();
+      this.m_socket.connect (new InetSocketAddress (this.m_inet4, tcp_port),
+          JSendEventConstants.CONNECT_TIMEOUT);
+    } catch (IOException e)
+    {
+      metrics.connectFailed ();
+      throw e;
+    }
+    metrics.connected (System.nanoTime () - start);
+    this.m_socket.setKeepAlive (true);
+    this.m_socket.setTcpNoDelay (true);
+    this.m_output = new CountingOutputStream (this.m_socket.getOutputStream ());
+    this.m_writer = new OnmsEventWriter (this.m_output);
+    this.m_target = ip + ":" + port;
+    this.m_lastUsed = System.currentTimeMillis ();
+  }
+
+  /**
+   * Set the rate limiter the events have to pass
+   * 
+   * @param rateLimiter
+   *          Rate limiter or null to send without limit
+   */
+  public void setRateLimiter (OnmsRateLimiter rateLimiter)
+  {
+    this.m_rateLimiter = rateLimiter;
   }
 
   /**
-   * Send an OpenNMS event
+   * Send an OpenNMS event and keep the connection open for further events.
+   * Every event is written as its own &lt;log&gt; document. With a rate limiter
+   * the event may be delayed, dropped or spooled.
    * 
    * @param event
    *          Event to send
+   * @throws IOException
+   *           Error writing to the connection
    */
-  public void sendEvent (OnmsEventXml event)
+  public void send (OnmsEventXml event) throws IOException
   {
-    DOMImplementation implementation;
+    if (this.m_rateLimiter != null
+        && !this.m_rateLimiter.acquire (event, this))
+    {
+      return;
+    }
+    int events = 1 + event.getEvents ().size ();
     try
     {
-      implementation = DOMImplementationRegistry.newInstance ()
-          .getDOMImplementation ("XML 3.0");
-      DOMImplementationLS feature = (DOMImplementationLS) implementation
-          .getFeature ("LS", "3.0");
-      
-      LSSerializer serializer = feature.createLSSerializer ();
-      LSOutput output = feature.createLSOutput ();
+      long start = System.nanoTime ();
+      this.m_writer.writeDocument (event);
+      long serialized = System.nanoTime ();
+      this.m_writer.flush ();
+      OnmsSenderMetrics.getInstance ().documentSent (events,
+          serialized - start, System.nanoTime () - serialized);
+    } catch (IOException e)
+    {
+      OnmsSenderMetrics.getInstance ().eventsFailed (events);
+      throw e;
+    }
+    this.m_lastUsed = System.currentTimeMillis ();
+  }
+
+  /**
+   * Write an already serialized &lt;log&gt; document, for example from the
+   * {@link OnmsEventSpool}, and keep the connection open
+   * 
+   * @param document
+   *          Serialized document
+   * @throws IOException
+   *           Error writing to the connection
+   */
+  public void write (byte[] document) throws IOException
+  {
+    this.write (document, 0);
+  }
 
-      output.setByteStream (this.m_socket.getOutputStream ());
-      serializer.write (event.getEventDoc (), output);
-    } catch (ClassCastException e)
+  /**
+   * Write an already serialized &lt;log&gt; document with a known number of
+   * events and keep the connection open
+   * 
+   * @param document
+   *          Serialized document
+   * @param events
+   *          Events in the document, 0 if unknown
+   * @throws IOException
+   *           Error writing to the connection
+   */
+  public void write (byte[] document, int events) throws IOException
+  {
+    long start = System.nanoTime ();
+    this.m_output.write (document);
+    OnmsSenderMetrics.getInstance ().documentSent (events, 0,
+        System.nanoTime () - start);
+    this.m_lastUsed = System.currentTimeMillis ();
+  }
+
+  /**
+   * Get the target of the connection
+   * 
+   * @return Target as host:port given to {@link #setConnection(String, String)}
+   */
+  public String getTarget ()
+  {
+    return this.m_target;
+  }
+
+  /**
+   * Get the time the connection was opened or used last
+   * 
+   * @return Time in milliseconds
+   */
+  public long getLastUsed ()
+  {
+    return this.m_lastUsed;
+  }
+
+  /**
+   * Discard the replies eventd has sent on the connection without blocking.
+   * Unread replies would fill the socket buffers of a long-lived connection.
+   * 
+   * @throws IOException
+   *           Error reading from the connection
+   */
+  public void discardReplies () throws IOException
+  {
+    InputStream in = this.m_socket.getInputStream ();
+    int available;
+    while ((available = in.available ()) > 0)
     {
-      System.err.println ("ClassCastException: " + e.getMessage ());
-    } catch (ClassNotFoundException e)
+      in.skip (available);
+    }
+  }
+
+  /**
+   * Check if the connection is still usable. Replies from eventd are
+   * discarded, the check waits at most one millisecond for the end of the
+   * stream which is read if eventd has closed the connection.
+   * 
+   * @return true if the connection is open on both sides
+   */
+  public boolean isAlive ()
+  {
+    if (!this.isConnected ())
     {
-      System.err.println ("ClassCastException: " + e.getMessage ());
-    } catch (InstantiationException e)
+      return false;
+    }
+    try
     {
-      System.err.println ("InstantiationException: " + e.getMessage ());
-    } catch (IllegalAccessException e)
+      InputStream in = this.m_socket.getInputStream ();
+      byte[] buffer = new byte[512];
+      int timeout = this.m_socket.getSoTimeout ();
+      this.m_socket.setSoTimeout (1);
+      try
+      {
+        while (in.read (buffer) >= 0)
+        {
+          // Discard replies until no more data is available
+        }
+        return false;
+      } catch (SocketTimeoutException e)
+      {
+        return true;
+      } finally
+      {
+        this.m_socket.setSoTimeout (timeout);
+      }
+    } catch (IOException e)
     {
-      System.err.println ("IllegalAccessException: " + e.getMessage ());
-    } catch (UnknownHostException ex)
+      return false;
+    }
+  }
+
+  /**
+   * Get the socket of the connection to read the receipts of eventd
+   * 
+   * @return Socket or null if not connected
+   */
+  Socket getSocket ()
+  {
+    return this.m_socket;
+  }
+
+  /**
+   * Check if the connection to OpenNMS eventd is open
+   * 
+   * @return true if the connection is set and not closed
+   */
+  public boolean isConnected ()
+  {
+    return this.m_socket != null && !this.m_socket.isClosed ();
+  }
+
+  /**
+   * Close the connection to OpenNMS eventd
+   * 
+   * @throws IOException
+   *           Error closing the socket
+   */
+  public void close () throws IOException
+  {
+    if (this.m_socket != null)
     {
-      System.err.println ("FAILED\nUnknown host. Error: " + ex.getMessage ());
-      System.exit (JSendEventConstants.EXIT_FAILED);
-    } catch (IOException ex)
+      this.m_socket.close ();
+    }
+  }
+
+  /**
+   * Send an OpenNMS event and close the connection. The event is written with
+   * the streaming {@link OnmsEventWriter}, no XML document is built.
+   * 
+   * @param event
+   *          Event to send
+   * @throws IOException
+   *           Error sending the event or closing the connection
+   */
+  public void sendEvent (OnmsEventXml event) throws IOException
+  {
+    try
     {
-      System.err
-          .println ("FAILED\nI/O Exception while creating socket. Error: "
-              + ex.getMessage ());
-      System.exit (JSendEventConstants.EXIT_FAILED);
+      this.send (event);
     } finally
     {
-      try
-      {
-        this.m_socket.close ();
-      } catch (IOException ex)
-      {
-        System.err
-            .println ("FAILED\nI/O Exception when closing socket. Error: "
-                + ex.getMessage ());
-        System.exit (JSendEventConstants.EXIT_FAILED);
-      }
+      this.close ();
+    }
+  }
+
+  /**
+   * Output stream adding the written bytes to the sender metrics
+   */
+  private static class CountingOutputStream extends FilterOutputStream
+  {
+    /**
+     * Constructor to count the bytes written to a stream
+     * 
+     * @param out
+     *          Stream to write to
+     */
+    CountingOutputStream (OutputStream out)
+    {
+      super (out);
+    }
+
+    public void write (int b) throws IOException
+    {
+      this.out.write (b);
+      OnmsSenderMetrics.getInstance ().bytesWritten (1);
+    }
+
+    public void write (byte[] b, int off, int len) throws IOException
+    {
+      this.out.write (b, off, len);
+      OnmsSenderMetrics.getInstance ().bytesWritten (len);
     }
   }
 }
@@ -0,0 +1,779 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Store-and-forward spool for events which can't be sent because eventd is not
+ * reachable. The spool is an append-only journal of serialized &lt;log&gt;
+ * documents, split into memory-mapped segment files in a spool directory. The
+ * documents are replayed in the order they were spooled once eventd is
+ * reachable again.
+ * 
+ * A segment starts with a header holding a magic number and the position of
+ * the first document not yet replayed. Every document is stored as its length
+ * followed by its bytes, a length of 0 marks the end of the segment. Changes
+ * are written to disk after {@link JSendEventConstants#SPOOL_SYNC_RECORDS}
+ * documents or {@link JSendEventConstants#SPOOL_SYNC_INTERVAL} milliseconds.
+ * 
+ * Several processes may use the same spool directory, e.g. short-lived
+ * senders while eventd is down. Every access locks the lock file of the
+ * directory and reads the segments again, so documents spooled or replayed by
+ * another process are seen and never overwritten.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventSpool
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Magic number at the start of each segment */
+  private static final int MAGIC = 0x4a534550;
+
+  /** Size of the segment header */
+  private static final int HEADER_SIZE = 16;
+
+  /** Offset of the read position in the segment header */
+  private static final int HEADER_READ_POSITION = 4;
+
+  /** File name suffix of the segments */
+  private static final String SEGMENT_SUFFIX = ".spool";
+
+  /** Name of the lock file in the spool directory */
+  private static final String LOCK_FILE = "spool.lock";
+
+  /** Locks of the spool directories in this process by canonical path */
+  private static final Map<String, ReentrantLock> LOCKS = new HashMap<String, ReentrantLock> ();
+
+  /** Spool directory */
+  private File m_directory;
+
+  /** Segment size in bytes */
+  private int m_segmentSize;
+
+  /** Maximum number of segments */
+  private int m_maxSegments;
+
+  /** Segments in the order they were written, the last one is appended to */
+  private LinkedList<Segment> m_segments;
+
+  /** Sequence number for the next segment */
+  private long m_nextSequence;
+
+  /** Documents in the spool which are not replayed yet */
+  private int m_pending;
+
+  /** Documents written since the last sync to disk */
+  private int m_unsynced;
+
+  /** Time of the last sync to disk */
+  private long m_lastSync;
+
+  /** Lock of the directory against other spools of this process */
+  private ReentrantLock m_lock;
+
+  /** Channel of the lock file against other processes */
+  private FileChannel m_lockChannel;
+
+  /** Lock on the lock file while the directory is locked */
+  private FileLock m_fileLock;
+
+  /**
+   * Constructor to open a spool with the default segment size and count
+   * 
+   * @param directory
+   *          Spool directory, created if it does not exist
+   * @throws IOException
+   *           Spool can't be opened
+   */
+  public OnmsEventSpool (File directory) throws IOException
+  {
+    this (directory, JSendEventConstants.SPOOL_SEGMENT_SIZE,
+        JSendEventConstants.SPOOL_MAX_SEGMENTS);
+  }
+
+  /**
+   * Constructor to open a spool. Documents left in the spool directory are
+   * replayed first.
+   * 
+   * @param directory
+   *          Spool directory, created if it does not exist
+   * @param segmentSize
+   *          Size of a segment file in bytes
+   * @param maxSegments
+   *          Maximum number of segment files
+   * @throws IOException
+   *           Spool can't be opened
+   */
+  public OnmsEventSpool (File directory, int segmentSize, int maxSegments)
+      throws IOException
+  {
+    if (!directory.isDirectory () && !directory.mkdirs ())
+    {
+      throw new IOException ("Spool directory " + directory
+          + " can't be created.");
+    }
+    this.m_directory = directory;
+    this.m_segmentSize = segmentSize;
+    this.m_maxSegments = maxSegments;
+    this.m_segments = new LinkedList<Segment> ();
+    this.m_nextSequence = 1;
+    this.m_lastSync = System.currentTimeMillis ();
+
+    String path = directory.getCanonicalPath ();
+    synchronized (LOCKS)
+    {
+      this.m_lock = LOCKS.get (path);
+      if (this.m_lock == null)
+      {
+        this.m_lock = new ReentrantLock ();
+        LOCKS.put (path, this.m_lock);
+      }
+    }
+    // Kept open, closing a channel releases the locks of the whole process
+    this.m_lockChannel = new RandomAccessFile (new File (directory, LOCK_FILE),
+        "rw").getChannel ();
+    this.lock ();
+    this.unlock ();
+    if (this.m_pending > 0)
+    {
+      log.info (this.m_pending + " events left in spool " + directory);
+    }
+  }
+
+  /**
+   * Get the spool directory for one eventd
+   * 
+   * @param directory
+   *          Base spool directory
+   * @param host
+   *          Host of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   * @return Directory for the spool of the eventd
+   */
+  public static File getTargetDirectory (File directory, String host,
+      String port)
+  {
+    return new File (directory, host.replaceAll ("[^A-Za-z0-9.-]", "_") + "_"
+        + port);
+  }
+
+  /**
+   * Append a serialized document to the spool
+   * 
+   * @param document
+   *          Serialized &lt;log&gt; document
+   * @throws IOException
+   *           Spool is full or can't be written
+   */
+  public void append (byte[] document) throws IOException
+  {
+    if (document.length == 0
+        || document.length > this.m_segmentSize - HEADER_SIZE - 8)
+    {
+      throw new IOException ("Event with " + document.length
+          + " bytes does not fit into a spool segment.");
+    }
+
+    this.lock ();
+    try
+    {
+      this.appendLocked (document);
+    } finally
+    {
+      this.unlock ();
+    }
+  }
+
+  /**
+   * Append a serialized document while the directory is locked
+   * 
+   * @param document
+   *          Serialized &lt;log&gt; document
+   * @throws IOException
+   *           Spool is full or can't be written
+   */
+  private void appendLocked (byte[] document) throws IOException
+  {
+
+    Segment segment = this.m_segments.isEmpty () ? null : this.m_segments
+        .getLast ();
+    if (segment == null || !segment.fits (document.length))
+    {
+      if (this.m_segments.size () >= this.m_maxSegments)
+      {
+        throw new IOException ("Spool " + this.m_directory + " is full.");
+      }
+      if (segment != null)
+      {
+        segment.m_buffer.force ();
+      }
+      File file = new File (this.m_directory, String.format ("%020d",
+          this.m_nextSequence++)
+          + SEGMENT_SUFFIX);
+      segment = new Segment (file, this.m_segmentSize);
+      this.m_segments.add (segment);
+    }
+
+    segment.append (document);
+    this.m_pending++;
+    this.m_unsynced++;
+    this.syncIfDue ();
+  }
+
+  /**
+   * Write all spooled documents in order to the connection. Each document is
+   * removed from the spool after it is written, replay stops at the first
+   * error.
+   * 
+   * @param sender
+   *          Open connection to eventd
+   * @return Number of replayed documents
+   * @throws IOException
+   *           Error writing to the connection
+   */
+  public int replay (OnmsEventSender sender) throws IOException
+  {
+    return this.replay (sender, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Write at most the given number of spooled documents in order to the
+   * connection. Each document is removed from the spool after it is written,
+   * replay stops at the first error.
+   * 
+   * @param sender
+   *          Open connection to eventd
+   * @param max
+   *          Maximum number of documents to write
+   * @return Number of replayed documents
+   * @throws IOException
+   *           Error writing to the connection
+   */
+  public int replay (OnmsEventSender sender, int max) throws IOException
+  {
+    return this.replay (sender, max, null);
+  }
+
+  /**
+   * Write at most the given number of spooled documents in order to the
+   * connection while the bucket holds a token for every event of the next
+   * document. Each document is removed from the spool after it is written,
+   * replay stops at the first error.
+   * 
+   * @param sender
+   *          Open connection to eventd
+   * @param max
+   *          Maximum number of documents to write
+   * @param bucket
+   *          Bucket charged by the events of every document or null
+   * @return Number of replayed documents
+   * @throws IOException
+   *           Error writing to the connection
+   */
+  public int replay (OnmsEventSender sender, int max, TokenBucket bucket)
+      throws IOException
+  {
+    int replayed = 0;
+    this.lock ();
+    try
+    {
+      while (!this.m_segments.isEmpty ())
+      {
+        Segment segment = this.m_segments.getFirst ();
+        byte[] document;
+        while ((document = segment.peek ()) != null)
+        {
+          if (replayed == max)
+          {
+            break;
+          }
+          int events = 0;
+          if (bucket != null)
+          {
+            events = OnmsEventWriter.countEvents (document);
+            if (!bucket.tryTake (events))
+            {
+              break;
+            }
+          }
+          try
+          {
+            sender.write (document, events);
+          } catch (IOException e)
+          {
+            if (bucket != null)
+            {
+              bucket.giveBack (events);
+            }
+            throw e;
+          }
+          segment.remove (document.length);
+          this.m_pending--;
+          this.m_unsynced++;
+          replayed++;
+        }
+        if (document != null)
+        {
+          // Maximum or limit reached before the end of the segment
+          break;
+        }
+        // Keep the last segment to append further documents
+        if (this.m_segments.size () == 1 && !segment.isFull ())
+        {
+          break;
+        }
+        this.m_segments.removeFirst ();
+        segment.delete ();
+      }
+    } finally
+    {
+      try
+      {
+        this.syncIfDue ();
+      } finally
+      {
+        this.unlock ();
+      }
+    }
+    if (replayed > 0)
+    {
+      log.info (replayed + " spooled events replayed to "
+          + sender.getTarget ());
+    }
+    return replayed;
+  }
+
+  /**
+   * Check if the spool holds documents not replayed yet, including documents
+   * spooled by other processes
+   * 
+   * @return true if the spool is empty
+   */
+  public boolean isEmpty ()
+  {
+    return this.size () == 0;
+  }
+
+  /**
+   * Get the number of documents not replayed yet, including documents spooled
+   * by other processes
+   * 
+   * @return Number of spooled documents
+   */
+  public int size ()
+  {
+    try
+    {
+      this.lock ();
+      this.unlock ();
+    } catch (IOException e)
+    {
+      log.debug ("Spool " + this.m_directory + " not read: " + e.getMessage ());
+    }
+    return this.m_pending;
+  }
+
+  /**
+   * Write all changes to disk
+   */
+  public void sync ()
+  {
+    try
+    {
+      this.lock ();
+    } catch (IOException e)
+    {
+      // The mapped segments are still written without the lock
+      log.debug ("Spool " + this.m_directory + " not locked: "
+          + e.getMessage ());
+      this.force ();
+      return;
+    }
+    try
+    {
+      this.force ();
+    } finally
+    {
+      this.unlock ();
+    }
+  }
+
+  /**
+   * Write the mapped segments to disk
+   */
+  private void force ()
+  {
+    for (Segment segment : this.m_segments)
+    {
+      segment.m_buffer.force ();
+    }
+    this.m_unsynced = 0;
+    this.m_lastSync = System.currentTimeMillis ();
+  }
+
+  /**
+   * Lock the spool directory against other spools and processes and read the
+   * segments again. Waits until the lock is free.
+   * 
+   * @throws IOException
+   *           Lock file can't be locked or segment can't be read
+   */
+  private void lock () throws IOException
+  {
+    this.m_lock.lock ();
+    boolean locked = false;
+    try
+    {
+      this.m_fileLock = this.m_lockChannel.lock ();
+      this.refresh ();
+      locked = true;
+    } finally
+    {
+      if (!locked)
+      {
+        this.unlock ();
+      }
+    }
+  }
+
+  /**
+   * Release the lock of the spool directory
+   */
+  private void unlock ()
+  {
+    try
+    {
+      if (this.m_fileLock != null)
+      {
+        this.m_fileLock.release ();
+      }
+    } catch (IOException e)
+    {
+      log.debug ("Spool lock of " + this.m_directory + " not released: "
+          + e.getMessage ());
+    } finally
+    {
+      this.m_fileLock = null;
+      this.m_lock.unlock ();
+    }
+  }
+
+  /**
+   * Read the segments of the spool directory, documents may have been spooled
+   * or replayed by another process. Segments already mapped are read from the
+   * last known position on.
+   * 
+   * @throws IOException
+   *           Segment can't be read
+   */
+  private void refresh () throws IOException
+  {
+    File[] files = this.m_directory.listFiles (new FilenameFilter ()
+    {
+      public boolean accept (File dir, String name)
+      {
+        return name.endsWith (SEGMENT_SUFFIX);
+      }
+    });
+    if (files == null)
+    {
+      throw new IOException ("Spool directory " + this.m_directory
+          + " can't be read.");
+    }
+    Arrays.sort (files);
+    Map<String, Segment> known = new HashMap<String, Segment> ();
+    for (Segment segment : this.m_segments)
+    {
+      known.put (segment.m_file.getName (), segment);
+    }
+
+    LinkedList<Segment> segments = new LinkedList<Segment> ();
+    int pending = 0;
+    for (File file : files)
+    {
+      String name = file.getName ();
+      try
+      {
+        long sequence = Long.parseLong (name.substring (0, name.length ()
+            - SEGMENT_SUFFIX.length ()));
+        this.m_nextSequence = Math.max (this.m_nextSequence, sequence + 1);
+      } catch (NumberFormatException e)
+      {
+        // Seen on every access, only logged for debugging
+        log.debug ("Ignoring file " + file + " in spool directory.");
+        continue;
+      }
+      Segment segment = known.get (name);
+      if (segment == null)
+      {
+        segment = new Segment (file, this.m_segmentSize);
+      } else
+      {
+        segment.reload ();
+      }
+      if (segment.isConsumed ())
+      {
+        segment.delete ();
+      } else
+      {
+        segments.add (segment);
+        pending += segment.m_count;
+      }
+    }
+    this.m_segments = segments;
+    this.m_pending = pending;
+  }
+
+  /**
+   * Write the changes to disk if enough documents were written or the sync
+   * interval is over
+   */
+  private void syncIfDue ()
+  {
+    if (this.m_unsynced > 0
+        && (this.m_unsynced >= JSendEventConstants.SPOOL_SYNC_RECORDS || System
+            .currentTimeMillis ()
+            - this.m_lastSync >= JSendEventConstants.SPOOL_SYNC_INTERVAL))
+    {
+      this.force ();
+    }
+  }
+
+  /**
+   * One memory-mapped segment file
+   */
+  private static class Segment
+  {
+    /** Segment file */
+    private File m_file;
+
+    /** Mapped content of the file */
+    private MappedByteBuffer m_buffer;
+
+    /** Position of the first document not replayed */
+    private int m_readPosition;
+
+    /** Position to append the next document */
+    private int m_writePosition;
+
+    /** Documents not replayed */
+    private int m_count;
+
+    /**
+     * Open or create a segment file
+     * 
+     * @param file
+     *          Segment file
+     * @param size
+     *          Segment size for new files
+     * @throws IOException
+     *           Error mapping the file
+     */
+    Segment (File file, int size) throws IOException
+    {
+      this.m_file = file;
+      boolean created = !file.exists () || file.length () == 0;
+      RandomAccessFile raf = new RandomAccessFile (file, "rw");
+      try
+      {
+        int length = created ? size : (int) raf.length ();
+        this.m_buffer = raf.getChannel ().map (FileChannel.MapMode.READ_WRITE,
+            0, length);
+      } finally
+      {
+        // The mapping stays valid after the file is closed
+        raf.close ();
+      }
+
+      if (created)
+      {
+        this.m_buffer.putInt (0, MAGIC);
+        this.m_buffer.putInt (HEADER_READ_POSITION, HEADER_SIZE);
+      } else if (this.m_buffer.getInt (0) != MAGIC)
+      {
+        throw new IOException ("File " + file + " is not a spool segment.");
+      }
+
+      this.m_readPosition = this.m_buffer.getInt (HEADER_READ_POSITION);
+      this.m_writePosition = HEADER_SIZE;
+      this.scan ();
+    }
+
+    /**
+     * Read the header and the documents appended since the last read, the
+     * segment may have been changed by another process
+     */
+    void reload ()
+    {
+      int readPosition = this.m_buffer.getInt (HEADER_READ_POSITION);
+      if (readPosition != this.m_readPosition)
+      {
+        // Documents were replayed by another process, count the rest again
+        this.m_readPosition = readPosition;
+        this.m_writePosition = readPosition;
+        this.m_count = 0;
+      }
+      this.scan ();
+    }
+
+    /**
+     * Find the end of the documents from the write position on
+     */
+    private void scan ()
+    {
+      int length;
+      while (this.m_writePosition + 4 <= this.m_buffer.capacity ()
+          && (length = this.m_buffer.getInt (this.m_writePosition)) > 0
+          && this.m_writePosition + 4 + length <= this.m_buffer.capacity ())
+      {
+        if (this.m_writePosition >= this.m_readPosition)
+        {
+          this.m_count++;
+        }
+        this.m_writePosition += 4 + length;
+      }
+    }
+
+    /**
+     * Check if a document fits into the segment
+     * 
+     * @param length
+     *          Document length
+     * @return true if there is space for the document and the end mark
+     */
+    boolean fits (int length)
+    {
+      return this.m_writePosition + 8 + length <= this.m_buffer.capacity ();
+    }
+
+    /**
+     * Check if no further document can be appended
+     * 
+     * @return true if the segment is full
+     */
+    boolean isFull ()
+    {
+      return !this.fits (1);
+    }
+
+    /**
+     * Check if all documents of the segment are replayed
+     * 
+     * @return true if no document is left
+     */
+    boolean isConsumed ()
+    {
+      return this.m_count == 0 && this.isFull ();
+    }
+
+    /**
+     * Append a document. The data is written before the length so a
+     * document is only visible when it is complete.
+     * 
+     * @param document
+     *          Serialized document
+     */
+    void append (byte[] document)
+    {
+      this.m_buffer.position (this.m_writePosition + 4);
+      this.m_buffer.put (document);
+      this.m_buffer.putInt (this.m_writePosition, document.length);
+      this.m_writePosition += 4 + document.length;
+      this.m_count++;
+    }
+
+    /**
+     * Get the first document not replayed yet
+     * 
+     * @return Document or null if no document is left
+     */
+    byte[] peek ()
+    {
+      if (this.m_count == 0)
+      {
+        return null;
+      }
+      byte[] document = new byte[this.m_buffer.getInt (this.m_readPosition)];
+      this.m_buffer.position (this.m_readPosition + 4);
+      this.m_buffer.get (document);
+      return document;
+    }
+
+    /**
+     * Remove the first document after it is replayed
+     * 
+     * @param length
+     *          Length of the document
+     */
+    void remove (int length)
+    {
+      this.m_readPosition += 4 + length;
+      this.m_buffer.putInt (HEADER_READ_POSITION, this.m_readPosition);
+      this.m_count--;
+    }
+
+    /**
+     * Delete the segment file. Some platforms can't delete a mapped file, the
+     * file is deleted then when the spool is opened again.
+     */
+    void delete ()
+    {
+      this.m_buffer = null;
+      if (!this.m_file.delete ())
+      {
+        log.debug ("Spool segment " + this.m_file + " not deleted.");
+      }
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Suppression of repeated events. Events are the same if UEI, node id,
+ * interface and the values of the configured parameters are equal. The first
+ * event opens a window and is sent, repeats within the window are suppressed.
+ * When the window ends the last repeat is sent as summary with the number of
+ * events in the window and the time of the first and the last one as
+ * parameters. The number of open windows is bounded, if it is reached the
+ * oldest window is closed early.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventSuppressor
+{
+  /** Length of the window in milliseconds */
+  private long m_window;
+
+  /** Maximum number of open windows */
+  private int m_maxEntries;
+
+  /** Parameters which are part of the key */
+  private String[] m_keyParms;
+
+  /** Open windows by key, oldest first */
+  private LinkedHashMap<String, Window> m_windows;
+
+  /** Summaries of windows closed early */
+  private List<Summary> m_evicted;
+
+  /** Events suppressed since start */
+  private long m_suppressed;
+
+  /**
+   * Constructor for a suppressor
+   * 
+   * @param window
+   *          Length of the window in milliseconds
+   * @param maxEntries
+   *          Maximum number of open windows
+   * @param keyParms
+   *          Names of the parameters which are part of the key
+   */
+  public OnmsEventSuppressor (long window, int maxEntries, String[] keyParms)
+  {
+    this.m_window = window;
+    this.m_maxEntries = maxEntries;
+    this.m_keyParms = keyParms;
+    this.m_evicted = new ArrayList<Summary> ();
+    this.m_windows = new LinkedHashMap<String, Window> ()
+    {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry (Map.Entry<String, Window> eldest)
+      {
+        if (this.size () <= OnmsEventSuppressor.this.m_maxEntries)
+        {
+          return false;
+        }
+        Summary summary = eldest.getValue ().summarize ();
+        if (summary != null)
+        {
+          OnmsEventSuppressor.this.m_evicted.add (summary);
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Check if an event is sent or suppressed as repeat
+   * 
+   * @param target
+   *          Eventd the event is sent to, only events to the same eventd are
+   *          repeats
+   * @param event
+   *          Event to check
+   * @return true if the event has to be sent, false if it is suppressed
+   */
+  public synchronized boolean offer (String target, OnmsEventXml event)
+  {
+    long now = System.currentTimeMillis ();
+    String key = this.getKey (target, event);
+    Window window = this.m_windows.get (key);
+    if (window != null && now < window.m_end)
+    {
+      window.m_count++;
+      window.m_last = event;
+      this.m_suppressed++;
+      return false;
+    }
+    if (window != null)
+    {
+      // The window is over, but not yet expired
+      this.m_windows.remove (key);
+      Summary summary = window.summarize ();
+      if (summary != null)
+      {
+        this.m_evicted.add (summary);
+      }
+    }
+    this.m_windows.put (key, new Window (target, event, now + this.m_window));
+    return true;
+  }
+
+  /**
+   * Close the windows which are over
+   * 
+   * @return Summaries to send for the closed windows with repeats
+   */
+  public synchronized List<Summary> expire ()
+  {
+    long now = System.currentTimeMillis ();
+    List<Summary> summaries = this.takeEvicted ();
+    Iterator<Window> windows = this.m_windows.values ().iterator ();
+    while (windows.hasNext ())
+    {
+      Window window = windows.next ();
+      // All windows have the same length, so they end in insertion order
+      if (window.m_end > now)
+      {
+        break;
+      }
+      windows.remove ();
+      Summary summary = window.summarize ();
+      if (summary != null)
+      {
+        summaries.add (summary);
+      }
+    }
+    return summaries;
+  }
+
+  /**
+   * Close all windows, for example before the process exits
+   * 
+   * @return Summaries to send for the windows with repeats
+   */
+  public synchronized List<Summary> flush ()
+  {
+    List<Summary> summaries = this.takeEvicted ();
+    for (Window window : this.m_windows.values ())
+    {
+      Summary summary = window.summarize ();
+      if (summary != null)
+      {
+        summaries.add (summary);
+      }
+    }
+    this.m_windows.clear ();
+    return summaries;
+  }
+
+  /**
+   * Get the number of suppressed events
+   * 
+   * @return Events suppressed since start
+   */
+  public synchronized long getSuppressed ()
+  {
+    return this.m_suppressed;
+  }
+
+  /**
+   * Get the number of open windows
+   * 
+   * @return Open windows
+   */
+  public synchronized int size ()
+  {
+    return this.m_windows.size ();
+  }
+
+  /**
+   * Take the summaries of windows closed early
+   * 
+   * @return Summaries, the list is owned by the caller
+   */
+  private List<Summary> takeEvicted ()
+  {
+    List<Summary> evicted = this.m_evicted;
+    this.m_evicted = new ArrayList<Summary> ();
+    return evicted;
+  }
+
+  /**
+   * Build the key of an event
+   * 
+   * @param target
+   *          Eventd the event is sent to
+   * @param event
+   *          Event
+   * @return Key of target, UEI, node id, interface and key parameters
+   */
+  private String getKey (String target, OnmsEventXml event)
+  {
+    StringBuilder key = new StringBuilder (128);
+    key.append (target).append ('\0').append (event.getUei ()).append ('\0')
+        .append (event.getNodeId ()).append ('\0').append (
+            event.getInterface ());
+    for (String name : this.m_keyParms)
+    {
+      key.append ('\0');
+      for (String[] parm : event.getParms ())
+      {
+        if (parm[0].equals (name))
+        {
+          key.append (parm[1]);
+          break;
+        }
+      }
+    }
+    return key.toString ();
+  }
+
+  /**
+   * Window of one event
+   */
+  private static class Window
+  {
+    /** Eventd the events are sent to */
+    private String m_target;
+
+    /** First event of the window */
+    private OnmsEventXml m_first;
+
+    /** Last event of the window */
+    private OnmsEventXml m_last;
+
+    /** Events in the window */
+    private int m_count;
+
+    /** End of the window in milliseconds */
+    private long m_end;
+
+    /**
+     * Constructor for a window opened by an event
+     * 
+     * @param target
+     *          Eventd the events are sent to
+     * @param first
+     *          First event of the window
+     * @param end
+     *          End of the window in milliseconds
+     */
+    Window (String target, OnmsEventXml first, long end)
+    {
+      this.m_target = target;
+      this.m_first = first;
+      this.m_last = first;
+      this.m_count = 1;
+      this.m_end = end;
+    }
+
+    /**
+     * Build the summary of the window
+     * 
+     * @return Summary or null if the window has no repeats
+     */
+    Summary summarize ()
+    {
+      if (this.m_count < 2)
+      {
+        return null;
+      }
+      OnmsEventXml summary = this.m_last;
+      summary.addParm (JSendEventConstants.SUPPRESS_PARM_COUNT, String
+          .valueOf (this.m_count));
+      summary.addParm (JSendEventConstants.SUPPRESS_PARM_FIRST_SEEN,
+          this.m_first.getTime ());
+      summary.addParm (JSendEventConstants.SUPPRESS_PARM_LAST_SEEN,
+          this.m_last.getTime ());
+      return new Summary (this.m_target, summary);
+    }
+  }
+
+  /**
+   * Summary event of a window with repeats
+   */
+  public static class Summary
+  {
+    /** Eventd the summary is sent to */
+    private String m_target;
+
+    /** Summary event */
+    private OnmsEventXml m_event;
+
+    /**
+     * Constructor for a summary
+     * 
+     * @param target
+     *          Eventd the summary is sent to
+     * @param event
+     *          Summary event
+     */
+    Summary (String target, OnmsEventXml event)
+    {
+      this.m_target = target;
+      this.m_event = event;
+    }
+
+    /**
+     * Get the eventd the summary is sent to
+     * 
+     * @return Target as given to {@link OnmsEventSuppressor#offer}
+     */
+    public String getTarget ()
+    {
+      return this.m_target;
+    }
+
+    /**
+     * Get the summary event
+     * 
+     * @return Last event of the window with count, first and last seen
+     */
+    public OnmsEventXml getEvent ()
+    {
+      return this.m_event;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * One OpenNMS eventd of a target list with its health. A failed eventd is
+ * ejected for {@link JSendEventConstants#TARGET_EJECT_TIME} milliseconds,
+ * doubled on every further failure up to
+ * {@link JSendEventConstants#TARGET_EJECT_MAX}. A slow eventd is ejected for
+ * the base time.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventTarget
+{
+  /** Host of OpenNMS eventd */
+  private String m_host;
+
+  /** TCP port of OpenNMS eventd */
+  private String m_port;
+
+  /** Events in progress */
+  private AtomicInteger m_outstanding;
+
+  /** Failures since the last success */
+  private volatile int m_failures;
+
+  /** Time until the eventd is skipped */
+  private volatile long m_ejectedUntil;
+
+  /** Average milliseconds to send an event */
+  private volatile double m_averageSendTime;
+
+  /**
+   * Constructor
+   * 
+   * @param host
+   *          Host of OpenNMS eventd
+   * @param port
+   *          TCP port of OpenNMS eventd
+   */
+  public OnmsEventTarget (String host, String port)
+  {
+    this.m_host = host;
+    this.m_port = port;
+    this.m_outstanding = new AtomicInteger ();
+  }
+
+  /**
+   * Get the host
+   * 
+   * @return Host of OpenNMS eventd
+   */
+  public String getHost ()
+  {
+    return this.m_host;
+  }
+
+  /**
+   * Get the port
+   * 
+   * @return TCP port of OpenNMS eventd
+   */
+  public String getPort ()
+  {
+    return this.m_port;
+  }
+
+  /**
+   * Get the events in progress
+   * 
+   * @return Number of events in progress
+   */
+  public int getOutstanding ()
+  {
+    return this.m_outstanding.get ();
+  }
+
+  /**
+   * Get the time until the eventd is skipped
+   * 
+   * @return Time in milliseconds, 0 if the eventd is healthy
+   */
+  public long getEjectedUntil ()
+  {
+    return this.m_ejectedUntil;
+  }
+
+  /**
+   * Get the average time to send an event
+   * 
+   * @return Average milliseconds
+   */
+  public double getAverageSendTime ()
+  {
+    return this.m_averageSendTime;
+  }
+
+  /**
+   * Check if the eventd is ejected
+   * 
+   * @param now
+   *          Current time in milliseconds
+   * @return true if the eventd should be skipped
+   */
+  public boolean isEjected (long now)
+  {
+    return now < this.m_ejectedUntil;
+  }
+
+  /**
+   * Mark the start of sending an event
+   */
+  public void begin ()
+  {
+    this.m_outstanding.incrementAndGet ();
+  }
+
+  /**
+   * Mark the start of sending an event undone, the event was not sent
+   */
+  public void cancel ()
+  {
+    this.m_outstanding.decrementAndGet ();
+  }
+
+  /**
+   * Mark an event sent successfully
+   * 
+   * @param sendTime
+   *          Milliseconds to send the event
+   */
+  public void success (long sendTime)
+  {
+    this.m_outstanding.decrementAndGet ();
+    this.m_averageSendTime = this.m_averageSendTime * 0.8 + sendTime * 0.2;
+    this.m_failures = 0;
+    if (sendTime > JSendEventConstants.TARGET_SLOW_SEND)
+    {
+      this.m_ejectedUntil = System.currentTimeMillis ()
+          + JSendEventConstants.TARGET_EJECT_TIME;
+    } else
+    {
+      this.m_ejectedUntil = 0;
+    }
+  }
+
+  /**
+   * Mark an event failed, the eventd is ejected
+   */
+  public void failure ()
+  {
+    this.m_outstanding.decrementAndGet ();
+    int failures = ++this.m_failures;
+    long ejectTime = JSendEventConstants.TARGET_EJECT_TIME << Math.min (
+        failures - 1, 16);
+    this.m_ejectedUntil = System.currentTimeMillis ()
+        + Math.min (ejectTime, JSendEventConstants.TARGET_EJECT_MAX);
+  }
+
+  /**
+   * Target as host:port
+   * 
+   * @return Target as text
+   */
+  @Override
+  public String toString ()
+  {
+    return this.m_host + ":" + this.m_port;
+  }
+}
@@ -0,0 +1,806 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Precompiled OpenNMS event. A template is defined once with the switches of
+ * the command line, values may contain variables written as ${name}:
+ * 
+ * <pre>
+ * -u uei.opennms.org/nodes/nodeLostService -n ${nodeid} -i ${interface}
+ *     -s ICMP -d &quot;Service lost on ${interface}&quot; -p reason ${reason}
+ * </pre>
+ * 
+ * The template is validated when it is compiled and its static XML is encoded
+ * to UTF-8 bytes once. Each event from the template only escapes and encodes
+ * the variables and joins them with the static bytes. The time is set to the
+ * current time unless the template or the variable "time" sets it, either as
+ * milliseconds since the epoch or as event time, and is reformatted as eventd
+ * expects it. The output is the same XML as written by {@link OnmsEventWriter}.
+ * Templates are immutable and may be used by several threads.
+ * <p>
+ * A template file holds one named template per line, the name followed by
+ * the switches. The bulk import selects a template by its name and fills the
+ * variables from the columns or keys of each line.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventTemplate
+{
+  /** Event tags in the order written by OnmsEventWriter */
+  private static final String[] FIELDS = {
+      JSendEventConstants.EVENT_XMLTAG_UEI,
+      JSendEventConstants.EVENT_XMLTAG_SOURCE,
+      JSendEventConstants.EVENT_XMLTAG_NODEID,
+      JSendEventConstants.EVENT_XMLTAG_TIME,
+      JSendEventConstants.EVENT_XMLTAG_HOST,
+      JSendEventConstants.EVENT_XMLTAG_INTERFACE,
+      JSendEventConstants.EVENT_XMLTAG_SERVICE,
+      JSendEventConstants.EVENT_XMLTAG_DESCRIPTION,
+      JSendEventConstants.EVENT_XMLTAG_SEVERITY,
+      JSendEventConstants.EVENT_XMLTAG_OPERINSTRUCT };
+
+  /** Tags written as empty element if not set */
+  private static final boolean[] REQUIRED = { true, true, true, true, true,
+      true, false, false, false, false };
+
+  /** Command line switches of the fields */
+  private static final String[][] SWITCHES = {
+      { JSendEventConstants.PARM_UEI, JSendEventConstants.EVENT_XMLTAG_UEI },
+      { JSendEventConstants.PARM_NODEID,
+          JSendEventConstants.EVENT_XMLTAG_NODEID },
+      { JSendEventConstants.PARM_INTERFACE,
+          JSendEventConstants.EVENT_XMLTAG_INTERFACE },
+      { JSendEventConstants.PARM_SERVICE,
+          JSendEventConstants.EVENT_XMLTAG_SERVICE },
+      { JSendEventConstants.PARM_DESCRIPTION,
+          JSendEventConstants.EVENT_XMLTAG_DESCRIPTION },
+      { JSendEventConstants.PARM_SEVERITY,
+          JSendEventConstants.EVENT_XMLTAG_SEVERITY },
+      { JSendEventConstants.PARM_OPERINSTRUCT,
+          JSendEventConstants.EVENT_XMLTAG_OPERINSTRUCT } };
+
+  /** Severities by number */
+  private static final OnmsSeverity SEVERITY = new OnmsSeverity ();
+
+  /** Variable as escaped text */
+  private static final int KIND_TEXT = 0;
+
+  /** Variable as CDATA section */
+  private static final int KIND_CDATA = 1;
+
+  /** Variable as numeric node id */
+  private static final int KIND_NODEID = 2;
+
+  /** Variable as severity number, written as name */
+  private static final int KIND_SEVERITY = 3;
+
+  /** Variable as time, the current time if not set */
+  private static final int KIND_TIME = 4;
+
+  /** Start of the document */
+  private static final byte[] DOCUMENT_START;
+
+  /** End of the document */
+  private static final byte[] DOCUMENT_END;
+
+  static
+  {
+    OnmsXmlEncoder output = new OnmsXmlEncoder (128);
+    output.writeAscii (OnmsEventWriter.XML_DECLARATION + "<"
+        + JSendEventConstants.EVENT_XMLTAG_LOG + "><"
+        + JSendEventConstants.EVENT_XMLTAG_EVENTS + ">");
+    DOCUMENT_START = output.toByteArray ();
+    output.reset ();
+    output.writeAscii ("</" + JSendEventConstants.EVENT_XMLTAG_EVENTS + "></"
+        + JSendEventConstants.EVENT_XMLTAG_LOG + ">");
+    DOCUMENT_END = output.toByteArray ();
+  }
+
+  /** Name of the template */
+  private String m_name;
+
+  /** Static bytes before, between and after the variables */
+  private byte[][] m_fragments;
+
+  /** Variable names in the order they are written */
+  private String[] m_variables;
+
+  /** Kind of each variable */
+  private int[] m_kinds;
+
+  /** Bytes of the static fragments */
+  private int m_staticLength;
+
+  /**
+   * Compile a template from the switches of the command line
+   * 
+   * @param name
+   *          Name of the template
+   * @param definition
+   *          Switches -u, -n, -i, -s, -d, -x, -o and -p as on the command line
+   * @return Template
+   * @throws ParameterException
+   *           Definition not correct
+   */
+  public static OnmsEventTemplate parse (String name, String definition)
+      throws ParameterException
+  {
+    return compile (name, BatchEventReader.splitLine (definition), 0);
+  }
+
+  /**
+   * Compile the templates of a file. Every line holds the name of a template
+   * followed by its switches, empty lines and lines starting with # are
+   * skipped like in a batch file.
+   * 
+   * @param file
+   *          Template file
+   * @return Templates by name in the order of the file
+   * @throws IOException
+   *           File could not be read
+   * @throws ParameterException
+   *           Template not correct or name used twice
+   */
+  public static Map<String, OnmsEventTemplate> load (File file)
+      throws IOException, ParameterException
+  {
+    Map<String, OnmsEventTemplate> templates;
+    templates = new LinkedHashMap<String, OnmsEventTemplate> ();
+    BatchEventReader reader = new BatchEventReader (new InputStreamReader (
+        new FileInputStream (file)));
+    try
+    {
+      String[] arguments;
+      while ((arguments = reader.nextArguments ()) != null)
+      {
+        OnmsEventTemplate template;
+        try
+        {
+          template = compile (arguments[0], arguments, 1);
+        } catch (ParameterException e)
+        {
+          throw new ParameterException ("Line " + reader.getLineNumber ()
+              + " of " + file + ": " + e.getMessage ());
+        }
+        if (templates.put (template.getName (), template) != null)
+        {
+          throw new ParameterException ("Line " + reader.getLineNumber ()
+              + " of " + file + ": template " + template.getName ()
+              + " is defined twice.");
+        }
+      }
+    } finally
+    {
+      reader.close ();
+    }
+    return templates;
+  }
+
+  /**
+   * Write the start of a &lt;log&gt; document, the events follow with
+   * {@link #writeEvent(OutputStream, Map)}
+   * 
+   * @param out
+   *          Stream to write to
+   * @throws IOException
+   *           Error writing to the stream
+   */
+  public static void writeDocumentStart (OutputStream out) throws IOException
+  {
+    out.write (DOCUMENT_START);
+  }
+
+  /**
+   * Write the end of a &lt;log&gt; document
+   * 
+   * @param out
+   *          Stream to write to
+   * @throws IOException
+   *           Error writing to the stream
+   */
+  public static void writeDocumentEnd (OutputStream out) throws IOException
+  {
+    out.write (DOCUMENT_END);
+  }
+
+  /**
+   * Compile a template from switches
+   * 
+   * @param name
+   *          Name of the template
+   * @param arguments
+   *          Switches -u, -n, -i, -s, -d, -x, -o and -p with their values
+   * @param start
+   *          Index of the first switch
+   * @return Template
+   * @throws ParameterException
+   *           Switches not correct
+   */
+  private static OnmsEventTemplate compile (String name, String[] arguments,
+      int start) throws ParameterException
+  {
+    Map<String, String> fields = new LinkedHashMap<String, String> ();
+    List<String[]> parms = new ArrayList<String[]> ();
+    for (int i = start; i < arguments.length; i++)
+    {
+      String option = arguments[i];
+      String field = null;
+      for (String[] known : SWITCHES)
+      {
+        if (known[0].equals (option))
+        {
+          field = known[1];
+        }
+      }
+      try
+      {
+        if (JSendEventConstants.PARM_ARG.equals (option))
+        {
+          parms.add (new String[] { arguments[i + 1], arguments[i + 2] });
+          i += 2;
+        } else if (field != null)
+        {
+          fields.put (field, arguments[++i]);
+        } else
+        {
+          throw new ParameterException ("Template " + name
+              + ": switch " + option + " is not supported.");
+        }
+      } catch (ArrayIndexOutOfBoundsException e)
+      {
+        throw new ParameterException ("Template " + name
+            + ": missing value for " + option + ".");
+      }
+    }
+    return new OnmsEventTemplate (name, fields, parms);
+  }
+
+  /**
+   * Compile a template
+   * 
+   * @param name
+   *          Name of the template
+   * @param fields
+   *          Values by event tag (uei, nodeid, interface, ...)
+   * @param parms
+   *          Parameters as name and value pairs, only the values may contain
+   *          variables
+   * @throws ParameterException
+   *           Unknown tag, no UEI, node id or severity not correct or variable
+   *           not closed
+   */
+  public OnmsEventTemplate (String name, Map<String, String> fields,
+      List<String[]> parms) throws ParameterException
+  {
+    this.m_name = name;
+    for (String field : fields.keySet ())
+    {
+      if (indexOf (field) < 0)
+      {
+        throw new ParameterException ("Template " + name + ": event tag "
+            + field + " is not supported.");
+      }
+    }
+    String uei = fields.get (JSendEventConstants.EVENT_XMLTAG_UEI);
+    if (uei == null || uei.length () == 0)
+    {
+      throw new ParameterException ("Template " + name + " has no UEI.");
+    }
+
+    Compiler compiler = new Compiler ();
+    compiler.m_output.writeAscii ("<" + JSendEventConstants.EVENT_XMLTAG_EVENT
+        + ">");
+    for (int i = 0; i < FIELDS.length; i++)
+    {
+      String value = fields.get (FIELDS[i]);
+      if (FIELDS[i].equals (JSendEventConstants.EVENT_XMLTAG_SOURCE)
+          && value == null)
+      {
+        value = JSendEventConstants.SOURCE_NAME;
+      }
+      if (FIELDS[i].equals (JSendEventConstants.EVENT_XMLTAG_TIME)
+          && value == null)
+      {
+        // Time of the event, the variable may be given to set it
+        value = "${" + JSendEventConstants.EVENT_XMLTAG_TIME + "}";
+      }
+      compiler.element (FIELDS[i], value, REQUIRED[i]);
+    }
+
+    if (!parms.isEmpty ())
+    {
+      compiler.m_output.writeAscii ("<" + JSendEventConstants.EVENT_XMLTAG_PARMS
+          + ">");
+      for (String[] parm : parms)
+      {
+        compiler.m_output.writeAscii ("<"
+            + JSendEventConstants.EVENT_XMLTAG_PARM + "><"
+            + JSendEventConstants.EVENT_XMLTAG_PARMNAME + ">");
+        compiler.m_output.writeCData (parm[0]);
+        compiler.m_output.writeAscii ("</"
+            + JSendEventConstants.EVENT_XMLTAG_PARMNAME + "><"
+            + JSendEventConstants.EVENT_XMLTAG_VALUE
+            + " encoding=\"text\" type=\"string\">");
+        compiler.value (parm[1], KIND_CDATA);
+        compiler.m_output.writeAscii ("</"
+            + JSendEventConstants.EVENT_XMLTAG_VALUE + "></"
+            + JSendEventConstants.EVENT_XMLTAG_PARM + ">");
+      }
+      compiler.m_output.writeAscii ("</"
+          + JSendEventConstants.EVENT_XMLTAG_PARMS + ">");
+    }
+    compiler.m_output.writeAscii ("</" + JSendEventConstants.EVENT_XMLTAG_EVENT
+        + ">");
+    compiler.finish ();
+  }
+
+  /**
+   * Get the name of the template
+   * 
+   * @return Name
+   */
+  public String getName ()
+  {
+    return this.m_name;
+  }
+
+  /**
+   * Get the variables of the template
+   * 
+   * @return Sorted variable names
+   */
+  public List<String> getVariables ()
+  {
+    List<String> variables = new ArrayList<String> (new TreeSet<String> (
+        Arrays.asList (this.m_variables)));
+    return Collections.unmodifiableList (variables);
+  }
+
+  /**
+   * Build a &lt;log&gt; document with one event
+   * 
+   * @param values
+   *          Values of the variables
+   * @return UTF-8 encoded document
+   * @throws ParameterException
+   *           Variable not set or not correct
+   */
+  public byte[] toByteArray (Map<String, String> values)
+      throws ParameterException
+  {
+    return this.toByteArray (Collections.singletonList (values));
+  }
+
+  /**
+   * Build a &lt;log&gt; document with one event per value map
+   * 
+   * @param events
+   *          Values of the variables of each event
+   * @return UTF-8 encoded document
+   * @throws ParameterException
+   *           Variable not set or not correct
+   */
+  public byte[] toByteArray (List<Map<String, String>> events)
+      throws ParameterException
+  {
+    int size = DOCUMENT_START.length + DOCUMENT_END.length;
+    for (Map<String, String> values : events)
+    {
+      size += this.estimate (values);
+    }
+    OnmsXmlEncoder output = new OnmsXmlEncoder (size);
+    output.write (DOCUMENT_START);
+    for (Map<String, String> values : events)
+    {
+      this.render (output, values);
+    }
+    output.write (DOCUMENT_END);
+    return output.toByteArray ();
+  }
+
+  /**
+   * Write the &lt;event&gt; element of one event. Nothing is written if a
+   * variable is not correct.
+   * 
+   * @param out
+   *          Stream to write to
+   * @param values
+   *          Values of the variables
+   * @throws IOException
+   *           Error writing to the stream
+   * @throws ParameterException
+   *           Variable not set or not correct
+   */
+  public void writeEvent (OutputStream out, Map<String, String> values)
+      throws IOException, ParameterException
+  {
+    OnmsXmlEncoder output = new OnmsXmlEncoder (this.estimate (values));
+    this.render (output, values);
+    output.writeTo (out);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "OnmsEventTemplate[" + this.m_name + ", variables="
+        + this.getVariables () + "]";
+  }
+
+  /**
+   * Write the event with the given values
+   * 
+   * @param output
+   *          Encoder to write to
+   * @param values
+   *          Values of the variables
+   * @throws ParameterException
+   *           Variable not set or not correct
+   */
+  private void render (OnmsXmlEncoder output, Map<String, String> values)
+      throws ParameterException
+  {
+    output.write (this.m_fragments[0]);
+    for (int i = 0; i < this.m_kinds.length; i++)
+    {
+      String value = values.get (this.m_variables[i]);
+      switch (this.m_kinds[i])
+      {
+        case KIND_TIME:
+          // Current second is cached already encoded
+          output.write (OnmsTimestampEncoder.getInstance ().encode (
+              value == null ? System.currentTimeMillis () : this
+                  .parseTime (value)));
+          break;
+        case KIND_CDATA:
+          output.writeCData (this.require (value, i));
+          break;
+        case KIND_NODEID:
+          try
+          {
+            output.writeAscii (String.valueOf (Integer.parseInt (this.require (
+                value, i).trim ())));
+          } catch (NumberFormatException e)
+          {
+            throw new ParameterException ("Template " + this.m_name
+                + ": node id " + value + " is not numeric.");
+          }
+          break;
+        case KIND_SEVERITY:
+          output.writeText (SEVERITY.resolvSeverity (this.require (value, i)
+              .trim ()), false);
+          break;
+        default:
+          output.writeText (this.require (value, i), false);
+      }
+      output.write (this.m_fragments[i + 1]);
+    }
+  }
+
+  /**
+   * Estimate the bytes of an event, exact for ASCII values without escapes
+   * 
+   * @param values
+   *          Values of the variables
+   * @return Bytes
+   */
+  private int estimate (Map<String, String> values)
+  {
+    int size = this.m_staticLength;
+    for (String variable : this.m_variables)
+    {
+      String value = values.get (variable);
+      size += value == null ? 64 : value.length ();
+    }
+    return size;
+  }
+
+  /**
+   * Check that a variable is set
+   * 
+   * @param value
+   *          Value of the variable
+   * @param i
+   *          Index of the variable
+   * @return Value
+   * @throws ParameterException
+   *           Variable not set
+   */
+  private String require (String value, int i) throws ParameterException
+  {
+    if (value == null)
+    {
+      throw new ParameterException ("Template " + this.m_name + ": variable "
+          + this.m_variables[i] + " is not set.");
+    }
+    return value;
+  }
+
+  /**
+   * Parse a time given as milliseconds since the epoch or as event time
+   * 
+   * @param value
+   *          Time
+   * @return Milliseconds since the epoch
+   * @throws ParameterException
+   *           Not a time
+   */
+  private long parseTime (String value) throws ParameterException
+  {
+    try
+    {
+      return OnmsTimestampEncoder.parse (value.trim ());
+    } catch (ParseException e)
+    {
+      throw new ParameterException ("Template " + this.m_name + ": time "
+          + value + " is neither milliseconds nor an event time.");
+    }
+  }
+
+  /**
+   * Get the index of an event tag
+   * 
+   * @param field
+   *          Event tag
+   * @return Index in FIELDS or -1
+   */
+  private static int indexOf (String field)
+  {
+    for (int i = 0; i < FIELDS.length; i++)
+    {
+      if (FIELDS[i].equals (field))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Splits the template into static fragments and variables
+   */
+  private class Compiler
+  {
+    /** Static bytes since the last variable */
+    private OnmsXmlEncoder m_output = new OnmsXmlEncoder (256);
+
+    /** Static fragments */
+    private List<byte[]> m_fragments = new ArrayList<byte[]> ();
+
+    /** Variable names */
+    private List<String> m_variables = new ArrayList<String> ();
+
+    /** Variable kinds */
+    private List<Integer> m_kinds = new ArrayList<Integer> ();
+
+    /**
+     * Add a text element
+     * 
+     * @param tag
+     *          Tag name
+     * @param value
+     *          Value with variables or null
+     * @param required
+     *          Write an empty element if the value is not set
+     * @throws ParameterException
+     *           Value not correct
+     */
+    void element (String tag, String value, boolean required)
+        throws ParameterException
+    {
+      if (value == null || value.length () == 0)
+      {
+        if (required || value != null)
+        {
+          this.m_output.writeAscii ("<" + tag + "/>");
+        }
+        return;
+      }
+
+      int kind = KIND_TEXT;
+      if (tag.equals (JSendEventConstants.EVENT_XMLTAG_NODEID))
+      {
+        kind = KIND_NODEID;
+      } else if (tag.equals (JSendEventConstants.EVENT_XMLTAG_SEVERITY))
+      {
+        kind = KIND_SEVERITY;
+      } else if (tag.equals (JSendEventConstants.EVENT_XMLTAG_TIME))
+      {
+        kind = KIND_TIME;
+      }
+      if (kind == KIND_TIME && variable (value, 0) == null)
+      {
+        // Static time is checked and formatted once
+        value = OnmsTimestampEncoder.getInstance ().format (
+            OnmsEventTemplate.this.parseTime (value));
+      } else if (kind != KIND_TEXT && variable (value, 0) == null)
+      {
+        // Static node id and severity are checked once
+        value = kind == KIND_NODEID ? checkNodeId (value) : SEVERITY
+            .resolvSeverity (value.trim ());
+      } else if (kind != KIND_TEXT
+          && !value.matches ("\\$\\{[^}]*\\}"))
+      {
+        throw new ParameterException ("Template "
+            + OnmsEventTemplate.this.m_name + ": " + tag
+            + " must be a single variable.");
+      }
+
+      this.m_output.writeAscii ("<" + tag + ">");
+      this.value (value, kind);
+      this.m_output.writeAscii ("</" + tag + ">");
+    }
+
+    /**
+     * Add a value with variables
+     * 
+     * @param value
+     *          Value
+     * @param kind
+     *          Kind of the variables
+     * @throws ParameterException
+     *           Variable not closed
+     */
+    void value (String value, int kind) throws ParameterException
+    {
+      int start = 0;
+      int[] found;
+      while ((found = variable (value, start)) != null)
+      {
+        this.text (value.substring (start, found[0]), kind);
+        this.m_fragments.add (this.m_output.toByteArray ());
+        this.m_output.reset ();
+        this.m_variables.add (value.substring (found[0] + 2, found[1]));
+        this.m_kinds.add (kind);
+        start = found[1] + 1;
+      }
+      this.text (value.substring (start), kind);
+    }
+
+    /**
+     * Add static text of a value
+     * 
+     * @param text
+     *          Text
+     * @param kind
+     *          Kind of the value
+     */
+    private void text (String text, int kind)
+    {
+      if (text.length () == 0)
+      {
+        return;
+      }
+      if (kind == KIND_CDATA)
+      {
+        // Separate sections, so a variable never completes a "]]>"
+        this.m_output.writeCData (text);
+      } else
+      {
+        this.m_output.writeText (text, false);
+      }
+    }
+
+    /**
+     * Store the fragments and variables in the template
+     */
+    void finish ()
+    {
+      this.m_fragments.add (this.m_output.toByteArray ());
+      OnmsEventTemplate template = OnmsEventTemplate.this;
+      template.m_fragments = this.m_fragments
+          .toArray (new byte[this.m_fragments.size ()][]);
+      template.m_variables = this.m_variables
+          .toArray (new String[this.m_variables.size ()]);
+      template.m_kinds = new int[this.m_kinds.size ()];
+      for (int i = 0; i < template.m_kinds.length; i++)
+      {
+        template.m_kinds[i] = this.m_kinds.get (i);
+      }
+      for (byte[] fragment : template.m_fragments)
+      {
+        template.m_staticLength += fragment.length;
+      }
+    }
+
+    /**
+     * Check a static node id
+     * 
+     * @param value
+     *          Node id
+     * @return Node id
+     * @throws ParameterException
+     *           Not numeric
+     */
+    private String checkNodeId (String value) throws ParameterException
+    {
+      try
+      {
+        return String.valueOf (Integer.parseInt (value.trim ()));
+      } catch (NumberFormatException e)
+      {
+        throw new ParameterException ("Template "
+            + OnmsEventTemplate.this.m_name + ": node id " + value
+            + " is not numeric.");
+      }
+    }
+
+    /**
+     * Find the next variable
+     * 
+     * @param value
+     *          Value
+     * @param start
+     *          Position to search from
+     * @return Position of "${" and of "}" or null if there is no variable
+     * @throws ParameterException
+     *           Variable not closed or without name
+     */
+    private int[] variable (String value, int start) throws ParameterException
+    {
+      int begin = value.indexOf ("${", start);
+      if (begin < 0)
+      {
+        return null;
+      }
+      int end = value.indexOf ('}', begin);
+      if (end < 0 || end == begin + 2)
+      {
+        throw new ParameterException ("Template "
+            + OnmsEventTemplate.this.m_name + ": variable in " + value
+            + " is not correct.");
+      }
+      return new int[] { begin, end };
+    }
+  }
+}
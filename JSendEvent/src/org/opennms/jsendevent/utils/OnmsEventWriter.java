@@ -0,0 +1,429 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Streaming writer for OpenNMS events. The event is written as eventd
+ * compatible XML directly to an output stream, text content is escaped and
+ * parameters are written as CDATA sections while writing. No XML document is
+ * built for the event. The {@link OnmsXmlEncoder} escapes and encodes the
+ * text to UTF-8 in one pass into a buffer which is reused for all events.
+ * <p>
+ * The bytes are the same as the LSSerializer wrote for the DOM of the event,
+ * down to empty parameters, control characters and characters beyond the
+ * BMP. Only an unpaired surrogate is written as ? where the LSSerializer
+ * fails. The bench class WriterCheck compares both.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsEventWriter
+{
+  /** XML declaration written in front of every document */
+  static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+  /** Start of a document up to the first event as UTF-8 */
+  static final byte[] DOCUMENT_START;
+
+  /** End of a document after the last event as UTF-8 */
+  static final byte[] DOCUMENT_END;
+
+  static
+  {
+    try
+    {
+      DOCUMENT_START = (XML_DECLARATION + "<"
+          + JSendEventConstants.EVENT_XMLTAG_LOG + "><"
+          + JSendEventConstants.EVENT_XMLTAG_EVENTS + ">").getBytes ("UTF-8");
+      DOCUMENT_END = ("</" + JSendEventConstants.EVENT_XMLTAG_EVENTS + "></"
+          + JSendEventConstants.EVENT_XMLTAG_LOG + ">").getBytes ("UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      // UTF-8 is supported by every Java runtime
+      throw new IllegalStateException (e);
+    }
+  }
+
+  /** Start of a CDATA section */
+  private static final byte[] CDATA_START = { '<', '!', '[', 'C', 'D', 'A',
+      'T', 'A', '[' };
+
+  /** End of a CDATA section */
+  private static final byte[] CDATA_END = { ']', ']', '>' };
+
+  /** Name of the event tag */
+  private static final byte[] EVENT_TAG = { 'e', 'v', 'e', 'n', 't' };
+
+  /** Start tag of a parameter value */
+  private static final String VALUE_START_TAG = "<"
+      + JSendEventConstants.EVENT_XMLTAG_VALUE
+      + " encoding=\"text\" type=\"string\">";
+
+  /** Element of an empty parameter value */
+  private static final String EMPTY_VALUE_TAG = "<"
+      + JSendEventConstants.EVENT_XMLTAG_VALUE
+      + " encoding=\"text\" type=\"string\"/>";
+
+  /** Element of an empty parameter name */
+  private static final String EMPTY_PARMNAME_TAG = "<"
+      + JSendEventConstants.EVENT_XMLTAG_PARMNAME + "/>";
+
+  /** Buffer size for the output */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Stream to write to or null if the events are kept in the buffer */
+  private OutputStream m_out;
+
+  /** Buffer for the encoded output */
+  private OnmsXmlEncoder m_encoder;
+
+  /**
+   * Constructor to write events to an output stream
+   * 
+   * @param out
+   *          Stream to write the UTF-8 encoded events to
+   */
+  public OnmsEventWriter (OutputStream out)
+  {
+    this.m_out = out;
+    this.m_encoder = new OnmsXmlEncoder (BUFFER_SIZE);
+  }
+
+  /**
+   * Serialize an event to a byte array
+   * 
+   * @param event
+   *          Event with all added events
+   * @return Complete &lt;log&gt; document as UTF-8 bytes
+   */
+  public static byte[] toByteArray (OnmsEventXml event)
+  {
+    OnmsEventWriter writer = new OnmsEventWriter (null);
+    try
+    {
+      writer.writeDocument (event);
+    } catch (IOException e)
+    {
+      // Not thrown without an output stream
+      throw new IllegalStateException (e);
+    }
+    return writer.m_encoder.toByteArray ();
+  }
+
+  /**
+   * Count the events of a serialized document, for example from the
+   * {@link OnmsEventSpool}. Event tags within CDATA sections are not counted.
+   * 
+   * @param document
+   *          Serialized &lt;log&gt; document
+   * @return Number of &lt;event&gt; elements
+   */
+  public static int countEvents (byte[] document)
+  {
+    int events = 0;
+    int i = 0;
+    while (i < document.length)
+    {
+      if (document[i] != '<')
+      {
+        i++;
+      } else if (startsWith (document, i, CDATA_START))
+      {
+        i = indexOf (document, i + CDATA_START.length, CDATA_END);
+      } else
+      {
+        i++;
+        if (startsWith (document, i, EVENT_TAG)
+            && i + EVENT_TAG.length < document.length
+            && (document[i + EVENT_TAG.length] == '>' || document[i
+                + EVENT_TAG.length] == ' '))
+        {
+          events++;
+        }
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Check if bytes are found at a position
+   * 
+   * @param data
+   *          Bytes to search in
+   * @param offset
+   *          Position
+   * @param bytes
+   *          Bytes to find
+   * @return true if the bytes are found at the position
+   */
+  private static boolean startsWith (byte[] data, int offset, byte[] bytes)
+  {
+    if (offset + bytes.length > data.length)
+    {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++)
+    {
+      if (data[offset + i] != bytes[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Find the end of bytes
+   * 
+   * @param data
+   *          Bytes to search in
+   * @param offset
+   *          Position to search from
+   * @param bytes
+   *          Bytes to find
+   * @return Position after the bytes or the length of the data if not found
+   */
+  private static int indexOf (byte[] data, int offset, byte[] bytes)
+  {
+    for (int i = offset; i + bytes.length <= data.length; i++)
+    {
+      if (startsWith (data, i, bytes))
+      {
+        return i + bytes.length;
+      }
+    }
+    return data.length;
+  }
+
+  /**
+   * Write a complete &lt;log&gt; document with the event and all events added
+   * to it and flush the output
+   * 
+   * @param event
+   *          Event to write
+   * @throws IOException
+   *           Error writing to the output stream
+   */
+  public void writeLog (OnmsEventXml event) throws IOException
+  {
+    this.writeDocument (event);
+    this.flush ();
+  }
+
+  /**
+   * Write a complete &lt;log&gt; document with the event and all events added
+   * to it without flushing the output. Only a document larger than the buffer
+   * reaches the output stream before {@link #flush()}.
+   * 
+   * @param event
+   *          Event to write
+   * @throws IOException
+   *           Error writing to the output stream
+   */
+  public void writeDocument (OnmsEventXml event) throws IOException
+  {
+    this.m_encoder.write (DOCUMENT_START);
+    this.writeEvent (event);
+    for (OnmsEventXml added : event.getEvents ())
+    {
+      this.writeEvent (added);
+    }
+    this.m_encoder.write (DOCUMENT_END);
+    this.drain ();
+  }
+
+  /**
+   * Write the &lt;event&gt; element of a single event without the events
+   * added to it
+   * 
+   * @param event
+   *          Event to write
+   * @throws IOException
+   *           Error writing to the output stream
+   */
+  public void writeEvent (OnmsEventXml event) throws IOException
+  {
+    if (event.getUuid () == null)
+    {
+      this.writeStartTag (JSendEventConstants.EVENT_XMLTAG_EVENT);
+    } else
+    {
+      this.m_encoder.writeAscii ("<" + JSendEventConstants.EVENT_XMLTAG_EVENT
+          + " " + JSendEventConstants.EVENT_XMLATTR_UUID + "=\"");
+      this.m_encoder.writeText (event.getUuid (), true);
+      this.m_encoder.writeAscii ("\">");
+    }
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_UEI, event.getUei (),
+        true);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_SOURCE, event
+        .getSource (), true);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_NODEID, event
+        .getNodeId (), true);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_TIME,
+        event.getTime (), true);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_HOST,
+        event.getHost (), true);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_INTERFACE, event
+        .getInterface (), true);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_SERVICE, event
+        .getService (), false);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_DESCRIPTION, event
+        .getDescription (), false);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_SEVERITY, event
+        .getSeverity (), false);
+    this.writeElement (JSendEventConstants.EVENT_XMLTAG_OPERINSTRUCT, event
+        .getOperinstruct (), false);
+
+    if (!event.getParms ().isEmpty ())
+    {
+      this.writeStartTag (JSendEventConstants.EVENT_XMLTAG_PARMS);
+      for (String[] parm : event.getParms ())
+      {
+        this.writeStartTag (JSendEventConstants.EVENT_XMLTAG_PARM);
+        if (parm[0].length () == 0)
+        {
+          this.m_encoder.writeAscii (EMPTY_PARMNAME_TAG);
+        } else
+        {
+          this.writeStartTag (JSendEventConstants.EVENT_XMLTAG_PARMNAME);
+          this.m_encoder.writeCData (parm[0]);
+          this.writeEndTag (JSendEventConstants.EVENT_XMLTAG_PARMNAME);
+        }
+        if (parm[1].length () == 0)
+        {
+          this.m_encoder.writeAscii (EMPTY_VALUE_TAG);
+        } else
+        {
+          this.m_encoder.writeAscii (VALUE_START_TAG);
+          this.m_encoder.writeCData (parm[1]);
+          this.writeEndTag (JSendEventConstants.EVENT_XMLTAG_VALUE);
+        }
+        this.writeEndTag (JSendEventConstants.EVENT_XMLTAG_PARM);
+      }
+      this.writeEndTag (JSendEventConstants.EVENT_XMLTAG_PARMS);
+    }
+    this.writeEndTag (JSendEventConstants.EVENT_XMLTAG_EVENT);
+    this.drain ();
+  }
+
+  /**
+   * Flush the buffered output to the output stream
+   * 
+   * @throws IOException
+   *           Error writing to the output stream
+   */
+  public void flush () throws IOException
+  {
+    if (this.m_out != null)
+    {
+      this.m_encoder.writeTo (this.m_out);
+      this.m_out.flush ();
+    }
+  }
+
+  /**
+   * Write the buffered output to the output stream once it is larger than
+   * the buffer size
+   * 
+   * @throws IOException
+   *           Error writing to the output stream
+   */
+  private void drain () throws IOException
+  {
+    if (this.m_out != null && this.m_encoder.size () >= BUFFER_SIZE)
+    {
+      this.m_encoder.writeTo (this.m_out);
+    }
+  }
+
+  /**
+   * Write a text element, an empty element is written as &lt;tag/&gt;
+   * 
+   * @param name
+   *          Tag name
+   * @param text
+   *          Text content or null if not set
+   * @param required
+   *          Write an empty element if the text is not set
+   */
+  private void writeElement (String name, String text, boolean required)
+  {
+    if (text == null || text.length () == 0)
+    {
+      if (required || text != null)
+      {
+        this.m_encoder.writeAscii ('<');
+        this.m_encoder.writeAscii (name);
+        this.m_encoder.writeAscii ("/>");
+      }
+      return;
+    }
+    this.writeStartTag (name);
+    this.m_encoder.writeText (text, false);
+    this.writeEndTag (name);
+  }
+
+  /**
+   * Write a start tag
+   * 
+   * @param name
+   *          Tag name
+   */
+  private void writeStartTag (String name)
+  {
+    this.m_encoder.writeAscii ('<');
+    this.m_encoder.writeAscii (name);
+    this.m_encoder.writeAscii ('>');
+  }
+
+  /**
+   * Write an end tag
+   * 
+   * @param name
+   *          Tag name
+   */
+  private void writeEndTag (String name)
+  {
+    this.m_encoder.writeAscii ("</");
+    this.m_encoder.writeAscii (name);
+    this.m_encoder.writeAscii ('>');
+  }
+}
@@ -36,10 +36,8 @@
 package org.opennms.jsendevent.utils;
 
 import java.io.StringWriter;
-import java.text.DateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -53,128 +51,75 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.opennms.jsendevent.JSendEventConstants;
 import org.opennms.jsendevent.exceptions.ParameterException;
-import org.w3c.dom.CDATASection;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
- * Class which represents the OpenNMS event as XML
+ * Class which represents the OpenNMS event as XML. The event fields are kept
+ * as plain values, they are written by the {@link OnmsEventWriter} on the send
+ * path. The XML document is only built if it is requested with
+ * {@link #getEventDoc()} or {@link #toString()}.
  * 
  * @author indigo
  */
 public class OnmsEventXml
 {
-  /** XML document for the event */
-  private Document m_eventdoc;
-
-  /** DocumentBuilderFactory */
-  private DocumentBuilderFactory m_documentBuilderFactory;
-
-  /** DocumentBuilder */
-  private DocumentBuilder m_documentBuilder;
-
   /** OpenNMS Severity */
-  private OnmsSeverity m_severity;
-
-  /** Root element for event */
-  private Element m_tag_log;
-
-  /** Events */
-  private Element m_tag_events;
+  private static final OnmsSeverity SEVERITY = new OnmsSeverity ();
 
-  /** Event */
-  private Element m_tag_event;
+  /** XML document for the event, built on request */
+  private Document m_eventdoc;
 
   /** UEI */
-  private Element m_tag_uei;
+  private String m_uei;
+
+  /** Identifier eventd acknowledges in its receipt or null */
+  private String m_uuid;
 
   /** Source */
-  private Element m_tag_source;
+  private String m_source;
 
   /** Node id */
-  private Element m_tag_nodeid;
+  private String m_nodeid;
+
+  /** Time */
+  private String m_time;
 
   /** Node host */
-  private Element m_tag_host;
+  private String m_host;
 
   /** Interface */
-  private Element m_tag_interface;
+  private String m_interface;
 
-  /** Time */
-  private Element m_tag_time;
+  /** Service */
+  private String m_service;
+
+  /** Description */
+  private String m_description;
 
-  /** User defined parameters */
-  private Element m_tag_parms;
+  /** Severity */
+  private String m_severity;
+
+  /** Operator instruction */
+  private String m_operinstruct;
+
+  /** User defined parameters as name and value pairs */
+  private List<String[]> m_parms;
+
+  /** Further events sent in the same document */
+  private List<OnmsEventXml> m_events;
 
   /**
    * Default constructor initialize current time for the event
    */
   public OnmsEventXml ()
   {
-    Date currentTime = Calendar.getInstance ().getTime ();
-    DateFormat dformat = DateFormat.getDateTimeInstance (DateFormat.FULL,
-        DateFormat.FULL);
-    dformat.setTimeZone (TimeZone.getTimeZone ("GMT"));
-
-    this.m_severity = new OnmsSeverity ();
-
-    /* Create XML document */
-    this.m_documentBuilderFactory = DocumentBuilderFactory.newInstance ();
-
-    /* this.m_documentBuilderFactory.setValidating (true); */
-    /* this.m_documentBuilderFactory.setNamespaceAware (true); */
-
-    /* Try to get a DocumentBuilder */
-    try
-    {
-      this.m_documentBuilder = this.m_documentBuilderFactory
-          .newDocumentBuilder ();
-    } catch (ParserConfigurationException e)
-    {
-      System.err.println ("Cant initialize the XML-Document.\n" + "Error "
-          + e.getMessage ());
-    }
-
-    this.m_eventdoc = this.m_documentBuilder.newDocument ();
-
-    this.m_tag_log = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_LOG);
-
-    this.m_tag_events = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_EVENTS);
-
-    this.m_tag_event = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_EVENT);
-
-    this.m_tag_host = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_HOST);
-
-    this.m_tag_uei = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_UEI);
-
-    this.m_tag_source = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_SOURCE);
-    this.m_tag_source.setTextContent (JSendEventConstants.SOURCE_NAME);
-
-    this.m_tag_nodeid = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_NODEID);
-    this.m_tag_interface = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_INTERFACE);
+    this.m_source = JSendEventConstants.SOURCE_NAME;
+    this.m_parms = new ArrayList<String[]> ();
+    this.m_events = new ArrayList<OnmsEventXml> ();
 
-    this.m_tag_time = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_TIME);
-
-    this.m_eventdoc.appendChild (this.m_tag_log);
-    this.m_tag_log.appendChild (this.m_tag_events);
-    this.m_tag_events.appendChild (this.m_tag_event);
-    this.m_tag_event.appendChild (this.m_tag_uei);
-    this.m_tag_event.appendChild (this.m_tag_source);
-    this.m_tag_event.appendChild (this.m_tag_nodeid);
-    this.m_tag_event.appendChild (this.m_tag_time);
-    this.m_tag_event.appendChild (this.m_tag_host);
-    this.m_tag_event.appendChild (this.m_tag_interface);
-
-    this.setTime (dformat.format (currentTime));
+    this.setTime (OnmsTimestampEncoder.getInstance ().now ());
+    OnmsSenderMetrics.getInstance ().eventCreated ();
   }
 
   /**
@@ -185,7 +130,20 @@ public class OnmsEventXml
    */
   public void setUei (String uei)
   {
-    this.m_tag_uei.setTextContent (uei);
+    this.m_uei = uei;
+    this.m_eventdoc = null;
+  }
+
+  /**
+   * Set the identifier eventd returns in its receipt for the event
+   * 
+   * @param uuid
+   *          Identifier or null to send the event without receipt
+   */
+  public void setUuid (String uuid)
+  {
+    this.m_uuid = uuid;
+    this.m_eventdoc = null;
   }
 
   /**
@@ -196,7 +154,8 @@ public class OnmsEventXml
    */
   public void setSource (String source)
   {
-    this.m_tag_source.setTextContent (source);
+    this.m_source = source;
+    this.m_eventdoc = null;
   }
 
   /**
@@ -206,7 +165,8 @@ public class OnmsEventXml
    */
   public void setInterface (String iface)
   {
-    this.m_tag_interface.setTextContent (iface);
+    this.m_interface = iface;
+    this.m_eventdoc = null;
   }
 
   /**
@@ -220,7 +180,8 @@ public class OnmsEventXml
   public void setNodeId (String id) throws RuntimeException
   {
     Integer nodeid = Integer.parseInt (id);
-    this.m_tag_nodeid.setTextContent (nodeid.toString ());
+    this.m_nodeid = nodeid.toString ();
+    this.m_eventdoc = null;
   }
 
   /**
@@ -231,7 +192,20 @@ public class OnmsEventXml
    */
   public void setTime (String time)
   {
-    this.m_tag_time.setTextContent (time);
+    this.m_time = time;
+    this.m_eventdoc = null;
+  }
+
+  /**
+   * Set the time from milliseconds since the epoch, for example to backfill
+   * events
+   * 
+   * @param millis
+   *          Milliseconds since the epoch
+   */
+  public void setTime (long millis)
+  {
+    this.setTime (OnmsTimestampEncoder.getInstance ().format (millis));
   }
 
   /**
@@ -242,10 +216,8 @@ public class OnmsEventXml
    */
   public void setHost (String nodelabel)
   {
-    Element tag_host = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_HOST);
-    tag_host.setTextContent (nodelabel);
-    this.m_tag_event.appendChild (tag_host);
+    this.m_host = nodelabel;
+    this.m_eventdoc = null;
   }
 
   /**
@@ -256,10 +228,8 @@ public class OnmsEventXml
    */
   public void setService (String service)
   {
-    Element tag_service = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_SERVICE);
-    tag_service.setTextContent (service);
-    this.m_tag_event.appendChild (tag_service);
+    this.m_service = service;
+    this.m_eventdoc = null;
   }
 
   /**
@@ -275,10 +245,8 @@ public class OnmsEventXml
   public void setSeverity (String severity) throws ParameterException,
       RuntimeException
   {
-    Element tag_severity = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_SEVERITY);
-    tag_severity.setTextContent (this.m_severity.resolvSeverity (severity));
-    this.m_tag_event.appendChild (tag_severity);
+    this.m_severity = SEVERITY.resolvSeverity (severity);
+    this.m_eventdoc = null;
   }
 
   /**
@@ -289,10 +257,8 @@ public class OnmsEventXml
    */
   public void setDescription (String description)
   {
-    Element tag_description = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_DESCRIPTION);
-    tag_description.setTextContent (description);
-    this.m_tag_event.appendChild (tag_description);
+    this.m_description = description;
+    this.m_eventdoc = null;
   }
 
   /**
@@ -303,10 +269,138 @@ public class OnmsEventXml
    */
   public void setOperinstruct (String operinstruct)
   {
-    Element tag_operinstruct = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_OPERINSTRUCT);
-    tag_operinstruct.setTextContent (operinstruct);
-    this.m_tag_event.appendChild (tag_operinstruct);
+    this.m_operinstruct = operinstruct;
+    this.m_eventdoc = null;
+  }
+
+  /**
+   * Get the Unique-Event-Identifier
+   * 
+   * @return Unique-Event-Identifier or null if not set
+   */
+  public String getUei ()
+  {
+    return this.m_uei;
+  }
+
+  /**
+   * Get the identifier eventd returns in its receipt for the event
+   * 
+   * @return Identifier or null if not set
+   */
+  public String getUuid ()
+  {
+    return this.m_uuid;
+  }
+
+  /**
+   * Get the event source
+   * 
+   * @return Event source
+   */
+  public String getSource ()
+  {
+    return this.m_source;
+  }
+
+  /**
+   * Get the event node id
+   * 
+   * @return Event node id or null if not set
+   */
+  public String getNodeId ()
+  {
+    return this.m_nodeid;
+  }
+
+  /**
+   * Get the event time
+   * 
+   * @return Event time
+   */
+  public String getTime ()
+  {
+    return this.m_time;
+  }
+
+  /**
+   * Get the event nodelabel
+   * 
+   * @return Event nodelabel or null if not set
+   */
+  public String getHost ()
+  {
+    return this.m_host;
+  }
+
+  /**
+   * Get the event interface
+   * 
+   * @return Event interface or null if not set
+   */
+  public String getInterface ()
+  {
+    return this.m_interface;
+  }
+
+  /**
+   * Get the event service
+   * 
+   * @return Event service or null if not set
+   */
+  public String getService ()
+  {
+    return this.m_service;
+  }
+
+  /**
+   * Get the event description
+   * 
+   * @return Event description or null if not set
+   */
+  public String getDescription ()
+  {
+    return this.m_description;
+  }
+
+  /**
+   * Get the resolved event severity
+   * 
+   * @return Event severity as text or null if not set
+   */
+  public String getSeverity ()
+  {
+    return this.m_severity;
+  }
+
+  /**
+   * Get the event operator instruction
+   * 
+   * @return Event operator instruction or null if not set
+   */
+  public String getOperinstruct ()
+  {
+    return this.m_operinstruct;
+  }
+
+  /**
+   * Get the user defined event parameters
+   * 
+   * @return Parameters as name and value pairs in the order they were added
+   */
+  public List<String[]> getParms ()
+  {
+    return this.m_parms;
+  }
+
+  /**
+   * Get the further events sent in the same document
+   * 
+   * @return Events added with {@link #addEvent(OnmsEventXml)}
+   */
+  public List<OnmsEventXml> getEvents ()
+  {
+    return this.m_events;
   }
 
   /**
@@ -316,6 +410,12 @@ public class OnmsEventXml
    */
   public Document getEventDoc ()
   {
+    if (this.m_eventdoc == null)
+    {
+      long start = System.nanoTime ();
+      this.m_eventdoc = this.createEventDoc ();
+      OnmsSenderMetrics.getInstance ().domBuilt (System.nanoTime () - start);
+    }
     return this.m_eventdoc;
   }
 
@@ -329,35 +429,22 @@ public class OnmsEventXml
    */
   public void addParm (String key, String value)
   {
-    Element tag_parm = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_PARM);
-    Element tag_parmName = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_PARMNAME);
-    Element tag_value = this.m_eventdoc
-        .createElement (JSendEventConstants.EVENT_XMLTAG_VALUE);
-    CDATASection cdata_value = this.m_eventdoc
-        .createCDATASection (JSendEventConstants.EVENT_XMLTAG_VALUE);
-    CDATASection cdata_parmName = this.m_eventdoc.createCDATASection (key);
-
-    tag_value.setAttribute ("type", "string");
-    tag_value.setAttribute ("encoding", "text");
-    tag_value.appendChild (cdata_value);
-    tag_parmName.appendChild (cdata_parmName);
-    cdata_value.setData (value);
-
-    tag_parm.appendChild (tag_parmName);
-    tag_parm.appendChild (tag_value);
-
-    if (this.m_tag_parms == null)
-    {
-      this.m_tag_parms = this.m_eventdoc
-          .createElement (JSendEventConstants.EVENT_XMLTAG_PARMS);
-      this.m_tag_event.appendChild (this.m_tag_parms);
-      this.m_tag_parms.appendChild (tag_parm);
-    } else
-    {
-      this.m_tag_parms.appendChild (tag_parm);
-    }
+    this.m_parms.add (new String[] { key, value });
+    this.m_eventdoc = null;
+  }
+
+  /**
+   * Add the event of another OpenNMS event document to the events of this
+   * document. All events are sent together in one &lt;log&gt; document.
+   * 
+   * @param event
+   *          Event to add
+   */
+  public void addEvent (OnmsEventXml event)
+  {
+    this.m_events.add (event);
+    this.m_events.addAll (event.m_events);
+    this.m_eventdoc = null;
   }
 
   /**
@@ -378,13 +465,172 @@ public class OnmsEventXml
       transformer.setOutputProperty (
           "{http://xml.apache.org/xslt}indent-amount", "2");
       transformer.setOutputProperty (OutputKeys.METHOD, "xml");
-      transformer.transform (new DOMSource (this.m_eventdoc), streamResult);
+      transformer.transform (new DOMSource (this.getEventDoc ()), streamResult);
     } catch (TransformerException e)
     {
-      System.err.println ("Error transforming OpenNMS event.\nError: "
-          + e.getMessage ());
-      System.exit (JSendEventConstants.EXIT_FAILED);
+      throw new IllegalStateException ("Error transforming OpenNMS event. "
+          + "Error: " + e.getMessage (), e);
     }
     return stringWriter.toString ();
   }
+
+  /**
+   * Build the XML document with this event and all added events
+   * 
+   * @return OpenNMS event XML document
+   */
+  private Document createEventDoc ()
+  {
+    DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory
+        .newInstance ();
+    DocumentBuilder documentBuilder = null;
+
+    /* Try to get a DocumentBuilder */
+    try
+    {
+      documentBuilder = documentBuilderFactory.newDocumentBuilder ();
+    } catch (ParserConfigurationException e)
+    {
+      throw new IllegalStateException ("Cant initialize the XML-Document. "
+          + "Error: " + e.getMessage (), e);
+    }
+
+    Document eventdoc = documentBuilder.newDocument ();
+    Element tag_log = eventdoc
+        .createElement (JSendEventConstants.EVENT_XMLTAG_LOG);
+    Element tag_events = eventdoc
+        .createElement (JSendEventConstants.EVENT_XMLTAG_EVENTS);
+    eventdoc.appendChild (tag_log);
+    tag_log.appendChild (tag_events);
+
+    tag_events.appendChild (this.createEventElement (eventdoc));
+    for (OnmsEventXml event : this.m_events)
+    {
+      tag_events.appendChild (event.createEventElement (eventdoc));
+    }
+    return eventdoc;
+  }
+
+  /**
+   * Build the &lt;event&gt; element of this event. The elements are in the
+   * same order as written by {@link OnmsEventWriter}.
+   * 
+   * @param eventdoc
+   *          Document to create the element for
+   * @return Event element
+   */
+  private Element createEventElement (Document eventdoc)
+  {
+    Element tag_event = eventdoc
+        .createElement (JSendEventConstants.EVENT_XMLTAG_EVENT);
+    if (this.m_uuid != null)
+    {
+      tag_event.setAttribute (JSendEventConstants.EVENT_XMLATTR_UUID,
+          this.m_uuid);
+    }
+
+    appendElement (eventdoc, tag_event, JSendEventConstants.EVENT_XMLTAG_UEI,
+        this.m_uei, true);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_SOURCE, this.m_source, true);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_NODEID, this.m_nodeid, true);
+    appendElement (eventdoc, tag_event, JSendEventConstants.EVENT_XMLTAG_TIME,
+        this.m_time, true);
+    appendElement (eventdoc, tag_event, JSendEventConstants.EVENT_XMLTAG_HOST,
+        this.m_host, true);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_INTERFACE, this.m_interface, true);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_SERVICE, this.m_service, false);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_DESCRIPTION, this.m_description,
+        false);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_SEVERITY, this.m_severity, false);
+    appendElement (eventdoc, tag_event,
+        JSendEventConstants.EVENT_XMLTAG_OPERINSTRUCT, this.m_operinstruct,
+        false);
+
+    if (!this.m_parms.isEmpty ())
+    {
+      Element tag_parms = eventdoc
+          .createElement (JSendEventConstants.EVENT_XMLTAG_PARMS);
+      for (String[] parm : this.m_parms)
+      {
+        Element tag_parm = eventdoc
+            .createElement (JSendEventConstants.EVENT_XMLTAG_PARM);
+        Element tag_parmName = eventdoc
+            .createElement (JSendEventConstants.EVENT_XMLTAG_PARMNAME);
+        Element tag_value = eventdoc
+            .createElement (JSendEventConstants.EVENT_XMLTAG_VALUE);
+
+        tag_value.setAttribute ("type", "string");
+        tag_value.setAttribute ("encoding", "text");
+        appendCData (eventdoc, tag_value, parm[1]);
+        appendCData (eventdoc, tag_parmName, parm[0]);
+
+        tag_parm.appendChild (tag_parmName);
+        tag_parm.appendChild (tag_value);
+        tag_parms.appendChild (tag_parm);
+      }
+      tag_event.appendChild (tag_parms);
+    }
+    return tag_event;
+  }
+
+  /**
+   * Append text as CDATA sections. The sequence ]]&gt; can't be part of a
+   * CDATA section, the text is split between ]] and &gt; into several sections
+   * like the {@link OnmsEventWriter} does.
+   * 
+   * @param eventdoc
+   *          Document to create the sections for
+   * @param parent
+   *          Element to append the sections to
+   * @param text
+   *          Text content
+   */
+  private static void appendCData (Document eventdoc, Element parent,
+      String text)
+  {
+    int start = 0;
+    int end;
+    while ((end = text.indexOf ("]]>", start)) >= 0)
+    {
+      parent.appendChild (eventdoc.createCDATASection (text.substring (start,
+          end + 2)));
+      start = end + 2;
+    }
+    parent.appendChild (eventdoc.createCDATASection (text.substring (start)));
+  }
+
+  /**
+   * Append a text element to the event element
+   * 
+   * @param eventdoc
+   *          Document to create the element for
+   * @param tag_event
+   *          Event element
+   * @param name
+   *          Tag name
+   * @param text
+   *          Text content or null if not set
+   * @param required
+   *          Append an empty element if the text is not set
+   */
+  private static void appendElement (Document eventdoc, Element tag_event,
+      String name, String text, boolean required)
+  {
+    if (text == null && !required)
+    {
+      return;
+    }
+    Element tag = eventdoc.createElement (name);
+    if (text != null)
+    {
+      tag.setTextContent (text);
+    }
+    tag_event.appendChild (tag);
+  }
 }
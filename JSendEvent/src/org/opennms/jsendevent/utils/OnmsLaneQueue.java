@@ -0,0 +1,426 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Bounded queue with lanes of different priority for many producers and one
+ * consumer. Lane 0 has the highest priority. {@link #poll()} takes from the
+ * highest lane holding elements, so urgent elements overtake a backlog of
+ * lower lanes. To keep lower lanes from starving, after a burst of elements
+ * taken while a lower lane was waiting the oldest element of the lower lanes
+ * is taken once. Within a lane the elements keep their order.
+ * <p>
+ * The queue holds at most its capacity. If it is full, the overflow policy
+ * decides: {@link JSendEventConstants#QUEUE_POLICY_BLOCK} waits for space,
+ * {@link JSendEventConstants#QUEUE_POLICY_DROP_NEWEST} rejects the new
+ * element, {@link JSendEventConstants#QUEUE_POLICY_DROP_OLDEST} drops the
+ * element waiting longest and
+ * {@link JSendEventConstants#QUEUE_POLICY_DROP_LOWEST} the oldest element of
+ * the lowest lane, or the new element if its lane is lower still. Adding and
+ * taking elements is lock-free, only blocked producers wait on a monitor.
+ * 
+ * @param <E>
+ *          Type of the elements
+ * @author indigo@open-factory.org
+ */
+public class OnmsLaneQueue<E>
+{
+  /** Lanes by priority */
+  private List<ConcurrentLinkedQueue<Entry<E>>> m_lanes;
+
+  /** Elements taken from higher lanes before a waiting lower lane is served */
+  private int m_burst;
+
+  /** Elements taken in a row while a lower lane was waiting */
+  private int m_passed;
+
+  /** Maximum number of elements */
+  private int m_capacity;
+
+  /** Overflow policy */
+  private String m_policy;
+
+  /** Milliseconds a producer waits for space with the policy block */
+  private long m_blockTimeout;
+
+  /** Number of elements, including elements being added */
+  private AtomicInteger m_size;
+
+  /** Producers waiting for space */
+  private AtomicInteger m_blocked;
+
+  /** Monitor of the blocked producers */
+  private Object m_space;
+
+  /**
+   * Constructor for an empty queue
+   * 
+   * @param lanes
+   *          Number of lanes
+   * @param burst
+   *          Elements taken from higher lanes before a waiting lower lane is
+   *          served once
+   * @param capacity
+   *          Maximum number of elements
+   * @param policy
+   *          Overflow policy: block, drop-newest, drop-oldest or drop-lowest
+   * @param blockTimeout
+   *          Milliseconds a producer waits for space with the policy block
+   *          before the element is dropped
+   */
+  public OnmsLaneQueue (int lanes, int burst, int capacity, String policy,
+      long blockTimeout)
+  {
+    if (lanes < 1 || burst < 1 || capacity < 1)
+    {
+      throw new IllegalArgumentException ("Lanes " + lanes + ", burst "
+          + burst + " and capacity " + capacity + " must be positive.");
+    }
+    if (!isPolicy (policy))
+    {
+      throw new IllegalArgumentException ("Overflow policy " + policy
+          + " is unknown.");
+    }
+    this.m_lanes = new ArrayList<ConcurrentLinkedQueue<Entry<E>>> (lanes);
+    for (int i = 0; i < lanes; i++)
+    {
+      this.m_lanes.add (new ConcurrentLinkedQueue<Entry<E>> ());
+    }
+    this.m_burst = burst;
+    this.m_capacity = capacity;
+    this.m_policy = policy;
+    this.m_blockTimeout = blockTimeout;
+    this.m_size = new AtomicInteger ();
+    this.m_blocked = new AtomicInteger ();
+    this.m_space = new Object ();
+  }
+
+  /**
+   * Check if a text names an overflow policy
+   * 
+   * @param policy
+   *          Policy
+   * @return true for block, drop-newest, drop-oldest and drop-lowest
+   */
+  public static boolean isPolicy (String policy)
+  {
+    return JSendEventConstants.QUEUE_POLICY_BLOCK.equals (policy)
+        || JSendEventConstants.QUEUE_POLICY_DROP_NEWEST.equals (policy)
+        || JSendEventConstants.QUEUE_POLICY_DROP_OLDEST.equals (policy)
+        || JSendEventConstants.QUEUE_POLICY_DROP_LOWEST.equals (policy);
+  }
+
+  /**
+   * Get the number of lanes
+   * 
+   * @return Lanes
+   */
+  public int getLanes ()
+  {
+    return this.m_lanes.size ();
+  }
+
+  /**
+   * Get the maximum number of elements
+   * 
+   * @return Capacity
+   */
+  public int getCapacity ()
+  {
+    return this.m_capacity;
+  }
+
+  /**
+   * Get the number of elements
+   * 
+   * @return Elements in the queue
+   */
+  public int size ()
+  {
+    return this.m_size.get ();
+  }
+
+  /**
+   * Add an element, may be called by any thread. If the queue is full the
+   * overflow policy drops an element, which is returned to the producer.
+   * 
+   * @param element
+   *          Element
+   * @param lane
+   *          Lane from 0 (highest priority) to {@link #getLanes()} - 1
+   * @return Dropped element, the given one if it was rejected, or null
+   */
+  public E offer (E element, int lane)
+  {
+    Entry<E> entry = new Entry<E> (element);
+    ConcurrentLinkedQueue<Entry<E>> target = this.m_lanes.get (lane);
+    long blockUntil = 0;
+    while (true)
+    {
+      int size = this.m_size.get ();
+      if (size < this.m_capacity)
+      {
+        if (this.m_size.compareAndSet (size, size + 1))
+        {
+          target.offer (entry);
+          return null;
+        }
+        continue;
+      }
+
+      Entry<E> victim;
+      if (JSendEventConstants.QUEUE_POLICY_DROP_NEWEST.equals (this.m_policy))
+      {
+        return element;
+      } else if (JSendEventConstants.QUEUE_POLICY_BLOCK.equals (this.m_policy))
+      {
+        if (blockUntil == 0)
+        {
+          blockUntil = System.currentTimeMillis () + this.m_blockTimeout;
+        }
+        if (!this.awaitSpace (blockUntil))
+        {
+          return element;
+        }
+        continue;
+      } else if (JSendEventConstants.QUEUE_POLICY_DROP_OLDEST
+          .equals (this.m_policy))
+      {
+        victim = this.pollOldest ();
+      } else
+      {
+        int lowest = this.lowestLane ();
+        if (lowest >= 0 && lowest < lane)
+        {
+          // The new element has the lowest priority
+          return element;
+        }
+        victim = lowest < 0 ? null : this.m_lanes.get (lowest).poll ();
+      }
+
+      // The new element takes the place of the victim, the size stays
+      if (victim != null)
+      {
+        target.offer (entry);
+        return victim.m_element;
+      }
+    }
+  }
+
+  /**
+   * Take the next element, must only be called by one thread at a time
+   * 
+   * @return Element or null if the queue is empty
+   */
+  public E poll ()
+  {
+    while (true)
+    {
+      int first = -1;
+      int oldest = -1;
+      long oldestTime = 0;
+      for (int i = 0; i < this.m_lanes.size (); i++)
+      {
+        Entry<E> head = this.m_lanes.get (i).peek ();
+        if (head == null)
+        {
+          continue;
+        }
+        if (first < 0)
+        {
+          first = i;
+        } else if (oldest < 0 || head.m_queued - oldestTime < 0)
+        {
+          oldest = i;
+          oldestTime = head.m_queued;
+        }
+      }
+      if (first < 0)
+      {
+        return null;
+      }
+
+      int lane = first;
+      if (oldest < 0)
+      {
+        this.m_passed = 0;
+      } else if (++this.m_passed > this.m_burst)
+      {
+        // A lower lane waited for a whole burst
+        this.m_passed = 0;
+        lane = oldest;
+      }
+      // Null if a producer dropped the element meanwhile
+      Entry<E> entry = this.m_lanes.get (lane).poll ();
+      if (entry != null)
+      {
+        this.m_size.decrementAndGet ();
+        if (this.m_blocked.get () > 0)
+        {
+          synchronized (this.m_space)
+          {
+            this.m_space.notify ();
+          }
+        }
+        return entry.m_element;
+      }
+    }
+  }
+
+  /**
+   * Check if all lanes are empty
+   * 
+   * @return true if there is no element
+   */
+  public boolean isEmpty ()
+  {
+    for (ConcurrentLinkedQueue<Entry<E>> lane : this.m_lanes)
+    {
+      if (!lane.isEmpty ())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Wait until the queue is not full
+   * 
+   * @param until
+   *          Time in milliseconds to wait at most
+   * @return false if the time is over or the thread was interrupted
+   */
+  private boolean awaitSpace (long until)
+  {
+    this.m_blocked.incrementAndGet ();
+    try
+    {
+      synchronized (this.m_space)
+      {
+        while (this.m_size.get () >= this.m_capacity)
+        {
+          long left = until - System.currentTimeMillis ();
+          if (left <= 0)
+          {
+            return false;
+          }
+          this.m_space.wait (left);
+        }
+      }
+      return true;
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+      return false;
+    } finally
+    {
+      this.m_blocked.decrementAndGet ();
+    }
+  }
+
+  /**
+   * Take the element waiting longest in any lane
+   * 
+   * @return Element or null if the queue is empty
+   */
+  private Entry<E> pollOldest ()
+  {
+    int oldest = -1;
+    long oldestTime = 0;
+    for (int i = 0; i < this.m_lanes.size (); i++)
+    {
+      Entry<E> head = this.m_lanes.get (i).peek ();
+      if (head != null && (oldest < 0 || head.m_queued - oldestTime < 0))
+      {
+        oldest = i;
+        oldestTime = head.m_queued;
+      }
+    }
+    return oldest < 0 ? null : this.m_lanes.get (oldest).poll ();
+  }
+
+  /**
+   * Get the lowest lane holding elements
+   * 
+   * @return Lane or -1 if the queue is empty
+   */
+  private int lowestLane ()
+  {
+    for (int i = this.m_lanes.size () - 1; i >= 0; i--)
+    {
+      if (!this.m_lanes.get (i).isEmpty ())
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Queued element
+   * 
+   * @param <E>
+   *          Type of the element
+   */
+  private static class Entry<E>
+  {
+    /** Element */
+    private final E m_element;
+
+    /** Time in nanoseconds the element was queued */
+    private final long m_queued;
+
+    /**
+     * Constructor for an element queued now
+     * 
+     * @param element
+     *          Element
+     */
+    Entry (E element)
+    {
+      this.m_element = element;
+      this.m_queued = System.nanoTime ();
+    }
+  }
+}
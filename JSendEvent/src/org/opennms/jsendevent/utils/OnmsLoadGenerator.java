@@ -0,0 +1,400 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Load generator for capacity tests of OpenNMS eventd. Events are built with
+ * {@link OnmsEventXml} and sent over pooled connections by several threads,
+ * either as fast as possible or at a target rate. The latency of every event
+ * is recorded in a {@link LatencyHistogram}. With a target rate the latency is
+ * taken from the time the event was scheduled, so a stalled eventd shows up in
+ * the latency instead of lowering the rate silently.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsLoadGenerator
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Selector for the eventd */
+  private OnmsTargetSelector m_selector;
+
+  /** Connections to the eventd */
+  private OnmsConnectionPool m_pool;
+
+  /** Events per second over all threads, 0 for maximum */
+  private double m_rate;
+
+  /** Events to send or 0 to send for a duration */
+  private long m_count;
+
+  /** Milliseconds to send if no count is given */
+  private long m_duration;
+
+  /** Sending threads */
+  private int m_threads;
+
+  /** UEIs to choose from */
+  private String[] m_ueis;
+
+  /** Cumulative weights of the UEIs */
+  private int[] m_weights;
+
+  /** Interface of the events */
+  private String m_interface;
+
+  /** Node id of the events or null */
+  private String m_nodeid;
+
+  /** Parameters per event */
+  private int m_parms;
+
+  /** Parameter value */
+  private String m_parmValue;
+
+  /** Latencies of the sent events */
+  private LatencyHistogram m_histogram;
+
+  /** Events sent */
+  private AtomicLong m_sent;
+
+  /** Events failed */
+  private AtomicLong m_failed;
+
+  /** Events left to send in count mode */
+  private AtomicLong m_remaining;
+
+  /** Nanoseconds the load run took */
+  private long m_elapsed;
+
+  /**
+   * Constructor for a load generator configured from the command line
+   * 
+   * @param argumentMap
+   *          Arguments from command line
+   * @throws ParameterException
+   *           Arguments not correct
+   */
+  public OnmsLoadGenerator (ArgumentMap argumentMap) throws ParameterException
+  {
+    this.m_selector = new OnmsTargetSelector (argumentMap
+        .get (JSendEventConstants.PARM_HOST), argumentMap
+        .get (JSendEventConstants.PARM_PORT_EVENTD), argumentMap
+        .get (JSendEventConstants.PARM_STRATEGY));
+    this.m_rate = argumentMap.getNumber (JSendEventConstants.PARM_LOAD_RATE, 0);
+    this.m_duration = (long) (argumentMap.getNumber (
+        JSendEventConstants.PARM_LOAD_DURATION, 0) * 1000);
+    this.m_count = (long) argumentMap.getNumber (
+        JSendEventConstants.PARM_LOAD_COUNT, this.m_duration > 0 ? 0
+            : JSendEventConstants.LOAD_DEFAULT_COUNT);
+    if (this.m_count == 0 && this.m_duration == 0)
+    {
+      throw new ParameterException ("Load run requires "
+          + JSendEventConstants.PARM_LOAD_COUNT + " or "
+          + JSendEventConstants.PARM_LOAD_DURATION + " above 0.");
+    }
+    this.m_threads = Math.max (1, (int) argumentMap.getNumber (
+        JSendEventConstants.PARM_LOAD_THREADS, 1));
+    this.m_pool = new OnmsConnectionPool (Math.max (1, (int) argumentMap
+        .getNumber (JSendEventConstants.PARM_LOAD_CONNECTIONS, this.m_threads)));
+    this.m_parms = (int) argumentMap.getNumber (
+        JSendEventConstants.PARM_LOAD_PARMS, 0);
+    char[] value = new char[(int) argumentMap.getNumber (
+        JSendEventConstants.PARM_LOAD_PARM_SIZE, 16)];
+    Arrays.fill (value, 'x');
+    this.m_parmValue = new String (value);
+
+    this.m_interface = argumentMap
+        .containsKey (JSendEventConstants.PARM_INTERFACE) ? argumentMap
+        .get (JSendEventConstants.PARM_INTERFACE)
+        : JSendEventConstants.LOAD_DEFAULT_INTERFACE;
+    this.m_nodeid = argumentMap.get (JSendEventConstants.PARM_NODEID);
+    if (this.m_nodeid != null)
+    {
+      // Checked once instead of failing every event in the workers
+      try
+      {
+        this.m_nodeid = String.valueOf (Integer.parseInt (this.m_nodeid
+            .trim ()));
+      } catch (NumberFormatException e)
+      {
+        throw new ParameterException ("Argument "
+            + JSendEventConstants.PARM_NODEID + " " + this.m_nodeid
+            + " is not numeric.");
+      }
+    }
+    this.parseUeis (argumentMap.containsKey (JSendEventConstants.PARM_UEI)
+        ? argumentMap.get (JSendEventConstants.PARM_UEI)
+        : JSendEventConstants.LOAD_DEFAULT_UEI);
+
+    this.m_histogram = new LatencyHistogram ();
+    this.m_sent = new AtomicLong ();
+    this.m_failed = new AtomicLong ();
+    this.m_remaining = new AtomicLong (this.m_count);
+  }
+
+  /**
+   * Send the events and print the progress every second
+   * 
+   * @param out
+   *          Stream for the progress
+   * @throws InterruptedException
+   *           Interrupted while waiting for the threads
+   */
+  public void run (PrintStream out) throws InterruptedException
+  {
+    OnmsSenderMetrics.getInstance ().register ();
+    Thread[] workers = new Thread[this.m_threads];
+    final long start = System.nanoTime ();
+    final long end = start + this.m_duration * 1000000L;
+    for (int i = 0; i < workers.length; i++)
+    {
+      final long seed = i;
+      workers[i] = new Thread ("load-" + i)
+      {
+        public void run ()
+        {
+          OnmsLoadGenerator.this.work (new Random (seed), start, end);
+        }
+      };
+      workers[i].start ();
+    }
+
+    long lastSent = 0;
+    for (Thread worker : workers)
+    {
+      while (worker.isAlive ())
+      {
+        worker.join (1000);
+        long sent = this.m_sent.get ();
+        out.println (String.format ("%8.1fs %10d sent %10d failed %10d/s",
+            (System.nanoTime () - start) / 1e9, sent, this.m_failed.get (),
+            sent - lastSent));
+        lastSent = sent;
+      }
+    }
+    this.m_elapsed = System.nanoTime () - start;
+    this.m_pool.close ();
+  }
+
+  /**
+   * Get the result of the load run
+   * 
+   * @return Events, throughput, latency percentiles and sender metrics
+   */
+  public String getReport ()
+  {
+    double seconds = this.m_elapsed / 1e9;
+    return String.format ("Sent %d events, %d failed in %.3fs: %.1f events/s"
+        + "\nLatency %s\nSender %s", this.m_sent.get (), this.m_failed.get (),
+        seconds, this.m_sent.get () / seconds, this.m_histogram,
+        OnmsSenderMetrics.getInstance ());
+  }
+
+  /**
+   * Get the latencies of the sent events
+   * 
+   * @return Latency histogram
+   */
+  public LatencyHistogram getHistogram ()
+  {
+    return this.m_histogram;
+  }
+
+  /**
+   * Set the rate limiter for the generated events
+   * 
+   * @param rateLimiter
+   *          Rate limiter or null to send without limit
+   */
+  public void setRateLimiter (OnmsRateLimiter rateLimiter)
+  {
+    this.m_pool.setRateLimiter (rateLimiter);
+  }
+
+  /**
+   * Send events until the count or the duration is reached
+   * 
+   * @param random
+   *          Random numbers for the UEI mix
+   * @param start
+   *          Start time in nanoseconds
+   * @param end
+   *          End time in nanoseconds for duration mode
+   */
+  private void work (Random random, long start, long end)
+  {
+    long interval = this.m_rate > 0 ? (long) (1e9 * this.m_threads / this.m_rate)
+        : 0;
+    // Spread the first events of the threads over one interval
+    long next = start + random.nextInt (1 + (int) Math.min (interval,
+        Integer.MAX_VALUE - 1));
+
+    while (true)
+    {
+      if (this.m_count > 0 ? this.m_remaining.decrementAndGet () < 0 : System
+          .nanoTime () >= end)
+      {
+        return;
+      }
+
+      long scheduled;
+      if (interval > 0)
+      {
+        scheduled = next;
+        next += interval;
+        long wait;
+        while ((wait = scheduled - System.nanoTime ()) > 0)
+        {
+          LockSupport.parkNanos (wait);
+        }
+      } else
+      {
+        scheduled = System.nanoTime ();
+      }
+
+      try
+      {
+        OnmsEventXml event = this.createEvent (random);
+        this.m_selector.send (this.m_pool, event);
+        this.m_histogram.record (System.nanoTime () - scheduled);
+        this.m_sent.incrementAndGet ();
+      } catch (IOException e)
+      {
+        this.m_failed.incrementAndGet ();
+        log.debug ("Sending load event failed: " + e.getMessage ());
+      } catch (RuntimeException e)
+      {
+        // Keep the thread sending, the run reports the failures
+        this.m_failed.incrementAndGet ();
+        log.error ("Sending load event failed. Error: " + e);
+      }
+    }
+  }
+
+  /**
+   * Build an event with a UEI from the mix
+   * 
+   * @param random
+   *          Random numbers for the UEI mix
+   * @return Event
+   */
+  private OnmsEventXml createEvent (Random random)
+  {
+    OnmsEventXml event = new OnmsEventXml ();
+    int pick = random.nextInt (this.m_weights[this.m_weights.length - 1]);
+    int i = 0;
+    while (pick >= this.m_weights[i])
+    {
+      i++;
+    }
+    event.setUei (this.m_ueis[i]);
+    event.setInterface (this.m_interface);
+    if (this.m_nodeid != null)
+    {
+      event.setNodeId (this.m_nodeid);
+    }
+    for (int p = 0; p < this.m_parms; p++)
+    {
+      event.addParm ("parm" + p, this.m_parmValue);
+    }
+    return event;
+  }
+
+  /**
+   * Parse the UEI mix given as uei[:weight],uei[:weight]
+   * 
+   * @param mix
+   *          UEI mix
+   * @throws ParameterException
+   *           UEI empty or weight not a number of at least 1
+   */
+  private void parseUeis (String mix) throws ParameterException
+  {
+    String[] entries = mix.split (",");
+    this.m_ueis = new String[entries.length];
+    this.m_weights = new int[entries.length];
+    int total = 0;
+    for (int i = 0; i < entries.length; i++)
+    {
+      String uei = entries[i].trim ();
+      int weight = 1;
+      int colon = uei.lastIndexOf (':');
+      if (colon >= 0)
+      {
+        try
+        {
+          weight = Integer.parseInt (uei.substring (colon + 1).trim ());
+        } catch (NumberFormatException e)
+        {
+          throw new ParameterException ("Weight of UEI " + uei
+              + " is not numeric.");
+        }
+        uei = uei.substring (0, colon).trim ();
+      }
+      if (uei.length () == 0)
+      {
+        throw new ParameterException ("UEI mix " + mix
+            + " contains an empty UEI.");
+      }
+      if (weight < 1)
+      {
+        throw new ParameterException ("Weight " + weight + " of UEI " + uei
+            + " must be at least 1.");
+      }
+      if (total > Integer.MAX_VALUE - weight)
+      {
+        throw new ParameterException ("Weights of UEI mix " + mix
+            + " are too large.");
+      }
+      total += weight;
+      this.m_ueis[i] = uei;
+      this.m_weights[i] = total;
+    }
+  }
+}
@@ -0,0 +1,833 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Non-blocking sender for many eventd with a single I/O thread. Any number
+ * of threads hand serialized documents to {@link #send(OnmsEventTarget,
+ * byte[], int)}, which only queues them and wakes the I/O thread. The I/O
+ * thread keeps one {@link SocketChannel} per eventd in a {@link Selector},
+ * connects without blocking within
+ * {@link JSendEventConstants#CONNECT_TIMEOUT}, writes the queued documents of
+ * a connection with gathering writes and discards the replies of eventd. If a
+ * connection fails the partly written document is sent again in full after
+ * the reconnect, the eventd is ejected like by the target selector and
+ * reconnected when the ejection ends. The queue of each eventd is limited to
+ * {@link JSendEventConstants#NIO_MAX_QUEUED_BYTES}, beyond the limit
+ * documents are rejected.
+ * <p>
+ * The documents are queued in an {@link OnmsByteRing} per eventd whose
+ * segments come from a pool shared by all eventd. Events are serialized once
+ * into a buffer reused by the calling thread and copied into the ring, so
+ * nothing is allocated per event. With direct segments the queued documents
+ * are kept off the heap and written to the channel without a further copy.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsNioEngine implements Runnable
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Selector of the I/O thread */
+  private Selector m_selector;
+
+  /** Connections by host:port */
+  private ConcurrentHashMap<String, Connection> m_connections;
+
+  /** Serialization buffer of each thread */
+  private static final ThreadLocal<Staging> STAGING = new ThreadLocal<Staging> ()
+  {
+    protected Staging initialValue ()
+    {
+      return new Staging ();
+    }
+  };
+
+  /** Segments of the rings */
+  private OnmsByteRing.Pool m_pool;
+
+  /** Connections with documents queued by other threads */
+  private ConcurrentLinkedQueue<Connection> m_submitted;
+
+  /** The selector was woken up and has not taken the queued documents yet */
+  private AtomicBoolean m_wakeup;
+
+  /** Connections with new documents, only used by the I/O thread */
+  private List<Connection> m_ready;
+
+  /** Stop the I/O thread */
+  private volatile boolean m_closed;
+
+  /** I/O thread */
+  private Thread m_thread;
+
+  /**
+   * Constructor for an engine without connections queuing on the heap
+   * 
+   * @throws IOException
+   *           Selector can't be opened
+   */
+  public OnmsNioEngine () throws IOException
+  {
+    this (false);
+  }
+
+  /**
+   * Constructor for an engine without connections
+   * 
+   * @param direct
+   *          Queue the documents in direct buffers off the heap
+   * @throws IOException
+   *           Selector can't be opened
+   */
+  public OnmsNioEngine (boolean direct) throws IOException
+  {
+    this.m_selector = Selector.open ();
+    this.m_pool = new OnmsByteRing.Pool (JSendEventConstants.NIO_SEGMENT_SIZE,
+        direct, JSendEventConstants.NIO_POOL_SEGMENTS);
+    this.m_connections = new ConcurrentHashMap<String, Connection> ();
+    this.m_submitted = new ConcurrentLinkedQueue<Connection> ();
+    this.m_wakeup = new AtomicBoolean ();
+    this.m_ready = new ArrayList<Connection> ();
+  }
+
+  /**
+   * Start the I/O thread
+   */
+  public void start ()
+  {
+    this.m_thread = new Thread (this, JSendEventConstants.NIO_THREAD_NAME);
+    this.m_thread.setDaemon (true);
+    this.m_thread.start ();
+  }
+
+  /**
+   * Queue an event and all events added to it as one document
+   * 
+   * @param target
+   *          Eventd to send to
+   * @param event
+   *          Event to send
+   * @return false if the queue of the eventd is full or the engine is closed
+   */
+  public boolean send (OnmsEventTarget target, OnmsEventXml event)
+  {
+    Staging staging = STAGING.get ();
+    staging.serialize (event);
+    return this.send (target, staging.getBuffer (), staging.size (),
+        staging.m_events, staging.m_serializeTime);
+  }
+
+  /**
+   * Queue an event and all events added to it as one document for the first
+   * eventd whose queue is not full
+   * 
+   * @param targets
+   *          Eventd in the order to try
+   * @param event
+   *          Event to send
+   * @return Eventd the event was queued for or null if all queues are full
+   */
+  public OnmsEventTarget sendToFirst (List<OnmsEventTarget> targets,
+      OnmsEventXml event)
+  {
+    Staging staging = STAGING.get ();
+    staging.serialize (event);
+    for (OnmsEventTarget target : targets)
+    {
+      if (this.send (target, staging.getBuffer (), staging.size (),
+          staging.m_events, staging.m_serializeTime))
+      {
+        return target;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Queue an event and all events added to it as one document for every
+   * eventd, the event is serialized once
+   * 
+   * @param targets
+   *          Eventd
+   * @param event
+   *          Event to send
+   * @return Number of eventd whose queue was not full
+   */
+  public int sendToAll (List<OnmsEventTarget> targets, OnmsEventXml event)
+  {
+    Staging staging = STAGING.get ();
+    staging.serialize (event);
+    int queued = 0;
+    for (OnmsEventTarget target : targets)
+    {
+      if (this.send (target, staging.getBuffer (), staging.size (),
+          staging.m_events, staging.m_serializeTime))
+      {
+        queued++;
+      }
+    }
+    return queued;
+  }
+
+  /**
+   * Queue a serialized document
+   * 
+   * @param target
+   *          Eventd to send to
+   * @param document
+   *          Complete &lt;log&gt; document
+   * @param events
+   *          Events in the document
+   * @return false if the queue of the eventd is full or the engine is closed
+   */
+  public boolean send (OnmsEventTarget target, byte[] document, int events)
+  {
+    return this.send (target, document, document.length, events, 0);
+  }
+
+  /**
+   * Check if the documents are queued off the heap
+   * 
+   * @return true for direct buffers
+   */
+  public boolean isDirect ()
+  {
+    return this.m_pool.isDirect ();
+  }
+
+  /**
+   * Get the bytes queued for all eventd
+   * 
+   * @return Bytes not written yet
+   */
+  public long getQueuedBytes ()
+  {
+    long queued = 0;
+    for (Connection connection : this.m_connections.values ())
+    {
+      queued += connection.m_ring.getBytes ();
+    }
+    return queued;
+  }
+
+  /**
+   * Wait until all queued documents are written
+   * 
+   * @param timeout
+   *          Milliseconds to wait at most
+   * @return false if documents are still queued after the timeout
+   * @throws InterruptedException
+   *           Interrupted while waiting
+   */
+  public synchronized boolean flush (long timeout) throws InterruptedException
+  {
+    long end = System.currentTimeMillis () + timeout;
+    while (this.getQueuedBytes () > 0)
+    {
+      long left = end - System.currentTimeMillis ();
+      if (left <= 0)
+      {
+        return false;
+      }
+      this.wait (left);
+    }
+    return true;
+  }
+
+  /**
+   * Stop the I/O thread and close all connections. Documents not written
+   * yet are counted as failed.
+   * 
+   * @throws InterruptedException
+   *           Interrupted while waiting for the I/O thread
+   */
+  public void close () throws InterruptedException
+  {
+    this.m_closed = true;
+    this.m_selector.wakeup ();
+    if (this.m_thread != null)
+    {
+      this.m_thread.join ();
+    }
+  }
+
+  /**
+   * Run the I/O loop until the engine is closed
+   */
+  public void run ()
+  {
+    ByteBuffer readBuffer = ByteBuffer
+        .allocate (JSendEventConstants.NIO_READ_SIZE);
+    ByteBuffer[] gather = new ByteBuffer[JSendEventConstants.NIO_GATHER_BUFFERS];
+    try
+    {
+      while (!this.m_closed)
+      {
+        this.m_selector.select (this.checkTimers ());
+        this.m_wakeup.set (false);
+        this.takeSubmitted ();
+
+        Iterator<SelectionKey> keys = this.m_selector.selectedKeys ()
+            .iterator ();
+        while (keys.hasNext ())
+        {
+          SelectionKey key = keys.next ();
+          keys.remove ();
+          Connection connection = (Connection) key.attachment ();
+          try
+          {
+            if (key.isConnectable ())
+            {
+              this.finishConnect (connection);
+            }
+            if (key.isValid () && key.isReadable ())
+            {
+              this.read (connection, readBuffer);
+            }
+            if (key.isValid () && key.isWritable ())
+            {
+              this.write (connection, gather);
+            }
+          } catch (IOException e)
+          {
+            this.fail (connection, e);
+          }
+        }
+
+        // Write new documents at once instead of waiting for the next select
+        for (Connection connection : this.m_ready)
+        {
+          try
+          {
+            if (connection.m_connected)
+            {
+              this.write (connection, gather);
+            }
+          } catch (IOException e)
+          {
+            this.fail (connection, e);
+          }
+        }
+        this.m_ready.clear ();
+      }
+    } catch (IOException e)
+    {
+      log.error ("NIO engine stopped. Error: " + e.getMessage ());
+    } finally
+    {
+      this.shutdown ();
+    }
+  }
+
+  /**
+   * Queue a serialized document
+   * 
+   * @param target
+   *          Eventd to send to
+   * @param document
+   *          Buffer starting with a complete &lt;log&gt; document
+   * @param length
+   *          Bytes of the document
+   * @param events
+   *          Events in the document
+   * @param serializeTime
+   *          Nanoseconds spent serializing the document
+   * @return false if the queue of the eventd is full or the engine is closed
+   */
+  private boolean send (OnmsEventTarget target, byte[] document, int length,
+      int events, long serializeTime)
+  {
+    if (this.m_closed)
+    {
+      return false;
+    }
+    String key = target.toString ();
+    Connection connection = this.m_connections.get (key);
+    if (connection == null)
+    {
+      connection = new Connection (target, new OnmsByteRing (this.m_pool));
+      Connection existing = this.m_connections.putIfAbsent (key, connection);
+      if (existing != null)
+      {
+        connection = existing;
+      }
+    }
+    target.begin ();
+    if (!connection.m_ring.put (document, 0, length, events, serializeTime,
+        JSendEventConstants.NIO_MAX_QUEUED_BYTES))
+    {
+      // Not counted as failure, the caller may try another eventd
+      target.cancel ();
+      return false;
+    }
+
+    if (connection.m_submitted.get ()
+        || !connection.m_submitted.compareAndSet (false, true))
+    {
+      // The I/O thread has not taken the connection yet
+      return true;
+    }
+    this.m_submitted.offer (connection);
+    if (!this.m_wakeup.get () && this.m_wakeup.compareAndSet (false, true))
+    {
+      this.m_selector.wakeup ();
+    }
+    return true;
+  }
+
+  /**
+   * Take the connections with new documents and connect where necessary
+   */
+  private void takeSubmitted ()
+  {
+    Connection connection;
+    while ((connection = this.m_submitted.poll ()) != null)
+    {
+      connection.m_submitted.set (false);
+      if (connection.m_channel == null)
+      {
+        if (!connection.m_target.isEjected (System.currentTimeMillis ()))
+        {
+          this.connect (connection);
+        }
+      } else if (connection.m_connected && !connection.m_ready)
+      {
+        connection.m_ready = true;
+        this.m_ready.add (connection);
+      }
+    }
+    for (Connection ready : this.m_ready)
+    {
+      ready.m_ready = false;
+    }
+  }
+
+  /**
+   * Connect idle connections with queued documents whose eventd is not
+   * ejected anymore and fail connects which take too long
+   * 
+   * @return Milliseconds until the next timer or 0 if none
+   */
+  private long checkTimers ()
+  {
+    long now = System.currentTimeMillis ();
+    long next = Long.MAX_VALUE;
+    for (Connection connection : this.m_connections.values ())
+    {
+      if (connection.m_channel == null)
+      {
+        if (connection.m_ring.getDocuments () == 0)
+        {
+          continue;
+        }
+        if (!connection.m_target.isEjected (now))
+        {
+          this.connect (connection);
+        }
+        if (connection.m_channel == null)
+        {
+          next = Math.min (next, connection.m_target.getEjectedUntil ());
+          continue;
+        }
+      }
+      if (!connection.m_connected)
+      {
+        if (now >= connection.m_deadline)
+        {
+          this.fail (connection, new SocketTimeoutException (
+              "Connect timed out"));
+          next = Math.min (next, connection.m_target.getEjectedUntil ());
+        } else
+        {
+          next = Math.min (next, connection.m_deadline);
+        }
+      }
+    }
+    return next == Long.MAX_VALUE ? 0 : Math.max (1, next - now);
+  }
+
+  /**
+   * Start a non-blocking connect
+   * 
+   * @param connection
+   *          Connection without channel
+   */
+  private void connect (Connection connection)
+  {
+    try
+    {
+      if (connection.m_address == null || connection.m_address.isUnresolved ())
+      {
+        connection.m_address = new InetSocketAddress (connection.m_target
+            .getHost (), Integer.parseInt (connection.m_target.getPort ()));
+      }
+      connection.m_channel = SocketChannel.open ();
+      connection.m_channel.configureBlocking (false);
+      connection.m_channel.socket ().setTcpNoDelay (true);
+      connection.m_channel.socket ().setKeepAlive (true);
+      connection.m_connectStart = System.nanoTime ();
+      connection.m_deadline = System.currentTimeMillis ()
+          + JSendEventConstants.CONNECT_TIMEOUT;
+      connection.m_key = connection.m_channel.register (this.m_selector,
+          SelectionKey.OP_CONNECT, connection);
+      if (connection.m_channel.connect (connection.m_address))
+      {
+        this.finishConnect (connection);
+      }
+    } catch (IOException e)
+    {
+      this.fail (connection, e);
+    } catch (RuntimeException e)
+    {
+      // Unresolvable address or port not numeric
+      this.fail (connection, new IOException (e.getMessage ()));
+    }
+  }
+
+  /**
+   * Complete a pending connect
+   * 
+   * @param connection
+   *          Connecting connection
+   * @throws IOException
+   *           Connect failed
+   */
+  private void finishConnect (Connection connection) throws IOException
+  {
+    if (!connection.m_channel.finishConnect ())
+    {
+      return;
+    }
+    connection.m_connected = true;
+    OnmsSenderMetrics.getInstance ().connected (
+        System.nanoTime () - connection.m_connectStart);
+    log.debug ("NIO engine connected to eventd " + connection.m_target);
+    this.updateInterest (connection);
+  }
+
+  /**
+   * Discard the replies of eventd
+   * 
+   * @param connection
+   *          Connected connection
+   * @param buffer
+   *          Buffer to read into
+   * @throws IOException
+   *           Error reading or connection closed by eventd
+   */
+  private void read (Connection connection, ByteBuffer buffer)
+      throws IOException
+  {
+    int length;
+    do
+    {
+      buffer.clear ();
+      length = connection.m_channel.read (buffer);
+    } while (length > 0);
+    if (length < 0)
+    {
+      throw new EOFException ("Eventd closed the connection.");
+    }
+  }
+
+  /**
+   * Write as many queued documents as the socket takes in one gathering
+   * write
+   * 
+   * @param connection
+   *          Connected connection
+   * @param gather
+   *          Array for the buffers to write
+   * @throws IOException
+   *           Error writing
+   */
+  private void write (Connection connection, ByteBuffer[] gather)
+      throws IOException
+  {
+    long written = connection.m_ring.write (connection.m_channel, gather,
+        connection);
+    if (written > 0)
+    {
+      OnmsSenderMetrics.getInstance ().bytesWritten (written);
+    }
+    this.updateInterest (connection);
+    if (connection.m_ring.getDocuments () == 0)
+    {
+      synchronized (this)
+      {
+        this.notifyAll ();
+      }
+    }
+  }
+
+  /**
+   * Select writes only while documents are queued
+   * 
+   * @param connection
+   *          Connected connection
+   */
+  private void updateInterest (Connection connection)
+  {
+    connection.m_key.interestOps (connection.m_ring.hasUnwritten ()
+        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+  }
+
+  /**
+   * Close a failed connection and eject its eventd. A partly written document
+   * is kept to be sent again in full.
+   * 
+   * @param connection
+   *          Failed connection
+   * @param error
+   *          Cause
+   */
+  private void fail (Connection connection, IOException error)
+  {
+    int documents = connection.m_ring.getDocuments ();
+    log.warn ("NIO engine lost eventd " + connection.m_target + ", "
+        + documents + " documents queued. Error: " + error.getMessage ());
+    if (!connection.m_connected)
+    {
+      OnmsSenderMetrics.getInstance ().connectFailed ();
+    }
+    this.closeChannel (connection);
+
+    if (documents > 0)
+    {
+      connection.m_ring.rewind ();
+      // Eject the eventd, the head document stays outstanding for the retry
+      connection.m_target.failure ();
+      connection.m_target.begin ();
+    }
+  }
+
+  /**
+   * Close the channel of a connection, errors are ignored
+   * 
+   * @param connection
+   *          Connection
+   */
+  private void closeChannel (Connection connection)
+  {
+    if (connection.m_key != null)
+    {
+      connection.m_key.cancel ();
+      connection.m_key = null;
+    }
+    if (connection.m_channel != null)
+    {
+      try
+      {
+        connection.m_channel.close ();
+      } catch (IOException e)
+      {
+        log.debug ("Error closing channel to eventd " + connection.m_target
+            + ": " + e.getMessage ());
+      }
+      connection.m_channel = null;
+    }
+    connection.m_connected = false;
+  }
+
+  /**
+   * Close all connections and count the documents not written as failed
+   */
+  private void shutdown ()
+  {
+    this.m_closed = true;
+    this.takeSubmitted ();
+    this.m_ready.clear ();
+    for (Connection connection : this.m_connections.values ())
+    {
+      this.closeChannel (connection);
+      connection.m_ring.clear (connection);
+    }
+    try
+    {
+      this.m_selector.close ();
+    } catch (IOException e)
+    {
+      log.debug ("Error closing selector: " + e.getMessage ());
+    }
+    synchronized (this)
+    {
+      this.notifyAll ();
+    }
+  }
+
+  /**
+   * Connection to one eventd, the fields besides the ring and the submitted
+   * flag are only used by the I/O thread
+   */
+  private static class Connection implements OnmsByteRing.Listener
+  {
+    /** Eventd */
+    private final OnmsEventTarget m_target;
+
+    /** Documents to write in order */
+    private final OnmsByteRing m_ring;
+
+    /** Waiting to be taken by the I/O thread */
+    private final AtomicBoolean m_submitted = new AtomicBoolean ();
+
+    /** Resolved address or null before the first connect */
+    private InetSocketAddress m_address;
+
+    /** Channel or null if not connected */
+    private SocketChannel m_channel;
+
+    /** Registration of the channel */
+    private SelectionKey m_key;
+
+    /** Connect completed */
+    private boolean m_connected;
+
+    /** Time in milliseconds the pending connect fails */
+    private long m_deadline;
+
+    /** Start of the pending connect in nanoseconds */
+    private long m_connectStart;
+
+    /** Listed as ready to write */
+    private boolean m_ready;
+
+    /**
+     * Constructor for the connection to an eventd
+     * 
+     * @param target
+     *          Eventd
+     * @param ring
+     *          Queue of the documents
+     */
+    Connection (OnmsEventTarget target, OnmsByteRing ring)
+    {
+      this.m_target = target;
+      this.m_ring = ring;
+    }
+
+    public void written (int events, long serializeTime, long queued)
+    {
+      long sendTime = System.nanoTime () - queued;
+      OnmsSenderMetrics.getInstance ().documentSent (events, serializeTime,
+          sendTime);
+      this.m_target.success (sendTime / 1000000);
+    }
+
+    public void dropped (int events)
+    {
+      OnmsSenderMetrics.getInstance ().eventsFailed (events);
+      this.m_target.failure ();
+    }
+  }
+
+  /**
+   * Serialization buffer of a thread, reused for every event
+   */
+  private static class Staging extends ByteArrayOutputStream
+  {
+    /** Writer serializing into the buffer */
+    private final OnmsEventWriter m_writer;
+
+    /** Events of the last serialized document */
+    private int m_events;
+
+    /** Nanoseconds spent serializing the last document */
+    private long m_serializeTime;
+
+    /**
+     * Constructor for an empty buffer
+     */
+    Staging ()
+    {
+      super (JSendEventConstants.NIO_SEGMENT_SIZE);
+      this.m_writer = new OnmsEventWriter (this);
+    }
+
+    /**
+     * Serialize an event and all events added to it as &lt;log&gt; document,
+     * replacing the last document
+     * 
+     * @param event
+     *          Event
+     */
+    void serialize (OnmsEventXml event)
+    {
+      long start = System.nanoTime ();
+      this.reset ();
+      try
+      {
+        this.m_writer.writeLog (event);
+      } catch (IOException e)
+      {
+        // Not thrown by a ByteArrayOutputStream
+        throw new IllegalStateException (e);
+      }
+      this.m_events = 1 + event.getEvents ().size ();
+      this.m_serializeTime = System.nanoTime () - start;
+    }
+
+    /**
+     * Get the internal buffer
+     * 
+     * @return Buffer holding {@link #size()} bytes
+     */
+    byte[] getBuffer ()
+    {
+      return this.buf;
+    }
+  }
+}
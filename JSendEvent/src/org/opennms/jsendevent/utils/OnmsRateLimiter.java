@@ -0,0 +1,422 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Rate limiting of the events sent by {@link OnmsEventSender} to protect eventd
+ * from event storms. Every event has to pass a global token bucket, a bucket
+ * of its UEI and a bucket of its node, each of them optional. An event with
+ * added events needs a token for every event. Events over the limit are
+ * handled by the policy: they are delayed until the buckets hold enough
+ * tokens, dropped, or spooled and sent later within the global limit. Every
+ * eventd has its own spool for events over the limit, they are only sent to
+ * the eventd they were meant for. Dropped and spooled events are reported in a
+ * summary event.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsRateLimiter
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Global bucket or null */
+  private TokenBucket m_global;
+
+  /** Events per second per UEI, 0 for no limit */
+  private double m_ueiRate;
+
+  /** Events per second per node, 0 for no limit */
+  private double m_nodeRate;
+
+  /** Events which may be sent at once */
+  private int m_burst;
+
+  /** Buckets by UEI */
+  private ConcurrentHashMap<String, TokenBucket> m_ueiBuckets;
+
+  /** Buckets by node id */
+  private ConcurrentHashMap<String, TokenBucket> m_nodeBuckets;
+
+  /** Policy for events over the limit */
+  private String m_policy;
+
+  /** Directory of the spools for events over the limit, null if not spooled */
+  private File m_overflowDirectory;
+
+  /** Spools for events over the limit by target */
+  private ConcurrentHashMap<String, OnmsEventSpool> m_overflows;
+
+  /** Targets without a spool directory when they were checked */
+  private ConcurrentHashMap<String, Boolean> m_noOverflow;
+
+  /** Events over the limit by UEI since the last summary */
+  private ConcurrentHashMap<String, AtomicLong> m_limited;
+
+  /** Target of the last event over the limit */
+  private volatile String m_lastTarget;
+
+  /**
+   * Constructor for a rate limiter
+   * 
+   * @param globalRate
+   *          Events per second over all events, 0 for no limit
+   * @param ueiRate
+   *          Events per second per UEI, 0 for no limit
+   * @param nodeRate
+   *          Events per second per node, 0 for no limit
+   * @param burst
+   *          Events which may be sent at once
+   * @param policy
+   *          Policy for events over the limit: block, drop or spool
+   * @param overflowDirectory
+   *          Directory of the spools of every eventd for the spool policy,
+   *          ignored otherwise
+   * @throws ParameterException
+   *           Policy unknown or spool directory missing
+   */
+  public OnmsRateLimiter (double globalRate, double ueiRate, double nodeRate,
+      int burst, String policy, File overflowDirectory)
+      throws ParameterException
+  {
+    if (!JSendEventConstants.LIMIT_POLICY_BLOCK.equals (policy)
+        && !JSendEventConstants.LIMIT_POLICY_DROP.equals (policy)
+        && !JSendEventConstants.LIMIT_POLICY_SPOOL.equals (policy))
+    {
+      throw new ParameterException ("Rate limit policy " + policy
+          + " is unknown.");
+    }
+    if (JSendEventConstants.LIMIT_POLICY_SPOOL.equals (policy)
+        && overflowDirectory == null)
+    {
+      throw new ParameterException ("Rate limit policy " + policy
+          + " requires a spool directory " + JSendEventConstants.PARM_SPOOL
+          + ".");
+    }
+    if (globalRate > 0)
+    {
+      this.m_global = new TokenBucket (globalRate, burst);
+    }
+    this.m_ueiRate = ueiRate;
+    this.m_nodeRate = nodeRate;
+    this.m_burst = burst;
+    this.m_policy = policy;
+    if (JSendEventConstants.LIMIT_POLICY_SPOOL.equals (policy))
+    {
+      this.m_overflowDirectory = overflowDirectory;
+    }
+    this.m_overflows = new ConcurrentHashMap<String, OnmsEventSpool> ();
+    this.m_noOverflow = new ConcurrentHashMap<String, Boolean> ();
+    this.m_ueiBuckets = new ConcurrentHashMap<String, TokenBucket> ();
+    this.m_nodeBuckets = new ConcurrentHashMap<String, TokenBucket> ();
+    this.m_limited = new ConcurrentHashMap<String, AtomicLong> ();
+  }
+
+  /**
+   * Check if an event may be sent now. Depending on the policy the method
+   * waits until it may be sent, or drops or spools it. With the spool policy
+   * events spooled for the target of the sender are written to the sender as
+   * far as the global limit allows.
+   * 
+   * @param event
+   *          Event to send
+   * @param sender
+   *          Sender of the event
+   * @return true if the event has to be sent, false if it was dropped or
+   *         spooled
+   * @throws IOException
+   *           Error spooling the event or writing spooled events
+   */
+  public boolean acquire (OnmsEventXml event, OnmsEventSender sender)
+      throws IOException
+  {
+    // The summary reports the limit and is not limited itself
+    if (JSendEventConstants.LIMIT_SUMMARY_UEI.equals (event.getUei ()))
+    {
+      return true;
+    }
+    int tokens = 1 + event.getEvents ().size ();
+    List<TokenBucket> buckets = this.getBuckets (event);
+
+    if (JSendEventConstants.LIMIT_POLICY_BLOCK.equals (this.m_policy))
+    {
+      long wait = 0;
+      for (TokenBucket bucket : buckets)
+      {
+        wait = Math.max (wait, bucket.take (tokens));
+      }
+      long until = System.nanoTime () + wait;
+      while ((wait = until - System.nanoTime ()) > 0)
+      {
+        LockSupport.parkNanos (wait);
+      }
+      return true;
+    }
+
+    for (int i = 0; i < buckets.size (); i++)
+    {
+      if (!buckets.get (i).tryTake (tokens))
+      {
+        for (int j = 0; j < i; j++)
+        {
+          buckets.get (j).giveBack (tokens);
+        }
+        this.limited (event, sender, tokens);
+        return false;
+      }
+    }
+
+    OnmsEventSpool overflow = this.getOverflow (sender.getTarget (), false);
+    if (overflow != null && !overflow.isEmpty ())
+    {
+      // Every spooled event needs a token, like the events sent directly
+      overflow.replay (sender, JSendEventConstants.LIMIT_REPLAY_MAX,
+          this.m_global);
+    }
+    return true;
+  }
+
+  /**
+   * Build the summary of the events over the limit since the last summary
+   * 
+   * @return Summary event or null if no event was over the limit
+   */
+  public OnmsEventXml takeSummary ()
+  {
+    long total = 0;
+    List<String[]> counts = new ArrayList<String[]> ();
+    for (Map.Entry<String, AtomicLong> limited : this.m_limited.entrySet ())
+    {
+      long count = limited.getValue ().getAndSet (0);
+      if (count > 0)
+      {
+        total += count;
+        counts.add (new String[] { limited.getKey (), String.valueOf (count) });
+      }
+    }
+    if (total == 0)
+    {
+      return null;
+    }
+
+    OnmsEventXml summary = new OnmsEventXml ();
+    summary.setUei (JSendEventConstants.LIMIT_SUMMARY_UEI);
+    summary.addParm (JSendEventConstants.LIMIT_PARM_POLICY, this.m_policy);
+    summary.addParm (JSendEventConstants.LIMIT_PARM_COUNT, String
+        .valueOf (total));
+    for (String[] count : counts)
+    {
+      summary.addParm (count[0], count[1]);
+    }
+    return summary;
+  }
+
+  /**
+   * Get the target of the last event over the limit, the summary is sent
+   * there
+   * 
+   * @return Target as host:port or null if no event was over the limit
+   */
+  public String getLastTarget ()
+  {
+    return this.m_lastTarget;
+  }
+
+  /**
+   * Get the spool for events over the limit of a target. A spool left by an
+   * earlier run is opened when the target is seen first.
+   * 
+   * @param target
+   *          Target as host:port
+   * @param create
+   *          Create the spool if it does not exist
+   * @return Spool or null if not spooled or the spool does not exist
+   * @throws IOException
+   *           Spool can't be opened
+   */
+  private OnmsEventSpool getOverflow (String target, boolean create)
+      throws IOException
+  {
+    if (this.m_overflowDirectory == null)
+    {
+      return null;
+    }
+    OnmsEventSpool spool = this.m_overflows.get (target);
+    if (spool != null || !create && this.m_noOverflow.containsKey (target))
+    {
+      return spool;
+    }
+    synchronized (this.m_overflows)
+    {
+      spool = this.m_overflows.get (target);
+      if (spool != null)
+      {
+        return spool;
+      }
+      int colon = target.lastIndexOf (':');
+      File directory = OnmsEventSpool.getTargetDirectory (
+          this.m_overflowDirectory, target.substring (0, colon), target
+              .substring (colon + 1));
+      if (!create && !directory.isDirectory ())
+      {
+        this.m_noOverflow.put (target, Boolean.TRUE);
+        return null;
+      }
+      spool = new OnmsEventSpool (directory);
+      this.m_overflows.put (target, spool);
+      this.m_noOverflow.remove (target);
+      OnmsSenderMetrics.getInstance ().addQueue (spool);
+      log.debug ("Opened spool " + directory + " for events over the limit");
+      return spool;
+    }
+  }
+
+  /**
+   * Get the buckets an event has to pass
+   * 
+   * @param event
+   *          Event to send
+   * @return Global, UEI and node bucket as far as limited
+   */
+  private List<TokenBucket> getBuckets (OnmsEventXml event)
+  {
+    List<TokenBucket> buckets = new ArrayList<TokenBucket> (3);
+    if (this.m_ueiRate > 0 && event.getUei () != null)
+    {
+      addBucket (buckets, this.m_ueiBuckets, event.getUei (), this.m_ueiRate,
+          this.m_burst);
+    }
+    if (this.m_nodeRate > 0 && event.getNodeId () != null)
+    {
+      addBucket (buckets, this.m_nodeBuckets, event.getNodeId (),
+          this.m_nodeRate, this.m_burst);
+    }
+    if (this.m_global != null)
+    {
+      buckets.add (this.m_global);
+    }
+    return buckets;
+  }
+
+  /**
+   * Add the bucket for a key, create it on first use. If there are too many
+   * keys no bucket is created and only the global limit applies.
+   * 
+   * @param buckets
+   *          Buckets of the event
+   * @param keyBuckets
+   *          Buckets by key
+   * @param key
+   *          UEI or node id
+   * @param rate
+   *          Events per second per key
+   * @param burst
+   *          Events which may be sent at once
+   */
+  private static void addBucket (List<TokenBucket> buckets,
+      ConcurrentHashMap<String, TokenBucket> keyBuckets, String key,
+      double rate, int burst)
+  {
+    TokenBucket bucket = keyBuckets.get (key);
+    if (bucket == null)
+    {
+      if (keyBuckets.size () >= JSendEventConstants.LIMIT_MAX_BUCKETS)
+      {
+        return;
+      }
+      bucket = new TokenBucket (rate, burst);
+      TokenBucket existing = keyBuckets.putIfAbsent (key, bucket);
+      if (existing != null)
+      {
+        bucket = existing;
+      }
+    }
+    buckets.add (bucket);
+  }
+
+  /**
+   * Drop or spool an event over the limit
+   * 
+   * @param event
+   *          Event over the limit
+   * @param sender
+   *          Sender of the event
+   * @param tokens
+   *          Events in the event
+   * @throws IOException
+   *           Error spooling the event
+   */
+  private void limited (OnmsEventXml event, OnmsEventSender sender,
+      int tokens) throws IOException
+  {
+    if (this.m_overflowDirectory != null)
+    {
+      this.getOverflow (sender.getTarget (), true).append (
+          OnmsEventWriter.toByteArray (event));
+    }
+    String uei = String.valueOf (event.getUei ());
+    AtomicLong count = this.m_limited.get (uei);
+    if (count == null)
+    {
+      count = new AtomicLong ();
+      AtomicLong existing = this.m_limited.putIfAbsent (uei, count);
+      if (existing != null)
+      {
+        count = existing;
+      }
+    }
+    count.addAndGet (tokens);
+    this.m_lastTarget = sender.getTarget ();
+    if (log.isDebugEnabled ())
+    {
+      log.debug ("Event " + uei + " over the rate limit, policy "
+          + this.m_policy);
+    }
+  }
+}
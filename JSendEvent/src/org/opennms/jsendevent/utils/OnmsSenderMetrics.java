@@ -0,0 +1,395 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+
+/**
+ * Metrics of all event senders in the process, exposed as JMX MBean
+ * {@link JSendEventConstants#METRICS_OBJECT_NAME} once {@link #register()} is
+ * called. Only long running modes register, a single event does not start
+ * the platform MBean server. Counters are striped and times are recorded in
+ * lock-free histograms, so the metrics are always on without slowing down
+ * concurrent senders.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsSenderMetrics implements OnmsSenderMetricsMBean
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Nanoseconds per millisecond */
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  /** Metrics of the process */
+  private static final OnmsSenderMetrics INSTANCE = new OnmsSenderMetrics ();
+
+  /** Registered at the MBean server */
+  private AtomicBoolean m_registered = new AtomicBoolean ();
+
+  /** Events built */
+  private StripedCounter m_eventsCreated = new StripedCounter ();
+
+  /** Events written */
+  private StripedCounter m_eventsSent = new StripedCounter ();
+
+  /** Events not written */
+  private StripedCounter m_eventsFailed = new StripedCounter ();
+
+  /** Events dropped by a full queue */
+  private StripedCounter m_eventsDropped = new StripedCounter ();
+
+  /** Documents written */
+  private StripedCounter m_documentsSent = new StripedCounter ();
+
+  /** Bytes written */
+  private StripedCounter m_bytesWritten = new StripedCounter ();
+
+  /** Connections opened */
+  private StripedCounter m_connects = new StripedCounter ();
+
+  /** Connections not opened */
+  private StripedCounter m_connectFailures = new StripedCounter ();
+
+  /** Time to open a connection */
+  private LatencyHistogram m_connectTime = new LatencyHistogram ();
+
+  /** Time to serialize a document */
+  private LatencyHistogram m_serializeTime = new LatencyHistogram ();
+
+  /** Time to write a serialized document */
+  private LatencyHistogram m_sendTime = new LatencyHistogram ();
+
+  /** Time to build the XML DOM of an event */
+  private LatencyHistogram m_domBuildTime = new LatencyHistogram ();
+
+  /** Spools holding events for eventd */
+  private CopyOnWriteArrayList<OnmsEventSpool> m_queues = new CopyOnWriteArrayList<OnmsEventSpool> ();
+
+  /**
+   * Get the metrics of the process
+   * 
+   * @return Metrics
+   */
+  public static OnmsSenderMetrics getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  /**
+   * Register the metrics at the platform MBean server, only the first call
+   * registers. A failed registration is logged, the metrics are still
+   * recorded.
+   */
+  public void register ()
+  {
+    if (!this.m_registered.compareAndSet (false, true))
+    {
+      return;
+    }
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer ().registerMBean (this,
+          new ObjectName (JSendEventConstants.METRICS_OBJECT_NAME));
+    } catch (InstanceAlreadyExistsException e)
+    {
+      log.debug ("Sender metrics already registered");
+    } catch (JMException e)
+    {
+      log.warn ("Error registering sender metrics: " + e.getMessage ());
+    }
+  }
+
+  /**
+   * Count a built event
+   */
+  public void eventCreated ()
+  {
+    this.m_eventsCreated.increment ();
+  }
+
+  /**
+   * Count a document written to eventd
+   * 
+   * @param events
+   *          Events in the document, 0 if not known
+   * @param serializeNanos
+   *          Nanoseconds to serialize the document
+   * @param sendNanos
+   *          Nanoseconds to write the document
+   */
+  public void documentSent (int events, long serializeNanos, long sendNanos)
+  {
+    this.m_documentsSent.increment ();
+    this.m_eventsSent.add (events);
+    this.m_serializeTime.record (serializeNanos);
+    this.m_sendTime.record (sendNanos);
+  }
+
+  /**
+   * Count events which could not be written to eventd
+   * 
+   * @param events
+   *          Events not written
+   */
+  public void eventsFailed (int events)
+  {
+    this.m_eventsFailed.add (events);
+  }
+
+  /**
+   * Count events dropped by the overflow policy of a full queue
+   * 
+   * @param events
+   *          Events dropped
+   */
+  public void eventsDropped (int events)
+  {
+    this.m_eventsDropped.add (events);
+  }
+
+  /**
+   * Count bytes written to eventd
+   * 
+   * @param bytes
+   *          Bytes written
+   */
+  public void bytesWritten (long bytes)
+  {
+    this.m_bytesWritten.add (bytes);
+  }
+
+  /**
+   * Count an opened connection
+   * 
+   * @param nanos
+   *          Nanoseconds to open the connection
+   */
+  public void connected (long nanos)
+  {
+    this.m_connects.increment ();
+    this.m_connectTime.record (nanos);
+  }
+
+  /**
+   * Count a connection which could not be opened
+   */
+  public void connectFailed ()
+  {
+    this.m_connectFailures.increment ();
+  }
+
+  /**
+   * Record the time to build the XML DOM of an event
+   * 
+   * @param nanos
+   *          Nanoseconds to build the DOM
+   */
+  public void domBuilt (long nanos)
+  {
+    this.m_domBuildTime.record (nanos);
+  }
+
+  /**
+   * Add a spool to the queue depth
+   * 
+   * @param spool
+   *          Spool holding events for eventd
+   */
+  public void addQueue (OnmsEventSpool spool)
+  {
+    this.m_queues.addIfAbsent (spool);
+  }
+
+  /**
+   * Remove a spool from the queue depth
+   * 
+   * @param spool
+   *          Spool added before
+   */
+  public void removeQueue (OnmsEventSpool spool)
+  {
+    this.m_queues.remove (spool);
+  }
+
+  public long getEventsCreated ()
+  {
+    return this.m_eventsCreated.get ();
+  }
+
+  public long getEventsSent ()
+  {
+    return this.m_eventsSent.get ();
+  }
+
+  public long getEventsFailed ()
+  {
+    return this.m_eventsFailed.get ();
+  }
+
+  public long getEventsDropped ()
+  {
+    return this.m_eventsDropped.get ();
+  }
+
+  public long getDocumentsSent ()
+  {
+    return this.m_documentsSent.get ();
+  }
+
+  public long getBytesWritten ()
+  {
+    return this.m_bytesWritten.get ();
+  }
+
+  public long getConnects ()
+  {
+    return this.m_connects.get ();
+  }
+
+  public long getConnectFailures ()
+  {
+    return this.m_connectFailures.get ();
+  }
+
+  public long getQueueDepth ()
+  {
+    long depth = 0;
+    for (OnmsEventSpool spool : this.m_queues)
+    {
+      depth += spool.size ();
+    }
+    return depth;
+  }
+
+  public double getConnectTimeMean ()
+  {
+    return this.m_connectTime.getMean () / NANOS_PER_MILLI;
+  }
+
+  public double getConnectTimeP99 ()
+  {
+    return this.m_connectTime.getPercentile (99) / NANOS_PER_MILLI;
+  }
+
+  public double getConnectTimeMax ()
+  {
+    return this.m_connectTime.getMax () / NANOS_PER_MILLI;
+  }
+
+  public double getSerializeTimeMean ()
+  {
+    return this.m_serializeTime.getMean () / NANOS_PER_MILLI;
+  }
+
+  public double getSerializeTimeP99 ()
+  {
+    return this.m_serializeTime.getPercentile (99) / NANOS_PER_MILLI;
+  }
+
+  public double getSerializeTimeMax ()
+  {
+    return this.m_serializeTime.getMax () / NANOS_PER_MILLI;
+  }
+
+  public double getSendTimeMean ()
+  {
+    return this.m_sendTime.getMean () / NANOS_PER_MILLI;
+  }
+
+  public double getSendTimeP99 ()
+  {
+    return this.m_sendTime.getPercentile (99) / NANOS_PER_MILLI;
+  }
+
+  public double getSendTimeMax ()
+  {
+    return this.m_sendTime.getMax () / NANOS_PER_MILLI;
+  }
+
+  public double getDomBuildTimeMean ()
+  {
+    return this.m_domBuildTime.getMean () / NANOS_PER_MILLI;
+  }
+
+  public double getDomBuildTimeMax ()
+  {
+    return this.m_domBuildTime.getMax () / NANOS_PER_MILLI;
+  }
+
+  public void reset ()
+  {
+    this.m_eventsCreated.reset ();
+    this.m_eventsSent.reset ();
+    this.m_eventsFailed.reset ();
+    this.m_eventsDropped.reset ();
+    this.m_documentsSent.reset ();
+    this.m_bytesWritten.reset ();
+    this.m_connects.reset ();
+    this.m_connectFailures.reset ();
+    this.m_connectTime.reset ();
+    this.m_serializeTime.reset ();
+    this.m_sendTime.reset ();
+    this.m_domBuildTime.reset ();
+  }
+
+  /**
+   * Summary of the metrics
+   * 
+   * @return Counters and times as text
+   */
+  public String toString ()
+  {
+    return "events=" + this.getEventsSent () + " failed="
+        + this.getEventsFailed () + " dropped=" + this.getEventsDropped ()
+        + " documents=" + this.getDocumentsSent ()
+        + " bytes=" + this.getBytesWritten () + " connects="
+        + this.getConnects () + " connectFailures="
+        + this.getConnectFailures () + " queue=" + this.getQueueDepth ()
+        + "\nconnect " + this.m_connectTime + "\nserialize "
+        + this.m_serializeTime + "\nsend " + this.m_sendTime;
+  }
+}
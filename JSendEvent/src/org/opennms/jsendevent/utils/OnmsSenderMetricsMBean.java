@@ -0,0 +1,150 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+/**
+ * JMX management interface of the {@link OnmsSenderMetrics}. Times are given
+ * in milliseconds.
+ * 
+ * @author indigo@open-factory.org
+ */
+public interface OnmsSenderMetricsMBean
+{
+  /**
+   * @return Events built
+   */
+  long getEventsCreated ();
+
+  /**
+   * @return Events written to eventd
+   */
+  long getEventsSent ();
+
+  /**
+   * @return Events which could not be written to eventd
+   */
+  long getEventsFailed ();
+
+  /**
+   * @return Events dropped by the overflow policy of a full queue
+   */
+  long getEventsDropped ();
+
+  /**
+   * @return Documents written to eventd, including spooled documents
+   */
+  long getDocumentsSent ();
+
+  /**
+   * @return Bytes written to eventd
+   */
+  long getBytesWritten ();
+
+  /**
+   * @return Connections opened to eventd
+   */
+  long getConnects ();
+
+  /**
+   * @return Connections to eventd which could not be opened
+   */
+  long getConnectFailures ();
+
+  /**
+   * @return Events waiting in the spools
+   */
+  long getQueueDepth ();
+
+  /**
+   * @return Mean time to open a connection
+   */
+  double getConnectTimeMean ();
+
+  /**
+   * @return 99th percentile of the time to open a connection
+   */
+  double getConnectTimeP99 ();
+
+  /**
+   * @return Maximum time to open a connection
+   */
+  double getConnectTimeMax ();
+
+  /**
+   * @return Mean time to serialize a document
+   */
+  double getSerializeTimeMean ();
+
+  /**
+   * @return 99th percentile of the time to serialize a document
+   */
+  double getSerializeTimeP99 ();
+
+  /**
+   * @return Maximum time to serialize a document
+   */
+  double getSerializeTimeMax ();
+
+  /**
+   * @return Mean time to write a serialized document to eventd
+   */
+  double getSendTimeMean ();
+
+  /**
+   * @return 99th percentile of the time to write a serialized document
+   */
+  double getSendTimeP99 ();
+
+  /**
+   * @return Maximum time to write a serialized document to eventd
+   */
+  double getSendTimeMax ();
+
+  /**
+   * @return Mean time to build the XML DOM of an event
+   */
+  double getDomBuildTimeMean ();
+
+  /**
+   * @return Maximum time to build the XML DOM of an event
+   */
+  double getDomBuildTimeMax ();
+
+  /**
+   * Set all counters and times back to 0
+   */
+  void reset ();
+}
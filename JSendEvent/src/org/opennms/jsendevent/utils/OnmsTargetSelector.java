@@ -0,0 +1,350 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.opennms.jsendevent.JSendEventConstants;
+import org.opennms.jsendevent.exceptions.ParameterException;
+
+/**
+ * Selects one of several OpenNMS eventd for each event. The strategies are
+ * <ul>
+ * <li>failover: the first healthy eventd in the given order</li>
+ * <li>roundrobin: the healthy eventd in turn</li>
+ * <li>leastoutstanding: the healthy eventd with the fewest events in
+ * progress</li>
+ * <li>all: every eventd, the events are sent with {@link OnmsEventFanOut}</li>
+ * </ul>
+ * If sending to the selected eventd fails it is ejected and the next one is
+ * tried. Ejected eventd are only tried if all eventd are ejected.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class OnmsTargetSelector
+{
+  /** Logging */
+  private static Logger log = Logger.getRootLogger ();
+
+  /** Orders ejected targets by the end of the ejection */
+  private static final Comparator<OnmsEventTarget> EJECTION_ORDER = new Comparator<OnmsEventTarget> ()
+  {
+    public int compare (OnmsEventTarget t1, OnmsEventTarget t2)
+    {
+      long e1 = t1.getEjectedUntil ();
+      long e2 = t2.getEjectedUntil ();
+      return e1 < e2 ? -1 : (e1 == e2 ? 0 : 1);
+    }
+  };
+
+  /** Targets in the given order */
+  private List<OnmsEventTarget> m_targets;
+
+  /** Selection strategy */
+  private String m_strategy;
+
+  /** Counter for round robin */
+  private AtomicInteger m_next;
+
+  /**
+   * Constructor for a target list given as host[:port],host[:port]
+   * 
+   * @param hosts
+   *          Comma separated hosts with optional port
+   * @param port
+   *          TCP port for hosts without port
+   * @param strategy
+   *          Selection strategy or null for failover
+   * @throws ParameterException
+   *           Unknown strategy or port not numeric
+   */
+  public OnmsTargetSelector (String hosts, String port, String strategy)
+      throws ParameterException
+  {
+    if (strategy == null)
+    {
+      strategy = JSendEventConstants.STRATEGY_FAILOVER;
+    }
+    if (!strategy.equals (JSendEventConstants.STRATEGY_FAILOVER)
+        && !strategy.equals (JSendEventConstants.STRATEGY_ROUNDROBIN)
+        && !strategy.equals (JSendEventConstants.STRATEGY_LEASTOUTSTANDING)
+        && !strategy.equals (JSendEventConstants.STRATEGY_ALL))
+    {
+      throw new ParameterException ("Strategy " + strategy + " is unknown.");
+    }
+    this.m_strategy = strategy;
+    this.m_next = new AtomicInteger ();
+    this.m_targets = new ArrayList<OnmsEventTarget> ();
+
+    for (String host : hosts.split (JSendEventConstants.TARGET_SEPARATOR))
+    {
+      host = host.trim ();
+      String targetPort = port;
+      int colon = host.indexOf (':');
+      if (colon >= 0)
+      {
+        targetPort = host.substring (colon + 1);
+        host = host.substring (0, colon);
+      }
+      try
+      {
+        Integer.parseInt (targetPort);
+      } catch (NumberFormatException e)
+      {
+        throw new ParameterException ("TCP-Port: " + targetPort
+            + " is not correct.");
+      }
+      if (host.length () > 0)
+      {
+        this.m_targets.add (new OnmsEventTarget (host, targetPort));
+      }
+    }
+    if (this.m_targets.isEmpty ())
+    {
+      throw new ParameterException ("No host given.");
+    }
+  }
+
+  /**
+   * Get all targets
+   * 
+   * @return Targets in the given order
+   */
+  public List<OnmsEventTarget> getTargets ()
+  {
+    return this.m_targets;
+  }
+
+  /**
+   * Check if every event is sent to all targets
+   * 
+   * @return true for the strategy all
+   */
+  public boolean isFanOut ()
+  {
+    return this.m_strategy.equals (JSendEventConstants.STRATEGY_ALL);
+  }
+
+  /**
+   * Get the targets in the order they should be tried for the next event.
+   * Healthy targets are ordered by the strategy, ejected targets follow by
+   * the end of their ejection.
+   * 
+   * @return Targets to try
+   */
+  public List<OnmsEventTarget> select ()
+  {
+    long now = System.currentTimeMillis ();
+    int size = this.m_targets.size ();
+    List<OnmsEventTarget> healthy = new ArrayList<OnmsEventTarget> (size);
+    List<OnmsEventTarget> ejected = new ArrayList<OnmsEventTarget> (0);
+
+    int start = 0;
+    if (!this.m_strategy.equals (JSendEventConstants.STRATEGY_FAILOVER)
+        && !this.m_strategy.equals (JSendEventConstants.STRATEGY_ALL))
+    {
+      start = (this.m_next.getAndIncrement () & Integer.MAX_VALUE) % size;
+    }
+    for (int i = 0; i < size; i++)
+    {
+      OnmsEventTarget target = this.m_targets.get ((start + i) % size);
+      if (target.isEjected (now))
+      {
+        ejected.add (target);
+      } else
+      {
+        healthy.add (target);
+      }
+    }
+
+    if (this.m_strategy.equals (JSendEventConstants.STRATEGY_LEASTOUTSTANDING)
+        && healthy.size () > 1)
+    {
+      // Stable sort keeps the round robin order for equal targets
+      Collections.sort (healthy, new Comparator<OnmsEventTarget> ()
+      {
+        public int compare (OnmsEventTarget t1, OnmsEventTarget t2)
+        {
+          return t1.getOutstanding () - t2.getOutstanding ();
+        }
+      });
+    }
+    Collections.sort (ejected, EJECTION_ORDER);
+    healthy.addAll (ejected);
+    return healthy;
+  }
+
+  /**
+   * Connect the sender to the first reachable target
+   * 
+   * @param sender
+   *          Sender without connection
+   * @return Connected target
+   * @throws IOException
+   *           No target reachable
+   */
+  public OnmsEventTarget connect (OnmsEventSender sender) throws IOException
+  {
+    IOException error = null;
+    for (OnmsEventTarget target : this.select ())
+    {
+      target.begin ();
+      long start = System.currentTimeMillis ();
+      try
+      {
+        sender.setConnection (target.getHost (), target.getPort ());
+        target.success (System.currentTimeMillis () - start);
+        return target;
+      } catch (IOException e)
+      {
+        target.failure ();
+        log.warn ("Eventd " + target + " not reachable. Error: "
+            + e.getMessage ());
+        error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Get a pooled connection to the first reachable target
+   * 
+   * @param pool
+   *          Connection pool
+   * @return Pooled connection
+   * @throws IOException
+   *           No target reachable
+   */
+  public OnmsEventSender borrow (OnmsConnectionPool pool) throws IOException
+  {
+    IOException error = null;
+    for (OnmsEventTarget target : this.select ())
+    {
+      try
+      {
+        return pool.borrow (target.getHost (), target.getPort ());
+      } catch (IOException e)
+      {
+        target.begin ();
+        target.failure ();
+        log.warn ("Eventd " + target + " not reachable. Error: "
+            + e.getMessage ());
+        error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Send an event over a pooled connection to the selected target. If sending
+   * fails the next target is tried.
+   * 
+   * @param pool
+   *          Connection pool
+   * @param event
+   *          Event to send
+   * @return Target the event was sent to
+   * @throws IOException
+   *           Event could not be sent to any target
+   */
+  public OnmsEventTarget send (OnmsConnectionPool pool, OnmsEventXml event)
+      throws IOException
+  {
+    IOException error = null;
+    for (OnmsEventTarget target : this.select ())
+    {
+      target.begin ();
+      long start = System.currentTimeMillis ();
+      try
+      {
+        pool.send (target.getHost (), target.getPort (), event);
+        target.success (System.currentTimeMillis () - start);
+        return target;
+      } catch (IOException e)
+      {
+        target.failure ();
+        log.warn ("Sending to eventd " + target + " failed. Error: "
+            + e.getMessage ());
+        error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Send a serialized &lt;log&gt; document over a pooled connection to the
+   * selected target. If sending fails the next target is tried.
+   * 
+   * @param pool
+   *          Connection pool
+   * @param document
+   *          Serialized document
+   * @param events
+   *          Events in the document
+   * @return Target the document was sent to
+   * @throws IOException
+   *           Document could not be sent to any target
+   */
+  public OnmsEventTarget send (OnmsConnectionPool pool, byte[] document,
+      int events) throws IOException
+  {
+    IOException error = null;
+    for (OnmsEventTarget target : this.select ())
+    {
+      target.begin ();
+      long start = System.currentTimeMillis ();
+      try
+      {
+        pool.send (target.getHost (), target.getPort (), document, events);
+        target.success (System.currentTimeMillis () - start);
+        return target;
+      } catch (IOException e)
+      {
+        target.failure ();
+        log.warn ("Sending to eventd " + target + " failed. Error: "
+            + e.getMessage ());
+        error = e;
+      }
+    }
+    throw error;
+  }
+}
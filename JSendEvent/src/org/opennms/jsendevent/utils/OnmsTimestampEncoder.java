@@ -0,0 +1,244 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encoder for the event time as eventd expects it: full date and time in GMT
+ * as written by {@link DateFormat#FULL}. The formatted text
+ * and its UTF-8 bytes are cached for the current second, so all events within
+ * one second share them. Older times, for example of backfilled events, are
+ * formatted without replacing the cache. The encoder holds no mutable state
+ * besides the immutable cache entry and may be used by any number of threads.
+ * 
+ * @author indigo@open-factory.org
+ */
+public final class OnmsTimestampEncoder
+{
+  /** Encoder of the process */
+  private static final OnmsTimestampEncoder INSTANCE = new OnmsTimestampEncoder ();
+
+  /** Formats per thread, DateFormat is not thread-safe */
+  private static final ThreadLocal<DateFormat> FORMAT = new ThreadLocal<DateFormat> ()
+  {
+    protected DateFormat initialValue ()
+    {
+      DateFormat format = DateFormat.getDateTimeInstance (DateFormat.FULL,
+          DateFormat.FULL);
+      format.setTimeZone (TimeZone.getTimeZone ("GMT"));
+      format.setLenient (false);
+      return format;
+    }
+  };
+
+  /** Time of the last formatted second */
+  private final AtomicReference<Second> m_cache;
+
+  /**
+   * Get the encoder of the process
+   * 
+   * @return Encoder
+   */
+  public static OnmsTimestampEncoder getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  /**
+   * Constructor for an encoder with its own cache
+   */
+  public OnmsTimestampEncoder ()
+  {
+    this.m_cache = new AtomicReference<Second> (new Second (Long.MIN_VALUE,
+        null, null));
+  }
+
+  /**
+   * Format the current time
+   * 
+   * @return Event time
+   */
+  public String now ()
+  {
+    return this.second (System.currentTimeMillis ()).m_text;
+  }
+
+  /**
+   * Format a time
+   * 
+   * @param millis
+   *          Milliseconds since the epoch
+   * @return Event time
+   */
+  public String format (long millis)
+  {
+    return this.second (millis).m_text;
+  }
+
+  /**
+   * Encode a time as UTF-8. The returned array is shared and must not be
+   * modified.
+   * 
+   * @param millis
+   *          Milliseconds since the epoch
+   * @return Event time as UTF-8 bytes
+   */
+  public byte[] encode (long millis)
+  {
+    return this.second (millis).m_bytes;
+  }
+
+  /**
+   * Check if a time is given as milliseconds since the epoch
+   * 
+   * @param value
+   *          Time
+   * @return True if the time only consists of up to 18 digits
+   */
+  public static boolean isEpoch (String value)
+  {
+    for (int i = 0; i < value.length (); i++)
+    {
+      char c = value.charAt (i);
+      if (c < '0' || c > '9')
+      {
+        return false;
+      }
+    }
+    return value.length () > 0 && value.length () < 19;
+  }
+
+  /**
+   * Parse a time given as milliseconds since the epoch or as written by
+   * {@link #format(long)}
+   * 
+   * @param value
+   *          Time
+   * @return Milliseconds since the epoch
+   * @throws ParseException
+   *           Neither milliseconds nor a complete event time
+   */
+  public static long parse (String value) throws ParseException
+  {
+    if (isEpoch (value))
+    {
+      return Long.parseLong (value);
+    }
+    ParsePosition position = new ParsePosition (0);
+    Date date = FORMAT.get ().parse (value, position);
+    if (date == null || position.getIndex () != value.length ())
+    {
+      throw new ParseException ("Unparseable time: \"" + value + "\"",
+          Math.max (position.getErrorIndex (), position.getIndex ()));
+    }
+    return date.getTime ();
+  }
+
+  /**
+   * Get the formatted second of a time, from the cache if possible
+   * 
+   * @param millis
+   *          Milliseconds since the epoch
+   * @return Formatted second
+   */
+  private Second second (long millis)
+  {
+    // Round down to the second, also for times before 1970
+    long second = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+    Second cached = this.m_cache.get ();
+    if (cached.m_second == second)
+    {
+      return cached;
+    }
+
+    String text = FORMAT.get ().format (new Date (second * 1000));
+    Second formatted;
+    try
+    {
+      formatted = new Second (second, text, text.getBytes ("UTF-8"));
+    } catch (UnsupportedEncodingException e)
+    {
+      // UTF-8 is supported by every Java runtime
+      throw new IllegalStateException (e);
+    }
+    // Keep the latest second, a backfill must not evict the current time
+    while (second > cached.m_second
+        && !this.m_cache.compareAndSet (cached, formatted))
+    {
+      cached = this.m_cache.get ();
+    }
+    return formatted;
+  }
+
+  /**
+   * Formatted second
+   */
+  private static final class Second
+  {
+    /** Seconds since the epoch */
+    private final long m_second;
+
+    /** Formatted time */
+    private final String m_text;
+
+    /** Formatted time as UTF-8 */
+    private final byte[] m_bytes;
+
+    /**
+     * Constructor for a formatted second
+     * 
+     * @param second
+     *          Seconds since the epoch
+     * @param text
+     *          Formatted time
+     * @param bytes
+     *          Formatted time as UTF-8
+     */
+    Second (long second, String text, byte[] bytes)
+    {
+      this.m_second = second;
+      this.m_text = text;
+      this.m_bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,524 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer encoding the text of events as UTF-8 with XML escaping.
+ * Escaping, splitting of CDATA sections and encoding are done in one scan over
+ * the characters: runs of ASCII characters without escape are copied in one
+ * piece, entities and non-ASCII characters are encoded in between. Unlike a
+ * Writer there is no second pass through a charset encoder.
+ * Shared by the {@link OnmsEventWriter} and the {@link OnmsEventTemplate} so
+ * both write the same bytes for the same text. An encoder must only be used by
+ * one thread at a time.
+ * 
+ * @author indigo@open-factory.org
+ */
+final class OnmsXmlEncoder
+{
+  /** Entities of ASCII characters in text content, null if not escaped */
+  private static final byte[][] TEXT_ENTITIES = new byte[0x80][];
+
+  /** Entities of ASCII characters in quoted attribute values */
+  private static final byte[][] ATTRIBUTE_ENTITIES = new byte[0x80][];
+
+  /** Start of a CDATA section */
+  private static final byte[] CDATA_START = ascii ("<![CDATA[");
+
+  /** End of a CDATA section */
+  private static final byte[] CDATA_END = ascii ("]]>");
+
+  /** End and start of a section splitting ]]&gt; between ]] and &gt; */
+  private static final byte[] CDATA_SPLIT = ascii ("]]><![CDATA[");
+
+  /** References of control characters which end a CDATA section */
+  private static final byte[][] CDATA_REFERENCES = new byte[0x20][];
+
+  static
+  {
+    for (char c = 0; c < 0x20; c++)
+    {
+      if (c != '\t' && c != '\n' && c != '\r')
+      {
+        TEXT_ENTITIES[c] = ascii ("&#" + (int) c + ";");
+        CDATA_REFERENCES[c] = TEXT_ENTITIES[c];
+      }
+    }
+    TEXT_ENTITIES['&'] = ascii ("&amp;");
+    TEXT_ENTITIES['<'] = ascii ("&lt;");
+    TEXT_ENTITIES['>'] = ascii ("&gt;");
+    TEXT_ENTITIES['\r'] = ascii ("&#13;");
+    System.arraycopy (TEXT_ENTITIES, 0, ATTRIBUTE_ENTITIES, 0, 0x80);
+    ATTRIBUTE_ENTITIES['"'] = ascii ("&quot;");
+    // Kept by the parser instead of being normalized to a space
+    ATTRIBUTE_ENTITIES['\n'] = ascii ("&#10;");
+    ATTRIBUTE_ENTITIES['\t'] = ascii ("&#9;");
+  }
+
+  /** Bytes */
+  private byte[] m_buffer;
+
+  /** Number of bytes written */
+  private int m_length;
+
+  /** Characters of the text being scanned, faster to scan than the string */
+  private char[] m_chars = new char[64];
+
+  /**
+   * Constructor for an encoder with an initial size
+   * 
+   * @param size
+   *          Initial size in bytes
+   */
+  OnmsXmlEncoder (int size)
+  {
+    this.m_buffer = new byte[Math.max (16, size)];
+  }
+
+  /**
+   * Write bytes
+   * 
+   * @param bytes
+   *          Bytes
+   */
+  void write (byte[] bytes)
+  {
+    this.ensure (bytes.length);
+    System.arraycopy (bytes, 0, this.m_buffer, this.m_length, bytes.length);
+    this.m_length += bytes.length;
+  }
+
+  /**
+   * Write markup which is known to be ASCII
+   * 
+   * @param text
+   *          Markup
+   */
+  void writeAscii (String text)
+  {
+    this.copy (text, 0, text.length ());
+  }
+
+  /**
+   * Write a markup character which is known to be ASCII
+   * 
+   * @param c
+   *          Character
+   */
+  void writeAscii (char c)
+  {
+    this.ensure (1);
+    this.m_buffer[this.m_length++] = (byte) c;
+  }
+
+  /**
+   * Write escaped text content or attribute value. The characters &amp;,
+   * &lt;, &gt;, CR and the other control characters are escaped, in attribute
+   * values also the quote, LF and TAB. Characters beyond the BMP are written
+   * as references, in text content also DEL and the C1 controls, as the
+   * LSSerializer does. Runs of ASCII characters without escape are copied in
+   * one piece.
+   * 
+   * @param text
+   *          Text
+   * @param attribute
+   *          Text is a quoted attribute value
+   */
+  void writeText (String text, boolean attribute)
+  {
+    byte[][] entities = attribute ? ATTRIBUTE_ENTITIES : TEXT_ENTITIES;
+    // DEL is a C1 control for the serializer in text content only
+    char plain = attribute ? (char) 0x80 : (char) 0x7f;
+    int end = text.length ();
+    char[] chars = this.chars (text);
+    int start = 0;
+    for (int i = 0; i < end; i++)
+    {
+      // Only characters up to > are escaped
+      char c = chars[i];
+      if (c > '>' ? c < plain : entities[c] == null)
+      {
+        continue;
+      }
+      this.copy (text, start, i);
+      if (c >= plain)
+      {
+        i = this.encode (text, i, end, !attribute, true) - 1;
+      } else
+      {
+        this.write (entities[c]);
+      }
+      start = i + 1;
+    }
+    this.copy (text, start, end);
+  }
+
+  /**
+   * Write text as CDATA sections like the LSSerializer does. The sequence
+   * ]]&gt; can't be part of a CDATA section, the section is split between ]]
+   * and &gt;. Control characters other than TAB, LF and CR are written as
+   * references between the sections. Empty sections are left out, so nothing
+   * is written for an empty text. Like in the serializer a line feed or a
+   * character beyond the BMP does not start a section but is written outside
+   * if none is open, except at the start. Runs of ASCII characters are copied
+   * in one piece.
+   * 
+   * @param text
+   *          Text
+   */
+  void writeCData (String text)
+  {
+    int end = text.length ();
+    char[] chars = this.chars (text);
+    boolean open = false;
+    int start = 0;
+    for (int i = 0; i < end; i++)
+    {
+      char c = chars[i];
+      if (c > '>' ? c < 0x80 : c != '>'
+          && (c >= 0x20 || CDATA_REFERENCES[c] == null)
+          && (c != '\n' || open))
+      {
+        continue;
+      }
+      open = this.section (text, start, i, open);
+      if (c >= 0x80)
+      {
+        if (open)
+        {
+          i = this.encode (text, i, end, false, false) - 1;
+        } else if (Character.isHighSurrogate (c) && i + 1 < end
+            && Character.isLowSurrogate (chars[i + 1]))
+        {
+          // Without an open section the serializer writes a pair outside
+          i = this.encode (text, i, i + 2, false, false) - 1;
+        } else
+        {
+          this.write (CDATA_START);
+          open = true;
+          i = this.encode (text, i, end, false, false) - 1;
+        }
+        start = i + 1;
+      } else if (c == '\n')
+      {
+        if (open)
+        {
+          start = i;
+        } else if (i == 0)
+        {
+          // Only a leading line feed starts a section
+          this.write (CDATA_START);
+          open = true;
+          start = i;
+        } else
+        {
+          this.writeAscii (c);
+          start = i + 1;
+        }
+      } else if (c < 0x20)
+      {
+        if (open)
+        {
+          this.write (CDATA_END);
+          open = false;
+        }
+        this.write (CDATA_REFERENCES[c]);
+        start = i + 1;
+      } else
+      {
+        if (i >= 2 && chars[i - 1] == ']' && chars[i - 2] == ']')
+        {
+          this.write (CDATA_SPLIT);
+        }
+        // The > starts the next run
+        start = i;
+      }
+    }
+    if (this.section (text, start, end, open))
+    {
+      this.write (CDATA_END);
+    }
+  }
+
+  /**
+   * Copy a run of ASCII characters into a CDATA section, the section is
+   * started if it is not open yet
+   * 
+   * @param text
+   *          Text
+   * @param start
+   *          First character
+   * @param end
+   *          End of the characters
+   * @param open
+   *          A section is open
+   * @return true if a section is open
+   */
+  private boolean section (String text, int start, int end, boolean open)
+  {
+    if (start == end)
+    {
+      return open;
+    }
+    if (!open)
+    {
+      this.write (CDATA_START);
+    }
+    this.copy (text, start, end);
+    return true;
+  }
+
+  /**
+   * Get the number of bytes written
+   * 
+   * @return Bytes
+   */
+  int size ()
+  {
+    return this.m_length;
+  }
+
+  /**
+   * Write the bytes to a stream and discard them
+   * 
+   * @param out
+   *          Stream
+   * @throws IOException
+   *           Error writing to the stream
+   */
+  void writeTo (OutputStream out) throws IOException
+  {
+    out.write (this.m_buffer, 0, this.m_length);
+    this.m_length = 0;
+  }
+
+  /**
+   * Get the written bytes
+   * 
+   * @return Bytes, the buffer itself if it is full
+   */
+  byte[] toByteArray ()
+  {
+    if (this.m_length == this.m_buffer.length)
+    {
+      return this.m_buffer;
+    }
+    byte[] bytes = new byte[this.m_length];
+    System.arraycopy (this.m_buffer, 0, bytes, 0, this.m_length);
+    return bytes;
+  }
+
+  /**
+   * Discard the written bytes
+   */
+  void reset ()
+  {
+    if (this.m_length == this.m_buffer.length)
+    {
+      // The buffer may have been handed out by toByteArray
+      this.m_buffer = new byte[this.m_buffer.length];
+    }
+    this.m_length = 0;
+  }
+
+  /**
+   * Get the characters of a text
+   * 
+   * @param text
+   *          Text
+   * @return Reused array starting with the characters
+   */
+  private char[] chars (String text)
+  {
+    if (text.length () > this.m_chars.length)
+    {
+      this.m_chars = new char[Math.max (text.length (),
+          this.m_chars.length * 2)];
+    }
+    text.getChars (0, text.length (), this.m_chars, 0);
+    return this.m_chars;
+  }
+
+  /**
+   * Copy ASCII characters, the low byte of a char is its UTF-8 encoding
+   * 
+   * @param text
+   *          Text
+   * @param start
+   *          First character
+   * @param end
+   *          End of the characters
+   */
+  @SuppressWarnings ("deprecation")
+  private void copy (String text, int start, int end)
+  {
+    this.ensure (end - start);
+    text.getBytes (start, end, this.m_buffer, this.m_length);
+    this.m_length += end - start;
+  }
+
+  /**
+   * Encode a run of characters from 0x80 on as UTF-8. A surrogate pair is
+   * encoded as one code point, an unpaired surrogate is replaced by ? like the
+   * UTF-8 encoder of the runtime does.
+   * 
+   * @param text
+   *          Text
+   * @param start
+   *          First character of the run
+   * @param end
+   *          End of the text
+   * @param controls
+   *          Write DEL and the C1 controls as references
+   * @param supplementary
+   *          Write characters beyond the BMP as references
+   * @return Position of the first character after the run
+   */
+  private int encode (String text, int start, int end, boolean controls,
+      boolean supplementary)
+  {
+    // At most three bytes per character are needed for the rest, a
+    // reference takes at most six
+    this.ensure ((controls || supplementary ? 6 : 3) * (end - start));
+    byte[] buffer = this.m_buffer;
+    int length = this.m_length;
+    int i = start;
+    while (i < end)
+    {
+      char c = text.charAt (i);
+      if (c < 0x7f || c == 0x7f && !controls)
+      {
+        break;
+      }
+      i++;
+      if (controls && c <= 0x9f)
+      {
+        length = reference (buffer, length, c);
+        continue;
+      }
+      if (c < 0x800)
+      {
+        buffer[length++] = (byte) (0xc0 | c >> 6);
+      } else if (Character.isHighSurrogate (c) && i < end
+          && Character.isLowSurrogate (text.charAt (i)))
+      {
+        int code = Character.toCodePoint (c, text.charAt (i++));
+        if (supplementary)
+        {
+          length = reference (buffer, length, code);
+          continue;
+        }
+        buffer[length++] = (byte) (0xf0 | code >> 18);
+        buffer[length++] = (byte) (0x80 | code >> 12 & 0x3f);
+        buffer[length++] = (byte) (0x80 | code >> 6 & 0x3f);
+        buffer[length++] = (byte) (0x80 | code & 0x3f);
+        continue;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+      {
+        buffer[length++] = '?';
+        continue;
+      } else
+      {
+        buffer[length++] = (byte) (0xe0 | c >> 12);
+        buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+      }
+      buffer[length++] = (byte) (0x80 | c & 0x3f);
+    }
+    this.m_length = length;
+    return i;
+  }
+
+  /**
+   * Write a decimal character reference
+   * 
+   * @param buffer
+   *          Buffer with room for the reference
+   * @param length
+   *          Position to write to
+   * @param code
+   *          Code point
+   * @return Position after the reference
+   */
+  private static int reference (byte[] buffer, int length, int code)
+  {
+    String digits = Integer.toString (code);
+    buffer[length++] = '&';
+    buffer[length++] = '#';
+    for (int i = 0; i < digits.length (); i++)
+    {
+      buffer[length++] = (byte) digits.charAt (i);
+    }
+    buffer[length++] = ';';
+    return length;
+  }
+
+  /**
+   * Make room for more bytes
+   * 
+   * @param bytes
+   *          Number of bytes to add
+   */
+  private void ensure (int bytes)
+  {
+    if (this.m_length + bytes > this.m_buffer.length)
+    {
+      byte[] buffer = new byte[Math.max (this.m_length + bytes,
+          this.m_buffer.length * 2)];
+      System.arraycopy (this.m_buffer, 0, buffer, 0, this.m_length);
+      this.m_buffer = buffer;
+    }
+  }
+
+  /**
+   * Get the bytes of ASCII markup
+   * 
+   * @param text
+   *          Markup
+   * @return Bytes
+   */
+  private static byte[] ascii (String text)
+  {
+    byte[] bytes = new byte[text.length ()];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      bytes[i] = (byte) text.charAt (i);
+    }
+    return bytes;
+  }
+}
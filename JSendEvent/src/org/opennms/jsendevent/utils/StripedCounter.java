@@ -0,0 +1,133 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for values updated by many threads. Each thread adds to one of
+ * several cells chosen by its thread id, the cells are a cache line apart, so
+ * concurrent updates neither wait for a lock nor contend for the same cache
+ * line. Reading sums up the cells.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class StripedCounter
+{
+  /** Number of cells, a power of two */
+  private static final int STRIPES = 16;
+
+  /** Longs per cache line between two cells */
+  private static final int PADDING = 8;
+
+  /** Cells with the partial sums */
+  private AtomicLongArray m_cells;
+
+  /**
+   * Constructor for a counter starting at 0
+   */
+  public StripedCounter ()
+  {
+    this.m_cells = new AtomicLongArray (STRIPES * PADDING);
+  }
+
+  /**
+   * Add one
+   */
+  public void increment ()
+  {
+    this.m_cells.incrementAndGet (cell ());
+  }
+
+  /**
+   * Add a value
+   * 
+   * @param delta
+   *          Value to add
+   */
+  public void add (long delta)
+  {
+    this.m_cells.addAndGet (cell (), delta);
+  }
+
+  /**
+   * Get the current sum. Updates running concurrently may or may not be
+   * included.
+   * 
+   * @return Sum of all cells
+   */
+  public long get ()
+  {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++)
+    {
+      sum += this.m_cells.get (i * PADDING);
+    }
+    return sum;
+  }
+
+  /**
+   * Set the counter back to 0
+   */
+  public void reset ()
+  {
+    for (int i = 0; i < STRIPES; i++)
+    {
+      this.m_cells.set (i * PADDING, 0);
+    }
+  }
+
+  /**
+   * Sum as text
+   * 
+   * @return Sum
+   */
+  public String toString ()
+  {
+    return String.valueOf (this.get ());
+  }
+
+  /**
+   * Get the cell of the current thread
+   * 
+   * @return Index of the cell
+   */
+  private static int cell ()
+  {
+    long id = Thread.currentThread ().getId ();
+    return (int) ((id ^ (id >>> 4)) & (STRIPES - 1)) * PADDING;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the OpenNMS(R) Application.
+ *
+ * OpenNMS(R) is Copyright (C) 2009 The OpenNMS Group, Inc.  All rights reserved.
+ * OpenNMS(R) is a derivative work, containing both original code, included code and modified
+ * code that was published under the GNU General Public License. Copyrights for modified
+ * and included code are below.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * Modifications:
+ *
+ * Original code base Copyright (C) 1999-2001 Oculan Corp.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ * For more information contact: 
+ *      OpenNMS Licensing       <license@opennms.org>
+ *      http://www.opennms.org/
+ *      http://www.opennms.com/
+ *
+ */
+
+package org.opennms.jsendevent.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. The bucket is kept as the theoretical arrival time
+ * of the next event (generic cell rate algorithm): every event moves it by the
+ * emission interval, an event conforms if the arrival time is not more than
+ * the burst ahead of now. Taking tokens is a single compare-and-set. More
+ * tokens than the burst are taken from a full bucket, the bucket is then in
+ * debt until they are paid back at the rate.
+ * 
+ * @author indigo@open-factory.org
+ */
+public class TokenBucket
+{
+  /** Nanoseconds per token */
+  private long m_interval;
+
+  /** Nanoseconds the arrival time may be ahead of now */
+  private long m_tolerance;
+
+  /** Theoretical arrival time of the next event in nanoseconds */
+  private AtomicLong m_arrival;
+
+  /**
+   * Constructor for a full bucket
+   * 
+   * @param rate
+   *          Tokens per second
+   * @param burst
+   *          Tokens which can be taken at once
+   */
+  public TokenBucket (double rate, int burst)
+  {
+    this.m_interval = Math.max (1, (long) (1e9 / rate));
+    this.m_tolerance = this.m_interval * Math.max (1, burst);
+    this.m_arrival = new AtomicLong (System.nanoTime ());
+  }
+
+  /**
+   * Take tokens if the bucket holds enough of them, or if it is full and more
+   * tokens than the burst are taken
+   * 
+   * @param tokens
+   *          Tokens to take
+   * @return true if the tokens were taken
+   */
+  public boolean tryTake (int tokens)
+  {
+    long now = System.nanoTime ();
+    while (true)
+    {
+      long arrival = this.m_arrival.get ();
+      long next = Math.max (arrival, now) + tokens * this.m_interval;
+      if (this.excess (next, now, tokens) > 0)
+      {
+        return false;
+      }
+      if (this.m_arrival.compareAndSet (arrival, next))
+      {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Take tokens even if the bucket does not hold enough of them
+   * 
+   * @param tokens
+   *          Tokens to take
+   * @return Nanoseconds to wait until the tokens would have been available, 0
+   *         if they were available
+   */
+  public long take (int tokens)
+  {
+    long now = System.nanoTime ();
+    while (true)
+    {
+      long arrival = this.m_arrival.get ();
+      long next = Math.max (arrival, now) + tokens * this.m_interval;
+      if (this.m_arrival.compareAndSet (arrival, next))
+      {
+        return Math.max (0, this.excess (next, now, tokens));
+      }
+    }
+  }
+
+  /**
+   * Get the time the tokens are taken too early. A cost over the burst is
+   * capped at the burst, so it is taken from a full bucket.
+   * 
+   * @param next
+   *          Arrival time after taking the tokens
+   * @param now
+   *          Current time
+   * @param tokens
+   *          Tokens taken
+   * @return Nanoseconds too early, not positive if the tokens conform
+   */
+  private long excess (long next, long now, int tokens)
+  {
+    long cost = tokens * this.m_interval;
+    return next - now - Math.max (0, cost - this.m_tolerance)
+        - this.m_tolerance;
+  }
+
+  /**
+   * Give back tokens taken before, for example if another bucket refused the
+   * event
+   * 
+   * @param tokens
+   *          Tokens to give back
+   */
+  public void giveBack (int tokens)
+  {
+    this.m_arrival.addAndGet (-tokens * this.m_interval);
+  }
+}